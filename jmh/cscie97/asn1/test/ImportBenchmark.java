@@ -0,0 +1,137 @@
+package cscie97.asn1.test;
+
+import cscie97.asn1.knowledge.engine.Importer;
+import cscie97.asn1.knowledge.engine.KnowledgeGraph;
+import cscie97.asn1.knowledge.engine.Node;
+import cscie97.asn1.knowledge.engine.Predicate;
+import cscie97.asn1.knowledge.engine.Triple;
+import cscie97.asn1.knowledge.engine.exception.ImportException;
+import cscie97.asn1.knowledge.engine.exception.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of importing a whole synthetic graph into an empty KnowledgeGraph: from its Triple file, one line
+ * at a time and with the bulk loader, and from Triples built beforehand, in batches with
+ * {@link KnowledgeGraph#importTriples(List)}.  Each operation is one whole import, so the time per Triple is the
+ * reported time divided by the <code>triples</code> parameter.  The KnowledgeGraph is emptied before each
+ * operation, outside of the measured time.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see SyntheticGraph
+ * @see Importer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ImportBenchmark {
+
+    /**
+     * Number of Triples in each batch of the importTriples benchmark.
+     */
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    /**
+     * The KnowledgeGraph imported into.
+     */
+    private KnowledgeGraph kg;
+
+    /**
+     * The query that matches every Triple, used to empty the KnowledgeGraph.
+     */
+    private Triple everything;
+
+    /**
+     * The generated Triples in batches, built from Nodes and Predicates that the KnowledgeGraph did not create, so
+     * that importing them interns their terms as a caller's Triples would.
+     */
+    private List<List<Triple>> batches;
+
+    /**
+     * Builds the batches of Triples.
+     *
+     * @param graph            the generated graph
+     * @throws ParseException  never, since the query is well formed
+     */
+    @Setup(Level.Trial)
+    public void prepare(SyntheticGraph graph) throws ParseException {
+        kg = KnowledgeGraph.getInstance();
+        everything = kg.getQueryTripleFromStringIdentifier("? ? ?");
+        batches = new ArrayList<List<Triple>>();
+        for (int start = 0; start < graph.triples; start += IMPORT_BATCH_SIZE) {
+            int end = Math.min(graph.triples, start + IMPORT_BATCH_SIZE);
+            List<Triple> batch = new ArrayList<Triple>(end - start);
+            for (int t = start; t < end; t++) {
+                batch.add(new Triple(new Node(GraphGenerator.nodeIdentifier(graph.generated[0][t])),
+                                     new Predicate(GraphGenerator.predicateIdentifier(graph.generated[1][t])),
+                                     new Node(GraphGenerator.nodeIdentifier(graph.generated[2][t]))));
+            }
+            batches.add(batch);
+        }
+    }
+
+    /**
+     * Empties the KnowledgeGraph before each import.
+     */
+    @Setup(Level.Invocation)
+    public void clear() {
+        kg.removeTriples(new ArrayList<Triple>(kg.executeQuery(everything)));
+    }
+
+    /**
+     * Imports the Triple file on the calling thread.
+     *
+     * @param graph             the generated graph
+     * @return                  the number of Triples held afterwards
+     * @throws ImportException  if the file cannot be read
+     * @throws ParseException   if the file cannot be parsed
+     */
+    @Benchmark
+    public long importTripleFile(SyntheticGraph graph) throws ImportException, ParseException {
+        Importer.importTripleFile(graph.tripleFile.getPath());
+        return kg.getMetrics().getTripleCount();
+    }
+
+    /**
+     * Bulk loads the Triple file on the calling thread.
+     *
+     * @param graph             the generated graph
+     * @return                  the number of Triples held afterwards
+     * @throws ImportException  if the file cannot be read
+     * @throws ParseException   if the file cannot be parsed
+     */
+    @Benchmark
+    public long bulkLoadTripleFile(SyntheticGraph graph) throws ImportException, ParseException {
+        Importer.bulkLoadTripleFile(graph.tripleFile.getPath(), 1);
+        return kg.getMetrics().getTripleCount();
+    }
+
+    /**
+     * Imports the Triples built beforehand, one batch at a time.
+     *
+     * @return  the number of Triples held afterwards
+     */
+    @Benchmark
+    public long importTriples() {
+        for (List<Triple> batch : batches) {
+            kg.importTriples(batch);
+        }
+        return kg.getMetrics().getTripleCount();
+    }
+}
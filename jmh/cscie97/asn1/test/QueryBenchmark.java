@@ -0,0 +1,124 @@
+package cscie97.asn1.test;
+
+import cscie97.asn1.knowledge.engine.Importer;
+import cscie97.asn1.knowledge.engine.KnowledgeGraph;
+import cscie97.asn1.knowledge.engine.Triple;
+import cscie97.asn1.knowledge.engine.exception.ImportException;
+import cscie97.asn1.knowledge.engine.exception.ParseException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of the latency of each of the eight wildcard query shapes, and of parsing queries, against a
+ * synthetic graph.  Each shape is run with queries that bind the parts of Triples that are in the graph, so that
+ * every query has results, and the results are iterated so that every matching Triple is built.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see SyntheticGraph
+ * @see KnowledgeGraph#executeQuery(Triple)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    /**
+     * Number of distinct queries run for each bound query shape; a power of two.
+     */
+    private static final int QUERIES_PER_SHAPE = 1024;
+
+    /**
+     * The query shape, with "s", "p", and "o" for the bound parts and "?" for the wildcards.
+     */
+    @Param({"s p o", "s p ?", "s ? o", "s ? ?", "? p o", "? p ?", "? ? o", "? ? ?"})
+    public String shape;
+
+    /**
+     * The KnowledgeGraph queried.
+     */
+    private KnowledgeGraph kg;
+
+    /**
+     * The query strings of the shape.
+     */
+    private String[] queries;
+
+    /**
+     * The parsed queries of the shape.
+     */
+    private Triple[] parsedQueries;
+
+    /**
+     * The number of the next query to run.
+     */
+    private int next;
+
+    /**
+     * Imports the graph and builds the queries of the shape.
+     *
+     * @param graph             the generated graph
+     * @throws ImportException  if the Triple file cannot be read
+     * @throws ParseException   if the Triple file or a query cannot be parsed
+     */
+    @Setup(Level.Trial)
+    public void prepare(SyntheticGraph graph) throws ImportException, ParseException {
+        kg = KnowledgeGraph.getInstance();
+        Importer.importTripleFile(graph.tripleFile.getPath());
+        String[] parts = shape.split(" ");
+        boolean subjectBound = !parts[0].equals("?");
+        boolean predicateBound = !parts[1].equals("?");
+        boolean objectBound = !parts[2].equals("?");
+        int queryCount = (subjectBound || predicateBound || objectBound) ? QUERIES_PER_SHAPE : 1;
+
+        Random random = new Random(3);
+        queries = new String[queryCount];
+        parsedQueries = new Triple[queryCount];
+        for (int q = 0; q < queryCount; q++) {
+            queries[q] = graph.query(random.nextInt(graph.triples), subjectBound, predicateBound, objectBound);
+            parsedQueries[q] = kg.getQueryTripleFromStringIdentifier(queries[q]);
+        }
+    }
+
+    /**
+     * Executes a parsed query and iterates over its results.
+     *
+     * @param blackhole  consumes each result
+     */
+    @Benchmark
+    public void executeQuery(Blackhole blackhole) {
+        for (Triple triple : kg.executeQuery(parsedQueries[next])) {
+            blackhole.consume(triple);
+        }
+        next = (next + 1) & (parsedQueries.length - 1);
+    }
+
+    /**
+     * Parses a query string into a query Triple.
+     *
+     * @return                 the parsed query
+     * @throws ParseException  never, since the queries are well formed
+     */
+    @Benchmark
+    public Triple getQueryTripleFromStringIdentifier() throws ParseException {
+        Triple query = kg.getQueryTripleFromStringIdentifier(queries[next]);
+        next = (next + 1) & (queries.length - 1);
+        return query;
+    }
+}
@@ -0,0 +1,97 @@
+package cscie97.asn1.test;
+
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * JMH state holding a synthetic graph generated by {@link GraphGenerator}, both as arrays of Node and Predicate
+ * numbers and as a Triple file.  The size and skew of the graph are JMH parameters, so they can be changed from the
+ * command line with <code>-p nodes=...</code> and so on.  The graph is generated once per benchmark run, and is not
+ * imported; each benchmark decides how to load it.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see GraphGenerator
+ * @see ImportBenchmark
+ * @see QueryBenchmark
+ */
+@State(Scope.Benchmark)
+public class SyntheticGraph {
+
+    /**
+     * The number of distinct Nodes in the graph.
+     */
+    @Param({"20000"})
+    public int nodes;
+
+    /**
+     * The number of distinct Predicates in the graph.
+     */
+    @Param({"50"})
+    public int predicates;
+
+    /**
+     * The number of Triples to generate; repeated Triples are generated too, so the graph may hold fewer.
+     */
+    @Param({"200000"})
+    public int triples;
+
+    /**
+     * The Zipf exponent of the degree distribution; 0 for uniform.
+     */
+    @Param({"1.0"})
+    public double skew;
+
+    /**
+     * The Node number of each Triple's subject, the Predicate number of each Triple's predicate, and the Node
+     * number of each Triple's object.
+     */
+    int[][] generated;
+
+    /**
+     * The file the generated Triples were written to.
+     */
+    File tripleFile;
+
+    /**
+     * Generates the graph and writes it to a temporary Triple file.
+     *
+     * @throws IOException  if the Triple file cannot be written
+     */
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        generated = new GraphGenerator(nodes, predicates, skew, 1).generate(triples);
+        tripleFile = File.createTempFile("benchmark", ".nt");
+        tripleFile.deleteOnExit();
+        GraphGenerator.writeTripleFile(generated, tripleFile.getPath());
+    }
+
+    /**
+     * Deletes the Triple file.
+     */
+    @TearDown(Level.Trial)
+    public void delete() {
+        tripleFile.delete();
+    }
+
+    /**
+     * Returns the query for one generated Triple with only the chosen parts bound, and the others "?".
+     *
+     * @param t               the number of the generated Triple
+     * @param subjectBound    true to bind the subject
+     * @param predicateBound  true to bind the predicate
+     * @param objectBound     true to bind the object
+     * @return                the query string
+     */
+    String query(int t, boolean subjectBound, boolean predicateBound, boolean objectBound) {
+        return (subjectBound ? GraphGenerator.nodeIdentifier(generated[0][t]) : "?") + " "
+               + (predicateBound ? GraphGenerator.predicateIdentifier(generated[1][t]) : "?") + " "
+               + (objectBound ? GraphGenerator.nodeIdentifier(generated[2][t]) : "?");
+    }
+}
@@ -0,0 +1,96 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only CharSequence view of a range of bytes, such as a memory-mapped region of a Triple file.  Each byte is
+ * presented as one character without decoding, which is exact for the ASCII characters that make up Triple
+ * delimiters and most term identifiers, so lines can be tokenized and terms looked up in a TermDictionary straight
+ * from the mapped bytes.  Only {@link #toString()} decodes the bytes with the file's character encoding, so it must
+ * be used for any range that is not {@link #isAscii(int, int) ASCII}.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see ImportChunk
+ * @see TripleTokenizer
+ */
+final class ByteCharSequence implements CharSequence {
+
+    /**
+     * The bytes being viewed; only absolute gets are used, so the buffer's position is never changed.
+     */
+    private final ByteBuffer bytes;
+
+    /**
+     * The offset in the buffer of the first byte of the view.
+     */
+    private final int offset;
+
+    /**
+     * The number of bytes in the view.
+     */
+    private final int length;
+
+    /**
+     * The character encoding used by {@link #toString()}.
+     */
+    private final Charset charset;
+
+    /**
+     * Class constructor.
+     *
+     * @param bytes    the bytes to view
+     * @param offset   the offset in the buffer of the first byte of the view
+     * @param length   the number of bytes in the view
+     * @param charset  the character encoding of the bytes
+     */
+    ByteCharSequence(ByteBuffer bytes, int offset, int length, Charset charset) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.charset = charset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        return (char) (bytes.get(offset + index) & 0xff);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return new ByteCharSequence(bytes, offset + start, end - start, charset);
+    }
+
+    /**
+     * Returns whether a range of the view holds only ASCII bytes, so that its characters are exactly its bytes.
+     *
+     * @param start  the offset of the first byte of the range
+     * @param end    the offset after the last byte of the range
+     * @return       true if every byte of the range is ASCII
+     */
+    boolean isAscii(int start, int end) {
+        for (int i = offset + start; i < offset + end; i++) {
+            if (bytes.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the bytes of the view into a new String.
+     *
+     * @return  the decoded characters of the view
+     */
+    @Override
+    public String toString() {
+        byte[] copy = new byte[length];
+        for (int i = 0; i < length; i++) {
+            copy[i] = bytes.get(offset + i);
+        }
+        return new String(copy, charset);
+    }
+}
@@ -0,0 +1,406 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps every posting list on the heap, delta-encoded in blocks as described by {@link PostingList.Compressed}.
+ * Values within a posting list share their key and are sorted, so neighbouring values are close together and most
+ * take one to three bytes instead of eight.
+ * <p>
+ * Most keys of a large graph hold only a few Triples, and an array per key would cost more in its header than its
+ * values take once encoded.  The encoded posting lists are therefore packed into shared byte array pages, and the
+ * only other heap used per key is one long holding the location of its posting list.  Pages are managed like the
+ * slabs of an {@link OffHeapPostingStore}: each new posting list is appended to the current page, the one it
+ * replaces is left behind as garbage, and once the garbage outgrows the live posting lists, every live posting
+ * list is copied into new pages and the old pages are dropped.  A view refers to its page directly, so a reader
+ * that finds a dropped page only has to read the location again.
+ * <p>
+ * Reads decode each block they touch, and seeks use the skip table to decode only the block they land in.  Writes
+ * encode the whole posting list again, so this store suits graphs that are loaded once and then mostly queried.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see PostingStore
+ * @see PostingList.Compressed
+ */
+class CompressedPostingStore extends PostingStore {
+
+    /**
+     * The size of the first page: 16 KB.  Each later page is twice as large as the one before, up to
+     * {@link #PAGE_BYTES}, so a small graph does not reserve much memory.
+     */
+    static final int MIN_PAGE_BYTES = 1 << 14;
+
+    /**
+     * The size of each page once the store has grown, unless a longer posting list needs a page of its own:
+     * 256 KB, which is under half of the smallest G1 region, so pages are not allocated as humongous objects.
+     */
+    static final int PAGE_BYTES = 1 << 18;
+
+    /**
+     * The pages by number; pages that were dropped by a compaction are null.  A larger copy is published when a
+     * page is added.
+     */
+    private volatile byte[][] pages = new byte[0][];
+
+    /**
+     * The location of each key's posting list: the page number plus one in the high 32 bits and the offset of
+     * the range in the low 32 bits, or 0 if the key has no values.  When more keys are needed, a larger copy is
+     * published.
+     */
+    private volatile AtomicLongArray locations = new AtomicLongArray(16);
+
+    /**
+     * The number of the page posting lists are appended to, or -1 before the first page.  Used only by the writer.
+     */
+    private int currentPage = -1;
+
+    /**
+     * The offset in the current page at which the next posting list is appended.  Used only by the writer.
+     */
+    private int currentOffset = 0;
+
+    /**
+     * The size of the next page, unless a longer posting list needs more.  Used only by the writer.
+     */
+    private int nextPageBytes = MIN_PAGE_BYTES;
+
+    /**
+     * The number of bytes in the pages used by live posting lists.
+     */
+    private volatile long liveBytes = 0;
+
+    /**
+     * The number of bytes in the pages left behind by replaced posting lists and by page ends too short for the
+     * next posting list.
+     */
+    private volatile long garbageBytes = 0;
+
+    /**
+     * The total size of the pages that have not been dropped, in bytes.
+     */
+    private volatile long allocatedBytes = 0;
+
+    /**
+     * Returns a view of the current posting list of a key.
+     *
+     * @param key  the key
+     * @return     the posting list, or {@link PostingList#EMPTY} if the key has no values
+     */
+    @Override
+    PostingList get(int key) {
+        while (true) {
+            AtomicLongArray current = locations;
+            long location = (key >= 0 && key < current.length()) ? current.get(key) : 0;
+            if (location == 0) {
+                return PostingList.EMPTY;
+            }
+            byte[] page = pages[(int) (location >>> 32) - 1];
+            if (page != null) {
+                return new PostingList.Compressed(page, (int) location);
+            }
+            // a compaction dropped the page after the location was read, and has already moved the posting list
+        }
+    }
+
+    /**
+     * Returns the length of the current posting list of a key, read from the start of its range without decoding
+     * any block.
+     *
+     * @param key  the key
+     * @return     the number of values held for the key
+     */
+    @Override
+    int length(int key) {
+        while (true) {
+            AtomicLongArray current = locations;
+            long location = (key >= 0 && key < current.length()) ? current.get(key) : 0;
+            if (location == 0) {
+                return 0;
+            }
+            byte[] page = pages[(int) (location >>> 32) - 1];
+            if (page != null) {
+                return (int) PostingList.Compressed.readVarint(page, (int) location);
+            }
+        }
+    }
+
+    /**
+     * Publishes a new posting list for a key by encoding it into a page.  The posting list it replaces becomes
+     * garbage, and the pages are compacted once the garbage outgrows the live posting lists.
+     *
+     * @param key     the key
+     * @param values  the sorted values; empty to remove the key's values
+     */
+    @Override
+    void set(int key, long[] values) {
+        AtomicLongArray current = locations;
+        if (key >= current.length()) {
+            if (values.length == 0) {
+                return;
+            }
+            AtomicLongArray grown = new AtomicLongArray(Math.max(key + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            locations = grown;
+            current = grown;
+        }
+
+        long old = current.get(key);
+        if (old != 0) {
+            int oldBytes = rangeLength(pages[(int) (old >>> 32) - 1], (int) old);
+            liveBytes -= oldBytes;
+            garbageBytes += oldBytes;
+        }
+        current.set(key, (values.length == 0) ? 0 : append(values));
+        if (garbageBytes > liveBytes && garbageBytes >= MIN_PAGE_BYTES) {
+            compact();
+        }
+    }
+
+    /**
+     * Encodes a posting list at the end of the current page, first adding a page if it does not fit.
+     *
+     * @param values  the sorted values
+     * @return        the location of the posting list
+     */
+    private long append(long[] values) {
+        int body = bodyLength(values);
+        long needed = (long) varintLength(values.length) + varintLength(body) + body;
+        if (needed > Integer.MAX_VALUE) {
+            throw new IllegalStateException("a posting list of ["+values.length+"] values is too long to compress");
+        }
+        ensureRoom((int) needed);
+        encode(values, body, pages[currentPage], currentOffset);
+        long location = ((long) (currentPage + 1) << 32) | currentOffset;
+        currentOffset += needed;
+        liveBytes += needed;
+        return location;
+    }
+
+    /**
+     * Makes sure the current page has room for a range, adding a page if it does not.
+     *
+     * @param needed  the length of the range in bytes
+     */
+    private void ensureRoom(int needed) {
+        if (currentPage < 0 || pages[currentPage].length - currentOffset < needed) {
+            if (currentPage >= 0) {
+                garbageBytes += pages[currentPage].length - currentOffset;
+            }
+            addPage(Math.max(nextPageBytes, needed));
+        }
+    }
+
+    /**
+     * Allocates a new page and makes it the current page.  The page is published before any location points
+     * into it.
+     *
+     * @param capacity  the size of the page in bytes
+     */
+    private void addPage(int capacity) {
+        byte[][] grown = Arrays.copyOf(pages, pages.length + 1);
+        grown[grown.length - 1] = new byte[capacity];
+        pages = grown;
+        currentPage = grown.length - 1;
+        currentOffset = 0;
+        allocatedBytes += capacity;
+        nextPageBytes = Math.min(PAGE_BYTES, nextPageBytes * 2);
+    }
+
+    /**
+     * Copies every live posting list into new pages, moves each location, and then drops the old pages.  Ranges
+     * hold only offsets from their own start, so they are copied without decoding them.
+     */
+    private void compact() {
+        int firstNewPage = pages.length;
+        currentPage = -1;
+        nextPageBytes = (int) Math.min(PAGE_BYTES, Math.max(MIN_PAGE_BYTES, liveBytes));
+        liveBytes = 0;
+        garbageBytes = 0;
+
+        AtomicLongArray current = locations;
+        for (int key = 0; key < current.length(); key++) {
+            long location = current.get(key);
+            if (location == 0) {
+                continue;
+            }
+            byte[] source = pages[(int) (location >>> 32) - 1];
+            int offset = (int) location;
+            int needed = rangeLength(source, offset);
+            ensureRoom(needed);
+            System.arraycopy(source, offset, pages[currentPage], currentOffset, needed);
+            current.set(key, ((long) (currentPage + 1) << 32) | currentOffset);
+            currentOffset += needed;
+            liveBytes += needed;
+        }
+
+        byte[][] remaining = pages.clone();
+        long droppedBytes = 0;
+        for (int i = 0; i < firstNewPage; i++) {
+            if (remaining[i] != null) {
+                droppedBytes += remaining[i].length;
+                remaining[i] = null;
+            }
+        }
+        pages = remaining;
+        allocatedBytes -= droppedBytes;
+    }
+
+    /**
+     * Returns the length of the range holding an encoded posting list, from the two varints that start it.
+     *
+     * @param page    the page holding the range
+     * @param offset  the offset of the range in the page
+     * @return        the length of the range in bytes
+     */
+    private static int rangeLength(byte[] page, int offset) {
+        long count = PostingList.Compressed.readVarint(page, offset);
+        long body = PostingList.Compressed.readVarint(page, (int) (count >>> 32));
+        return (int) (body >>> 32) - offset + (int) body;
+    }
+
+    /**
+     * Returns the length of an encoded posting list after its two leading varints: the skip table plus the blocks.
+     *
+     * @param values  the sorted values; not empty
+     * @return        the length in bytes
+     */
+    static int bodyLength(long[] values) {
+        int blockCount = (values.length + PostingList.Compressed.BLOCK_SIZE - 1) >>> PostingList.Compressed.BLOCK_SHIFT;
+        long length = (long) (blockCount - 1) * PostingList.Compressed.SKIP_ENTRY_BYTES
+                      + varintLength(values[0] >>> 32) + varintLength(values[0] & 0xffffffffL);
+        for (int i = 1; i < values.length; i++) {
+            if ((i & (PostingList.Compressed.BLOCK_SIZE - 1)) != 0) {
+                long previous = values[i - 1];
+                long value = values[i];
+                long highDelta = (value >>> 32) - (previous >>> 32);
+                if (highDelta == 0) {
+                    length += varintLength((value - previous) << 1);
+                }
+                else {
+                    length += varintLength((highDelta << 1) | 1) + varintLength(value & 0xffffffffL);
+                }
+            }
+        }
+        return (int) Math.min(length, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Encodes a sorted posting list into a page, in the layout described by {@link PostingList.Compressed}.
+     *
+     * @param values  the sorted values; not empty
+     * @param body    the length of the encoding after its two leading varints, from {@link #bodyLength(long[])}
+     * @param target  the page to write to
+     * @param base    the offset in the page of the start of the range
+     */
+    static void encode(long[] values, int body, byte[] target, int base) {
+        int blockCount = (values.length + PostingList.Compressed.BLOCK_SIZE - 1) >>> PostingList.Compressed.BLOCK_SHIFT;
+        int skipStart = writeVarint(target, writeVarint(target, base, values.length), body);
+        int offset = skipStart + (blockCount - 1) * PostingList.Compressed.SKIP_ENTRY_BYTES;
+        offset = writeVarint(target, offset, values[0] >>> 32);
+        offset = writeVarint(target, offset, values[0] & 0xffffffffL);
+        for (int i = 1; i < values.length; i++) {
+            long previous = values[i - 1];
+            long value = values[i];
+            if ((i & (PostingList.Compressed.BLOCK_SIZE - 1)) == 0) {
+                int entry = skipStart + ((i >>> PostingList.Compressed.BLOCK_SHIFT) - 1) * PostingList.Compressed.SKIP_ENTRY_BYTES;
+                for (int b = 7; b >= 0; b--) {
+                    target[entry++] = (byte) (value >>> (8 * b));
+                }
+                int blockOffset = offset - base;
+                target[entry++] = (byte) (blockOffset >>> 24);
+                target[entry++] = (byte) (blockOffset >>> 16);
+                target[entry++] = (byte) (blockOffset >>> 8);
+                target[entry] = (byte) blockOffset;
+                continue;
+            }
+            long highDelta = (value >>> 32) - (previous >>> 32);
+            if (highDelta == 0) {
+                offset = writeVarint(target, offset, (value - previous) << 1);
+            }
+            else {
+                offset = writeVarint(target, offset, (highDelta << 1) | 1);
+                offset = writeVarint(target, offset, value & 0xffffffffL);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes needed to write a value as an unsigned varint.
+     *
+     * @param value  the value, treated as unsigned
+     * @return       the length of its varint, from 1 to 10
+     */
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a value as an unsigned varint: 7 bits per byte, lowest first, with the top bit set on every byte but
+     * the last.
+     *
+     * @param target  the array to write to
+     * @param offset  the offset of the first byte to write
+     * @param value   the value, treated as unsigned
+     * @return        the offset just after the varint
+     */
+    private static int writeVarint(byte[] target, int offset, long value) {
+        while ((value & ~0x7fL) != 0) {
+            target[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Returns one more than the largest key that may have a posting list, for iterating over every key.
+     *
+     * @return  the exclusive upper bound of the keys
+     */
+    @Override
+    int keyLimit() {
+        return locations.length();
+    }
+
+    /**
+     * Returns an estimate of the heap used by the store: the locations and the pages, including the garbage in
+     * them that has not been compacted yet.
+     *
+     * @param keys    the number of keys that have values
+     * @param values  the total number of values
+     * @return        the estimated size in bytes
+     */
+    @Override
+    long estimateHeapBytes(long keys, long values) {
+        return 32 + 8L * locations.length() + 20L * pages.length + allocatedBytes;
+    }
+
+    /**
+     * Returns the memory the store has allocated outside of the heap, which is none.
+     *
+     * @return  0
+     */
+    @Override
+    long offHeapBytes() {
+        return 0;
+    }
+
+    /**
+     * Creates an empty compressed store.
+     *
+     * @return  the new store
+     */
+    @Override
+    PostingStore newEmpty() {
+        return new CompressedPostingStore();
+    }
+}
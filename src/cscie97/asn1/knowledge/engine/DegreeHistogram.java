@@ -0,0 +1,108 @@
+package cscie97.asn1.knowledge.engine;
+
+/**
+ * A read-only copy of the degree distribution of one permutation index: how many Nodes (or Predicates) take part in
+ * how many Triples.  Degrees are grouped into power-of-two buckets, so bucket b counts the keys whose degree d is in
+ * the range 2<sup>b</sup> &lt;= d &lt; 2<sup>b+1</sup>; keys that take part in no Triples are not counted.
+ * <p>
+ * The KnowledgeGraph keeps the bucket counts up to date as Triples are added, so taking a copy costs the same no
+ * matter how large the graph is.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#getOutDegreeHistogram()
+ * @see KnowledgeGraph#getInDegreeHistogram()
+ * @see KnowledgeGraph#getPredicateHistogram()
+ */
+public final class DegreeHistogram {
+
+    /**
+     * The number of buckets; enough for any int degree.
+     */
+    static final int BUCKETS = 32;
+
+    /**
+     * The number of keys in each bucket.
+     */
+    private final long[] counts;
+
+    /**
+     * Class constructor.
+     *
+     * @param counts  the number of keys in each bucket; not copied, so must not be modified afterwards
+     */
+    DegreeHistogram(long[] counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * Returns the bucket that a degree is counted in.
+     *
+     * @param degree  a degree of at least 1
+     * @return        the bucket number
+     */
+    static int bucketOf(int degree) {
+        return 31 - Integer.numberOfLeadingZeros(degree);
+    }
+
+    /**
+     * Returns the number of buckets, up to and including the last one that holds any keys.
+     *
+     * @return  the number of buckets in use
+     */
+    public int getBucketCount() {
+        int last = counts.length;
+        while (last > 0 && counts[last - 1] == 0) {
+            last--;
+        }
+        return last;
+    }
+
+    /**
+     * Returns the smallest degree counted in a bucket.
+     *
+     * @param bucket  the bucket number
+     * @return        2 raised to the bucket number
+     */
+    public static long getMinimumDegree(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Returns the number of keys whose degree falls in a bucket.
+     *
+     * @param bucket  the bucket number
+     * @return        the number of keys in the bucket
+     */
+    public long getCount(int bucket) {
+        return (bucket >= 0 && bucket < counts.length) ? counts[bucket] : 0;
+    }
+
+    /**
+     * Returns the number of keys that take part in at least one Triple.
+     *
+     * @return  the total of the bucket counts
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the histogram as one "degree range: count" line per bucket in use.
+     *
+     * @return  the formatted histogram
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int bucket = 0; bucket < getBucketCount(); bucket++) {
+            text.append(getMinimumDegree(bucket)).append('-').append(getMinimumDegree(bucket + 1) - 1)
+                .append(": ").append(counts[bucket]).append('\n');
+        }
+        return text.toString();
+    }
+}
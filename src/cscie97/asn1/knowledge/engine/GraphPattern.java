@@ -0,0 +1,215 @@
+package cscie97.asn1.knowledge.engine;
+
+import cscie97.asn1.knowledge.engine.exception.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A conjunctive query made of one or more Triple patterns that must all match at once, such as
+ * <p><blockquote><code>?x works_at Starbucks . ?x plays_sport Hockey</code></blockquote></p>
+ * Patterns are separated by periods.  Each part of a pattern is either an identifier, the "?" wildcard that matches
+ * anything, or a named variable such as "?x".  Every occurrence of a variable, in any of the patterns, must match
+ * the same Node (or Predicate), so variables join the patterns together.  A variable may be used in the predicate
+ * position or in the subject and object positions, but not both.
+ * <p>
+ * The answer to a GraphPattern is every distinct combination of values of its variables for which all of the
+ * patterns match; see {@link KnowledgeGraph#executeQuery(GraphPattern)}.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#executeQuery(GraphPattern)
+ * @see QueryEngine
+ */
+public final class GraphPattern {
+
+    /**
+     * The parts of each pattern, in query order; each array holds the subject, predicate, and object parts.
+     */
+    private final List<String[]> patterns;
+
+    /**
+     * The names of the variables, including the leading "?", in order of first appearance.
+     */
+    private final List<String> variables;
+
+    /**
+     * Private constructor; GraphPatterns are created by {@link #parse(String)}.
+     *
+     * @param patterns   the parts of each pattern
+     * @param variables  the names of the variables in order of first appearance
+     */
+    private GraphPattern(List<String[]> patterns, List<String> variables) {
+        this.patterns = patterns;
+        this.variables = variables;
+    }
+
+    /**
+     * Parses a conjunctive query.  Parts are separated by whitespace, and patterns by a period at the end of a
+     * part or on its own; a period after the last pattern is optional.
+     *
+     * @param query            the query to parse
+     * @return                 the parsed GraphPattern
+     * @throws ParseException  if a pattern does not have exactly 3 parts, or a variable is used both as a Predicate
+     *                         and as a Node
+     */
+    public static GraphPattern parse(String query) throws ParseException {
+        if (query == null) {
+            throw new ParseException("Graph pattern query must not be null", null, null);
+        }
+        List<String[]> patterns = new ArrayList<String[]>();
+        List<String> variables = new ArrayList<String>();
+        List<String> predicateVariables = new ArrayList<String>();
+        List<String> nodeVariables = new ArrayList<String>();
+
+        List<String> parts = new ArrayList<String>();
+        int end = query.length();
+        int pos = TripleTokenizer.skipSpace(query, 0, end);
+        while (pos < end) {
+            int partEnd = TripleTokenizer.skipPart(query, pos, end);
+            int identifierEnd = partEnd;
+            while (identifierEnd > pos && query.charAt(identifierEnd - 1) == '.') {
+                identifierEnd--;
+            }
+            if (identifierEnd > pos) {
+                parts.add(query.substring(pos, identifierEnd));
+            }
+            pos = TripleTokenizer.skipSpace(query, partEnd, end);
+            boolean patternEnds = identifierEnd < partEnd || pos == end;
+            if (patternEnds && !parts.isEmpty()) {
+                if (parts.size() != 3) {
+                    throw new ParseException("Each graph pattern should have 3 parts, but ["+join(parts)+"] had ["+parts.size()+"] parts", query, null);
+                }
+                for (int position = 0; position < 3; position++) {
+                    String part = parts.get(position);
+                    if (!isVariable(part)) {
+                        continue;
+                    }
+                    List<String> sameKind = (position == 1) ? predicateVariables : nodeVariables;
+                    List<String> otherKind = (position == 1) ? nodeVariables : predicateVariables;
+                    if (otherKind.contains(part)) {
+                        throw new ParseException("Variable ["+part+"] cannot be used both as a Predicate and as a Node", query, null);
+                    }
+                    if (!sameKind.contains(part)) {
+                        sameKind.add(part);
+                    }
+                    if (!variables.contains(part)) {
+                        variables.add(part);
+                    }
+                }
+                patterns.add(parts.toArray(new String[3]));
+                parts.clear();
+            }
+        }
+        if (patterns.isEmpty()) {
+            throw new ParseException("Graph pattern query must contain at least one pattern", query, null);
+        }
+        return new GraphPattern(Collections.unmodifiableList(patterns), Collections.unmodifiableList(variables));
+    }
+
+    /**
+     * Returns whether a query uses any of the features of a GraphPattern (named variables, or more than one
+     * pattern), as opposed to being a single Triple query with only "?" wildcards.
+     *
+     * @param query  the query to check
+     * @return       true if the query must be run as a GraphPattern
+     */
+    public static boolean isGraphPattern(String query) {
+        if (query == null) {
+            return false;
+        }
+        int end = TripleTokenizer.trimEnd(query, 0, query.length());
+        int pos = TripleTokenizer.skipSpace(query, 0, end);
+        while (pos < end) {
+            int partEnd = TripleTokenizer.skipPart(query, pos, end);
+            if (isVariable(query.substring(pos, partEnd)) || query.charAt(partEnd - 1) == '.') {
+                return true;
+            }
+            pos = TripleTokenizer.skipSpace(query, partEnd, end);
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a part of a pattern is a named variable.
+     *
+     * @param part  the part of a pattern
+     * @return      true if the part is a "?" followed by a name
+     */
+    static boolean isVariable(String part) {
+        return part.length() > 1 && part.charAt(0) == '?';
+    }
+
+    /**
+     * Returns whether a part of a pattern is the anonymous "?" wildcard.
+     *
+     * @param part  the part of a pattern
+     * @return      true if the part is exactly "?"
+     */
+    static boolean isWildcard(String part) {
+        return part.equals("?");
+    }
+
+    /**
+     * Joins parts with single spaces.
+     *
+     * @param parts  the parts to join
+     * @return       the joined parts
+     */
+    private static String join(List<String> parts) {
+        StringBuilder joined = new StringBuilder();
+        for (String part : parts) {
+            if (joined.length() > 0) {
+                joined.append(' ');
+            }
+            joined.append(part);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Returns the number of Triple patterns.
+     *
+     * @return  the number of patterns
+     */
+    public int size() {
+        return patterns.size();
+    }
+
+    /**
+     * Returns one part of one pattern.
+     *
+     * @param pattern   the number of the pattern, in query order
+     * @param position  0 for the subject, 1 for the predicate, or 2 for the object
+     * @return          the identifier, variable name, or "?" wildcard
+     */
+    public String getPart(int pattern, int position) {
+        return patterns.get(pattern)[position];
+    }
+
+    /**
+     * Returns the names of the variables, including the leading "?", in order of first appearance.
+     *
+     * @return  a read-only list of the variable names
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Returns the GraphPattern in its normal form, with single spaces between parts and " . " between patterns.
+     *
+     * @return  the normalized query
+     */
+    @Override
+    public String toString() {
+        StringBuilder query = new StringBuilder();
+        for (String[] pattern : patterns) {
+            if (query.length() > 0) {
+                query.append(" . ");
+            }
+            query.append(pattern[0]).append(' ').append(pattern[1]).append(' ').append(pattern[2]);
+        }
+        return query.toString();
+    }
+}
@@ -0,0 +1,579 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates a {@link GraphPattern} against the permutation indexes of the KnowledgeGraph, working only with
+ * dictionary ids until the final solutions are built.
+ * <p>
+ * The patterns are joined one at a time in a greedy order: the pattern matching the fewest Triples comes first, and
+ * each following pattern is the smallest one that shares a variable with the patterns already joined, so the
+ * intermediate results stay small and cross products are only formed when the query asks for one.  The size of
+ * each pattern comes straight from the index range that holds its matches.  Each join then uses the cheapest of:
+ * <ul>
+ *     <li>a merge join, when the intermediate results and the pattern's index range are both in order of the one
+ *         variable they share, such as the two sides of "?x works_at Starbucks . ?x plays_sport Hockey";</li>
+ *     <li>a hash join, when the pattern's index range is small compared with the intermediate results, so it is
+ *         cheaper to read it once than to look it up once per result;</li>
+ *     <li>an index nested loop join otherwise, which looks up the matches of the pattern for each intermediate
+ *         result, with the values of the shared variables filled in.</li>
+ * </ul>
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see GraphPattern
+ * @see KnowledgeGraph#executeQuery(GraphPattern)
+ */
+class GraphPatternEvaluator {
+
+    /**
+     * A hash join is used when the pattern's index range holds at most this many matches per intermediate result.
+     */
+    private static final int HASH_JOIN_FACTOR = 4;
+
+    /**
+     * Value of a variable that has not been bound in an intermediate result.
+     */
+    private static final int UNBOUND = -1;
+
+    /**
+     * The KnowledgeGraph being queried.
+     */
+    private final KnowledgeGraph kg;
+
+    /**
+     * The query being evaluated.
+     */
+    private final GraphPattern query;
+
+    /**
+     * Whether each variable, by number, is used in the predicate position.
+     */
+    private final boolean[] predicateVariable;
+
+    /**
+     * The id of each part of each pattern, or {@link Triple#WILDCARD} for parts that are variables or wildcards.
+     */
+    private final int[][] constants;
+
+    /**
+     * The number of the variable in each part of each pattern, or -1 for parts that are not variables.
+     */
+    private final int[][] variables;
+
+    /**
+     * Whether each pattern has an anonymous "?" wildcard, so that different matches can give its variables the
+     * same values.
+     */
+    private final boolean[] hasWildcard;
+
+    /**
+     * Intermediate results: one array of variable values per result, and the variable (if any) whose values are
+     * in ascending order down the list.
+     */
+    private static class Rows {
+        final List<int[]> list;
+        final int sortedBy;
+
+        Rows(List<int[]> list, int sortedBy) {
+            this.list = list;
+            this.sortedBy = sortedBy;
+        }
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param kg     the KnowledgeGraph to query
+     * @param query  the query to evaluate
+     */
+    GraphPatternEvaluator(KnowledgeGraph kg, GraphPattern query) {
+        this.kg = kg;
+        this.query = query;
+        this.predicateVariable = new boolean[query.getVariables().size()];
+        this.constants = new int[query.size()][3];
+        this.variables = new int[query.size()][3];
+        this.hasWildcard = new boolean[query.size()];
+    }
+
+    /**
+     * Evaluates the query.
+     *
+     * @return  a read-only list of the distinct solutions, each a read-only map from variable name to the
+     *          identifier of its value
+     */
+    List<Map<String, String>> evaluate() {
+        if (!resolve()) {
+            return Collections.emptyList();
+        }
+
+        long[] sizes = new long[query.size()];
+        for (int pattern = 0; pattern < query.size(); pattern++) {
+            sizes[pattern] = matches(pattern, constants[pattern]).size();
+            if (sizes[pattern] == 0) {
+                return Collections.emptyList();
+            }
+        }
+
+        // patterns without variables only need to match something, which has just been checked
+        int[] order = joinOrder(sizes);
+        if (order.length == 0) {
+            return Collections.singletonList(Collections.<String, String>emptyMap());
+        }
+        boolean[] bound = new boolean[predicateVariable.length];
+        Rows rows = scan(order[0]);
+        markBound(order[0], bound);
+        for (int i = 1; i < order.length && !rows.list.isEmpty(); i++) {
+            rows = join(rows, order[i], bound);
+            markBound(order[i], bound);
+        }
+        return toSolutions(rows.list);
+    }
+
+    /**
+     * Resolves each part of each pattern to an id or a variable number.
+     *
+     * @return  false if a pattern names a Node or Predicate that the KnowledgeGraph does not hold, so nothing
+     *          can match
+     */
+    private boolean resolve() {
+        List<String> names = query.getVariables();
+        for (int pattern = 0; pattern < query.size(); pattern++) {
+            for (int position = 0; position < 3; position++) {
+                String part = query.getPart(pattern, position);
+                constants[pattern][position] = Triple.WILDCARD;
+                variables[pattern][position] = -1;
+                if (GraphPattern.isVariable(part)) {
+                    variables[pattern][position] = names.indexOf(part);
+                    predicateVariable[names.indexOf(part)] = (position == Triple.PREDICATE);
+                }
+                else if (GraphPattern.isWildcard(part)) {
+                    hasWildcard[pattern] = true;
+                }
+                else {
+                    TermDictionary<?> dictionary = (position == Triple.PREDICATE) ? kg.getPredicateDictionary() : kg.getNodeDictionary();
+                    int id = dictionary.lookupId(part);
+                    if (id == TermDictionary.NOT_FOUND) {
+                        return false;
+                    }
+                    constants[pattern][position] = id;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chooses the order in which the patterns are joined: the smallest pattern first, then repeatedly the smallest
+     * pattern sharing a variable with those already chosen, or the smallest remaining pattern if none does.
+     * Patterns without variables are left out.
+     *
+     * @param sizes  the number of Triples matching each pattern on its own
+     * @return       the numbers of the patterns with variables, in join order
+     */
+    private int[] joinOrder(long[] sizes) {
+        boolean[] chosen = new boolean[sizes.length];
+        int count = 0;
+        for (int pattern = 0; pattern < sizes.length; pattern++) {
+            chosen[pattern] = !sharesVariable(pattern, null);
+            if (!chosen[pattern]) {
+                count++;
+            }
+        }
+        int[] order = new int[count];
+        boolean[] bound = new boolean[predicateVariable.length];
+        for (int i = 0; i < order.length; i++) {
+            int best = -1;
+            boolean bestConnected = false;
+            for (int pattern = 0; pattern < sizes.length; pattern++) {
+                if (chosen[pattern]) {
+                    continue;
+                }
+                boolean connected = sharesVariable(pattern, bound);
+                if (best < 0 || (connected && !bestConnected)
+                        || (connected == bestConnected && sizes[pattern] < sizes[best])) {
+                    best = pattern;
+                    bestConnected = connected;
+                }
+            }
+            order[i] = best;
+            chosen[best] = true;
+            markBound(best, bound);
+        }
+        return order;
+    }
+
+    /**
+     * Returns whether a pattern uses any of the given bound variables.
+     *
+     * @param pattern  the pattern number
+     * @param bound    which variables are bound, or null for any variable
+     * @return         true if the pattern shares a variable with the bound ones
+     */
+    private boolean sharesVariable(int pattern, boolean[] bound) {
+        for (int position = 0; position < 3; position++) {
+            int variable = variables[pattern][position];
+            if (variable >= 0 && (bound == null || bound[variable])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks every variable of a pattern as bound.
+     *
+     * @param pattern  the pattern number
+     * @param bound    which variables are bound; updated
+     */
+    private void markBound(int pattern, boolean[] bound) {
+        for (int position = 0; position < 3; position++) {
+            if (variables[pattern][position] >= 0) {
+                bound[variables[pattern][position]] = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the index range holding the Triples that match the given ids.
+     *
+     * @param pattern  the pattern number
+     * @param ids      the subject, predicate, and object ids to match, any of which may be {@link Triple#WILDCARD}
+     * @return         the matching Triples
+     */
+    private QueryResultSet matches(int pattern, int[] ids) {
+        return kg.findMatchingTriples(ids[Triple.SUBJECT], ids[Triple.PREDICATE], ids[Triple.OBJECT]);
+    }
+
+    /**
+     * Returns the variable whose values are in ascending order as a pattern's matches are read, if any.
+     *
+     * @param pattern  the pattern number
+     * @param matches  the pattern's matches
+     * @return         the variable number, or -1
+     */
+    private int sortedVariable(int pattern, QueryResultSet matches) {
+        return variables[pattern][matches.sortedPosition()];
+    }
+
+    /**
+     * Binds the variables of a pattern to the parts of one matching Triple.
+     *
+     * @param row      the intermediate result to bind into; updated
+     * @param pattern  the pattern number
+     * @param ids      the subject, predicate, and object ids of the matching Triple
+     * @return         false if a variable that is already bound, or that appears twice in the pattern, would get
+     *                 a different value, in which case the row must be dropped
+     */
+    private boolean bind(int[] row, int pattern, int[] ids) {
+        for (int position = 0; position < 3; position++) {
+            int variable = variables[pattern][position];
+            if (variable < 0) {
+                continue;
+            }
+            if (row[variable] == UNBOUND) {
+                row[variable] = ids[position];
+            }
+            else if (row[variable] != ids[position]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the ids of the current match of a cursor into an array.
+     *
+     * @param cursor  a cursor positioned on a match
+     * @param ids     receives the subject, predicate, and object ids
+     * @return        the ids array
+     */
+    private static int[] read(QueryResultSet.IdCursor cursor, int[] ids) {
+        ids[Triple.SUBJECT] = cursor.subject();
+        ids[Triple.PREDICATE] = cursor.predicate();
+        ids[Triple.OBJECT] = cursor.object();
+        return ids;
+    }
+
+    /**
+     * Extends a copy of an intermediate result with one match of a pattern, and adds it to the output if every
+     * variable agrees.
+     *
+     * @param row      the intermediate result
+     * @param pattern  the pattern number
+     * @param ids      the subject, predicate, and object ids of the match
+     * @param output   receives the extended result
+     */
+    private void extend(int[] row, int pattern, int[] ids, List<int[]> output) {
+        int[] extended = Arrays.copyOf(row, row.length);
+        if (bind(extended, pattern, ids)) {
+            output.add(extended);
+        }
+    }
+
+    /**
+     * Reads every match of the first pattern into new intermediate results.
+     *
+     * @param pattern  the pattern number
+     * @return         the intermediate results
+     */
+    private Rows scan(int pattern) {
+        QueryResultSet matches = matches(pattern, constants[pattern]);
+        int[] empty = new int[predicateVariable.length];
+        Arrays.fill(empty, UNBOUND);
+        List<int[]> output = new ArrayList<int[]>(matches.size());
+        for (int[] ids : readMatches(pattern, matches.idCursor(), matches.sortedPosition())) {
+            extend(empty, pattern, ids, output);
+        }
+        return new Rows(output, sortedVariable(pattern, matches));
+    }
+
+    /**
+     * Joins the intermediate results with the matches of one more pattern.
+     *
+     * @param rows     the intermediate results
+     * @param pattern  the pattern number
+     * @param bound    which variables are bound in the intermediate results
+     * @return         the joined intermediate results
+     */
+    private Rows join(Rows rows, int pattern, boolean[] bound) {
+        List<Integer> shared = new ArrayList<Integer>();
+        for (int position = 0; position < 3; position++) {
+            int variable = variables[pattern][position];
+            if (variable >= 0 && bound[variable] && !shared.contains(variable)) {
+                shared.add(variable);
+            }
+        }
+
+        QueryResultSet matches = matches(pattern, constants[pattern]);
+        if (shared.isEmpty()) {
+            return crossProduct(rows, pattern, matches);
+        }
+        if (shared.size() == 1 && !hasWildcard[pattern] && rows.sortedBy == shared.get(0) && sortedVariable(pattern, matches) == shared.get(0)) {
+            return mergeJoin(rows, pattern, matches);
+        }
+        if (shared.size() <= 2 && matches.size() <= (long) HASH_JOIN_FACTOR * rows.list.size()) {
+            return hashJoin(rows, pattern, matches, shared);
+        }
+        return nestedLoopJoin(rows, pattern);
+    }
+
+    /**
+     * Joins two inputs that are both in ascending order of their one shared variable, in a single pass over each.
+     *
+     * @param rows     the intermediate results, in order of the shared variable
+     * @param pattern  the pattern number
+     * @param matches  the pattern's matches, in order of the shared variable
+     * @return         the joined intermediate results, still in order of the shared variable
+     */
+    private Rows mergeJoin(Rows rows, int pattern, QueryResultSet matches) {
+        int variable = rows.sortedBy;
+        int position = matches.sortedPosition();
+        List<int[]> output = new ArrayList<int[]>();
+        QueryResultSet.IdCursor cursor = matches.idCursor();
+        int[] ids = new int[3];
+
+        int row = 0;
+        int rowCount = rows.list.size();
+        boolean more = cursor.next();
+        while (more && row < rowCount) {
+            int value = cursor.get(position);
+            int rowValue = rows.list.get(row)[variable];
+            if (rowValue < value) {
+                row++;
+            }
+            else if (rowValue > value) {
+                more = cursor.next();
+            }
+            else {
+                int groupEnd = row;
+                while (groupEnd < rowCount && rows.list.get(groupEnd)[variable] == value) {
+                    groupEnd++;
+                }
+                while (more && cursor.get(position) == value) {
+                    read(cursor, ids);
+                    for (int r = row; r < groupEnd; r++) {
+                        extend(rows.list.get(r), pattern, ids, output);
+                    }
+                    more = cursor.next();
+                }
+                row = groupEnd;
+            }
+        }
+        return new Rows(output, variable);
+    }
+
+    /**
+     * Reads the pattern's matches once into a hash table keyed on the shared variables, then probes it with each
+     * intermediate result.
+     *
+     * @param rows     the intermediate results
+     * @param pattern  the pattern number
+     * @param matches  the pattern's matches
+     * @param shared   the one or two variables shared by the pattern and the intermediate results
+     * @return         the joined intermediate results, in the order of the intermediate results
+     */
+    private Rows hashJoin(Rows rows, int pattern, QueryResultSet matches, List<Integer> shared) {
+        int[] keyPositions = new int[shared.size()];
+        for (int k = 0; k < keyPositions.length; k++) {
+            for (int position = 2; position >= 0; position--) {
+                if (variables[pattern][position] == shared.get(k)) {
+                    keyPositions[k] = position;
+                }
+            }
+        }
+
+        Map<Long, List<int[]>> table = new HashMap<Long, List<int[]>>();
+        for (int[] ids : readMatches(pattern, matches.idCursor(), 0)) {
+            Long key = hashKey(ids[keyPositions[0]], (keyPositions.length > 1) ? ids[keyPositions[1]] : 0);
+            List<int[]> bucket = table.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<int[]>(2);
+                table.put(key, bucket);
+            }
+            bucket.add(ids);
+        }
+
+        List<int[]> output = new ArrayList<int[]>();
+        for (int[] row : rows.list) {
+            Long key = hashKey(row[shared.get(0)], (shared.size() > 1) ? row[shared.get(1)] : 0);
+            List<int[]> bucket = table.get(key);
+            if (bucket != null) {
+                for (int[] ids : bucket) {
+                    extend(row, pattern, ids, output);
+                }
+            }
+        }
+        return new Rows(output, rows.sortedBy);
+    }
+
+    /**
+     * Combines the values of up to two shared variables into a hash table key.
+     *
+     * @param first   the value of the first shared variable
+     * @param second  the value of the second shared variable, or 0
+     * @return        the key
+     */
+    private static Long hashKey(int first, int second) {
+        return PermutationIndex.pack(first, second);
+    }
+
+    /**
+     * Looks up the pattern's matches once per intermediate result, with the shared variables filled in.
+     *
+     * @param rows     the intermediate results
+     * @param pattern  the pattern number
+     * @return         the joined intermediate results, in the order of the intermediate results
+     */
+    private Rows nestedLoopJoin(Rows rows, int pattern) {
+        List<int[]> output = new ArrayList<int[]>();
+        int[] lookup = new int[3];
+        for (int[] row : rows.list) {
+            for (int position = 0; position < 3; position++) {
+                int variable = variables[pattern][position];
+                lookup[position] = (variable >= 0 && row[variable] != UNBOUND) ? row[variable] : constants[pattern][position];
+            }
+            for (int[] ids : readMatches(pattern, matches(pattern, lookup).idCursor(), 0)) {
+                extend(row, pattern, ids, output);
+            }
+        }
+        return new Rows(output, rows.sortedBy);
+    }
+
+    /**
+     * Pairs every intermediate result with every match of a pattern that shares no variables with them.
+     *
+     * @param rows     the intermediate results
+     * @param pattern  the pattern number
+     * @param matches  the pattern's matches
+     * @return         the joined intermediate results, in the order of the intermediate results
+     */
+    private Rows crossProduct(Rows rows, int pattern, QueryResultSet matches) {
+        List<int[]> matchIds = readMatches(pattern, matches.idCursor(), 0);
+        List<int[]> output = new ArrayList<int[]>();
+        for (int[] row : rows.list) {
+            for (int[] ids : matchIds) {
+                extend(row, pattern, ids, output);
+            }
+        }
+        return new Rows(output, rows.sortedBy);
+    }
+
+    /**
+     * Reads the matches of a pattern.  If the pattern has an anonymous wildcard, the parts that are not variables
+     * are cleared and repeats are dropped, so that matches differing only in a wildcard part are joined once.
+     *
+     * @param pattern   the pattern number
+     * @param cursor    a cursor over the pattern's matches
+     * @param position  the part the matches are in ascending order of; kept in order when repeats are dropped
+     * @return          the subject, predicate, and object ids of each match
+     */
+    private List<int[]> readMatches(int pattern, QueryResultSet.IdCursor cursor, final int position) {
+        List<int[]> matches = new ArrayList<int[]>();
+        while (cursor.next()) {
+            int[] ids = read(cursor, new int[3]);
+            if (hasWildcard[pattern]) {
+                for (int part = 0; part < 3; part++) {
+                    if (variables[pattern][part] < 0) {
+                        ids[part] = 0;
+                    }
+                }
+            }
+            matches.add(ids);
+        }
+        if (!hasWildcard[pattern] || matches.size() < 2) {
+            return matches;
+        }
+
+        Collections.sort(matches, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                if (a[position] != b[position]) {
+                    return (a[position] < b[position]) ? -1 : 1;
+                }
+                for (int part = 0; part < 3; part++) {
+                    if (a[part] != b[part]) {
+                        return (a[part] < b[part]) ? -1 : 1;
+                    }
+                }
+                return 0;
+            }
+        });
+        List<int[]> distinct = new ArrayList<int[]>(matches.size());
+        int[] previous = null;
+        for (int[] ids : matches) {
+            if (previous == null || !Arrays.equals(ids, previous)) {
+                distinct.add(ids);
+            }
+            previous = ids;
+        }
+        return distinct;
+    }
+
+    /**
+     * Turns the final intermediate results into solutions.  The results are already distinct, since every
+     * pattern's matches are joined without repeats.
+     *
+     * @param rows  the final intermediate results
+     * @return      a read-only list of read-only solutions
+     */
+    private List<Map<String, String>> toSolutions(List<int[]> rows) {
+        List<String> names = query.getVariables();
+        List<Map<String, String>> solutions = new ArrayList<Map<String, String>>(rows.size());
+        for (int[] row : rows) {
+            Map<String, String> solution = new LinkedHashMap<String, String>();
+            for (int variable = 0; variable < names.size(); variable++) {
+                TermDictionary<?> dictionary = predicateVariable[variable] ? kg.getPredicateDictionary() : kg.getNodeDictionary();
+                solution.put(names.get(variable), dictionary.getIdentifier(row[variable]));
+            }
+            solutions.add(Collections.unmodifiableMap(solution));
+        }
+        return Collections.unmodifiableList(solutions);
+    }
+}
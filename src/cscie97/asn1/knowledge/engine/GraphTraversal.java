@@ -0,0 +1,273 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Searches the KnowledgeGraph breadth first from one Node along the edges of one Predicate, working only with
+ * dictionary ids until the Nodes found are returned.
+ * <p>
+ * The search keeps a frontier: the Nodes first reached at the current distance from the start, in id order.  Each
+ * step reads the neighbours of every frontier Node from the index range that holds them, as if answering
+ * "Joe has_friend ?" (outgoing edges, from the spoIndex) or "? has_friend Joe" (incoming edges, from the posIndex),
+ * and the neighbours that have not been visited become the next frontier.  Visited Nodes are marked in a BitSet
+ * keyed on node id, so a Node costs one bit however it is reached.
+ * <p>
+ * A frontier of at least {@link #PARALLEL_FRONTIER_THRESHOLD} Nodes is split into chunks that are expanded on a
+ * fork-join pool, each into a BitSet of its own, and the BitSets are then merged.  Only the visited BitSet of the
+ * levels before is shared, and it is not changed while a level is expanded.  The pool is shared by every search, and
+ * created by the first frontier that is large enough to need it.
+ * <p>
+ * Queries never take the write lock, so a search that runs while Triples are imported sees each posting list as it
+ * was when it was read.  A path is found by reading the edges again, so Triples removed after the search can leave
+ * it with no way back to the start; {@link #path(List, int)} then returns null, and the caller searches again.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#getNeighbourhood(Node, Predicate, KnowledgeGraph.Direction, int)
+ * @see KnowledgeGraph#findShortestPath(Node, Node, Predicate, KnowledgeGraph.Direction, int)
+ */
+class GraphTraversal {
+
+    /**
+     * The smallest frontier that is expanded in parallel; smaller frontiers are expanded on the calling thread,
+     * since starting the pool would cost more than it saves.
+     */
+    static final int PARALLEL_FRONTIER_THRESHOLD = 1 << 12;
+
+    /**
+     * Number of chunks each frontier is split into per thread, so that threads that finish early can take
+     * another chunk.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Number of times a shortest path is searched for before giving up, when Triples removed during each search
+     * break the path it found.
+     */
+    static final int PATH_ATTEMPTS = 3;
+
+    /**
+     * Holds the pool that expands large frontiers for every search.  The class loader creates it the first time a
+     * frontier is large enough to need it, so searches of small graphs never start its threads.
+     */
+    private static class PoolHolder {
+        private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The KnowledgeGraph being searched.
+     */
+    private final KnowledgeGraph kg;
+
+    /**
+     * The id of the Predicate whose edges are followed, or {@link Triple#WILDCARD} to follow every Predicate.
+     */
+    private final int predicateId;
+
+    /**
+     * Which way edges are followed.
+     */
+    private final KnowledgeGraph.Direction direction;
+
+    /**
+     * The number of threads to expand large frontiers with; each frontier is split into
+     * {@link #CHUNKS_PER_THREAD} chunks per thread.
+     */
+    private final int parallelism;
+
+    /**
+     * Class constructor.
+     *
+     * @param kg           the KnowledgeGraph to search
+     * @param predicateId  the id of the Predicate whose edges are followed, or {@link Triple#WILDCARD}
+     * @param direction    which way edges are followed
+     * @param parallelism  number of threads to expand large frontiers with, on the shared pool; 1 or less expands
+     *                     them on the calling thread
+     */
+    GraphTraversal(KnowledgeGraph kg, int predicateId, KnowledgeGraph.Direction direction, int parallelism) {
+        this.kg = kg;
+        this.predicateId = predicateId;
+        this.direction = direction;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Searches breadth first from a Node until the given number of hops has been taken, no unvisited Node can be
+     * reached, or the target Node has been reached.
+     *
+     * @param startId   the id of the Node to start from
+     * @param targetId  the id of the Node to stop at, or -1 to search every Node within reach
+     * @param maxHops   the largest number of edges to follow from the start
+     * @return          the Nodes first reached at each distance, in id order; the first level holds only the start
+     */
+    List<int[]> search(int startId, int targetId, int maxHops) {
+        List<int[]> levels = new ArrayList<int[]>();
+        BitSet visited = new BitSet(kg.getNodeDictionary().size());
+        visited.set(startId);
+        int[] frontier = { startId };
+        levels.add(frontier);
+        for (int hop = 0; hop < maxHops && startId != targetId; hop++) {
+            BitSet reached = expand(frontier, visited);
+            if (reached.isEmpty()) {
+                break;
+            }
+            visited.or(reached);
+            frontier = toArray(reached);
+            levels.add(frontier);
+            if (targetId >= 0 && reached.get(targetId)) {
+                break;
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Finds a shortest path through the levels of a search that reached its target, by stepping back from the
+     * target to a neighbour in each level before it.  The edges are read again, so a Node may have no neighbour
+     * left in the level before it if Triples were removed since the search.
+     *
+     * @param levels    the levels returned by {@link #search(int, int, int)}
+     * @param targetId  the id of the Node the search reached in its last level
+     * @return          the ids of the Nodes on the path, from the start to the target, or null if an edge the
+     *                  search followed has since been removed
+     */
+    int[] path(List<int[]> levels, int targetId) {
+        int[] path = new int[levels.size()];
+        path[path.length - 1] = targetId;
+        GraphTraversal reverse = new GraphTraversal(kg, predicateId, direction.reverse(), 1);
+        for (int level = path.length - 2; level >= 0; level--) {
+            int[] candidates = levels.get(level);
+            BitSet neighbours = new BitSet();
+            reverse.addNeighbours(path[level + 1], null, neighbours);
+            int predecessor = -1;
+            for (int id = neighbours.nextSetBit(0); id >= 0 && predecessor < 0; id = neighbours.nextSetBit(id + 1)) {
+                if (Arrays.binarySearch(candidates, id) >= 0) {
+                    predecessor = id;
+                }
+            }
+            if (predecessor < 0) {
+                return null;
+            }
+            path[level] = predecessor;
+        }
+        return path;
+    }
+
+    /**
+     * Finds the unvisited neighbours of every Node in a frontier, in parallel if the frontier is large.
+     *
+     * @param frontier  the ids of the Nodes to expand, in id order
+     * @param visited   the Nodes already reached; not changed
+     * @return          the Nodes reached from the frontier that had not been visited
+     */
+    private BitSet expand(final int[] frontier, final BitSet visited) {
+        if (parallelism < 2 || frontier.length < PARALLEL_FRONTIER_THRESHOLD) {
+            return expand(frontier, 0, frontier.length, visited);
+        }
+        int chunks = parallelism * CHUNKS_PER_THREAD;
+        List<Callable<BitSet>> tasks = new ArrayList<Callable<BitSet>>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int from = (int) ((long) frontier.length * chunk / chunks);
+            final int to = (int) ((long) frontier.length * (chunk + 1) / chunks);
+            tasks.add(new Callable<BitSet>() {
+                public BitSet call() {
+                    return expand(frontier, from, to, visited);
+                }
+            });
+        }
+
+        try {
+            BitSet reached = null;
+            for (Future<BitSet> expanded : PoolHolder.pool.invokeAll(tasks)) {
+                if (reached == null) {
+                    reached = expanded.get();
+                }
+                else {
+                    reached.or(expanded.get());
+                }
+            }
+            return reached;
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("a frontier chunk failed", cause);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while expanding a frontier", ie);
+        }
+    }
+
+    /**
+     * Finds the unvisited neighbours of a range of a frontier.
+     *
+     * @param frontier  the ids of the Nodes to expand, in id order
+     * @param from      the offset of the first Node of the range
+     * @param to        the offset just after the last Node of the range
+     * @param visited   the Nodes already reached; not changed
+     * @return          the Nodes reached from the range that had not been visited
+     */
+    private BitSet expand(int[] frontier, int from, int to, BitSet visited) {
+        BitSet reached = new BitSet();
+        for (int i = from; i < to; i++) {
+            addNeighbours(frontier[i], visited, reached);
+        }
+        return reached;
+    }
+
+    /**
+     * Marks the neighbours of one Node, read from the index range of its edges.
+     *
+     * @param nodeId   the id of the Node
+     * @param visited  Nodes to leave out, or null to mark every neighbour
+     * @param reached  where the neighbours are marked; updated
+     */
+    private void addNeighbours(int nodeId, BitSet visited, BitSet reached) {
+        if (direction != KnowledgeGraph.Direction.INCOMING) {
+            QueryResultSet.IdCursor cursor = kg.findMatchingTriples(nodeId, predicateId, Triple.WILDCARD).idCursor();
+            while (cursor.next()) {
+                int neighbour = cursor.object();
+                if (visited == null || !visited.get(neighbour)) {
+                    reached.set(neighbour);
+                }
+            }
+        }
+        if (direction != KnowledgeGraph.Direction.OUTGOING) {
+            QueryResultSet.IdCursor cursor = kg.findMatchingTriples(Triple.WILDCARD, predicateId, nodeId).idCursor();
+            while (cursor.next()) {
+                int neighbour = cursor.subject();
+                if (visited == null || !visited.get(neighbour)) {
+                    reached.set(neighbour);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ids marked in a BitSet, in id order.
+     *
+     * @param ids  the marked ids
+     * @return     the ids as an array
+     */
+    private static int[] toArray(BitSet ids) {
+        int[] array = new int[ids.cardinality()];
+        int i = 0;
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            array[i++] = id;
+        }
+        return array;
+    }
+}
@@ -0,0 +1,320 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps each posting list on the heap: in its own long array if it fits in one chunk, and otherwise in chunks as
+ * described by {@link PostingList.Chunked}.  This is the default store; it has the fastest reads and writes, but a
+ * graph of hundreds of millions of Triples becomes millions of arrays that every full garbage collection has to
+ * copy.
+ * <p>
+ * Inserts and removals copy only the chunks they change and the table of chunks, so a small batch costs about the
+ * same however long the posting lists it changes are.  Posting lists that are set whole, such as those loaded from
+ * a snapshot, are kept in one array until they are first changed.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see PostingStore
+ * @see OffHeapPostingStore
+ */
+class HeapPostingStore extends PostingStore {
+
+    /**
+     * Private association from a key to its sorted posting list: a long array, or a {@link PostingList.Chunked}.
+     * Since ids are dense, the key is used directly as the array offset; entries for keys with no values are null.
+     * When more keys are needed, a larger copy of the array is published.
+     */
+    private volatile AtomicReferenceArray<Object> postings = new AtomicReferenceArray<Object>(16);
+
+    /**
+     * Returns a view of the current posting list of a key.
+     *
+     * @param key  the key
+     * @return     the posting list, or {@link PostingList#EMPTY} if the key has no values
+     */
+    @Override
+    PostingList get(int key) {
+        Object posting = getEntry(key);
+        if (posting == null) {
+            return PostingList.EMPTY;
+        }
+        return (posting instanceof long[]) ? new PostingList.OnHeap((long[]) posting) : (PostingList) posting;
+    }
+
+    /**
+     * Returns the length of the current posting list of a key, without creating a view of it.
+     *
+     * @param key  the key
+     * @return     the number of values held for the key
+     */
+    @Override
+    int length(int key) {
+        Object posting = getEntry(key);
+        if (posting == null) {
+            return 0;
+        }
+        return (posting instanceof long[]) ? ((long[]) posting).length : ((PostingList) posting).length();
+    }
+
+    /**
+     * Returns the array or chunks holding the posting list of a key.
+     *
+     * @param key  the key
+     * @return     the sorted posting list, or null if the key has no values
+     */
+    private Object getEntry(int key) {
+        AtomicReferenceArray<Object> current = postings;
+        return (key < 0 || key >= current.length()) ? null : current.get(key);
+    }
+
+    /**
+     * Publishes a new posting list for a key; the array itself is stored, without copying it.
+     *
+     * @param key     the key
+     * @param values  the sorted values, which must not be modified afterwards; empty to remove the key's values
+     */
+    @Override
+    void set(int key, long[] values) {
+        publish(key, (values.length == 0) ? null : values);
+    }
+
+    /**
+     * Merges a sorted batch of values into the posting list of a key.  A posting list held in chunks has only the
+     * chunks the batch falls in merged, and a chunk that grows past {@link PostingList.Chunked#MAX_CHUNK_LENGTH}
+     * is split; a posting list held in one array that grows past one chunk is split into chunks.
+     *
+     * @param key        the key
+     * @param batch      the sorted values to add
+     * @param batchSize  the number of values in the batch
+     * @return           the number of values that were not already held
+     */
+    @Override
+    int insert(int key, long[] batch, int batchSize) {
+        Object posting = getEntry(key);
+        if (posting instanceof PostingList.Chunked) {
+            PostingList.Chunked existing = (PostingList.Chunked) posting;
+            List<long[]> chunks = updateChunks(existing.chunks(), batch, batchSize, false);
+            if (chunks == null) {
+                return 0;
+            }
+            PostingList.Chunked updated = new PostingList.Chunked(chunks);
+            publish(key, updated);
+            return updated.length() - existing.length();
+        }
+        PostingList existing = (posting == null) ? PostingList.EMPTY : new PostingList.OnHeap((long[]) posting);
+        long[] merged = merge(existing, batch, 0, batchSize);
+        if (merged == null) {
+            return 0;
+        }
+        if (merged.length > PostingList.Chunked.MAX_CHUNK_LENGTH) {
+            List<long[]> chunks = new ArrayList<long[]>();
+            split(merged, chunks);
+            publish(key, new PostingList.Chunked(chunks));
+        }
+        else {
+            publish(key, merged);
+        }
+        return merged.length - existing.length();
+    }
+
+    /**
+     * Removes a sorted batch of values from the posting list of a key.  A posting list held in chunks has only the
+     * chunks the batch falls in copied, and goes back to one array once it fits in one chunk.
+     *
+     * @param key        the key
+     * @param batch      the sorted values to remove
+     * @param batchSize  the number of values in the batch
+     * @return           the number of values that were removed
+     */
+    @Override
+    int remove(int key, long[] batch, int batchSize) {
+        Object posting = getEntry(key);
+        if (!(posting instanceof PostingList.Chunked)) {
+            return super.remove(key, batch, batchSize);
+        }
+        PostingList.Chunked existing = (PostingList.Chunked) posting;
+        List<long[]> chunks = updateChunks(existing.chunks(), batch, batchSize, true);
+        if (chunks == null) {
+            return 0;
+        }
+        if (chunks.isEmpty()) {
+            publish(key, null);
+            return existing.length();
+        }
+        PostingList.Chunked updated = new PostingList.Chunked(chunks);
+        if (updated.length() <= PostingList.Chunked.MAX_CHUNK_LENGTH) {
+            long[] values = new long[updated.length()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = updated.get(i);
+            }
+            publish(key, values);
+        }
+        else {
+            publish(key, updated);
+        }
+        return existing.length() - updated.length();
+    }
+
+    /**
+     * Merges a sorted batch into, or subtracts it from, the chunks it falls in: each value goes to the last chunk
+     * whose first value is not above it, or to the first chunk.  The other chunks are kept as they are.
+     *
+     * @param chunks     the current chunks
+     * @param batch      the sorted values to add or remove
+     * @param batchSize  the number of values in the batch
+     * @param removing   true to remove the values, false to add them
+     * @return           the updated chunks, or null if no value was added or removed
+     */
+    private static List<long[]> updateChunks(long[][] chunks, long[] batch, int batchSize, boolean removing) {
+        List<long[]> updated = new ArrayList<long[]>(chunks.length + 1);
+        boolean changed = false;
+        int from = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            int to = from;
+            if (c == chunks.length - 1) {
+                to = batchSize;
+            }
+            else {
+                long next = chunks[c + 1][0];
+                while (to < batchSize && batch[to] < next) {
+                    to++;
+                }
+            }
+            long[] values = null;
+            if (to > from) {
+                PostingList chunk = new PostingList.OnHeap(chunks[c]);
+                values = removing ? subtract(chunk, batch, from, to) : merge(chunk, batch, from, to);
+                from = to;
+            }
+            if (values == null) {
+                updated.add(chunks[c]);
+                continue;
+            }
+            changed = true;
+            if (removing) {
+                addRemaining(values, updated);
+            }
+            else {
+                split(values, updated);
+            }
+        }
+        return changed ? updated : null;
+    }
+
+    /**
+     * Adds a merged chunk, split into chunks of {@link PostingList.Chunked#CHUNK_LENGTH} values if it has grown
+     * past {@link PostingList.Chunked#MAX_CHUNK_LENGTH}.
+     *
+     * @param values  the sorted values of the chunk
+     * @param chunks  receives the chunks
+     */
+    private static void split(long[] values, List<long[]> chunks) {
+        if (values.length <= PostingList.Chunked.MAX_CHUNK_LENGTH) {
+            chunks.add(values);
+            return;
+        }
+        int count = values.length / PostingList.Chunked.CHUNK_LENGTH;
+        for (int piece = 0; piece < count; piece++) {
+            int from = (int) ((long) values.length * piece / count);
+            int to = (int) ((long) values.length * (piece + 1) / count);
+            long[] chunk = new long[to - from];
+            System.arraycopy(values, from, chunk, 0, chunk.length);
+            chunks.add(chunk);
+        }
+    }
+
+    /**
+     * Adds what remains of a chunk after a removal.  An empty chunk is dropped, and a chunk that has shrunk to less
+     * than a quarter of {@link PostingList.Chunked#CHUNK_LENGTH} is joined to the chunk before it if they fit in
+     * one chunk, so that removals do not leave many small chunks.
+     *
+     * @param values  the sorted values that remain of the chunk
+     * @param chunks  receives the chunks
+     */
+    private static void addRemaining(long[] values, List<long[]> chunks) {
+        if (values.length == 0) {
+            return;
+        }
+        int last = chunks.size() - 1;
+        if (values.length < PostingList.Chunked.CHUNK_LENGTH / 4 && last >= 0
+                && chunks.get(last).length + values.length <= PostingList.Chunked.MAX_CHUNK_LENGTH) {
+            long[] previous = chunks.get(last);
+            long[] joined = new long[previous.length + values.length];
+            System.arraycopy(previous, 0, joined, 0, previous.length);
+            System.arraycopy(values, 0, joined, previous.length, values.length);
+            chunks.set(last, joined);
+            return;
+        }
+        chunks.add(values);
+    }
+
+    /**
+     * Publishes the posting list of a key, growing the array of posting lists if needed.
+     *
+     * @param key      the key
+     * @param posting  the long array or chunks to publish, or null to remove the key's values
+     */
+    private void publish(int key, Object posting) {
+        AtomicReferenceArray<Object> current = postings;
+        if (posting == null) {
+            if (key < current.length()) {
+                current.set(key, null);
+            }
+            return;
+        }
+        if (key >= current.length()) {
+            AtomicReferenceArray<Object> grown = new AtomicReferenceArray<Object>(Math.max(key + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            postings = grown;
+            current = grown;
+        }
+        current.set(key, posting);
+    }
+
+    /**
+     * Returns one more than the largest key that may have a posting list, for iterating over every key.
+     *
+     * @return  the exclusive upper bound of the keys
+     */
+    @Override
+    int keyLimit() {
+        return postings.length();
+    }
+
+    /**
+     * Returns an estimate of the heap used by the store: the array of posting lists, plus the header and values of
+     * each posting list, plus the header and table entry of each chunk.
+     *
+     * @param keys    the number of keys that have values
+     * @param values  the total number of values
+     * @return        the estimated size in bytes
+     */
+    @Override
+    long estimateHeapBytes(long keys, long values) {
+        return 16 + 4L * postings.length() + 16 * keys + 8 * values + 24 * (values / PostingList.Chunked.CHUNK_LENGTH);
+    }
+
+    /**
+     * Returns the memory the store has allocated outside of the heap, which is none.
+     *
+     * @return  0
+     */
+    @Override
+    long offHeapBytes() {
+        return 0;
+    }
+
+    /**
+     * Creates an empty heap store.
+     *
+     * @return  the new store
+     */
+    @Override
+    PostingStore newEmpty() {
+        return new HeapPostingStore();
+    }
+}
@@ -0,0 +1,387 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * One line-aligned byte range of a Triple file, parsed on its own thread by the parallel {@link Importer}.
+ * Each chunk memory-maps its range and tokenizes every line straight from the mapped bytes, looking terms up in
+ * chunk-local term dictionaries by byte range; a String is only created for a term the first time the chunk sees
+ * it, so the file contents are never copied onto the heap.  Chunks never contend with each other or with the
+ * KnowledgeGraph while parsing.  Once every chunk
+ * has parsed without error, the chunks are merged into the KnowledgeGraph in file order: each chunk interns its
+ * distinct terms in the order they first appeared, so the KnowledgeGraph ends up exactly as a serial import of the
+ * same file would leave it.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see Importer#importTripleFile(String, int)
+ */
+class ImportChunk implements Callable<ImportChunk> {
+
+    /**
+     * The file being imported.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The byte range of the file held by this chunk; from is inclusive and to is exclusive.
+     */
+    private final long from, to;
+
+    /**
+     * The character encoding of the file.
+     */
+    private final Charset charset;
+
+    /**
+     * Chunk-local dictionaries of the Node and Predicate identifiers seen in this chunk, in first-seen order.
+     */
+    private TermDictionary<String> nodes, predicates;
+
+    /**
+     * Triples parsed from the chunk as chunk-local ids.
+     */
+    private int[] subjectIds = new int[1024], predicateIds = new int[1024], objectIds = new int[1024];
+
+    /**
+     * The number of Triples parsed from the chunk.
+     */
+    private int tripleCount = 0;
+
+    /**
+     * The number of lines in the chunk.
+     */
+    private int lineCount = 0;
+
+    /**
+     * Description of the first line of the chunk that could not be parsed, or null if every line parsed.
+     */
+    private String errorMessage;
+
+    /**
+     * The text of the first line of the chunk that could not be parsed.
+     */
+    private String errorLine;
+
+    /**
+     * The 1-based line number, within the chunk, of the first line that could not be parsed.
+     */
+    private int errorLineNumber;
+
+    /**
+     * Class constructor.
+     *
+     * @param channel  the file being imported
+     * @param from     the offset of the first byte of the chunk; the start of a line
+     * @param to       the offset after the last byte of the chunk; the start of a line or the end of the file
+     * @param charset  the character encoding of the file
+     */
+    ImportChunk(FileChannel channel, long from, long to, Charset charset) {
+        this.channel = channel;
+        this.from = from;
+        this.to = to;
+        this.charset = charset;
+    }
+
+    /**
+     * Maps and parses the chunk.  Stops at the first line that cannot be parsed.
+     *
+     * @return              this chunk
+     * @throws IOException  if the chunk cannot be mapped
+     */
+    public ImportChunk call() throws IOException {
+        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        ByteCharSequence chars = new ByteCharSequence(bytes, 0, (int) (to - from), charset);
+
+        nodes = newLocalDictionary();
+        predicates = newLocalDictionary();
+        TripleTokenizer tokenizer = new TripleTokenizer();
+
+        int lineStart = 0;
+        int length = chars.length();
+        while (lineStart < length) {
+            int lineEnd = findLineEnd(chars, lineStart, length);
+            lineCount++;
+            if (!parseLine(chars, lineStart, lineEnd, tokenizer)) {
+                return this;
+            }
+            lineStart = nextLineStart(chars, lineEnd, length);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the offset of the line terminator that ends the line starting at the given offset.
+     *
+     * @param chars  the characters of the chunk
+     * @param pos    the offset of the first character of the line
+     * @param end    the offset after the last character of the chunk
+     * @return       the offset of the "\n" or "\r" ending the line, or end
+     */
+    static int findLineEnd(CharSequence chars, int pos, int end) {
+        while (pos < end) {
+            char c = chars.charAt(pos);
+            if (c == '\n' || c == '\r') {
+                return pos;
+            }
+            pos++;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the offset of the start of the line after the line terminator at the given offset.  A line ends at
+     * "\n", "\r", or "\r\n", the same as for BufferedReader.readLine().
+     *
+     * @param chars    the characters of the chunk
+     * @param lineEnd  the offset of the line terminator
+     * @param end      the offset after the last character of the chunk
+     * @return         the offset of the first character of the next line
+     */
+    static int nextLineStart(CharSequence chars, int lineEnd, int end) {
+        if (lineEnd + 1 < end && chars.charAt(lineEnd) == '\r' && chars.charAt(lineEnd + 1) == '\n') {
+            return lineEnd + 2;
+        }
+        return lineEnd + 1;
+    }
+
+    /**
+     * Parses one line into chunk-local ids, following the same rules as {@link Importer#importTripleFile(String)}.
+     *
+     * @param chars      the characters of the chunk
+     * @param start      the offset of the first character of the line
+     * @param end        the offset after the last character of the line
+     * @param tokenizer  the tokenizer to use
+     * @return           false if the line could not be parsed
+     */
+    private boolean parseLine(ByteCharSequence chars, int start, int end, TripleTokenizer tokenizer) {
+        int parts = tokenizer.tokenize(chars, start, end);
+        if (!Importer.isTripleLine(chars, tokenizer, parts)) {
+            return true;
+        }
+        String error = Importer.checkTripleLine(chars, tokenizer, parts);
+        if (error != null) {
+            errorMessage = error;
+            errorLine = chars.subSequence(start, end).toString();
+            errorLineNumber = lineCount;
+            return false;
+        }
+
+        if (tripleCount == subjectIds.length) {
+            subjectIds = Arrays.copyOf(subjectIds, tripleCount * 2);
+            predicateIds = Arrays.copyOf(predicateIds, tripleCount * 2);
+            objectIds = Arrays.copyOf(objectIds, tripleCount * 2);
+        }
+        subjectIds[tripleCount] = internId(nodes, chars, tokenizer.subjectStart, tokenizer.subjectEnd);
+        predicateIds[tripleCount] = internId(predicates, chars, tokenizer.predicateStart, tokenizer.predicateEnd);
+        objectIds[tripleCount] = internId(nodes, chars, tokenizer.objectStart, tokenizer.objectEnd);
+        tripleCount++;
+        return true;
+    }
+
+    /**
+     * Returns the id of a term in the given dictionary, interning it if the dictionary has not seen it before.
+     * An ASCII term is looked up directly by its mapped bytes, and a String is only created for it when it is
+     * new; a term holding any other bytes must be decoded before it can be compared with the dictionary.
+     *
+     * @param dictionary  the dictionary for the kind of term
+     * @param chars       the characters of the mapped file range
+     * @param start       the offset of the first character of the term
+     * @param end         the offset after the last character of the term
+     * @return            the id of the term in the dictionary
+     */
+    static int internId(TermDictionary<?> dictionary, ByteCharSequence chars, int start, int end) {
+        if (chars.isAscii(start, end)) {
+            return dictionary.internId(chars, start, end);
+        }
+        String decoded = chars.subSequence(start, end).toString();
+        return dictionary.internId(decoded, 0, decoded.length());
+    }
+
+    /**
+     * Creates a chunk-local dictionary whose terms are just their identifiers.
+     *
+     * @return  an empty dictionary
+     */
+    private static TermDictionary<String> newLocalDictionary() {
+        return new TermDictionary<String>() {
+            protected String createTerm(String identifier, int id) {
+                return identifier;
+            }
+        };
+    }
+
+    /**
+     * Interns the chunk's terms into the KnowledgeGraph in first-seen order, translates the chunk's Triples to
+     * KnowledgeGraph ids, and adds them to the KnowledgeGraph.  Chunks must be merged in file order.
+     *
+     * @param kg  the KnowledgeGraph to add the Triples to
+     */
+    void mergeInto(KnowledgeGraph kg) {
+        kg.beginImport();
+        try {
+            encode(kg);
+            kg.addTriplesToIndexes(subjectIds, predicateIds, objectIds, tripleCount);
+        }
+        finally {
+            kg.endImport();
+        }
+    }
+
+    /**
+     * Interns the chunk's terms into the KnowledgeGraph in first-seen order, and translates the chunk's Triples to
+     * KnowledgeGraph ids in place, so that {@link #copyIdsTo(int[], int[], int[], int)} copies KnowledgeGraph ids.
+     * Must be called between {@link KnowledgeGraph#beginImport()} and {@link KnowledgeGraph#endImport()}, and at most
+     * once per chunk.
+     *
+     * @param kg  the KnowledgeGraph to intern the terms into
+     */
+    void encode(KnowledgeGraph kg) {
+        int[] nodeIds = new int[nodes.size()];
+        for (int i = 0; i < nodeIds.length; i++) {
+            nodeIds[i] = kg.getNode(nodes.get(i)).getId();
+        }
+        int[] predicateIdMap = new int[predicates.size()];
+        for (int i = 0; i < predicateIdMap.length; i++) {
+            predicateIdMap[i] = kg.getPredicate(predicates.get(i)).getId();
+        }
+        for (int i = 0; i < tripleCount; i++) {
+            subjectIds[i] = nodeIds[subjectIds[i]];
+            predicateIds[i] = predicateIdMap[predicateIds[i]];
+            objectIds[i] = nodeIds[objectIds[i]];
+        }
+    }
+
+    /**
+     * Copies the ids of the chunk's Triples into larger arrays, for a bulk load of several chunks at once.
+     *
+     * @param subjectIds    receives the subject ids
+     * @param predicateIds  receives the predicate ids
+     * @param objectIds     receives the object ids
+     * @param offset        the offset in the arrays of the chunk's first Triple
+     * @return              the offset just after the chunk's last Triple
+     */
+    int copyIdsTo(int[] subjectIds, int[] predicateIds, int[] objectIds, int offset) {
+        System.arraycopy(this.subjectIds, 0, subjectIds, offset, tripleCount);
+        System.arraycopy(this.predicateIds, 0, predicateIds, offset, tripleCount);
+        System.arraycopy(this.objectIds, 0, objectIds, offset, tripleCount);
+        return offset + tripleCount;
+    }
+
+    /**
+     * Returns the number of Triples the chunk parsed.
+     *
+     * @return  the Triple count
+     */
+    int getTripleCount() {
+        return tripleCount;
+    }
+
+    /**
+     * Returns the shard of each Node the chunk has seen, for a sharded import.
+     *
+     * @param graph  the sharded KnowledgeGraph being imported into
+     * @return       the shard of each chunk-local Node id
+     */
+    int[] nodeShards(ShardedKnowledgeGraph graph) {
+        int[] shards = new int[nodes.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = graph.shardOf(nodes.get(i));
+        }
+        return shards;
+    }
+
+    /**
+     * Adds the chunk's Triples whose subjects belong to one shard to that shard.  Terms are interned into the shard
+     * as the first Triple using them is reached, so each shard only holds the terms of its own Triples.  The chunk
+     * is only read, so different shards may merge it at the same time; each shard must merge the chunks in file
+     * order.
+     *
+     * @param shard       the shard to add the Triples to
+     * @param nodeShards  the shard of each chunk-local Node id, from {@link #nodeShards(ShardedKnowledgeGraph)}
+     * @param shardIndex  the position of the shard
+     */
+    void mergeInto(KnowledgeGraph shard, int[] nodeShards, int shardIndex) {
+        shard.beginImport();
+        try {
+            int count = 0;
+            for (int i = 0; i < tripleCount; i++) {
+                if (nodeShards[subjectIds[i]] == shardIndex) {
+                    count++;
+                }
+            }
+            int[] nodeIds = new int[nodes.size()];
+            int[] predicateIdMap = new int[predicates.size()];
+            Arrays.fill(nodeIds, TermDictionary.NOT_FOUND);
+            Arrays.fill(predicateIdMap, TermDictionary.NOT_FOUND);
+            int[] shardSubjectIds = new int[count];
+            int[] shardPredicateIds = new int[count];
+            int[] shardObjectIds = new int[count];
+            int n = 0;
+            for (int i = 0; i < tripleCount; i++) {
+                if (nodeShards[subjectIds[i]] != shardIndex) {
+                    continue;
+                }
+                if (nodeIds[subjectIds[i]] == TermDictionary.NOT_FOUND) {
+                    nodeIds[subjectIds[i]] = shard.getNode(nodes.get(subjectIds[i])).getId();
+                }
+                if (predicateIdMap[predicateIds[i]] == TermDictionary.NOT_FOUND) {
+                    predicateIdMap[predicateIds[i]] = shard.getPredicate(predicates.get(predicateIds[i])).getId();
+                }
+                if (nodeIds[objectIds[i]] == TermDictionary.NOT_FOUND) {
+                    nodeIds[objectIds[i]] = shard.getNode(nodes.get(objectIds[i])).getId();
+                }
+                shardSubjectIds[n] = nodeIds[subjectIds[i]];
+                shardPredicateIds[n] = predicateIdMap[predicateIds[i]];
+                shardObjectIds[n] = nodeIds[objectIds[i]];
+                n++;
+            }
+            shard.addTriplesToIndexes(shardSubjectIds, shardPredicateIds, shardObjectIds, count);
+        }
+        finally {
+            shard.endImport();
+        }
+    }
+
+    /**
+     * Returns the number of lines in the chunk, or the number of lines up to and including the first line that
+     * could not be parsed.
+     *
+     * @return  the number of lines read
+     */
+    int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Returns a description of the first line that could not be parsed.
+     *
+     * @return  the error description, or null if every line of the chunk parsed
+     */
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Returns the text of the first line that could not be parsed.
+     *
+     * @return  the line text
+     */
+    String getErrorLine() {
+        return errorLine;
+    }
+
+    /**
+     * Returns the 1-based line number, within the chunk, of the first line that could not be parsed.
+     *
+     * @return  the line number within the chunk
+     */
+    int getErrorLineNumber() {
+        return errorLineNumber;
+    }
+}
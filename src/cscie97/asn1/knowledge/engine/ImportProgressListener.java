@@ -0,0 +1,24 @@
+package cscie97.asn1.knowledge.engine;
+
+/**
+ * Receives progress reports from a streaming import, once after each batch of Triples is committed to the
+ * KnowledgeGraph and once more when the import finishes.  Reports are made on the importing thread, so a listener
+ * should return quickly.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see Importer#streamTripleFile(String, int, ImportProgressListener)
+ */
+public interface ImportProgressListener {
+
+    /**
+     * Reports the progress of a streaming import.
+     *
+     * @param filename        the file being imported
+     * @param lineCount       the number of lines of the file read so far
+     * @param tripleCount     the number of Triples committed to the KnowledgeGraph so far
+     * @param linesPerSecond  the average number of lines read per second since the import started
+     * @param finished        true if this is the final report of the import
+     */
+    void progress(String filename, long lineCount, long tripleCount, double linesPerSecond, boolean finished);
+}
@@ -2,18 +2,29 @@ package cscie97.asn1.knowledge.engine;
 
 import cscie97.asn1.knowledge.engine.exception.ImportException;
 import cscie97.asn1.knowledge.engine.exception.ParseException;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Loads new Triples from an input file into the KnowledgeGraph.  The input file should be a plain text file
  * consisting of lines in the following format:
  * <p><blockquote><code>[subject (Node)] [space] [Predicate] [space] [object (Node)][period]</code></blockquote></p>
- * Matching lines are imported into the KnowledgeGraph as Triples.
+ * Matching lines are imported into the KnowledgeGraph as Triples.  Files are memory-mapped and parsed in place, and
+ * large files may be imported in parallel with {@link #importTripleFile(String, int)}, which leaves the KnowledgeGraph
+ * exactly as the serial import would.  Files too large to parse in one go may be streamed into the KnowledgeGraph in
+ * batches with {@link #streamTripleFile(String, int, ImportProgressListener)}, or split across the shards of a
+ * {@link ShardedKnowledgeGraph} with {@link #importTripleFile(ShardedKnowledgeGraph, String, int)}.  The initial load
+ * of a large file is fastest with {@link #bulkLoadTripleFile(String, int)}, which sorts the whole file into the
+ * indexes at once.
  *
  * @author David Killeffer <rayden7@gmail.com>
  * @version 1.0
@@ -22,87 +33,334 @@ import java.util.List;
  */
 public class Importer {
 
+    /**
+     * Number of chunks the file is split into per thread for a parallel import, so that threads that finish
+     * early can pick up more work.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Smallest chunk, in bytes, that an import splits a file into.
+     */
+    private static final long MIN_CHUNK_BYTES = 1L << 20;
+
+    /**
+     * Largest chunk, in bytes, that an import splits a file into, which bounds the size of each mapping.
+     */
+    private static final long MAX_CHUNK_BYTES = 64L << 20;
+
     /**
      * Public method for importing triples from the supplied filename into the KnowledgeGraph.
      * Checks for valid input file name.
      * Throws ImportException on error accessing or processing the input Triple File.
+     * The file is memory-mapped and parsed on the calling thread; see {@link #importTripleFile(String, int)}.
      *
      * @param filename                file with triples to load into the KnowledgeGraph
      * @throws ImportException        thrown when encountering non-parse related exceptions in the import process
      * @throws ParseException         thrown when encountering any issues parsing the input file related to the format of the file contents
      */
     public static void importTripleFile(String filename) throws ImportException, ParseException {
+        importTripleFile(filename, 1);
+    }
 
-        int lineNumber = 1;  // keep track of what lineNumber we're reading in from the input file for exception handling
-        String line = null;  // store the text on each line as it's processed
-
-        try {
-            KnowledgeGraph kg = KnowledgeGraph.getInstance();
-
-            BufferedReader reader = new BufferedReader(new FileReader(filename));
-
-            // track the Triples we want to add to the KnowledgeEngine and load them all up once we're done reading the file
-            List<Triple> triplesToAdd = new ArrayList<Triple>();
-
-            while ((line = reader.readLine()) != null) {
+    /**
+     * Public method for importing triples from the supplied filename into the KnowledgeGraph, optionally using
+     * several threads.  The file is split into line-aligned chunks, and each chunk is memory-mapped and parsed
+     * straight from the mapped bytes, so the file contents are never copied onto the heap; a String is only created
+     * for a term the first time a chunk sees it.  With more than one thread the chunks are parsed in parallel on a
+     * fork-join pool.  The parsed chunks are then merged into the KnowledgeGraph in file order, so the result is the
+     * same however many threads are used.  Nothing is imported if any line fails to parse.
+     * The file must use an ASCII-compatible encoding in which a newline is the single byte '\n' (such as UTF-8 or
+     * ISO-8859-1); terms containing other characters are decoded with the platform default encoding.
+     *
+     * @param filename                file with triples to load into the KnowledgeGraph
+     * @param parallelism             number of threads to parse with; 1 or less parses on the calling thread
+     * @throws ImportException        thrown when encountering non-parse related exceptions in the import process
+     * @throws ParseException         thrown when encountering any issues parsing the input file related to the format of the file contents
+     */
+    public static void importTripleFile(String filename, int parallelism) throws ImportException, ParseException {
+        importTripleFile(null, filename, parallelism);
+    }
 
-                // trim off any trailing periods from the string
-                line = line.replaceAll("\\.+$", "");
+    /**
+     * Public method for importing triples from the supplied filename into a sharded KnowledgeGraph.  The file is
+     * parsed as for {@link #importTripleFile(String, int)}; the parsed chunks are then merged into every shard at
+     * once, each shard taking the Triples whose subjects it holds.  Nothing is imported if any line fails to parse.
+     *
+     * @param graph                   the sharded KnowledgeGraph to load the triples into; null for the KnowledgeGraph
+     * @param filename                file with triples to load
+     * @param parallelism             number of threads to parse with; 1 or less parses on the calling thread
+     * @throws ImportException        thrown when encountering non-parse related exceptions in the import process
+     * @throws ParseException         thrown when encountering any issues parsing the input file related to the format of the file contents
+     */
+    public static void importTripleFile(ShardedKnowledgeGraph graph, String filename, int parallelism) throws ImportException, ParseException {
+        importTripleFile(graph, filename, parallelism, false);
+    }
 
-                // check if we encountered an empty line, and just skip to the next one if so
-                if (line.length() == 0) { continue; }
+    /**
+     * Public method for the initial load of a large file into the KnowledgeGraph.  The file is parsed as for
+     * {@link #importTripleFile(String, int)}, and the ids of all of its Triples are then collected into arrays and
+     * added to each index with a single sort, instead of being merged into the indexes one chunk at a time; see
+     * {@link KnowledgeGraph#bulkAddTriplesToIndexes(int[], int[], int[], int, ForkJoinPool)}.  With more than one
+     * thread the sort is spread over the threads too.  The result is the same as for importTripleFile, and the
+     * KnowledgeGraph does not have to be empty, but the load holds the write lock for its whole duration, so other
+     * imports wait for it.  Nothing is imported if any line fails to parse.
+     *
+     * @param filename                file with triples to load into the KnowledgeGraph
+     * @param parallelism             number of threads to parse and sort with; 1 or less works on the calling thread
+     * @throws ImportException        thrown when encountering non-parse related exceptions in the import process
+     * @throws ParseException         thrown when encountering any issues parsing the input file related to the format of the file contents
+     */
+    public static void bulkLoadTripleFile(String filename, int parallelism) throws ImportException, ParseException {
+        importTripleFile(null, filename, parallelism, true);
+    }
 
-                // check if the line, once "cleaned", is a minimum of 5 characters in length
-                // (5 being the minimum number of characters allowed to be valid -
-                // Subject+space, Predicate+space, Object); if the line is less than that, continue onto the next line
-                String cleanedLine = kg.cleanTripleIdentifier(line);
-                if ( cleanedLine == null || cleanedLine.length() < 5) { continue; }
+    /**
+     * Parses a file in chunks, and then merges the chunks into the KnowledgeGraph or a sharded KnowledgeGraph, or
+     * bulk loads them into the KnowledgeGraph.
+     *
+     * @param graph                   the sharded KnowledgeGraph to load the triples into; null for the KnowledgeGraph
+     * @param filename                file with triples to load
+     * @param parallelism             number of threads to work with; 1 or less works on the calling thread
+     * @param bulk                    true to bulk load the chunks into the KnowledgeGraph
+     * @throws ImportException        thrown when encountering non-parse related exceptions in the import process
+     * @throws ParseException         thrown when encountering any issues parsing the input file related to the format of the file contents
+     */
+    private static void importTripleFile(ShardedKnowledgeGraph graph, String filename, int parallelism, boolean bulk) throws ImportException, ParseException {
+        int lineNumber = 0;  // lines parsed by the chunks before the one being checked, for exception handling
+        ForkJoinPool pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+        try {
+            KnowledgeGraph kg = (graph == null) ? KnowledgeGraph.getInstance() : null;
+            long start = (kg != null) ? kg.getMetrics().startTimer() : 0;
 
-                // ensure that the imported line does not contain any "?" characters
-                if (cleanedLine.matches("(.*)\\?(.*)")) {
-                    throw new ParseException("Import Triple line must not contain any queries, but actually contained a query character (?)",
-                                                line,
-                                                lineNumber,
-                                                filename,
-                                                null);
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try {
+                List<ImportChunk> chunks = splitIntoChunks(file.getChannel(), Math.max(1, parallelism) * CHUNKS_PER_THREAD, Charset.defaultCharset());
+                if (pool != null) {
+                    for (Future<ImportChunk> parsedChunk : pool.invokeAll(chunks)) {
+                        parsedChunk.get();
+                    }
                 }
 
-                String[] parts = line.split("\\s");
+                // report the first line that failed to parse, in file order, before anything is imported
+                for (ImportChunk chunk : chunks) {
+                    if (pool == null) {
+                        chunk.call();
+                    }
+                    if (chunk.getErrorMessage() != null) {
+                        throw new ParseException(chunk.getErrorMessage(),
+                                                 chunk.getErrorLine(),
+                                                 lineNumber + chunk.getErrorLineNumber(),
+                                                 filename,
+                                                 null);
+                    }
+                    lineNumber += chunk.getLineCount();
+                }
 
-                if (parts.length < 3) {
-                    throw new ParseException("Triple line should have 3 parts, but only actually had ["+parts.length+"] parts: ["+line+"]",
-                                                line,
-                                                lineNumber,
-                                                filename,
-                                                null);
+                if (graph != null) {
+                    graph.mergeChunks(chunks);
+                }
+                else if (bulk) {
+                    bulkLoadChunks(kg, chunks, pool);
+                    kg.getMetrics().recordFileImport(start);
                 }
                 else {
-                    // the first part should contain the first "Node"
-                    Node subject = kg.getNode(parts[0]);  // node/subjects: Joe, Sue, Mary, etc.
-
-                    // the second part should be the Predicate
-                    Predicate predicate = kg.getPredicate(parts[1]);  // predicate: has_friend, plays, etc.
-
-                    // last part should be the "object", also a Node
-                    Node object = kg.getNode(parts[2]);  // object (also a node): Bill, Sue, Mary, Ultimate_Frisbee
-
-                    triplesToAdd.add(new Triple(subject, predicate, object));
+                    for (ImportChunk chunk : chunks) {
+                        chunk.mergeInto(kg);
+                    }
+                    kg.getMetrics().recordFileImport(start);
                 }
-                lineNumber++;
             }
-
-            if (triplesToAdd.size() > 0) {
-                kg.importTriples(triplesToAdd);
+            finally {
+                file.close();
             }
         }
+        catch (ParseException pe) {
+            throw pe;
+        }
         catch (FileNotFoundException fnfe) {
             throw new ImportException("Could not find file ["+filename+"] to open for reading", lineNumber, filename, fnfe);
         }
+        catch (ExecutionException ee) {
+            throw new ImportException("Encountered an exception when reading a chunk of ["+filename+"] in parallel", lineNumber, filename, ee.getCause());
+        }
         catch (IOException ioe) {
             throw new ImportException("Encountered an IOException when trying to open ["+filename+"] for reading", lineNumber, filename, ioe);
         }
         catch (Exception e) {
             throw new ImportException("Caught a generic Exception when attempting to read file ["+filename+"]", lineNumber, filename, e);
         }
+        finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Interns the terms of every chunk in file order, collects the ids of all of their Triples, and adds them to the
+     * KnowledgeGraph in one bulk insert.
+     *
+     * @param kg      the KnowledgeGraph to load the Triples into
+     * @param chunks  the parsed chunks, in file order
+     * @param pool    the pool to sort on, or null to sort on the calling thread
+     */
+    private static void bulkLoadChunks(KnowledgeGraph kg, List<ImportChunk> chunks, ForkJoinPool pool) {
+        kg.beginImport();
+        try {
+            int count = 0;
+            for (ImportChunk chunk : chunks) {
+                chunk.encode(kg);
+                count += chunk.getTripleCount();
+            }
+            int[] subjectIds = new int[count];
+            int[] predicateIds = new int[count];
+            int[] objectIds = new int[count];
+            int offset = 0;
+            for (ImportChunk chunk : chunks) {
+                offset = chunk.copyIdsTo(subjectIds, predicateIds, objectIds, offset);
+            }
+            kg.bulkAddTriplesToIndexes(subjectIds, predicateIds, objectIds, count, pool);
+        }
+        finally {
+            kg.endImport();
+        }
+    }
+
+    /**
+     * Public method for importing triples from the supplied filename into the KnowledgeGraph as a stream.  Unlike
+     * {@link #importTripleFile(String)}, which parses the whole file before importing anything, the file is parsed
+     * on the calling thread and committed to the KnowledgeGraph every batchSize Triples, so memory use stays bounded
+     * however large the file is, and queries see the Triples of each batch as soon as it is committed.  If a line
+     * fails to parse, the Triples on the lines before it stay imported.  The file must use the same kind of encoding
+     * as for {@link #importTripleFile(String, int)}.
+     *
+     * @param filename                file with triples to load into the KnowledgeGraph
+     * @param batchSize               number of Triples to commit to the KnowledgeGraph at a time
+     * @param listener                receives a progress report after each committed batch; may be null
+     * @throws ImportException        thrown when encountering non-parse related exceptions in the import process
+     * @throws ParseException         thrown when encountering any issues parsing the input file related to the format of the file contents
+     */
+    public static void streamTripleFile(String filename, int batchSize, ImportProgressListener listener) throws ImportException, ParseException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1, but was ["+batchSize+"]");
+        }
+
+        KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        StreamingImport streamingImport = new StreamingImport(kg, filename, batchSize, listener);
+        try {
+            long start = kg.getMetrics().startTimer();
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try {
+                streamingImport.run(file.getChannel(), Charset.defaultCharset());
+                kg.getMetrics().recordFileImport(start);
+            }
+            finally {
+                file.close();
+            }
+        }
+        catch (ParseException pe) {
+            throw pe;
+        }
+        catch (FileNotFoundException fnfe) {
+            throw new ImportException("Could not find file ["+filename+"] to open for reading", (int) streamingImport.getLineCount(), filename, fnfe);
+        }
+        catch (IOException ioe) {
+            throw new ImportException("Encountered an IOException when trying to open ["+filename+"] for reading", (int) streamingImport.getLineCount(), filename, ioe);
+        }
+        catch (Exception e) {
+            throw new ImportException("Caught a generic Exception when attempting to read file ["+filename+"]", (int) streamingImport.getLineCount(), filename, e);
+        }
+    }
+
+    /**
+     * Returns whether a tokenized line should be imported as a Triple.  Lines that, once surrounding whitespace and
+     * trailing periods are removed, are shorter than 5 characters (the minimum number of characters allowed to be
+     * valid - Subject+space, Predicate+space, Object) are skipped.  The length is first measured in bytes; a line
+     * with fewer than 3 parts that is only long enough because of multi-byte characters is measured again in
+     * decoded characters.
+     *
+     * @param chars      the characters holding the line
+     * @param tokenizer  the tokenizer holding the line
+     * @param parts      the number of parts found by the tokenizer
+     * @return           true if the line should be imported
+     */
+    static boolean isTripleLine(ByteCharSequence chars, TripleTokenizer tokenizer, int parts) {
+        if (tokenizer.contentEnd - tokenizer.contentStart < 5) {
+            return false;
+        }
+        if (parts < 3 && !chars.isAscii(tokenizer.contentStart, tokenizer.contentEnd)) {
+            return chars.subSequence(tokenizer.contentStart, tokenizer.contentEnd).toString().length() >= 5;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that a tokenized line is a valid Triple: it must have three parts, and must not contain any "?"
+     * characters, since those are only allowed in queries.
+     *
+     * @param chars      the characters holding the line
+     * @param tokenizer  the tokenizer holding the line
+     * @param parts      the number of parts found by the tokenizer
+     * @return           a description of the problem, or null if the line is valid
+     */
+    static String checkTripleLine(CharSequence chars, TripleTokenizer tokenizer, int parts) {
+        if (tokenizer.containsWildcard(chars)) {
+            return "Import Triple line must not contain any queries, but actually contained a query character (?)";
+        }
+        if (parts < 3) {
+            return "Triple line should have 3 parts, but only actually had ["+parts+"] parts: ["+chars.subSequence(tokenizer.contentStart, tokenizer.contentEnd)+"]";
+        }
+        return null;
+    }
+
+    /**
+     * Splits a file into chunks that each start at the beginning of a line.
+     *
+     * @param channel     the file to split
+     * @param chunkCount  the number of chunks to aim for
+     * @param charset     the character encoding of the file
+     * @return            the chunks, in file order
+     * @throws IOException  if the file cannot be read
+     */
+    private static List<ImportChunk> splitIntoChunks(FileChannel channel, int chunkCount, Charset charset) throws IOException {
+        long size = channel.size();
+        long chunkSize = Math.min(MAX_CHUNK_BYTES, Math.max(MIN_CHUNK_BYTES, (size + chunkCount - 1) / chunkCount));
+
+        List<ImportChunk> chunks = new ArrayList<ImportChunk>();
+        long from = 0;
+        while (from < size) {
+            long to = nextLineStart(channel, Math.min(size, from + chunkSize), size);
+            chunks.add(new ImportChunk(channel, from, to, charset));
+            from = to;
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the offset of the start of the first line that begins after the given offset.
+     *
+     * @param channel  the file to search
+     * @param pos      the offset to search from
+     * @param size     the size of the file
+     * @return         the offset after the next newline, or the size of the file if there is none
+     * @throws IOException  if the file cannot be read
+     */
+    static long nextLineStart(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (pos < size) {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
     }
-}
\ No newline at end of file
+}
@@ -1,41 +1,160 @@
 package cscie97.asn1.knowledge.engine;
 
-import java.util.HashMap;
-import java.util.Set;
-import java.util.Map;
-import java.util.List;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
 import cscie97.asn1.knowledge.engine.exception.ParseException;
+import cscie97.asn1.knowledge.engine.exception.SnapshotException;
+import cscie97.asn1.knowledge.engine.exception.WriteAheadLogException;
 
 /**
  * An in-memory database of Triples, which allows for the importation of new Triples into the database as well as
  * queries on the database and returns matching Triples.  The KnowledgeGraph is a Singleton, so there is only ever
  * one instance to use.  Additionally, the KnowledgeGraph uses the Flyweight pattern to ensure that there is only ever
- * one unique instance of each Node, Predicate, or Triple so as to not needlessly duplicate things.
+ * one unique instance of each Node or Predicate so as to not needlessly duplicate things.  Triples are stored only
+ * as the dictionary ids of their parts, in three sorted permutation indexes (SPO, POS, and OSP), and Triple objects
+ * are built from those ids as query results are read.
+ * <p>
+ * The KnowledgeGraph is safe for concurrent use: any number of threads may execute queries while another thread
+ * imports Triples.  Queries never block; imports are serialized with each other, and each imported batch becomes
+ * visible to queries one posting list at a time.
+ * <p>
+ * Triples can be removed with {@link #removeTriples(List)} or swapped for others with
+ * {@link #replaceTriples(List, List)}.  A Node or Predicate left without any Triples is released from its term
+ * dictionary, and its id is reused by a later new term, so a long running KnowledgeGraph whose Triples come and go
+ * does not keep growing.  An id is only reused once no query result or running query that started before the
+ * release can still see it (see {@link TermReclaimer}), so a result held across removals keeps reporting the Triples
+ * it matched, though holding one for a long time delays the reuse of every id released meanwhile.
+ * <p>
+ * The whole KnowledgeGraph can be saved to a binary snapshot with {@link #writeSnapshot(String)} and restored with
+ * {@link #loadSnapshot(String)}, which is much faster than importing the original Triple files again.  Triples
+ * added after a snapshot can be kept across restarts with a write-ahead log; see
+ * {@link #openWriteAheadLog(String, WriteAheadLog.SyncPolicy, long, int)}.
+ * <p>
+ * The permutation indexes start out on the heap.  A KnowledgeGraph holding hundreds of millions of Triples can
+ * move them off the heap with {@link #setIndexStorage(IndexStorage)}, so that garbage collection pauses do not
+ * grow with the number of Triples, or compress them so that several times as many Triples fit in the same memory.
+ * <p>
+ * Neighbourhoods, transitive closures, and shortest paths along the edges of one Predicate are found with a
+ * breadth first search of the indexes; see {@link #getNeighbourhood(Node, Predicate, Direction, int)} and
+ * {@link #findShortestPath(Node, Node, Predicate, Direction, int)}.  Nodes that appear in a large share of the
+ * Triples are tracked as hubs, so {@link #getTopNodesByDegree(Direction, int)} rarely has to read every degree.
+ * <p>
+ * Triples can also be split across several KnowledgeGraphs by subject, so that imports proceed on every core;
+ * see {@link ShardedKnowledgeGraph}.
  *
  * @author David Killeffer <rayden7@gmail.com>
  * @version 1.0
  * @see Triple
  * @see QueryEngine
  * @see Importer
+ * @see ShardedKnowledgeGraph
  */
 public class KnowledgeGraph {
 
-    // borrowed Singleton implementation from Wikipedia: http://en.wikipedia.org/wiki/Singleton_pattern
+    /**
+     * Where the permutation indexes keep their posting lists.
+     */
+    public enum IndexStorage {
 
-    private static KnowledgeGraph instance = null;
+        /**
+         * Each posting list is a long array on the heap.  Reads and imports are fastest, but every posting list is
+         * an object that the garbage collector has to copy.
+         */
+        HEAP,
+
+        /**
+         * Posting lists are packed into large direct buffers outside of the heap, and only the Triples that
+         * queries read are built on the heap.  Reads are slightly slower, and the heap stays the same size however
+         * many Triples are held.  Node and Predicate dictionaries stay on the heap.
+         */
+        OFF_HEAP,
+
+        /**
+         * Each posting list is a byte array on the heap, delta-encoded in blocks with a skip table for seeks.
+         * Sorted neighbouring values are close together, so the indexes take a fraction of the memory of HEAP;
+         * reads decode only the blocks they touch, and imports pay to re-encode the posting lists they change.
+         */
+        COMPRESSED
+    }
 
     /**
-     * Class constructor.  Initially sets nodeMap, predicateMap, tripleMap, and queryMapSet to all be empty HashMaps.
+     * Which way the edges of a Predicate are followed when the KnowledgeGraph is traversed.
      */
-    private KnowledgeGraph() {
-        nodeMap = new HashMap<String,Node>();
-        predicateMap = new HashMap<String,Predicate>();
-        tripleMap = new HashMap<String,Triple>();
-        queryMapSet = new HashMap<String,Set<Triple>>();
+    public enum Direction {
+
+        /**
+         * From the subject of each Triple to its object, as in "Joe has_friend ?".
+         */
+        OUTGOING,
 
+        /**
+         * From the object of each Triple to its subject, as in "? has_friend Joe".
+         */
+        INCOMING,
+
+        /**
+         * Both ways, treating each Triple as an undirected edge.
+         */
+        BOTH;
+
+        /**
+         * Returns the direction that follows the same edges the other way.
+         *
+         * @return  the reverse direction
+         */
+        Direction reverse() {
+            switch (this) {
+                case OUTGOING: return INCOMING;
+                case INCOMING: return OUTGOING;
+                default:       return BOTH;
+            }
+        }
+    }
+
+    // borrowed Singleton implementation from Wikipedia: http://en.wikipedia.org/wiki/Initialization-on-demand_holder_idiom
+
+    /**
+     * Holds the single instance of the KnowledgeGraph.  The class loader creates it safely the first time
+     * getInstance() is called, so later calls do not need to synchronize.
+     */
+    private static class InstanceHolder {
+        private static final KnowledgeGraph instance = new KnowledgeGraph();
+    }
+
+    /**
+     * Class constructor.  Initially sets nodeDictionary and predicateDictionary to be empty term dictionaries, and
+     * spoIndex, posIndex, and ospIndex to be empty permutation indexes.  Besides the single instance, used to
+     * create the shards of a {@link ShardedKnowledgeGraph}.
+     */
+    KnowledgeGraph() {
+        nodeDictionary = new TermDictionary<Node>() {
+            protected Node createTerm(String identifier, int id) {
+                return new Node(identifier, id);
+            }
+        };
+        predicateDictionary = new TermDictionary<Predicate>() {
+            protected Predicate createTerm(String identifier, int id) {
+                return new Predicate(identifier, id);
+            }
+        };
+        spoIndex = new PermutationIndex(PermutationIndex.SPO);
+        posIndex = new PermutationIndex(PermutationIndex.POS);
+        ospIndex = new PermutationIndex(PermutationIndex.OSP);
     }
 
     /**
@@ -43,218 +162,1410 @@ public class KnowledgeGraph {
      *
      * @return singleton instance of KnowledgeGraph
      */
-    public static synchronized KnowledgeGraph getInstance() {
-        if (instance == null) {
-            instance = new KnowledgeGraph();
-        }
-        return instance;
+    public static KnowledgeGraph getInstance() {
+        return InstanceHolder.instance;
     }
 
     /**
-     * Private association for maintaining the active set of Nodes (i.e. Subjects and/or Objects).
-     * Map key is the node identifier and value is the associated Node. Node identifiers
-     * are case insensitive.
+     * Private term dictionary for maintaining the active set of Nodes (i.e. Subjects and/or Objects).  Assigns
+     * each Node a dense integer id the first time it is interned. Node identifiers are case insensitive.
      */
-    private Map<String,Node> nodeMap;
+    private TermDictionary<Node> nodeDictionary;
 
     /**
-     * Private association for maintaining the active set of Predicates. Map key is the predicate
-     * identifier and value is the associated Predicate. Predicate identifiers are case insensitive.
+     * Private term dictionary for maintaining the active set of Predicates.  Assigns each Predicate a dense
+     * integer id the first time it is interned. Predicate identifiers are case insensitive.
      */
-    private Map<String,Predicate> predicateMap;
+    private TermDictionary<Predicate> predicateDictionary;
 
     /**
-     * Private association for maintaining the active set of Triples. Map key is the Triple
-     * identifier and value is the associated Triple.
+     * Private index of every Triple keyed on subject, sorted by predicate then object.  Answers the "Joe ? ?",
+     * "Joe has_friend ?", "Joe has_friend Bill", and "? ? ?" queries, and is used to check whether a Triple exists.
      */
-    private Map<String,Triple> tripleMap;
+    private PermutationIndex spoIndex;
 
     /**
-     * Private association for maintaining a fast query lookup map. Map key is the query
-     * string (e.g. "Bill ? ?"), and value is a Set of matching Triples.
+     * Private index of every Triple keyed on predicate, sorted by object then subject.  Answers the
+     * "? has_friend ?" and "? has_friend Bill" queries.
      */
-    private Map<String,Set<Triple>> queryMapSet;
+    private PermutationIndex posIndex;
 
+    /**
+     * Private index of every Triple keyed on object, sorted by subject then predicate.  Answers the "? ? Bill"
+     * and "Joe ? Bill" queries.
+     */
+    private PermutationIndex ospIndex;
+
+    /**
+     * Private lock held while Triples are added to the indexes, so that concurrent imports are applied one
+     * batch at a time.  Queries never take this lock.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Private record of where the permutation indexes keep their posting lists; changed only under the writeLock.
+     */
+    private volatile IndexStorage indexStorage = IndexStorage.HEAP;
 
     /**
-     * Public method for adding a list of Triples to the KnowledgeGraph.  Updates the associations for: nodeMap,
-     * tripleMap, queryMapSet, and predicateMap to reflect the added Triple. There should be one Triple instance
-     * per unique Subject, Predicate, Object combination, so that Triples are not duplicated (Flyweight pattern).
+     * Private write-ahead log that every batch of added Triples is appended to, or null if the KnowledgeGraph is
+     * not logged.  Guarded by writeLock.
+     */
+    private WriteAheadLog writeAheadLog;
+
+    /**
+     * Private cache of the results of repeated single Triple queries, keyed on the normalized query string.
+     * Entries are dropped as imported Triples come to match them.
+     */
+    private final QueryCache queryCache = new QueryCache();
+
+    /**
+     * Private tracker of the readers that may still turn ids into terms, which holds released ids back from reuse
+     * until no reader can see them.
+     */
+    private final TermReclaimer termReclaimer = new TermReclaimer();
+
+    /**
+     * Private count of the imports that are interning terms or adding Triples.  An import holds ids that it has
+     * interned but not yet added to the indexes, so no term is released while any import is in flight.  Guarded
+     * by writeLock.
+     */
+    private int activeImports = 0;
+
+    /**
+     * Private ids of the Nodes and Predicates that lost Triples to a removal, to release if they have none left
+     * once no import is in flight.  Guarded by writeLock.
+     */
+    private final BitSet pendingNodeIds = new BitSet(), pendingPredicateIds = new BitSet();
+
+    /**
+     * Private counters, latency histograms, and gauges of imports, removals, and queries.
+     */
+    private final KnowledgeGraphMetrics metrics = new KnowledgeGraphMetrics(this);
+
+
+    /**
+     * Public method for adding a list of Triples to the KnowledgeGraph.  Interns the subject, predicate, and
+     * object of each Triple in the term dictionaries, and adds the ids of each Triple to the spoIndex, posIndex,
+     * and ospIndex.  Each unique Subject, Predicate, Object combination is stored only once, so Triples are not
+     * duplicated.
      *
      * @param tripleList  the list of Triples to add to the KnowledgeGraph
      */
     public void importTriples(List<Triple> tripleList) {
-        for (Triple triple : tripleList) {
-            // the triple is new and doesn't exist yet, so add all required references as necessary
-            if ( tripleMap.get(triple.getIdentifier().toLowerCase()) == null && triple.getIdentifier() != null) {
+        beginImport();
+        try {
+            int count = tripleList.size();
+            int[] subjectIds = new int[count];
+            int[] predicateIds = new int[count];
+            int[] objectIds = new int[count];
 
-                if (nodeMap.get(triple.getSubject().getIdentifier().toLowerCase()) == null) {
-                    nodeMap.put(triple.getSubject().getIdentifier().toLowerCase(), triple.getSubject());
-                }
+            int i = 0;
+            for (Triple triple : tripleList) {
+                // make sure every part of the triple is the dictionary's instance, so the triple's ids are valid
+                subjectIds[i] = internNode(triple.getSubject()).getId();
+                predicateIds[i] = internPredicate(triple.getPredicate()).getId();
+                objectIds[i] = internNode(triple.getObject()).getId();
+                i++;
+            }
+            addTriplesToIndexes(subjectIds, predicateIds, objectIds, count);
+        }
+        finally {
+            endImport();
+        }
+    }
+
+    /**
+     * Public method for removing a list of Triples from the KnowledgeGraph.  Each Triple is removed from the
+     * spoIndex, posIndex, and ospIndex; Triples the KnowledgeGraph does not hold are ignored.  Nodes and Predicates
+     * that no longer appear in any Triple are released from the term dictionaries.
+     *
+     * @param tripleList                 the list of Triples to remove from the KnowledgeGraph
+     * @return                           the number of Triples that were removed
+     * @throws IllegalArgumentException  if a Triple has a wildcard part
+     */
+    public long removeTriples(List<Triple> tripleList) {
+        return replaceTriples(tripleList, Collections.<Triple>emptyList());
+    }
 
-                if (nodeMap.get(triple.getObject().getIdentifier().toLowerCase()) == null) {
-                    nodeMap.put(triple.getObject().getIdentifier().toLowerCase(), triple.getObject());
+    /**
+     * Public method for removing a list of Triples from the KnowledgeGraph and adding another in their place, as
+     * one change: both are applied together while imports wait, and are logged together if a write-ahead log is
+     * open.  Queries may see the removal before the addition for any one posting list.  Nodes and Predicates are
+     * only released if they appear in none of the remaining or added Triples.
+     *
+     * @param removedTriples             the Triples to remove; Triples the KnowledgeGraph does not hold are ignored
+     * @param addedTriples               the Triples to add
+     * @return                           the number of Triples that were removed
+     * @throws IllegalArgumentException  if a removed Triple has a wildcard part
+     */
+    public long replaceTriples(List<Triple> removedTriples, List<Triple> addedTriples) {
+        beginImport();
+        try {
+            int removedCount = 0;
+            int[] removedSubjectIds = new int[removedTriples.size()];
+            int[] removedPredicateIds = new int[removedTriples.size()];
+            int[] removedObjectIds = new int[removedTriples.size()];
+            for (Triple triple : removedTriples) {
+                if (triple.getSubjectId() == Triple.WILDCARD || triple.getPredicateId() == Triple.WILDCARD
+                        || triple.getObjectId() == Triple.WILDCARD) {
+                    throw new IllegalArgumentException("cannot remove Triple [" + triple.getIdentifier() + "] with a wildcard part");
+                }
+                int subjectId = resolveNodeId(triple.getSubjectId(), triple.getSubject());
+                int predicateId = resolvePredicateId(triple.getPredicateId(), triple.getPredicate());
+                int objectId = resolveNodeId(triple.getObjectId(), triple.getObject());
+                // a Triple naming a term the dictionaries do not hold cannot be in the KnowledgeGraph
+                if (subjectId != TermDictionary.NOT_FOUND && predicateId != TermDictionary.NOT_FOUND && objectId != TermDictionary.NOT_FOUND) {
+                    removedSubjectIds[removedCount] = subjectId;
+                    removedPredicateIds[removedCount] = predicateId;
+                    removedObjectIds[removedCount] = objectId;
+                    removedCount++;
                 }
+            }
+
+            int addedCount = addedTriples.size();
+            int[] addedSubjectIds = new int[addedCount];
+            int[] addedPredicateIds = new int[addedCount];
+            int[] addedObjectIds = new int[addedCount];
+            int i = 0;
+            for (Triple triple : addedTriples) {
+                addedSubjectIds[i] = internNode(triple.getSubject()).getId();
+                addedPredicateIds[i] = internPredicate(triple.getPredicate()).getId();
+                addedObjectIds[i] = internNode(triple.getObject()).getId();
+                i++;
+            }
 
-                if (predicateMap.get(triple.getPredicate().getIdentifier().toLowerCase()) == null) {
-                    predicateMap.put(triple.getPredicate().getIdentifier().toLowerCase(), triple.getPredicate());
+            long start = metrics.startTimer();
+            WriteAheadLog log;
+            long sequence = 0;
+            long removed = 0;
+            synchronized (writeLock) {
+                log = writeAheadLog;
+                if (removedCount > 0) {
+                    if (log != null) {
+                        sequence = log.append(removedSubjectIds, removedPredicateIds, removedObjectIds, removedCount, true,
+                                              nodeDictionary, predicateDictionary);
+                    }
+                    removed = removeFromIndexes(removedSubjectIds, removedPredicateIds, removedObjectIds, removedCount);
                 }
+                if (addedCount > 0) {
+                    if (log != null) {
+                        sequence = log.append(addedSubjectIds, addedPredicateIds, addedObjectIds, addedCount, false,
+                                              nodeDictionary, predicateDictionary);
+                    }
+                    insertIntoIndexes(addedSubjectIds, addedPredicateIds, addedObjectIds, addedCount);
+                }
+            }
+            if (log != null && sequence > 0) {
+                log.awaitCommit(sequence);
+            }
+            metrics.recordReplaceBatch(start);
+            return removed;
+        }
+        finally {
+            endImport();
+        }
+    }
+
+    /**
+     * Marks the start of an import, so that no term is released until the import has added the Triples whose ids
+     * it interns.  Every call must be followed by a call to {@link #endImport()}.
+     */
+    void beginImport() {
+        synchronized (writeLock) {
+            activeImports++;
+            termReclaimer.reclaim(nodeDictionary, predicateDictionary);
+        }
+    }
 
-                addTripleToQueryMapSet(triple);
+    /**
+     * Marks the end of an import started with {@link #beginImport()}.  The last import to end releases the terms
+     * that removals left without Triples in the meantime.
+     */
+    void endImport() {
+        synchronized (writeLock) {
+            activeImports--;
+            if (activeImports == 0) {
+                releaseUnusedTerms();
             }
         }
     }
 
     /**
-     * Adds the given Triple to the queryMapSet, calculating all the permutations of queries for which the passed
-     * Triple should be included in the result set.  For each Triple, there are a total of 8 unique queries that
-     * should return the Triple.
+     * Adds a batch of Triples, given as ids, to the spoIndex, posIndex, and ospIndex.  Each index merges the batch
+     * into its sorted posting lists and drops Triples that it already holds.  Also used by the Importer to add
+     * Triples it has already encoded, without building a Triple object for each one.  Callers that intern the ids
+     * themselves must do so between {@link #beginImport()} and {@link #endImport()}, so the ids stay valid.
+     * <p>
+     * If a write-ahead log is open, the batch is queued in the log in the same order as it is applied to the
+     * indexes, and this method returns once the log has committed it according to the log's SyncPolicy.
      *
-     * @param triple  the Triple to add to the queryMapSet
+     * @param subjectIds    subject ids of the Triples to add
+     * @param predicateIds  predicate ids of the Triples to add
+     * @param objectIds     object ids of the Triples to add
+     * @param count         number of Triples in the arrays to add
      */
-    private void addTripleToQueryMapSet(Triple triple) {
+    void addTriplesToIndexes(int[] subjectIds, int[] predicateIds, int[] objectIds, int count) {
+        if (count == 0) {
+            return;
+        }
+        long start = metrics.startTimer();
+        WriteAheadLog log;
+        long sequence = 0;
+        synchronized (writeLock) {
+            log = writeAheadLog;
+            if (log != null) {
+                sequence = log.append(subjectIds, predicateIds, objectIds, count, false, nodeDictionary, predicateDictionary);
+            }
+            insertIntoIndexes(subjectIds, predicateIds, objectIds, count);
+        }
+        if (log != null) {
+            log.awaitCommit(sequence);
+        }
+        metrics.recordImportBatch(start);
+    }
 
-        // the triple is new and doesn't exist yet, so add all required references as necessary
-        if ( tripleMap.get(triple.getIdentifier().toLowerCase()) == null && triple.getIdentifier() != null) {
+    /**
+     * Adds a large batch of Triples, given as ids, by sorting each index's share of the batch once rather than
+     * merging it in pieces; see {@link PermutationIndex#bulkInsert}.  The whole query result cache is dropped, since
+     * a bulk load usually changes most of the cached results.  Callers must intern the ids between
+     * {@link #beginImport()} and {@link #endImport()}, and a write-ahead log is kept as for
+     * {@link #addTriplesToIndexes(int[], int[], int[], int)}.
+     *
+     * @param subjectIds    subject ids of the Triples to add
+     * @param predicateIds  predicate ids of the Triples to add
+     * @param objectIds     object ids of the Triples to add
+     * @param count         number of Triples in the arrays to add
+     * @param pool          the pool to sort on, or null to sort on the calling thread
+     */
+    void bulkAddTriplesToIndexes(int[] subjectIds, int[] predicateIds, int[] objectIds, int count, ForkJoinPool pool) {
+        if (count == 0) {
+            return;
+        }
+        long start = metrics.startTimer();
+        WriteAheadLog log;
+        long sequence = 0;
+        synchronized (writeLock) {
+            log = writeAheadLog;
+            if (log != null) {
+                sequence = log.append(subjectIds, predicateIds, objectIds, count, false, nodeDictionary, predicateDictionary);
+            }
+            metrics.countAdded(spoIndex.bulkInsert(subjectIds, predicateIds, objectIds, count, pool));
+            posIndex.bulkInsert(subjectIds, predicateIds, objectIds, count, pool);
+            ospIndex.bulkInsert(subjectIds, predicateIds, objectIds, count, pool);
+            queryCache.clear();
+        }
+        if (log != null) {
+            log.awaitCommit(sequence);
+        }
+        metrics.recordImportBatch(start);
+    }
 
-            String cleanedIdentifier = cleanTripleIdentifier(triple.getIdentifier());
-            tripleMap.put(cleanedIdentifier, triple);
+    /**
+     * Inserts a batch of Triples, given as ids, into the spoIndex, posIndex, and ospIndex, and drops the cached
+     * query results the Triples match.  Must be called while holding writeLock.
+     *
+     * @param subjectIds    subject ids of the Triples to add
+     * @param predicateIds  predicate ids of the Triples to add
+     * @param objectIds     object ids of the Triples to add
+     * @param count         number of Triples in the arrays to add
+     */
+    private void insertIntoIndexes(int[] subjectIds, int[] predicateIds, int[] objectIds, int count) {
+        metrics.countAdded(spoIndex.insert(subjectIds, predicateIds, objectIds, count));
+        posIndex.insert(subjectIds, predicateIds, objectIds, count);
+        ospIndex.insert(subjectIds, predicateIds, objectIds, count);
+        queryCache.invalidate(subjectIds, predicateIds, objectIds, count);
+    }
 
-            /*
-            update queryMapSet - this pre-computes the possible queries that this Triple should match; there should in
-            general be 8 permutations of queries that will match the given Triple.  For example, if the triple is:
+    /**
+     * Removes a batch of Triples, given as ids, from the spoIndex, posIndex, and ospIndex, and drops the cached
+     * query results the Triples matched.  Their terms become candidates for release, and are released at once
+     * unless an import is in flight.  Must be called while holding writeLock.
+     *
+     * @param subjectIds    subject ids of the Triples to remove
+     * @param predicateIds  predicate ids of the Triples to remove
+     * @param objectIds     object ids of the Triples to remove
+     * @param count         number of Triples in the arrays to remove
+     * @return              the number of Triples that were removed
+     */
+    private long removeFromIndexes(int[] subjectIds, int[] predicateIds, int[] objectIds, int count) {
+        long removed = spoIndex.remove(subjectIds, predicateIds, objectIds, count);
+        posIndex.remove(subjectIds, predicateIds, objectIds, count);
+        ospIndex.remove(subjectIds, predicateIds, objectIds, count);
+        queryCache.invalidate(subjectIds, predicateIds, objectIds, count);
+        metrics.countRemoved(removed);
+        for (int i = 0; i < count; i++) {
+            pendingNodeIds.set(subjectIds[i]);
+            pendingPredicateIds.set(predicateIds[i]);
+            pendingNodeIds.set(objectIds[i]);
+        }
+        if (activeImports == 0) {
+            releaseUnusedTerms();
+        }
+        return removed;
+    }
 
-            "Joe has_friend Bill", then the various 8 permutations of query strings that should match this triple are:
+    /**
+     * Releases every pending Node that is neither the subject nor the object of a Triple, and every pending
+     * Predicate that is not the predicate of a Triple, then drops the cached query results that name them.  The
+     * released ids are only reused once no reader that started before the release can still see them.  Must be
+     * called while holding writeLock, with no import in flight.
+     */
+    private void releaseUnusedTerms() {
+        if (pendingNodeIds.isEmpty() && pendingPredicateIds.isEmpty()) {
+            return;
+        }
+        BitSet releasedNodeIds = new BitSet();
+        for (int id = pendingNodeIds.nextSetBit(0); id >= 0; id = pendingNodeIds.nextSetBit(id + 1)) {
+            if (spoIndex.postingLength(id) == 0 && ospIndex.postingLength(id) == 0 && nodeDictionary.release(id)) {
+                releasedNodeIds.set(id);
+            }
+        }
+        BitSet releasedPredicateIds = new BitSet();
+        for (int id = pendingPredicateIds.nextSetBit(0); id >= 0; id = pendingPredicateIds.nextSetBit(id + 1)) {
+            if (posIndex.postingLength(id) == 0 && predicateDictionary.release(id)) {
+                releasedPredicateIds.set(id);
+            }
+        }
+        pendingNodeIds.clear();
+        pendingPredicateIds.clear();
+        if (!releasedNodeIds.isEmpty() || !releasedPredicateIds.isEmpty()) {
+            queryCache.invalidateTerms(releasedNodeIds, releasedPredicateIds);
+            TermReclaimer.Epoch epoch = termReclaimer.endEpoch(releasedNodeIds, releasedPredicateIds);
+            // every cached result holding a released id was dropped when its Triple was removed, so the results
+            // still cached need not hold back the ids released now
+            queryCache.repin(epoch);
+        }
+        termReclaimer.reclaim(nodeDictionary, predicateDictionary);
+    }
 
-            1) Joe has_friend Bill
-            2) Joe has_friend ?
-            3) Joe ? Bill
-            4) Joe ? ?
-            5) ? has_friend Bill
-            6) ? has_friend ?
-            7) ? ? Bill
-            8) ? ? ?
+    /**
+     * Returns the term dictionary's instance of the given Node, interning it by identifier if it was not created
+     * by this KnowledgeGraph.
+     *
+     * @param node  the Node to intern
+     * @return      the unique Node instance with a valid id
+     */
+    private Node internNode(Node node) {
+        if (nodeDictionary.holds(node.getId(), node)) {
+            return node;
+        }
+        return nodeDictionary.intern(node.getIdentifier());
+    }
 
-            */
+    /**
+     * Returns the term dictionary's instance of the given Predicate, interning it by identifier if it was not
+     * created by this KnowledgeGraph.
+     *
+     * @param predicate  the Predicate to intern
+     * @return           the unique Predicate instance with a valid id
+     */
+    private Predicate internPredicate(Predicate predicate) {
+        if (predicateDictionary.holds(predicate.getId(), predicate)) {
+            return predicate;
+        }
+        return predicateDictionary.intern(predicate.getIdentifier());
+    }
 
-            // save a list of all the query strings that should potentially match this triple, and update the queryMapSet
-            // with the current triple for each permutation so that subsequent queries will quickly match this triple
-            List<String> queryStringMatches = new ArrayList<String>(Arrays.asList(
-                // query format: 1) Joe has_friend Bill
-                triple.getSubject().getIdentifier().toLowerCase() + " " + triple.getPredicate().getIdentifier().toLowerCase() + " " + triple.getObject().getIdentifier().toLowerCase(),
-                // query format: 2) Joe has_friend ?
-                triple.getSubject().getIdentifier().toLowerCase() + " " + triple.getPredicate().getIdentifier().toLowerCase() + " ?",
-                // query format: 3) Joe ? Bill
-                triple.getSubject().getIdentifier().toLowerCase() + " ? " + triple.getObject().getIdentifier().toLowerCase(),
-                // query format: 4) Joe ? ?
-                triple.getSubject().getIdentifier().toLowerCase() + " ? ?",
-                // query format: 5) ? has_friend Bill
-                "? " + triple.getPredicate().getIdentifier().toLowerCase() + " " + triple.getObject().getIdentifier().toLowerCase(),
-                // query format: 6) ? has_friend ?
-                "? " + triple.getPredicate().getIdentifier().toLowerCase() + " ?",
-                // query format: 7) ? ? Bill
-                "? ? " + triple.getObject().getIdentifier().toLowerCase(),
-                // query format: 8) ? ? ?
-                "? ? ?"
-            ));
+    /**
+     * Writes a binary snapshot of the KnowledgeGraph to the given file: the term dictionaries and the sorted
+     * posting lists of every index, behind a header holding a format version and a checksum.  The snapshot is
+     * first written to a temporary file next to the target, which is then moved into place, so an existing
+     * snapshot is never left half written.  Imports wait while the snapshot is written; queries do not.
+     *
+     * @param filename             the snapshot file to write
+     * @throws SnapshotException   if the snapshot cannot be written
+     */
+    public void writeSnapshot(String filename) throws SnapshotException {
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            synchronized (writeLock) {
+                RandomAccessFile file = new RandomAccessFile(temporary.toFile(), "rw");
+                try {
+                    SnapshotFile.write(file,
+                                       nodeDictionary, nodeDictionary.size(),
+                                       predicateDictionary, predicateDictionary.size(),
+                                       new PermutationIndex[] { spoIndex, posIndex, ospIndex });
+                }
+                finally {
+                    file.close();
+                }
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ioe) {
+            throw new SnapshotException("could not write snapshot", filename, ioe);
+        }
+    }
 
-            for (String queryString : queryStringMatches) {
-                Set<Triple> queryStringSetMatchingTriples = queryMapSet.get(queryString);
-                if (queryStringSetMatchingTriples == null) {
-                    queryMapSet.put(queryString, new HashSet<Triple>(Arrays.asList(triple)) );
+    /**
+     * Loads a binary snapshot written by {@link #writeSnapshot(String)} into the KnowledgeGraph, which must be
+     * empty.  The snapshot is memory-mapped, its version and checksum are checked, and its dictionaries and
+     * posting lists are copied straight into the KnowledgeGraph without being parsed, sorted, or merged.  Nothing
+     * is loaded unless the whole snapshot is valid.  Nodes and Predicates keep the ids they had when the snapshot
+     * was written.
+     *
+     * @param filename             the snapshot file to load
+     * @throws SnapshotException   if the snapshot cannot be read or is not valid, or if the KnowledgeGraph is not empty
+     */
+    public void loadSnapshot(String filename) throws SnapshotException {
+        synchronized (writeLock) {
+            if (nodeDictionary.size() > 0 || predicateDictionary.size() > 0) {
+                throw new SnapshotException("a snapshot can only be loaded into an empty KnowledgeGraph", filename, null);
+            }
+
+            SnapshotFile.Contents contents;
+            try {
+                RandomAccessFile file = new RandomAccessFile(filename, "r");
+                try {
+                    contents = SnapshotFile.read(file);
                 }
-                else {
-                    queryStringSetMatchingTriples.add(triple);
+                finally {
+                    file.close();
                 }
             }
+            catch (IOException ioe) {
+                throw new SnapshotException(ioe.getMessage(), filename, ioe);
+            }
+
+            nodeDictionary.restore(contents.nodes);
+            predicateDictionary.restore(contents.predicates);
+            spoIndex.load(contents.postings[PermutationIndex.SPO]);
+            posIndex.load(contents.postings[PermutationIndex.POS]);
+            ospIndex.load(contents.postings[PermutationIndex.OSP]);
+            queryCache.clear();
+        }
+    }
+
+    /**
+     * Opens a write-ahead log for the KnowledgeGraph, creating the log file if it does not exist.  Any Triples
+     * already in the log are first replayed into the KnowledgeGraph, so to recover after a restart, load the last
+     * snapshot with {@link #loadSnapshot(String)} (if there is one) and then open the log.  From then on, every
+     * Triple added to the KnowledgeGraph, by any import or by {@link #getTriple(Node, Predicate, Node)}, is appended
+     * to the log before the call that added it returns.
+     *
+     * @param filename                 the log file
+     * @param policy                   how imports wait for their Triples to be logged
+     * @param groupCommitMillis        how long the log waits for more imports to join a group commit; 0 to commit at once
+     * @param maxGroupBytes            the size of a group at which it is committed without waiting any longer
+     * @throws WriteAheadLogException  if a log is already open, or the log cannot be opened or replayed
+     */
+    public void openWriteAheadLog(String filename, WriteAheadLog.SyncPolicy policy, long groupCommitMillis, int maxGroupBytes) throws WriteAheadLogException {
+        synchronized (writeLock) {
+            if (writeAheadLog != null) {
+                throw new WriteAheadLogException("a write-ahead log is already open", filename, null);
+            }
+            try {
+                writeAheadLog = new WriteAheadLog(filename, policy, groupCommitMillis, maxGroupBytes, new WriteAheadLog.ReplayTarget() {
+                    public void replay(String[] subjects, String[] predicates, String[] objects) {
+                        int count = subjects.length;
+                        int[] subjectIds = new int[count];
+                        int[] predicateIds = new int[count];
+                        int[] objectIds = new int[count];
+                        for (int i = 0; i < count; i++) {
+                            subjectIds[i] = nodeDictionary.internId(subjects[i], 0, subjects[i].length());
+                            predicateIds[i] = predicateDictionary.internId(predicates[i], 0, predicates[i].length());
+                            objectIds[i] = nodeDictionary.internId(objects[i], 0, objects[i].length());
+                        }
+                        insertIntoIndexes(subjectIds, predicateIds, objectIds, count);
+                    }
+
+                    public void replayRemoval(String[] subjects, String[] predicates, String[] objects) {
+                        int count = 0;
+                        int[] subjectIds = new int[subjects.length];
+                        int[] predicateIds = new int[subjects.length];
+                        int[] objectIds = new int[subjects.length];
+                        for (int i = 0; i < subjects.length; i++) {
+                            subjectIds[count] = nodeDictionary.lookupId(subjects[i]);
+                            predicateIds[count] = predicateDictionary.lookupId(predicates[i]);
+                            objectIds[count] = nodeDictionary.lookupId(objects[i]);
+                            if (subjectIds[count] != TermDictionary.NOT_FOUND && predicateIds[count] != TermDictionary.NOT_FOUND
+                                    && objectIds[count] != TermDictionary.NOT_FOUND) {
+                                count++;
+                            }
+                        }
+                        removeFromIndexes(subjectIds, predicateIds, objectIds, count);
+                    }
+                });
+            }
+            catch (IOException ioe) {
+                throw new WriteAheadLogException(ioe.getMessage(), filename, ioe);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the KnowledgeGraph and then empties the write-ahead log, whose Triples are all in the
+     * snapshot, so that recovery only needs to replay what is added after the checkpoint.  Imports wait while the
+     * checkpoint is taken.
+     *
+     * @param snapshotFilename         the snapshot file to write
+     * @throws SnapshotException       if the snapshot cannot be written; the log is left untouched
+     * @throws WriteAheadLogException  if no log is open, or the log cannot be emptied
+     */
+    public void checkpoint(String snapshotFilename) throws SnapshotException, WriteAheadLogException {
+        synchronized (writeLock) {
+            if (writeAheadLog == null) {
+                throw new WriteAheadLogException("no write-ahead log is open", null, null);
+            }
+            writeSnapshot(snapshotFilename);
+            try {
+                writeAheadLog.reset();
+            }
+            catch (IOException ioe) {
+                throw new WriteAheadLogException("could not empty the log after writing snapshot [" + snapshotFilename + "]", writeAheadLog.getFilename(), ioe);
+            }
+        }
+    }
+
+    /**
+     * Commits every queued Triple to the write-ahead log and closes it.  Triples added afterwards are not logged.
+     * Does nothing if no log is open.
+     *
+     * @throws WriteAheadLogException  if the log could not be written or closed
+     */
+    public void closeWriteAheadLog() throws WriteAheadLogException {
+        WriteAheadLog log;
+        synchronized (writeLock) {
+            log = writeAheadLog;
+            writeAheadLog = null;
+        }
+        if (log != null) {
+            try {
+                log.close();
+            }
+            catch (IOException ioe) {
+                throw new WriteAheadLogException("could not close the log", log.getFilename(), ioe);
+            }
         }
     }
 
+    /**
+     * Returns the term dictionary of Nodes, so that the Importer can intern terms straight from the file contents.
+     *
+     * @return  the nodeDictionary
+     */
+    TermDictionary<Node> getNodeDictionary() {
+        return nodeDictionary;
+    }
+
+    /**
+     * Returns the term dictionary of Predicates, so that the Importer can intern terms straight from the file
+     * contents.
+     *
+     * @return  the predicateDictionary
+     */
+    TermDictionary<Predicate> getPredicateDictionary() {
+        return predicateDictionary;
+    }
+
     /**
      * Takes a given Triple identifier, or a Triple query, and does the following:
      * <ul>
      *     <li>converts the string to lower-case</li>
+     *     <li>removes any leading or trailing whitespace from the string</li>
      *     <li>removes any trailing period from the string</li>
      *     <li>replaces any occurrences of 2 or more spaces with a single space</li>
      * </ul>
+     * The string is cleaned in a single pass, lower-casing each character the way the term dictionaries fold
+     * identifiers, so the result does not depend on the default locale.
      *
      * @param stringToParse  the Triple identifier string or Triple query string to clean
      * @return   a string that has the correct formatting for either uniquely identifying it as an existing
      *           Triple, or using as a Triple query
      */
     public String cleanTripleIdentifier(String stringToParse) {
-        stringToParse = stringToParse.toLowerCase();
-        stringToParse = stringToParse.replaceAll("\\.+$", "");  // trim off any trailing periods from the string
-        stringToParse = stringToParse.replaceAll("\\s{2,}", " ");  // replace all occurrences of two or more consecutive spaces with a single space
-        return stringToParse;
+        // trim off whitespace, and then any trailing periods from the string
+        int end = TripleTokenizer.trimEnd(stringToParse, 0, stringToParse.length());
+        int pos = TripleTokenizer.skipSpace(stringToParse, 0, end);
+        StringBuilder cleaned = new StringBuilder(end - pos);
+        while (pos < end) {
+            int runEnd = pos;
+            while (runEnd < end && TripleTokenizer.isSpace(stringToParse.charAt(runEnd))) {
+                runEnd++;
+            }
+            if (runEnd - pos >= 2) {
+                // replace two or more consecutive spaces with a single space
+                cleaned.append(' ');
+                pos = runEnd;
+            }
+            else {
+                cleaned.append(TermDictionary.fold(stringToParse.charAt(pos++)));
+            }
+        }
+        return cleaned.toString();
     }
 
     /**
-     * Uses the queryMapSet to determine the Triples that match the given Query. Modifies the query by stripping off
-     * any trailing periods, and condenses multiple sequential occurrences of a space character into a single space.
-     * Queries are executed in a case-insensitive fashion.  If none are found return an empty Set.
+     * Uses the permutation indexes to determine the Triples that match the given Query.  The query is matched on the
+     * ids of its subject, predicate, and object, where a "?" part is the wildcard.  Query parts that were not created
+     * by this KnowledgeGraph are resolved by identifier, so queries are executed in a case-insensitive fashion.
+     * The returned Set is a read-only view of a range of one index, and builds each Triple as it is iterated.
+     * If none are found return an empty Set.
      *
-     * @param    query     the query string to search for matching Triples; question mark denotes a wildcard
+     * @param    query     the query Triple to search for matching Triples; question mark denotes a wildcard
      * @return             the Set of all Triples matching the input query
      */
     public Set<Triple> executeQuery(Triple query) {
-        if (query != null && query.getIdentifier() != null && query.getIdentifier().length() > 0) {
-            String realQuery = cleanTripleIdentifier(query.getIdentifier());
-            if (realQuery != null && realQuery.length() > 0) {
-                Set<Triple> foundResults = this.queryMapSet.get(realQuery);
-                return foundResults;
+        if (query != null) {
+            long start = metrics.startTimer();
+            QueryResultSet result = matchQuery(query);
+            metrics.recordQuery(KnowledgeGraphMetrics.shapeOf(query), start);
+            return (result != null) ? result : Collections.<Triple>emptySet();
+        }
+        return null;
+    }
+
+    /**
+     * Counts the Triples matching the given Query without reading them.  Every one of the 8 wildcard patterns is
+     * answered from the bounds of one index range: in constant time for "? ? ?", "Joe ? ?", "? has_friend ?", and
+     * "? ? Bill", whose ranges are whole posting lists, and with a binary search of one posting list otherwise.
+     *
+     * @param    query     the query Triple to count matching Triples of; question mark denotes a wildcard
+     * @return             the number of Triples matching the query, or 0 if the query is empty
+     */
+    public long countMatches(Triple query) {
+        if (query != null) {
+            QueryResultSet result = matchQuery(query);
+            return (result != null) ? result.count() : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Counts the solutions of a conjunctive query.  Unlike a single Triple pattern, the solutions of a join are
+     * not held by any one index range, so they are found with {@link #executeQuery(GraphPattern)} and counted.
+     *
+     * @param    query     the conjunctive query to count solutions of
+     * @return             the number of distinct solutions, or 0 if the query is null
+     */
+    public long countMatches(GraphPattern query) {
+        return (query != null) ? executeQuery(query).size() : 0;
+    }
+
+    /**
+     * Returns the distribution of the number of Triples each Node is the subject of.
+     *
+     * @return  a copy of the out-degree histogram, kept up to date as Triples are added
+     */
+    public DegreeHistogram getOutDegreeHistogram() {
+        return spoIndex.degreeHistogram();
+    }
+
+    /**
+     * Returns the distribution of the number of Triples each Node is the object of.
+     *
+     * @return  a copy of the in-degree histogram, kept up to date as Triples are added
+     */
+    public DegreeHistogram getInDegreeHistogram() {
+        return ospIndex.degreeHistogram();
+    }
+
+    /**
+     * Returns the distribution of the number of Triples each Predicate appears in.
+     *
+     * @return  a copy of the Predicate histogram, kept up to date as Triples are added
+     */
+    public DegreeHistogram getPredicateHistogram() {
+        return posIndex.degreeHistogram();
+    }
+
+    /**
+     * Returns the k Nodes that appear in the most Triples, such as the Starbucks and Coffee of a graph of
+     * purchases.  Nodes that appear in at least {@link PermutationIndex#HUB_DEGREE} Triples as a subject or as an
+     * object are tracked as hubs while Triples are imported, and when k hubs clearly outrank every other Node only
+     * the hubs are ranked; otherwise the degree of every Node is read.  Ties go to the Node with the lower id.
+     *
+     * @param direction  OUTGOING to count Triples with the Node as subject, INCOMING as object, or BOTH for their
+     *                   sum
+     * @param k          the number of Nodes to return; at least 1
+     * @return           a read-only Map from each of at most k Nodes to its degree, highest degree first
+     */
+    public Map<Node, Long> getTopNodesByDegree(Direction direction, int k) {
+        if (direction == null) {
+            throw new IllegalArgumentException("direction must not be null");
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1, but was ["+k+"]");
+        }
+
+        TermReclaimer.Epoch epoch = termReclaimer.pin();
+        // a Node that is not a hub in any index counted has at most this degree
+        long nonHubLimit = (direction == Direction.BOTH) ? 2L * (PermutationIndex.HUB_DEGREE - 1) : PermutationIndex.HUB_DEGREE - 1;
+        int[] hubs;
+        if (direction == Direction.OUTGOING) {
+            hubs = spoIndex.hubKeys();
+        }
+        else if (direction == Direction.INCOMING) {
+            hubs = ospIndex.hubKeys();
+        }
+        else {
+            hubs = unionOf(spoIndex.hubKeys(), ospIndex.hubKeys());
+        }
+        long[] ranked = rankByDegree(hubs, hubs.length, direction, k);
+        if (ranked.length < k || PermutationIndex.high(ranked[k - 1]) <= nonHubLimit) {
+            ranked = rankByDegree(null, nodeDictionary.size(), direction, k);
+        }
+
+        Map<Node, Long> top = new LinkedHashMap<Node, Long>();
+        for (long entry : ranked) {
+            top.put(nodeDictionary.get(Integer.MAX_VALUE - PermutationIndex.low(entry)), (long) PermutationIndex.high(entry));
+        }
+        epoch.unpin();
+        return Collections.unmodifiableMap(top);
+    }
+
+    /**
+     * Finds the k Nodes of highest degree among the given ones.
+     *
+     * @param nodeIds    the ids of the Nodes to rank, or null to rank every id below count
+     * @param count      the number of Nodes to rank
+     * @param direction  which Triples count towards the degree
+     * @param k          the number of Nodes to keep
+     * @return           the kept Nodes, highest degree first, each packed as its degree and Integer.MAX_VALUE
+     *                   minus its id, so that a larger value ranks higher
+     */
+    private long[] rankByDegree(int[] nodeIds, int count, Direction direction, int k) {
+        PriorityQueue<Long> kept = new PriorityQueue<Long>(k + 1);
+        for (int i = 0; i < count; i++) {
+            int id = (nodeIds != null) ? nodeIds[i] : i;
+            long degree = 0;
+            if (direction != Direction.INCOMING) {
+                degree += spoIndex.postingLength(id);
+            }
+            if (direction != Direction.OUTGOING) {
+                degree += ospIndex.postingLength(id);
+            }
+            if (degree == 0) {
+                continue;
+            }
+            long entry = PermutationIndex.pack((int) Math.min(degree, Integer.MAX_VALUE), Integer.MAX_VALUE - id);
+            if (kept.size() < k) {
+                kept.add(entry);
+            }
+            else if (entry > kept.peek()) {
+                kept.poll();
+                kept.add(entry);
+            }
+        }
+        long[] ranked = new long[kept.size()];
+        for (int i = ranked.length - 1; i >= 0; i--) {
+            ranked[i] = kept.poll();
+        }
+        return ranked;
+    }
+
+    /**
+     * Merges two ascending arrays of ids, dropping ids that are in both.
+     *
+     * @param a  ascending ids
+     * @param b  ascending ids
+     * @return   the ids in either array, ascending
+     */
+    private static int[] unionOf(int[] a, int[] b) {
+        int[] union = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                union[n++] = a[i++];
+            }
+            else if (i == a.length || b[j] < a[i]) {
+                union[n++] = b[j++];
+            }
+            else {
+                union[n++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(union, n);
+    }
+
+    /**
+     * Counts the Triples of a Node by Predicate, such as how many Triples of each kind mention a hub, without
+     * reading its Triples.  Outgoing Triples are counted by stepping through the Node's spoIndex posting list one
+     * Predicate range at a time, and incoming Triples from the range of the Node in each Predicate's posIndex
+     * posting list, so the cost depends on the number of Predicates rather than the degree of the Node.
+     *
+     * @param node       the Node to count the Triples of
+     * @param direction  OUTGOING to count Triples with the Node as subject, INCOMING as object, or BOTH
+     * @return           a read-only Map from each Predicate of the Node's Triples to their number, most Triples
+     *                   first; empty if the Node is not in the KnowledgeGraph
+     */
+    public Map<Predicate, Long> getDegreeByPredicate(Node node, Direction direction) {
+        if (direction == null) {
+            throw new IllegalArgumentException("direction must not be null");
+        }
+        TermReclaimer.Epoch epoch = termReclaimer.pin();
+        int nodeId = (node != null) ? resolveNodeId(node.getId(), node) : TermDictionary.NOT_FOUND;
+        if (nodeId < 0) {
+            return Collections.<Predicate, Long>emptyMap();
+        }
+
+        long[] counts = new long[predicateDictionary.size()];
+        if (direction != Direction.INCOMING) {
+            PostingList posting = spoIndex.getPostings(nodeId);
+            int i = 0;
+            while (i < posting.length()) {
+                int predicateId = PermutationIndex.high(posting.get(i));
+                int next = posting.lowerBound(PermutationIndex.pack(predicateId + 1, 0));
+                if (predicateId < counts.length) {
+                    counts[predicateId] += next - i;
+                }
+                i = next;
+            }
+        }
+        if (direction != Direction.OUTGOING) {
+            for (int predicateId = 0; predicateId < counts.length; predicateId++) {
+                PostingList posting = posIndex.getPostings(predicateId);
+                if (posting.length() > 0) {
+                    counts[predicateId] += posting.lowerBound(PermutationIndex.pack(nodeId + 1, 0))
+                                           - posting.lowerBound(PermutationIndex.pack(nodeId, 0));
+                }
             }
-            return null;
+        }
+
+        long[] ranked = new long[counts.length];
+        int n = 0;
+        for (int predicateId = 0; predicateId < counts.length; predicateId++) {
+            if (counts[predicateId] > 0) {
+                ranked[n++] = PermutationIndex.pack((int) Math.min(counts[predicateId], Integer.MAX_VALUE), Integer.MAX_VALUE - predicateId);
+            }
+        }
+        Arrays.sort(ranked, 0, n);
+        Map<Predicate, Long> degrees = new LinkedHashMap<Predicate, Long>();
+        for (int i = n - 1; i >= 0; i--) {
+            int predicateId = Integer.MAX_VALUE - PermutationIndex.low(ranked[i]);
+            degrees.put(predicateDictionary.get(predicateId), counts[predicateId]);
+        }
+        epoch.unpin();
+        return Collections.unmodifiableMap(degrees);
+    }
+
+    /**
+     * Returns one page of the Triples matching the given Query, skipping the given number of matching Triples
+     * first.  Only the Triples of the page are built, and skipping whole posting lists does not read them.  Pages
+     * are in the same order as {@link #executeQuery(Triple)} iterates.
+     *
+     * @param    query     the query Triple to search for matching Triples; question mark denotes a wildcard
+     * @param    offset    the number of matching Triples to skip
+     * @param    limit     the largest number of Triples to return
+     * @return             the page of matching Triples
+     */
+    public ResultPage executeQuery(Triple query, long offset, int limit) {
+        checkPageBounds(offset, limit);
+        if (query != null) {
+            long start = metrics.startTimer();
+            QueryResultSet result = matchQuery(query);
+            ResultPage page = (result != null) ? result.page(offset, limit) : new ResultPage(Collections.<Triple>emptyList(), null);
+            metrics.recordQuery(KnowledgeGraphMetrics.shapeOf(query), start);
+            return page;
+        }
+        return null;
+    }
+
+    /**
+     * Returns one page of the Triples matching the given Query, resuming after the page that returned the given
+     * continuation token.  Unlike an offset, a token is not thrown off by Triples imported between pages: the
+     * next page starts right after the last Triple of the previous page.
+     *
+     * @param    query              the query Triple to search for matching Triples; question mark denotes a wildcard
+     * @param    continuationToken  the token of the previous page of the same query, or null for the first page
+     * @param    limit              the largest number of Triples to return
+     * @return                      the page of matching Triples
+     * @throws   ParseException     if the token is malformed or was not returned for this query
+     */
+    public ResultPage executeQuery(Triple query, String continuationToken, int limit) throws ParseException {
+        checkPageBounds(0, limit);
+        if (query != null) {
+            long start = metrics.startTimer();
+            QueryResultSet result = matchQuery(query);
+            ResultPage page = (result != null) ? result.page(continuationToken, limit) : new ResultPage(Collections.<Triple>emptyList(), null);
+            metrics.recordQuery(KnowledgeGraphMetrics.shapeOf(query), start);
+            return page;
         }
         return null;
     }
 
+    /**
+     * Checks the offset and limit of a page request.
+     *
+     * @param offset  the number of matching Triples to skip
+     * @param limit   the largest number of Triples to return
+     */
+    private static void checkPageBounds(long offset, int limit) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative, but was ["+offset+"]");
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1, but was ["+limit+"]");
+        }
+    }
 
     /**
-     * Return a Node Instance for the given node identifier. Use the nodeMap to look up the Node.
-     * If the Node does not exist, create it and add it to the nodeMap. Node names are case insensitive.
+     * Resolves the parts of a query Triple to ids and selects the index range holding its matches.
+     *
+     * @param query  the query Triple
+     * @return       the matching Triples, or null if a part of the query is not in the KnowledgeGraph
+     */
+    private QueryResultSet matchQuery(Triple query) {
+        // pinned before the ids are resolved, so none of them can be released and reused before the result pins it
+        TermReclaimer.Epoch epoch = termReclaimer.pin();
+        int[] ids = resolveQueryIds(query);
+        return (ids != null) ? findMatchingTriples(epoch, ids[Triple.SUBJECT], ids[Triple.PREDICATE], ids[Triple.OBJECT]) : null;
+    }
+
+    /**
+     * Resolves the parts of a query Triple to dictionary ids.
+     *
+     * @param query  the query Triple
+     * @return       the subject, predicate, and object ids, any of which may be {@link Triple#WILDCARD}, or null if
+     *               a part of the query is not in the KnowledgeGraph
+     */
+    private int[] resolveQueryIds(Triple query) {
+        int subjectId = resolveNodeId(query.getSubjectId(), query.getSubject());
+        int predicateId = resolvePredicateId(query.getPredicateId(), query.getPredicate());
+        int objectId = resolveNodeId(query.getObjectId(), query.getObject());
+
+        // a part of the query that the dictionary has never seen cannot match anything
+        if (subjectId == TermDictionary.NOT_FOUND && query.getSubjectId() != Triple.WILDCARD
+                || predicateId == TermDictionary.NOT_FOUND && query.getPredicateId() != Triple.WILDCARD
+                || objectId == TermDictionary.NOT_FOUND && query.getObjectId() != Triple.WILDCARD) {
+            return null;
+        }
+        return new int[] { subjectId, predicateId, objectId };
+    }
+
+    /**
+     * Parses and executes a single Triple query string, such as "Starbucks sells ?", answering repeated queries
+     * from a bounded cache without parsing them again.  Queries that differ only in case, spacing, or trailing
+     * periods share one cache entry.  A cached result is dropped as soon as an import adds a Triple that matches
+     * it, so the cache never returns a stale result.
+     *
+     * @param    query            the query string; question mark denotes a wildcard
+     * @return                    the read-only Set of all Triples matching the query, or null if the query is empty
+     * @throws   ParseException   if the query does not have 3 parts
+     */
+    public Set<Triple> executeQuery(String query) throws ParseException {
+        return executeCachedQuery(query).result;
+    }
+
+    /**
+     * Parses and executes a single Triple query string through the query result cache.
+     *
+     * @param    query            the query string; question mark denotes a wildcard
+     * @return                    the cache entry holding the parsed query identifier and the result
+     * @throws   ParseException   if the query does not have 3 parts
+     */
+    QueryCache.Entry executeCachedQuery(String query) throws ParseException {
+        long start = metrics.startTimer();
+        String key = (query != null) ? QueryCache.normalize(query) : "";
+        QueryCache.Entry cached = queryCache.get(key);
+        if (cached != null) {
+            metrics.recordQuery(cached.shape(), start);
+            return cached;
+        }
+
+        long generation = queryCache.generation();
+        TermReclaimer.Epoch epoch = termReclaimer.pin();
+        Triple queryTriple = getQueryTripleFromStringIdentifier(query);
+        if (queryTriple == null) {
+            return new QueryCache.Entry(key, null, null, Triple.WILDCARD, Triple.WILDCARD, Triple.WILDCARD, 0);
+        }
+        String identifier = queryTriple.getIdentifier();
+        int[] ids = resolveQueryIds(queryTriple);
+        if (ids == null) {
+            metrics.recordQuery(KnowledgeGraphMetrics.shapeOf(queryTriple), start);
+            return new QueryCache.Entry(key, identifier, Collections.<Triple>emptySet(),
+                                        Triple.WILDCARD, Triple.WILDCARD, Triple.WILDCARD, 0);
+        }
+        QueryResultSet result = findMatchingTriples(epoch, ids[Triple.SUBJECT], ids[Triple.PREDICATE], ids[Triple.OBJECT]);
+        QueryCache.Entry entry = new QueryCache.Entry(key, identifier, result,
+                                                      ids[Triple.SUBJECT], ids[Triple.PREDICATE], ids[Triple.OBJECT],
+                                                      result.pinnedLength());
+        queryCache.put(entry, generation);
+        metrics.recordQuery(entry.shape(), start);
+        return entry;
+    }
+
+    /**
+     * Sets the limits of the query result cache used by {@link #executeQuery(String)}.  The least recently used
+     * results are evicted once either limit is exceeded.
+     *
+     * @param maxEntries  the maximum number of cached queries; 0 disables the cache
+     * @param maxWeight   the maximum total length of the posting lists the cached results refer to
+     */
+    public void setQueryCacheLimits(int maxEntries, long maxWeight) {
+        queryCache.setLimits(maxEntries, maxWeight);
+    }
+
+    /**
+     * Returns the hit, miss, eviction, and invalidation counts of the query result cache.
+     *
+     * @return  a copy of the cache statistics
+     */
+    public QueryCacheStatistics getQueryCacheStatistics() {
+        return queryCache.statistics();
+    }
+
+    /**
+     * Finds every solution of a conjunctive query: each distinct combination of values of its variables for which
+     * all of its Triple patterns match.  The patterns are joined on their shared variables, smallest pattern first;
+     * see {@link GraphPatternEvaluator}.  Constant parts are matched in a case-insensitive fashion, as with
+     * {@link #executeQuery(Triple)}.  If there are no solutions return an empty List.
+     *
+     * @param    query     the conjunctive query to solve
+     * @return             a read-only List of solutions, each a read-only Map from variable name (including the
+     *                     leading "?") to the identifier of its value, in order of first appearance in the query
+     */
+    public List<Map<String, String>> executeQuery(GraphPattern query) {
+        if (query == null) {
+            return null;
+        }
+        long start = metrics.startTimer();
+        TermReclaimer.Epoch epoch = termReclaimer.pin();
+        List<Map<String, String>> solutions = new GraphPatternEvaluator(this, query).evaluate();
+        metrics.recordPatternQuery(start);
+        epoch.unpin();
+        return solutions;
+    }
+
+    /**
+     * Finds every Node within the given number of hops of a Node, following the edges of one Predicate, such as
+     * the friends and friends of friends of Joe for <code>getNeighbourhood(joe, hasFriend, OUTGOING, 2)</code>.
+     * The search is breadth first over the indexes; see {@link GraphTraversal}.
+     *
+     * @param start      the Node to start from
+     * @param predicate  the Predicate whose edges are followed, or null to follow every Predicate
+     * @param direction  which way edges are followed
+     * @param maxHops    the largest number of edges to follow from the start; at least 0
+     * @return           a read-only Set of the Nodes reached, nearest first, not including the start; empty if
+     *                   the start or Predicate is not in the KnowledgeGraph
+     */
+    public Set<Node> getNeighbourhood(Node start, Predicate predicate, Direction direction, int maxHops) {
+        checkTraversal(direction, maxHops);
+        TermReclaimer.Epoch epoch = termReclaimer.pin();
+        int startId = (start != null) ? resolveNodeId(start.getId(), start) : TermDictionary.NOT_FOUND;
+        int predicateId = (predicate != null) ? resolvePredicateId(predicate.getId(), predicate) : Triple.WILDCARD;
+        // NOT_FOUND and WILDCARD are both negative; a wildcard is only expected for a null Predicate
+        if (startId < 0 || (predicate != null && predicateId < 0)) {
+            return Collections.<Node>emptySet();
+        }
+
+        List<int[]> levels = newTraversal(predicateId, direction).search(startId, -1, maxHops);
+        Set<Node> reached = new LinkedHashSet<Node>();
+        for (int level = 1; level < levels.size(); level++) {
+            for (int id : levels.get(level)) {
+                reached.add(nodeDictionary.get(id));
+            }
+        }
+        epoch.unpin();
+        return Collections.unmodifiableSet(reached);
+    }
+
+    /**
+     * Finds every Node that can be reached from a Node by following the edges of one Predicate any number of
+     * times, such as everyone Joe is connected to through friendships.
+     *
+     * @param start      the Node to start from
+     * @param predicate  the Predicate whose edges are followed, or null to follow every Predicate
+     * @param direction  which way edges are followed
+     * @return           a read-only Set of the Nodes reached, nearest first, not including the start; empty if
+     *                   the start or Predicate is not in the KnowledgeGraph
+     */
+    public Set<Node> getTransitiveClosure(Node start, Predicate predicate, Direction direction) {
+        return getNeighbourhood(start, predicate, direction, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Finds a shortest path between two Nodes that follows the edges of one Predicate, such as whether Lucy can be
+     * reached from Joe through at most 3 friendships.  When there are several shortest paths, one of them is
+     * returned.
+     *
+     * @param from       the Node the path starts at
+     * @param to         the Node the path ends at
+     * @param predicate  the Predicate whose edges are followed, or null to follow every Predicate
+     * @param direction  which way edges are followed
+     * @param maxHops    the largest number of edges the path may have; at least 0
+     * @return           a read-only List of the Nodes on the path, from the first to the last; empty if there is
+     *                   no such path within maxHops, or if Triples removed during every attempt broke the path found
+     */
+    public List<Node> findShortestPath(Node from, Node to, Predicate predicate, Direction direction, int maxHops) {
+        checkTraversal(direction, maxHops);
+        TermReclaimer.Epoch epoch = termReclaimer.pin();
+        int fromId = (from != null) ? resolveNodeId(from.getId(), from) : TermDictionary.NOT_FOUND;
+        int toId = (to != null) ? resolveNodeId(to.getId(), to) : TermDictionary.NOT_FOUND;
+        int predicateId = (predicate != null) ? resolvePredicateId(predicate.getId(), predicate) : Triple.WILDCARD;
+        // NOT_FOUND and WILDCARD are both negative; a wildcard is only expected for a null Predicate
+        if (fromId < 0 || toId < 0 || (predicate != null && predicateId < 0)) {
+            return Collections.<Node>emptyList();
+        }
+
+        // Triples removed while searching can break the path found, so search again
+        GraphTraversal traversal = newTraversal(predicateId, direction);
+        int[] ids = null;
+        for (int attempt = 0; attempt < GraphTraversal.PATH_ATTEMPTS && ids == null; attempt++) {
+            List<int[]> levels = traversal.search(fromId, toId, maxHops);
+            if (Arrays.binarySearch(levels.get(levels.size() - 1), toId) < 0) {
+                return Collections.<Node>emptyList();
+            }
+            ids = traversal.path(levels, toId);
+        }
+        if (ids == null) {
+            return Collections.<Node>emptyList();
+        }
+        List<Node> path = new ArrayList<Node>(ids.length);
+        for (int id : ids) {
+            path.add(nodeDictionary.get(id));
+        }
+        epoch.unpin();
+        return Collections.unmodifiableList(path);
+    }
+
+    /**
+     * Checks the direction and hop limit of a traversal.
+     *
+     * @param direction  which way edges are followed
+     * @param maxHops    the largest number of edges to follow
+     */
+    private static void checkTraversal(Direction direction, int maxHops) {
+        if (direction == null) {
+            throw new IllegalArgumentException("direction must not be null");
+        }
+        if (maxHops < 0) {
+            throw new IllegalArgumentException("maxHops must not be negative, but was ["+maxHops+"]");
+        }
+    }
+
+    /**
+     * Creates a breadth first search of the edges of one Predicate, which expands large frontiers on every
+     * available core.
+     *
+     * @param predicateId  the id of the Predicate whose edges are followed, or {@link Triple#WILDCARD}
+     * @param direction    which way edges are followed
+     * @return             the new search
+     */
+    private GraphTraversal newTraversal(int predicateId, Direction direction) {
+        return new GraphTraversal(this, predicateId, direction, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns the counters, latency histograms, and gauges of the KnowledgeGraph, which can also be published
+     * through JMX or served as text by a {@link MetricsEndpoint}.
+     *
+     * @return  the metrics of the KnowledgeGraph
+     */
+    public KnowledgeGraphMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of Triples held by the KnowledgeGraph.
+     *
+     * @return  the Triple count
+     */
+    long getTripleCount() {
+        return spoIndex.size();
+    }
+
+    /**
+     * Returns an estimate of the heap used by the spoIndex, posIndex, and ospIndex.
+     *
+     * @return  the estimated size in bytes
+     */
+    long estimateIndexBytes() {
+        return spoIndex.estimateBytes() + posIndex.estimateBytes() + ospIndex.estimateBytes();
+    }
+
+    /**
+     * Returns the memory allocated outside of the heap by the spoIndex, posIndex, and ospIndex.
+     *
+     * @return  the size in bytes
+     */
+    long indexOffHeapBytes() {
+        return spoIndex.offHeapBytes() + posIndex.offHeapBytes() + ospIndex.offHeapBytes();
+    }
+
+    /**
+     * Moves the spoIndex, posIndex, and ospIndex to the given storage, copying every posting list.  Imports wait
+     * while the indexes are copied; queries do not, and queries already being read keep reading the old storage.
+     * The query result cache is cleared, so that cached results no longer hold on to the old storage.
+     *
+     * @param storage  where to keep the posting lists
+     */
+    public void setIndexStorage(IndexStorage storage) {
+        synchronized (writeLock) {
+            if (storage == indexStorage) {
+                return;
+            }
+            for (PermutationIndex index : new PermutationIndex[] { spoIndex, posIndex, ospIndex }) {
+                index.moveTo(newPostingStore(storage));
+            }
+            indexStorage = storage;
+            queryCache.clear();
+        }
+    }
+
+    /**
+     * Returns where the permutation indexes keep their posting lists.
+     *
+     * @return  the current storage
+     */
+    public IndexStorage getIndexStorage() {
+        return indexStorage;
+    }
+
+    /**
+     * Creates an empty posting list store for the given storage.
+     *
+     * @param storage  where the store keeps its posting lists
+     * @return         the new store
+     */
+    private static PostingStore newPostingStore(IndexStorage storage) {
+        switch (storage) {
+            case OFF_HEAP:
+                return new OffHeapPostingStore();
+            case COMPRESSED:
+                return new CompressedPostingStore();
+            default:
+                return new HeapPostingStore();
+        }
+    }
+
+    /**
+     * Selects the permutation index and range that hold exactly the Triples matching the given ids, where any id
+     * may be {@link Triple#WILDCARD}:
+     * <ul>
+     *     <li>Joe has_friend Bill, Joe has_friend ?, Joe ? ?, ? ? ? - spoIndex</li>
+     *     <li>? has_friend Bill, ? has_friend ? - posIndex</li>
+     *     <li>Joe ? Bill, ? ? Bill - ospIndex</li>
+     * </ul>
+     *
+     * @param subjectId    the subject id of the query, or {@link Triple#WILDCARD}
+     * @param predicateId  the predicate id of the query, or {@link Triple#WILDCARD}
+     * @param objectId     the object id of the query, or {@link Triple#WILDCARD}
+     * @return             the Set of all Triples matching the ids
+     */
+    QueryResultSet findMatchingTriples(int subjectId, int predicateId, int objectId) {
+        return findMatchingTriples(termReclaimer.pin(), subjectId, predicateId, objectId);
+    }
+
+    /**
+     * Selects the permutation index and range that hold exactly the Triples matching the given ids, for a reader
+     * that pinned the term epoch before it resolved the ids.
+     *
+     * @param epoch        the term epoch pinned by the reader; held by the result
+     * @param subjectId    the subject id of the query, or {@link Triple#WILDCARD}
+     * @param predicateId  the predicate id of the query, or {@link Triple#WILDCARD}
+     * @param objectId     the object id of the query, or {@link Triple#WILDCARD}
+     * @return             the Set of all Triples matching the ids
+     */
+    QueryResultSet findMatchingTriples(TermReclaimer.Epoch epoch, int subjectId, int predicateId, int objectId) {
+        boolean s = subjectId != Triple.WILDCARD;
+        boolean p = predicateId != Triple.WILDCARD;
+        boolean o = objectId != Triple.WILDCARD;
+
+        if (s && p && o) {
+            long value = spoIndex.valueOf(subjectId, predicateId, objectId);
+            return new QueryResultSet(this, epoch, spoIndex, subjectId, value, value + 1);
+        }
+        if (s && p) {
+            return new QueryResultSet(this, epoch, spoIndex, subjectId,
+                                      PermutationIndex.pack(predicateId, 0), PermutationIndex.pack(predicateId + 1, 0));
+        }
+        if (s && o) {
+            return new QueryResultSet(this, epoch, ospIndex, objectId,
+                                      PermutationIndex.pack(subjectId, 0), PermutationIndex.pack(subjectId + 1, 0));
+        }
+        if (s) {
+            return new QueryResultSet(this, epoch, spoIndex, subjectId, 0, Long.MAX_VALUE);
+        }
+        if (p && o) {
+            return new QueryResultSet(this, epoch, posIndex, predicateId,
+                                      PermutationIndex.pack(objectId, 0), PermutationIndex.pack(objectId + 1, 0));
+        }
+        if (p) {
+            return new QueryResultSet(this, epoch, posIndex, predicateId, 0, Long.MAX_VALUE);
+        }
+        if (o) {
+            return new QueryResultSet(this, epoch, ospIndex, objectId, 0, Long.MAX_VALUE);
+        }
+        return new QueryResultSet(this, epoch, spoIndex);
+    }
+
+    /**
+     * Builds the Triple for the given subject, predicate, and object ids from the term dictionaries.  Used to turn
+     * index entries back into Triples as query results are read.
+     *
+     * @param subjectId    the subject id of a stored Triple
+     * @param predicateId  the predicate id of a stored Triple
+     * @param objectId     the object id of a stored Triple
+     * @return             the Triple for the ids
+     */
+    Triple getTripleForIds(int subjectId, int predicateId, int objectId) {
+        return new Triple(nodeDictionary.get(subjectId), predicateDictionary.get(predicateId), nodeDictionary.get(objectId));
+    }
+
+    /**
+     * Resolves the id of a query Triple's subject or object to an id in the node dictionary.
+     *
+     * @param id    the id carried by the query Triple
+     * @param node  the Node carried by the query Triple
+     * @return      the dictionary id, {@link Triple#WILDCARD}, or {@link TermDictionary#NOT_FOUND}
+     */
+    private int resolveNodeId(int id, Node node) {
+        if (id == Triple.WILDCARD || nodeDictionary.holds(id, node)) {
+            return id;
+        }
+        return nodeDictionary.lookupId(node.getIdentifier());
+    }
+
+    /**
+     * Resolves the id of a query Triple's predicate to an id in the predicate dictionary.
+     *
+     * @param id         the id carried by the query Triple
+     * @param predicate  the Predicate carried by the query Triple
+     * @return           the dictionary id, {@link Triple#WILDCARD}, or {@link TermDictionary#NOT_FOUND}
+     */
+    private int resolvePredicateId(int id, Predicate predicate) {
+        if (id == Triple.WILDCARD || predicateDictionary.holds(id, predicate)) {
+            return id;
+        }
+        return predicateDictionary.lookupId(predicate.getIdentifier());
+    }
+
+
+    /**
+     * Return a Node Instance for the given node identifier. Use the nodeDictionary to look up the Node.
+     * If the Node does not exist, create it and assign it the next free Node id. Node names are case insensitive.
      * Nodes may be used both as the "Subject" (first part) of a Triple, as well as the "Object" (last part)
      * of a Triple.
      *
-     * @param identifier  the string identifier of the Node; will be stored in the map as lower-case
+     * @param identifier  the string identifier of the Node; matched case insensitively
      * @return            the newly created Node object based on the input identifier
      */
     public Node getNode(String identifier) {
-        // does this identifier already exist in the KnowledgeGraph for a pre-existing Node?
-        if (nodeMap.keySet().contains(identifier.toLowerCase())) {
-            return nodeMap.get(identifier.toLowerCase());
-        }
-
-        // this is a new Node that the KnowledgeGraph has not encountered before; add it to the map
-        Node node = new Node(identifier);
-        nodeMap.put(identifier.toLowerCase(), node);
-        return node;
+        return nodeDictionary.intern(identifier);
     }
 
     /**
-     * Return a Predicate instance for the given identifier. Use the predicateMap to lookup the Predicate.
-     * If the Predicate does not exist, create it and add it to the predicateMap. Predicate names
+     * Return a Predicate instance for the given identifier. Use the predicateDictionary to lookup the Predicate.
+     * If the Predicate does not exist, create it and assign it the next free Predicate id. Predicate names
      * are case insensitive.
      *
-     * @param identifier  the string identifier of the Predicate; will be stored in the map as lower-case
+     * @param identifier  the string identifier of the Predicate; matched case insensitively
      * @return            the newly created Predicate object based on the input identifier
      */
     public Predicate getPredicate(String identifier) {
-        // does this identifier already exist in the KnowledgeGraph for a pre-existing Predicate?
-        if (predicateMap.keySet().contains(identifier.toLowerCase())) {
-            return predicateMap.get(identifier.toLowerCase());
-        }
-
-        // this is a new Predicate that the KnowledgeGraph has not encountered before; add it to the map
-        Predicate predicate = new Predicate(identifier);
-        predicateMap.put(identifier.toLowerCase(), predicate);
-        return predicate;
+        return predicateDictionary.intern(identifier);
     }
 
     /**
-     * Return the Triple instance for the given Object, Predicate and Subject. Use the tripleMap to
-     * lookup the Triple. If the Triple is currently unknown to the KnowledgeGraph, creates it and
-     * adds it to the tripleMap and update the queryMapSet.
+     * Return the Triple instance for the given Object, Predicate and Subject. Use the spoIndex to
+     * lookup the Triple by the ids of its parts. If the Triple is currently unknown to the KnowledgeGraph,
+     * adds it to the spoIndex, posIndex, and ospIndex.
      *
      * @param subject    the subject Node for the Triple
      * @param predicate  the Predicate for the Triple
@@ -262,24 +1573,31 @@ public class KnowledgeGraph {
      * @return           the Triple that was either found pre-existing or newly created
      */
     public Triple getTriple(Node subject, Predicate predicate, Node object) {
-        String tripleIdentifier = subject.getIdentifier().toLowerCase() + " " +
-                                  predicate.getIdentifier().toLowerCase() + " " +
-                                  object.getIdentifier().toLowerCase() + ".";
+        beginImport();
+        try {
+            subject = internNode(subject);
+            predicate = internPredicate(predicate);
+            object = internNode(object);
+            Triple triple = new Triple(subject, predicate, object);
 
-        if (tripleMap.keySet().contains(tripleIdentifier)) {
-            return tripleMap.get(tripleIdentifier);
+            // the indexes drop Triples they already hold, so checking first only saves taking the write lock
+            if (!spoIndex.contains(subject.getId(), spoIndex.valueOf(subject.getId(), predicate.getId(), object.getId()))) {
+                addTriplesToIndexes(new int[] { subject.getId() }, new int[] { predicate.getId() }, new int[] { object.getId() }, 1);
+            }
+            return triple;
+        }
+        finally {
+            endImport();
         }
-
-        Triple triple = new Triple(subject, predicate, object);
-        tripleMap.put(tripleIdentifier, triple);
-        return triple;
     }
 
 
     /**
      * For the given identifier, constructs a Triple object that can be used as the input parameter to the
      * executeQuery() method.  This is useful for constructing Triple objects whose identifiers represent queries
-     * containing the "?" character (e.g., wildcard character).
+     * containing the "?" character (e.g., wildcard character).  The identifier is scanned in place: surrounding
+     * whitespace and trailing periods are skipped, and each part is resolved straight to the dictionary's Node or
+     * Predicate, so parsing a query for known terms does not create any intermediate strings.
      *
      * @param identifier       string used to construct a new Triple from; typically used to pass to the executeQuery()
      *                         method and may contain "?" characters in the Triple identifier
@@ -291,11 +1609,21 @@ public class KnowledgeGraph {
 
         if (identifier != null && identifier.length() > 0) {
 
-            identifier = cleanTripleIdentifier(identifier);
-            String[] parts = identifier.split("\\s");
+            // find the end of the query, ignoring trailing whitespace and any trailing periods
+            int end = TripleTokenizer.trimEnd(identifier, 0, identifier.length());
+
+            // locate the three whitespace separated parts in place, without splitting or copying the string
+            int subjectStart = TripleTokenizer.skipSpace(identifier, 0, end);
+            int subjectEnd = TripleTokenizer.skipPart(identifier, subjectStart, end);
+            int predicateStart = TripleTokenizer.skipSpace(identifier, subjectEnd, end);
+            int predicateEnd = TripleTokenizer.skipPart(identifier, predicateStart, end);
+            int objectStart = TripleTokenizer.skipSpace(identifier, predicateEnd, end);
+            int objectEnd = TripleTokenizer.skipPart(identifier, objectStart, end);
 
-            if (parts.length < 3) {
-                throw new ParseException("Triple identifier should have 3 parts, but only actually had ["+parts.length+"] parts: ["+identifier+"]", identifier, null);
+            if (objectStart == objectEnd) {
+                int parts = (subjectStart == subjectEnd) ? 0 : (predicateStart == predicateEnd) ? 1 : 2;
+                identifier = cleanTripleIdentifier(identifier);
+                throw new ParseException("Triple identifier should have 3 parts, but only actually had ["+parts+"] parts: ["+identifier+"]", identifier, null);
             }
             else {
                 // for parts of the passed identifier that contain "?", leave those as null objects;
@@ -305,14 +1633,17 @@ public class KnowledgeGraph {
                 Node object = null;
                 Predicate predicate = null;
 
-                if (!parts[0].equalsIgnoreCase("?")) { // the first part should contain the first "Node"
-                    subject = getNode(parts[0]);       // node/subjects: Joe, Sue, Mary, etc.
+                if (!TripleTokenizer.isWildcard(identifier, subjectStart, subjectEnd)) {   // the first part should contain the first "Node"
+                    subject = findQueryNode(identifier, subjectStart, subjectEnd);  // node/subjects: Joe, Sue, Mary, etc.
                 }
-                if (!parts[1].equalsIgnoreCase("?")) {  // the second part should be the Predicate
-                    predicate = getPredicate(parts[1]); // predicate: has_friend, plays, etc.
+                if (!TripleTokenizer.isWildcard(identifier, predicateStart, predicateEnd)) {  // the second part should be the Predicate
+                    predicate = predicateDictionary.lookup(identifier, predicateStart, predicateEnd);  // predicate: has_friend, plays, etc.
+                    if (predicate == null) {
+                        predicate = new Predicate(identifier.substring(predicateStart, predicateEnd));
+                    }
                 }
-                if (!parts[2].equalsIgnoreCase("?")) { // last part should be the "object", also a Node
-                    object = getNode(parts[2]);        // object (also a node): Bill, Sue, Mary, Ultimate_Frisbee
+                if (!TripleTokenizer.isWildcard(identifier, objectStart, objectEnd)) {     // last part should be the "object", also a Node
+                    object = findQueryNode(identifier, objectStart, objectEnd);     // object (also a node): Bill, Sue, Mary, Ultimate_Frisbee
                 }
 
                 return new Triple(subject, predicate, object);
@@ -320,4 +1651,19 @@ public class KnowledgeGraph {
         }
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the Node for one part of a query.  Known Nodes are found directly from the characters of the query;
+     * a part that names a Node the KnowledgeGraph has never seen gets a new Node that is not added to the
+     * nodeDictionary, so it matches nothing and queries never grow the KnowledgeGraph.
+     *
+     * @param query  the query string
+     * @param start  the offset of the first character of the part
+     * @param end    the offset after the last character of the part
+     * @return       the Node named by the part of the query
+     */
+    private Node findQueryNode(String query, int start, int end) {
+        Node node = nodeDictionary.lookup(query, start, end);
+        return (node != null) ? node : new Node(query.substring(start, end));
+    }
+}
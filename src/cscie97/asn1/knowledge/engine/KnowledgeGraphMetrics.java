@@ -0,0 +1,645 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, latency histograms, and gauges of the KnowledgeGraph: how many Triples are imported and removed, how
+ * long imports, removals, and queries take, and how large the dictionaries, indexes, and query result cache are.  Single
+ * Triple queries are timed separately for each of the 8 wildcard shapes, since their costs differ widely.
+ * <p>
+ * Recording an operation costs two reads of the clock and a few atomic additions to counters that threads do not
+ * share (see {@link LatencyHistogram}); recording can be turned off with {@link #setEnabled(boolean)}.  Gauges are
+ * read from the KnowledgeGraph when they are asked for, so they cost nothing until then.
+ * <p>
+ * The metrics can be read directly, through JMX once {@link #registerMBean()} is called, or as text in the
+ * Prometheus exposition format from {@link #writeText(Appendable)} or a {@link MetricsEndpoint}.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#getMetrics()
+ * @see MetricsEndpoint
+ */
+public final class KnowledgeGraphMetrics implements KnowledgeGraphMetricsMXBean {
+
+    /**
+     * The name the metrics are registered under with JMX.
+     */
+    public static final String OBJECT_NAME = "cscie97.asn1.knowledge.engine:type=KnowledgeGraphMetrics";
+
+    /**
+     * The number of wildcard shapes of a single Triple query.
+     */
+    public static final int SHAPES = 8;
+
+    /**
+     * Returned by {@link #startTimer()} while recording is turned off.
+     */
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /**
+     * The first and last latency buckets written as text, and the step between them; every other power of two
+     * from 256ns to about 69s.
+     */
+    private static final int FIRST_TEXT_BUCKET = 8, LAST_TEXT_BUCKET = 36, TEXT_BUCKET_STEP = 2;
+
+    /**
+     * The KnowledgeGraph whose gauges are read.
+     */
+    private final KnowledgeGraph kg;
+
+    /**
+     * Whether operations are counted and timed.
+     */
+    private volatile boolean enabled = true;
+
+    /**
+     * Latency of single Triple queries, by shape.
+     */
+    private final LatencyHistogram[] queryLatency = new LatencyHistogram[SHAPES];
+
+    /**
+     * Latency of conjunctive queries.
+     */
+    private final LatencyHistogram patternQueryLatency = new LatencyHistogram();
+
+    /**
+     * Latency of adding one batch of Triples to the indexes.
+     */
+    private final LatencyHistogram importBatchLatency = new LatencyHistogram();
+
+    /**
+     * Latency of removing one batch of Triples, together with the Triples added in its place.
+     */
+    private final LatencyHistogram replaceBatchLatency = new LatencyHistogram();
+
+    /**
+     * Latency of importing one Triple file.
+     */
+    private final LatencyHistogram fileImportLatency = new LatencyHistogram();
+
+    /**
+     * Triples added that were not already held, and Triples removed.
+     */
+    private final AtomicLong triplesAdded = new AtomicLong(), triplesRemoved = new AtomicLong();
+
+    /**
+     * Class constructor.
+     *
+     * @param kg  the KnowledgeGraph whose gauges are read
+     */
+    KnowledgeGraphMetrics(KnowledgeGraph kg) {
+        this.kg = kg;
+        for (int shape = 0; shape < SHAPES; shape++) {
+            queryLatency[shape] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the shape of a single Triple query: one bit for each part that is not a wildcard, 4 for the
+     * subject, 2 for the predicate, and 1 for the object.
+     *
+     * @param subjectBound    true if the subject is not a wildcard
+     * @param predicateBound  true if the predicate is not a wildcard
+     * @param objectBound     true if the object is not a wildcard
+     * @return                the shape, from 0 for "? ? ?" to 7 for a query with no wildcards
+     */
+    public static int shapeOf(boolean subjectBound, boolean predicateBound, boolean objectBound) {
+        return (subjectBound ? 4 : 0) | (predicateBound ? 2 : 0) | (objectBound ? 1 : 0);
+    }
+
+    /**
+     * Returns the shape of a query Triple, whose parts may be "?" wildcards.
+     *
+     * @param query  the query Triple
+     * @return       the shape of the query
+     */
+    static int shapeOf(Triple query) {
+        return shapeOf(query.getSubjectId() != Triple.WILDCARD,
+                       query.getPredicateId() != Triple.WILDCARD,
+                       query.getObjectId() != Triple.WILDCARD);
+    }
+
+    /**
+     * Returns the name of a query shape, such as "s?o" for a query with a subject and an object but a wildcard
+     * predicate.
+     *
+     * @param shape  the shape
+     * @return       the name of the shape
+     */
+    public static String shapeName(int shape) {
+        return (((shape & 4) != 0) ? "s" : "?") + (((shape & 2) != 0) ? "p" : "?") + (((shape & 1) != 0) ? "o" : "?");
+    }
+
+    /**
+     * Reads the clock at the start of an operation, unless recording is turned off.
+     *
+     * @return  the start time to pass to one of the record methods
+     */
+    long startTimer() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Records a single Triple query.
+     *
+     * @param shape  the shape of the query
+     * @param start  the time returned by {@link #startTimer()} when the query started
+     */
+    void recordQuery(int shape, long start) {
+        if (start != NOT_TIMED) {
+            queryLatency[shape].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a conjunctive query.
+     *
+     * @param start  the time returned by {@link #startTimer()} when the query started
+     */
+    void recordPatternQuery(long start) {
+        if (start != NOT_TIMED) {
+            patternQueryLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a batch of Triples added to the indexes.
+     *
+     * @param start  the time returned by {@link #startTimer()} when the batch was submitted
+     */
+    void recordImportBatch(long start) {
+        if (start != NOT_TIMED) {
+            importBatchLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a batch of Triples removed from the indexes, or replaced.
+     *
+     * @param start  the time returned by {@link #startTimer()} when the batch was submitted
+     */
+    void recordReplaceBatch(long start) {
+        if (start != NOT_TIMED) {
+            replaceBatchLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a Triple file import.
+     *
+     * @param start  the time returned by {@link #startTimer()} when the import started
+     */
+    void recordFileImport(long start) {
+        if (start != NOT_TIMED) {
+            fileImportLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts Triples added to the indexes.
+     *
+     * @param count  the number of Triples that were not already held
+     */
+    void countAdded(long count) {
+        if (enabled && count > 0) {
+            triplesAdded.addAndGet(count);
+        }
+    }
+
+    /**
+     * Counts Triples removed from the indexes.
+     *
+     * @param count  the number of Triples removed
+     */
+    void countRemoved(long count) {
+        if (enabled && count > 0) {
+            triplesRemoved.addAndGet(count);
+        }
+    }
+
+    /**
+     * Returns whether operations are being counted and timed.
+     *
+     * @return  true if metrics are recorded
+     */
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns recording of counters and latencies on or off.  Gauges are always available.
+     *
+     * @param enabled  true to record metrics
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the number of Nodes held by the node dictionary.
+     *
+     * @return  the Node count
+     */
+    @Override
+    public int getNodeCount() {
+        return kg.getNodeDictionary().termCount();
+    }
+
+    /**
+     * Returns the number of Predicates held by the predicate dictionary.
+     *
+     * @return  the Predicate count
+     */
+    @Override
+    public int getPredicateCount() {
+        return kg.getPredicateDictionary().termCount();
+    }
+
+    /**
+     * Returns the number of Triples held by the KnowledgeGraph.
+     *
+     * @return  the Triple count
+     */
+    @Override
+    public long getTripleCount() {
+        return kg.getTripleCount();
+    }
+
+    /**
+     * Returns an estimate of the heap used by the SPO, POS, and OSP indexes.
+     *
+     * @return  the estimated size in bytes
+     */
+    @Override
+    public long getIndexBytes() {
+        return kg.estimateIndexBytes();
+    }
+
+    /**
+     * Returns the memory allocated outside of the heap by the SPO, POS, and OSP indexes.
+     *
+     * @return  the size in bytes; 0 while the indexes are on the heap
+     */
+    @Override
+    public long getIndexOffHeapBytes() {
+        return kg.indexOffHeapBytes();
+    }
+
+    /**
+     * Returns the number of Triples added that were not already held.
+     *
+     * @return  the count of added Triples
+     */
+    @Override
+    public long getTriplesAdded() {
+        return triplesAdded.get();
+    }
+
+    /**
+     * Returns the number of Triples removed.
+     *
+     * @return  the count of removed Triples
+     */
+    @Override
+    public long getTriplesRemoved() {
+        return triplesRemoved.get();
+    }
+
+    /**
+     * Returns the number of batches of Triples added to the indexes.
+     *
+     * @return  the batch count
+     */
+    @Override
+    public long getImportBatchCount() {
+        return importBatchLatency.getCount();
+    }
+
+    /**
+     * Returns the mean time to add a batch of Triples, including waiting for other imports and the write-ahead log.
+     *
+     * @return  the mean in microseconds
+     */
+    @Override
+    public double getImportBatchMeanMicros() {
+        return importBatchLatency.getMeanNanos() / 1e3;
+    }
+
+    /**
+     * Returns the number of batches of Triples removed or replaced.
+     *
+     * @return  the batch count
+     */
+    @Override
+    public long getReplaceBatchCount() {
+        return replaceBatchLatency.getCount();
+    }
+
+    /**
+     * Returns the mean time to remove or replace a batch of Triples, including waiting for imports and the
+     * write-ahead log.
+     *
+     * @return  the mean in microseconds
+     */
+    @Override
+    public double getReplaceBatchMeanMicros() {
+        return replaceBatchLatency.getMeanNanos() / 1e3;
+    }
+
+    /**
+     * Returns the number of Triple files imported.
+     *
+     * @return  the file count
+     */
+    @Override
+    public long getFileImportCount() {
+        return fileImportLatency.getCount();
+    }
+
+    /**
+     * Returns the mean time to import a Triple file.
+     *
+     * @return  the mean in microseconds
+     */
+    @Override
+    public double getFileImportMeanMicros() {
+        return fileImportLatency.getMeanNanos() / 1e3;
+    }
+
+    /**
+     * Returns the number of single Triple queries executed, by shape.
+     *
+     * @return  the query counts
+     */
+    @Override
+    public Map<String, Long> getQueryCountsByShape() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int shape = SHAPES - 1; shape >= 0; shape--) {
+            counts.put(shapeName(shape), queryLatency[shape].getCount());
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the mean time to execute a single Triple query, by shape.
+     *
+     * @return  the means in microseconds
+     */
+    @Override
+    public Map<String, Double> getQueryMeanMicrosByShape() {
+        Map<String, Double> means = new LinkedHashMap<String, Double>();
+        for (int shape = SHAPES - 1; shape >= 0; shape--) {
+            means.put(shapeName(shape), queryLatency[shape].getMeanNanos() / 1e3);
+        }
+        return means;
+    }
+
+    /**
+     * Returns an upper bound of the 99th percentile of the time to execute a single Triple query, by shape.
+     *
+     * @return  the percentiles in microseconds
+     */
+    @Override
+    public Map<String, Double> getQueryP99MicrosByShape() {
+        Map<String, Double> percentiles = new LinkedHashMap<String, Double>();
+        for (int shape = SHAPES - 1; shape >= 0; shape--) {
+            percentiles.put(shapeName(shape), queryLatency[shape].getPercentileNanos(99) / 1e3);
+        }
+        return percentiles;
+    }
+
+    /**
+     * Returns the number of conjunctive queries executed.
+     *
+     * @return  the query count
+     */
+    @Override
+    public long getPatternQueryCount() {
+        return patternQueryLatency.getCount();
+    }
+
+    /**
+     * Returns the mean time to execute a conjunctive query.
+     *
+     * @return  the mean in microseconds
+     */
+    @Override
+    public double getPatternQueryMeanMicros() {
+        return patternQueryLatency.getMeanNanos() / 1e3;
+    }
+
+    /**
+     * Returns the fraction of query string lookups answered from the query result cache.
+     *
+     * @return  the hit rate, from 0 to 1
+     */
+    @Override
+    public double getQueryCacheHitRate() {
+        return kg.getQueryCacheStatistics().getHitRate();
+    }
+
+    /**
+     * Returns the number of entries in the query result cache.
+     *
+     * @return  the entry count
+     */
+    @Override
+    public int getQueryCacheSize() {
+        return kg.getQueryCacheStatistics().getSize();
+    }
+
+    /**
+     * Returns every metric in the text format served by {@link MetricsEndpoint}.
+     *
+     * @return  the formatted metrics
+     */
+    @Override
+    public String getText() {
+        StringBuilder text = new StringBuilder();
+        try {
+            writeText(text);
+        }
+        catch (IOException ioe) {
+            // appending to a StringBuilder does not fail
+            throw new IllegalStateException(ioe);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the latency histogram of single Triple queries of one shape.
+     *
+     * @param shape  the shape, as returned by {@link #shapeOf(boolean, boolean, boolean)}
+     * @return       the histogram
+     */
+    public LatencyHistogram getQueryLatency(int shape) {
+        return queryLatency[shape];
+    }
+
+    /**
+     * Returns the latency histogram of conjunctive queries.
+     *
+     * @return  the histogram
+     */
+    public LatencyHistogram getPatternQueryLatency() {
+        return patternQueryLatency;
+    }
+
+    /**
+     * Returns the latency histogram of adding batches of Triples to the indexes.
+     *
+     * @return  the histogram
+     */
+    public LatencyHistogram getImportBatchLatency() {
+        return importBatchLatency;
+    }
+
+    /**
+     * Returns the latency histogram of removing or replacing batches of Triples.
+     *
+     * @return  the histogram
+     */
+    public LatencyHistogram getReplaceBatchLatency() {
+        return replaceBatchLatency;
+    }
+
+    /**
+     * Returns the latency histogram of Triple file imports.
+     *
+     * @return  the histogram
+     */
+    public LatencyHistogram getFileImportLatency() {
+        return fileImportLatency;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under {@link #OBJECT_NAME}, unless they already are.
+     *
+     * @throws JMException  if the metrics cannot be registered
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if they are registered.
+     *
+     * @throws JMException  if the metrics cannot be unregistered
+     */
+    public void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format, with durations in seconds.
+     *
+     * @param out           receives the formatted metrics
+     * @throws IOException  if the metrics cannot be written
+     */
+    public void writeText(Appendable out) throws IOException {
+        writeValue(out, "kg_nodes", "gauge", "Nodes held by the node dictionary.", getNodeCount());
+        writeValue(out, "kg_predicates", "gauge", "Predicates held by the predicate dictionary.", getPredicateCount());
+        writeValue(out, "kg_triples", "gauge", "Triples held by the KnowledgeGraph.", getTripleCount());
+        writeValue(out, "kg_index_bytes", "gauge", "Estimated heap used by the SPO, POS, and OSP indexes.", getIndexBytes());
+        writeValue(out, "kg_index_off_heap_bytes", "gauge", "Memory allocated off the heap by the SPO, POS, and OSP indexes.", getIndexOffHeapBytes());
+        writeValue(out, "kg_triples_added_total", "counter", "Triples added that were not already held.", getTriplesAdded());
+        writeValue(out, "kg_triples_removed_total", "counter", "Triples removed.", getTriplesRemoved());
+
+        writeHeader(out, "kg_import_batch_seconds", "histogram", "Time to add a batch of Triples to the indexes.");
+        writeHistogram(out, "kg_import_batch_seconds", "", importBatchLatency);
+        writeHeader(out, "kg_replace_batch_seconds", "histogram", "Time to remove a batch of Triples and add any replacements.");
+        writeHistogram(out, "kg_replace_batch_seconds", "", replaceBatchLatency);
+        writeHeader(out, "kg_file_import_seconds", "histogram", "Time to import a Triple file.");
+        writeHistogram(out, "kg_file_import_seconds", "", fileImportLatency);
+        writeHeader(out, "kg_query_seconds", "histogram", "Time to execute a single Triple query, by wildcard shape.");
+        for (int shape = SHAPES - 1; shape >= 0; shape--) {
+            writeHistogram(out, "kg_query_seconds", "shape=\"" + shapeName(shape) + "\"", queryLatency[shape]);
+        }
+        writeHeader(out, "kg_pattern_query_seconds", "histogram", "Time to execute a conjunctive query.");
+        writeHistogram(out, "kg_pattern_query_seconds", "", patternQueryLatency);
+
+        QueryCacheStatistics cache = kg.getQueryCacheStatistics();
+        writeValue(out, "kg_query_cache_hits_total", "counter", "Query lookups answered from the cache.", cache.getHits());
+        writeValue(out, "kg_query_cache_misses_total", "counter", "Query lookups that executed the query.", cache.getMisses());
+        writeValue(out, "kg_query_cache_evictions_total", "counter", "Cache entries evicted to stay within limits.", cache.getEvictions());
+        writeValue(out, "kg_query_cache_invalidations_total", "counter", "Cache entries dropped by changes to the Triples.", cache.getInvalidations());
+        writeValue(out, "kg_query_cache_entries", "gauge", "Entries in the query result cache.", cache.getSize());
+    }
+
+    /**
+     * Writes the help and type lines of a metric.
+     *
+     * @param out           receives the lines
+     * @param name          the metric name
+     * @param type          the metric type
+     * @param help          the description of the metric
+     * @throws IOException  if the lines cannot be written
+     */
+    private static void writeHeader(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Writes a metric with a single value.
+     *
+     * @param out           receives the metric
+     * @param name          the metric name
+     * @param type          the metric type
+     * @param help          the description of the metric
+     * @param value         the value
+     * @throws IOException  if the metric cannot be written
+     */
+    private static void writeValue(Appendable out, String name, String type, String help, long value) throws IOException {
+        writeHeader(out, name, type, help);
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    /**
+     * Writes the cumulative buckets, sum, and count of one latency histogram.
+     *
+     * @param out           receives the histogram
+     * @param name          the metric name
+     * @param labels        the labels that tell this histogram apart from others of the same name, or ""
+     * @param histogram     the histogram
+     * @throws IOException  if the histogram cannot be written
+     */
+    private static void writeHistogram(Appendable out, String name, String labels, LatencyHistogram histogram) throws IOException {
+        String separator = (labels.length() > 0) ? labels + "," : "";
+        long cumulative = 0;
+        int bucket = 0;
+        for (int upTo = FIRST_TEXT_BUCKET; upTo <= LAST_TEXT_BUCKET; upTo += TEXT_BUCKET_STEP) {
+            // a bucket's durations are all below its upper bound, 2^bucket nanoseconds
+            for (; bucket <= upTo; bucket++) {
+                cumulative += histogram.getBucketCount(bucket);
+            }
+            out.append(name).append("_bucket{").append(separator).append("le=\"")
+               .append(Double.toString(LatencyHistogram.getBucketUpperNanos(upTo) / 1e9)).append("\"} ")
+               .append(Long.toString(cumulative)).append('\n');
+        }
+        for (; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            cumulative += histogram.getBucketCount(bucket);
+        }
+        out.append(name).append("_bucket{").append(separator).append("le=\"+Inf\"} ").append(Long.toString(cumulative)).append('\n');
+        String braces = (labels.length() > 0) ? "{" + labels + "}" : "";
+        out.append(name).append("_sum").append(braces).append(' ').append(Double.toString(histogram.getTotalNanos() / 1e9)).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(Long.toString(cumulative)).append('\n');
+    }
+}
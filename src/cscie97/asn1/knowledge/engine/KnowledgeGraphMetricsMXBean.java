@@ -0,0 +1,177 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.Map;
+
+/**
+ * Management interface of the KnowledgeGraph's metrics, as seen through JMX.  Durations are reported in
+ * microseconds, and the per-shape query figures are keyed on the shape name, such as "s?o" for a query with a
+ * subject and an object but a wildcard predicate.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraphMetrics
+ */
+public interface KnowledgeGraphMetricsMXBean {
+
+    /**
+     * Returns whether operations are being counted and timed.
+     *
+     * @return  true if metrics are recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * Turns recording of counters and latencies on or off.  Gauges are always available.
+     *
+     * @param enabled  true to record metrics
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Returns the number of Nodes held by the node dictionary.
+     *
+     * @return  the Node count
+     */
+    int getNodeCount();
+
+    /**
+     * Returns the number of Predicates held by the predicate dictionary.
+     *
+     * @return  the Predicate count
+     */
+    int getPredicateCount();
+
+    /**
+     * Returns the number of Triples held by the KnowledgeGraph.
+     *
+     * @return  the Triple count
+     */
+    long getTripleCount();
+
+    /**
+     * Returns an estimate of the heap used by the SPO, POS, and OSP indexes.
+     *
+     * @return  the estimated size in bytes
+     */
+    long getIndexBytes();
+
+    /**
+     * Returns the memory allocated outside of the heap by the SPO, POS, and OSP indexes.
+     *
+     * @return  the size in bytes; 0 while the indexes are on the heap
+     */
+    long getIndexOffHeapBytes();
+
+    /**
+     * Returns the number of Triples added that were not already held.
+     *
+     * @return  the count of added Triples
+     */
+    long getTriplesAdded();
+
+    /**
+     * Returns the number of Triples removed.
+     *
+     * @return  the count of removed Triples
+     */
+    long getTriplesRemoved();
+
+    /**
+     * Returns the number of batches of Triples added to the indexes.
+     *
+     * @return  the batch count
+     */
+    long getImportBatchCount();
+
+    /**
+     * Returns the mean time to add a batch of Triples, including waiting for other imports and the write-ahead log.
+     *
+     * @return  the mean in microseconds
+     */
+    double getImportBatchMeanMicros();
+
+    /**
+     * Returns the number of batches of Triples removed or replaced.
+     *
+     * @return  the batch count
+     */
+    long getReplaceBatchCount();
+
+    /**
+     * Returns the mean time to remove or replace a batch of Triples, including waiting for imports and the
+     * write-ahead log.
+     *
+     * @return  the mean in microseconds
+     */
+    double getReplaceBatchMeanMicros();
+
+    /**
+     * Returns the number of Triple files imported.
+     *
+     * @return  the file count
+     */
+    long getFileImportCount();
+
+    /**
+     * Returns the mean time to import a Triple file.
+     *
+     * @return  the mean in microseconds
+     */
+    double getFileImportMeanMicros();
+
+    /**
+     * Returns the number of single Triple queries executed, by shape.
+     *
+     * @return  the query counts
+     */
+    Map<String, Long> getQueryCountsByShape();
+
+    /**
+     * Returns the mean time to execute a single Triple query, by shape.
+     *
+     * @return  the means in microseconds
+     */
+    Map<String, Double> getQueryMeanMicrosByShape();
+
+    /**
+     * Returns an upper bound of the 99th percentile of the time to execute a single Triple query, by shape.
+     *
+     * @return  the percentiles in microseconds
+     */
+    Map<String, Double> getQueryP99MicrosByShape();
+
+    /**
+     * Returns the number of conjunctive queries executed.
+     *
+     * @return  the query count
+     */
+    long getPatternQueryCount();
+
+    /**
+     * Returns the mean time to execute a conjunctive query.
+     *
+     * @return  the mean in microseconds
+     */
+    double getPatternQueryMeanMicros();
+
+    /**
+     * Returns the fraction of query string lookups answered from the query result cache.
+     *
+     * @return  the hit rate, from 0 to 1
+     */
+    double getQueryCacheHitRate();
+
+    /**
+     * Returns the number of entries in the query result cache.
+     *
+     * @return  the entry count
+     */
+    int getQueryCacheSize();
+
+    /**
+     * Returns every metric in the text format served by {@link MetricsEndpoint}.
+     *
+     * @return  the formatted metrics
+     */
+    String getText();
+}
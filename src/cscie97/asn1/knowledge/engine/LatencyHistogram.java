@@ -0,0 +1,155 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of the durations of one kind of operation, such as single Triple queries of one wildcard shape.
+ * Durations are counted in power-of-two buckets of nanoseconds: bucket b holds durations of at least 2^(b-1) and
+ * less than 2^b nanoseconds, so any duration is recorded with one bit count and two atomic additions.
+ * <p>
+ * Recording never locks, and threads do not contend for the same counters: the counters are split into stripes,
+ * and each thread records into the stripe chosen by its thread id.  Reading sums the stripes, so a reading taken
+ * while operations are being recorded may be off by the operations in flight.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraphMetrics
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of buckets; enough for any non-negative long duration.
+     */
+    public static final int BUCKETS = 64;
+
+    /**
+     * The number of stripes the counters are split into; a power of two.
+     */
+    private static final int STRIPES = 8;
+
+    /**
+     * The number of counters per stripe: one per bucket, the total duration, and padding so that the stripes of
+     * different threads do not share a cache line.
+     */
+    private static final int STRIDE = BUCKETS + 8;
+
+    /**
+     * The counters of every stripe, one after the other.
+     */
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+    /**
+     * Class constructor.  Histograms are created by {@link KnowledgeGraphMetrics}.
+     */
+    LatencyHistogram() {
+    }
+
+    /**
+     * Returns the bucket that a duration falls in.
+     *
+     * @param nanos  the duration in nanoseconds
+     * @return       the bucket, from 0 for durations of 0 or less
+     */
+    static int bucketOf(long nanos) {
+        return (nanos <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * Returns the exclusive upper bound of the durations in a bucket.
+     *
+     * @param bucket  the bucket
+     * @return        the upper bound in nanoseconds, or Long.MAX_VALUE for the last bucket
+     */
+    public static long getBucketUpperNanos(int bucket) {
+        return (bucket >= BUCKETS - 1) ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Records one operation.
+     *
+     * @param nanos  how long the operation took, in nanoseconds
+     */
+    void record(long nanos) {
+        int base = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        cells.incrementAndGet(base + bucketOf(nanos));
+        cells.addAndGet(base + BUCKETS, nanos);
+    }
+
+    /**
+     * Returns the number of operations recorded in a bucket.
+     *
+     * @param bucket  the bucket
+     * @return        the number of operations whose duration fell in the bucket
+     */
+    public long getBucketCount(int bucket) {
+        long count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            count += cells.get(stripe * STRIDE + bucket);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of operations recorded.
+     *
+     * @return  the operation count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            count += getBucketCount(bucket);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total duration of the operations recorded.
+     *
+     * @return  the total in nanoseconds
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            total += cells.get(stripe * STRIDE + BUCKETS);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the mean duration of the operations recorded.
+     *
+     * @return  the mean in nanoseconds, or 0 if none were recorded
+     */
+    public double getMeanNanos() {
+        long count = getCount();
+        return (count > 0) ? (double) getTotalNanos() / count : 0;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the durations: the upper bound of the bucket it falls in,
+     * which is at most twice the true value.
+     *
+     * @param percentile  the percentile, from 0 to 100
+     * @return            the upper bound in nanoseconds, or 0 if no operations were recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = getBucketCount(bucket);
+            count += counts[bucket];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= Math.max(1, rank)) {
+                return getBucketUpperNanos(bucket);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
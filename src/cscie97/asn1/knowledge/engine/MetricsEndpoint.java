@@ -0,0 +1,138 @@
+package cscie97.asn1.knowledge.engine;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+/**
+ * A small HTTP server that serves the KnowledgeGraph's metrics as text, so that a monitoring system can pull them.
+ * A GET of "/metrics" returns {@link KnowledgeGraphMetrics#writeText(Appendable)}; any other path is not found.
+ * Requests are answered on a single background thread, and only read the metrics, so a scrape never slows down
+ * imports or queries beyond the cost of reading the gauges.
+ * <p>
+ * The metrics reveal the size and activity of the KnowledgeGraph, so by default the endpoint only listens on the
+ * loopback address; pass an explicit address to expose it to other hosts.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraphMetrics
+ */
+public final class MetricsEndpoint {
+
+    /**
+     * The path the metrics are served at.
+     */
+    public static final String PATH = "/metrics";
+
+    /**
+     * The content type of the Prometheus text exposition format.
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The metrics text is sent as UTF-8.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The running HTTP server.
+     */
+    private final HttpServer server;
+
+    /**
+     * Class constructor.
+     *
+     * @param server  the running HTTP server
+     */
+    private MetricsEndpoint(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts serving the given metrics on the given port of the loopback address, so only processes on the same
+     * host can read them.
+     *
+     * @param metrics       the metrics to serve
+     * @param port          the port to listen on; 0 to pick a free port
+     * @return              the running endpoint
+     * @throws IOException  if the port cannot be bound
+     */
+    public static MetricsEndpoint start(KnowledgeGraphMetrics metrics, int port) throws IOException {
+        return start(metrics, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Starts serving the given metrics on the given address, such as a wildcard address with
+     * <code>new InetSocketAddress(port)</code> to accept scrapes from other hosts.
+     *
+     * @param metrics       the metrics to serve
+     * @param address       the address and port to listen on; port 0 picks a free port
+     * @return              the running endpoint
+     * @throws IOException  if the address cannot be bound
+     */
+    public static MetricsEndpoint start(final KnowledgeGraphMetrics metrics, InetSocketAddress address) throws IOException {
+        if (address == null) {
+            throw new IllegalArgumentException("address must not be null");
+        }
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!PATH.equals(exchange.getRequestURI().getPath())) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] body = metrics.getText().getBytes(UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    if ("HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        return new MetricsEndpoint(server);
+    }
+
+    /**
+     * Returns the port the endpoint is listening on, such as the one picked when started with port 0.
+     *
+     * @return  the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the address and port the endpoint is listening on.
+     *
+     * @return  the bound address
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops the endpoint, waiting at most one second for requests in progress to finish.
+     */
+    public void stop() {
+        server.stop(1);
+    }
+}
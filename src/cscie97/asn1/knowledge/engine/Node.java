@@ -26,6 +26,47 @@ public class Node {
         return identifier;
     }
 
+    /**
+     * Id assigned to a Node that was created outside of the KnowledgeGraph's term dictionary.
+     */
+    public static final int UNASSIGNED = -2;
+
+    /**
+     * Private dense integer id assigned by the KnowledgeGraph's term dictionary when the Node is interned;
+     * {@link #UNASSIGNED} if the Node was not created by the KnowledgeGraph.
+     */
+    private int id;
+
+    /**
+     * Returns the dense integer id of the Node, which the KnowledgeGraph uses in place of the identifier
+     * string when storing and indexing Triples.
+     *
+     * @return  the id of this Node, or {@link #UNASSIGNED} if it was not created by the KnowledgeGraph
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Private case insensitive hash of the identifier, computed when first asked for; 0 until then.
+     */
+    private int identifierHash;
+
+    /**
+     * Returns the case insensitive hash of the identifier, which is the same for every Node whose identifier
+     * differs only in case.
+     *
+     * @return  the hash of the identifier
+     */
+    int identifierHash() {
+        int h = identifierHash;
+        if (h == 0) {
+            h = TermDictionary.hash(identifier, 0, identifier.length());
+            identifierHash = h;
+        }
+        return h;
+    }
+
     /**
      * Class constructor.  Sets the string identifier for the Node.
      *
@@ -33,7 +74,19 @@ public class Node {
      *                    uniqueness of Nodes is enforced by the KnowledgeGraph class
      */
     public Node(String identifier) {
+        this(identifier, UNASSIGNED);
+    }
+
+    /**
+     * Class constructor used by the KnowledgeGraph's term dictionary.  Sets the string identifier and the
+     * dense id for the Node.
+     *
+     * @param identifier  the string that should uniquely identify this Node from all others
+     * @param id          the dense id assigned to the Node by the term dictionary
+     */
+    Node(String identifier, int id) {
         this.identifier = identifier;
+        this.id = id;
     }
 
 }
@@ -0,0 +1,301 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps every posting list in large direct buffers ("slabs") outside of the heap, so the number of Triples does
+ * not change how much the garbage collector has to trace or copy.  The only heap used per key is one long holding
+ * the location of its posting list, and the only objects created by reads are the views that queries hold.
+ * <p>
+ * A posting list is stored as its length followed by its values.  Each new posting list is appended to the
+ * current slab, and the posting list it replaces is left behind as garbage.  Once the garbage outgrows the live
+ * posting lists, every live posting list is copied into new slabs and the old slabs are dropped.  A view refers to
+ * its slab directly, so a dropped slab is only freed once no view is reading it.
+ * <p>
+ * Each location is published after the slab it points into, and a location is moved before its old slab is
+ * dropped, so a reader that finds a dropped slab only has to read the location again.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see PostingStore
+ * @see HeapPostingStore
+ */
+class OffHeapPostingStore extends PostingStore {
+
+    /**
+     * The number of values held by the first slab: 512 KB.  Each later slab is twice as large as the one before,
+     * up to {@link #SLAB_LONGS}, so a small graph does not reserve much memory.
+     */
+    static final int MIN_SLAB_LONGS = 1 << 16;
+
+    /**
+     * The number of values held by each slab once the store has grown, unless a longer posting list needs a slab
+     * of its own: 64 MB.
+     */
+    static final int SLAB_LONGS = 1 << 23;
+
+    /**
+     * The longest posting list a slab can hold, since a direct buffer holds at most Integer.MAX_VALUE bytes.
+     */
+    private static final int MAX_SLAB_LONGS = Integer.MAX_VALUE / 8;
+
+    /**
+     * The slabs by number; slabs that were dropped by a compaction are null.  A larger copy is published when a
+     * slab is added.
+     */
+    private volatile LongBuffer[] slabs = new LongBuffer[0];
+
+    /**
+     * The location of each key's posting list: the slab number plus one in the high 32 bits and the offset of
+     * the length in the low 32 bits, or 0 if the key has no values.  When more keys are needed, a larger copy is
+     * published.
+     */
+    private volatile AtomicLongArray locations = new AtomicLongArray(16);
+
+    /**
+     * The number of the slab posting lists are appended to, or -1 before the first slab.  Used only by the writer.
+     */
+    private int currentSlab = -1;
+
+    /**
+     * The offset in the current slab at which the next posting list is appended.  Used only by the writer.
+     */
+    private int currentOffset = 0;
+
+    /**
+     * The number of values the next slab holds, unless a longer posting list needs more.  Used only by the writer.
+     */
+    private int nextSlabLongs = MIN_SLAB_LONGS;
+
+    /**
+     * The number of longs in the slabs used by live posting lists, including their lengths.
+     */
+    private volatile long liveLongs = 0;
+
+    /**
+     * The number of longs in the slabs left behind by replaced posting lists and by slab ends too short for the
+     * next posting list.
+     */
+    private volatile long garbageLongs = 0;
+
+    /**
+     * The total capacity of the slabs that have not been dropped, in bytes.
+     */
+    private volatile long allocatedBytes = 0;
+
+    /**
+     * Returns a view of the current posting list of a key.
+     *
+     * @param key  the key
+     * @return     the posting list, or {@link PostingList#EMPTY} if the key has no values
+     */
+    @Override
+    PostingList get(int key) {
+        while (true) {
+            AtomicLongArray current = locations;
+            long location = (key >= 0 && key < current.length()) ? current.get(key) : 0;
+            if (location == 0) {
+                return PostingList.EMPTY;
+            }
+            LongBuffer slab = slabs[(int) (location >>> 32) - 1];
+            if (slab != null) {
+                int offset = (int) location;
+                return new PostingList.OffHeap(slab, offset + 1, (int) slab.get(offset));
+            }
+            // a compaction dropped the slab after the location was read, and has already moved the posting list
+        }
+    }
+
+    /**
+     * Returns the length of the current posting list of a key, without creating a view of it.
+     *
+     * @param key  the key
+     * @return     the number of values held for the key
+     */
+    @Override
+    int length(int key) {
+        while (true) {
+            AtomicLongArray current = locations;
+            long location = (key >= 0 && key < current.length()) ? current.get(key) : 0;
+            if (location == 0) {
+                return 0;
+            }
+            LongBuffer slab = slabs[(int) (location >>> 32) - 1];
+            if (slab != null) {
+                return (int) slab.get((int) location);
+            }
+        }
+    }
+
+    /**
+     * Publishes a new posting list for a key by copying it into a slab.  The posting list it replaces becomes
+     * garbage, and the slabs are compacted once the garbage outgrows the live posting lists.
+     *
+     * @param key     the key
+     * @param values  the sorted values; empty to remove the key's values
+     */
+    @Override
+    void set(int key, long[] values) {
+        AtomicLongArray current = locations;
+        if (key >= current.length()) {
+            if (values.length == 0) {
+                return;
+            }
+            AtomicLongArray grown = new AtomicLongArray(Math.max(key + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            locations = grown;
+            current = grown;
+        }
+
+        long old = current.get(key);
+        if (old != 0) {
+            long oldLongs = 1 + slabs[(int) (old >>> 32) - 1].get((int) old);
+            liveLongs -= oldLongs;
+            garbageLongs += oldLongs;
+        }
+        current.set(key, (values.length == 0) ? 0 : append(values));
+        if (garbageLongs > liveLongs && garbageLongs >= MIN_SLAB_LONGS) {
+            compact();
+        }
+    }
+
+    /**
+     * Copies a posting list to the end of the current slab, first adding a slab if it does not fit.
+     *
+     * @param values  the sorted values
+     * @return        the location of the posting list
+     */
+    private long append(long[] values) {
+        int needed = values.length + 1;
+        if (values.length >= MAX_SLAB_LONGS) {
+            throw new IllegalStateException("a posting list of ["+values.length+"] values is too long to store off the heap");
+        }
+        if (currentSlab < 0 || slabs[currentSlab].capacity() - currentOffset < needed) {
+            if (currentSlab >= 0) {
+                garbageLongs += slabs[currentSlab].capacity() - currentOffset;
+            }
+            addSlab(Math.max(nextSlabLongs, needed));
+        }
+        LongBuffer target = slabs[currentSlab].duplicate();
+        target.position(currentOffset);
+        target.put(values.length);
+        target.put(values);
+        long location = ((long) (currentSlab + 1) << 32) | currentOffset;
+        currentOffset += needed;
+        liveLongs += needed;
+        return location;
+    }
+
+    /**
+     * Allocates a new slab and makes it the current slab.  The slab is published before any location points
+     * into it.
+     *
+     * @param capacity  the number of values the slab holds
+     */
+    private void addSlab(int capacity) {
+        LongBuffer slab = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        LongBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+        grown[grown.length - 1] = slab;
+        slabs = grown;
+        currentSlab = grown.length - 1;
+        currentOffset = 0;
+        allocatedBytes += capacity * 8L;
+        nextSlabLongs = Math.min(SLAB_LONGS, nextSlabLongs * 2);
+    }
+
+    /**
+     * Copies every live posting list into new slabs, moves each location, and then drops the old slabs.
+     */
+    private void compact() {
+        int firstNewSlab = slabs.length;
+        currentSlab = -1;
+        nextSlabLongs = (int) Math.min(SLAB_LONGS, Math.max(MIN_SLAB_LONGS, liveLongs));
+        liveLongs = 0;
+        garbageLongs = 0;
+
+        AtomicLongArray current = locations;
+        for (int key = 0; key < current.length(); key++) {
+            long location = current.get(key);
+            if (location == 0) {
+                continue;
+            }
+            LongBuffer source = slabs[(int) (location >>> 32) - 1].duplicate();
+            int offset = (int) location;
+            int needed = 1 + (int) source.get(offset);
+            if (currentSlab < 0 || slabs[currentSlab].capacity() - currentOffset < needed) {
+                if (currentSlab >= 0) {
+                    garbageLongs += slabs[currentSlab].capacity() - currentOffset;
+                }
+                addSlab(Math.max(nextSlabLongs, needed));
+            }
+            source.limit(offset + needed).position(offset);
+            LongBuffer target = slabs[currentSlab].duplicate();
+            target.position(currentOffset);
+            target.put(source);
+            current.set(key, ((long) (currentSlab + 1) << 32) | currentOffset);
+            currentOffset += needed;
+            liveLongs += needed;
+        }
+
+        LongBuffer[] remaining = slabs.clone();
+        long droppedBytes = 0;
+        for (int i = 0; i < firstNewSlab; i++) {
+            if (remaining[i] != null) {
+                droppedBytes += remaining[i].capacity() * 8L;
+                remaining[i] = null;
+            }
+        }
+        slabs = remaining;
+        allocatedBytes -= droppedBytes;
+    }
+
+    /**
+     * Returns one more than the largest key that may have a posting list, for iterating over every key.
+     *
+     * @return  the exclusive upper bound of the keys
+     */
+    @Override
+    int keyLimit() {
+        return locations.length();
+    }
+
+    /**
+     * Returns an estimate of the heap used by the store: the locations and the array of slabs.  The values
+     * themselves are off the heap.
+     *
+     * @param keys    the number of keys that have values
+     * @param values  the total number of values
+     * @return        the estimated size in bytes
+     */
+    @Override
+    long estimateHeapBytes(long keys, long values) {
+        return 32 + 8L * locations.length() + 4L * slabs.length;
+    }
+
+    /**
+     * Returns the capacity of the slabs that have not been dropped.  Dropped slabs are freed by the garbage
+     * collector once no view refers to them.
+     *
+     * @return  the size in bytes
+     */
+    @Override
+    long offHeapBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Creates an empty off-heap store.
+     *
+     * @return  the new store
+     */
+    @Override
+    PostingStore newEmpty() {
+        return new OffHeapPostingStore();
+    }
+}
@@ -0,0 +1,651 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One sorted permutation of the Triples in the KnowledgeGraph.  Each Triple is stored as its three dictionary ids,
+ * reordered according to the permutation (SPO, POS, or OSP): the first id selects a posting list, and the other two
+ * ids are packed into a single long value that is kept in sorted order within that posting list.  Because the
+ * values are sorted, all Triples sharing the first two ids of the permutation form one contiguous range that can be
+ * found with a binary search.
+ * <p>
+ * Together, the SPO, POS, and OSP permutations answer every one of the 8 wildcard query patterns with a single
+ * range scan, so each Triple is stored 3 times as primitives rather than once per query pattern.
+ * <p>
+ * Reads never lock.  Posting lists are immutable once published, and each insert or removal publishes an updated
+ * posting list through an atomic reference, so a reader sees either all or none of a batch's Triples for any one
+ * key.  Inserts and removals must be serialized by the caller.
+ * <p>
+ * The posting lists are kept by a {@link PostingStore}, on the heap, off the heap, or compressed, and can be
+ * moved to another store while queries are reading them.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph
+ * @see QueryResultSet
+ */
+class PermutationIndex {
+
+    /**
+     * Permutation keyed on subject, with values sorted by predicate then object.
+     */
+    static final int SPO = 0;
+
+    /**
+     * Permutation keyed on predicate, with values sorted by object then subject.
+     */
+    static final int POS = 1;
+
+    /**
+     * Permutation keyed on object, with values sorted by subject then predicate.
+     */
+    static final int OSP = 2;
+
+    /**
+     * Keys whose posting list holds at least this many values are hubs, such as an object like Starbucks that
+     * appears in a large share of the Triples.  Hubs are tracked as posting lists change length, so the keys of
+     * highest degree can be found without reading every posting list length.
+     */
+    static final int HUB_DEGREE = 1 << 10;
+
+    /**
+     * Number of ranges of keys per thread that a bulk insert sorts, so that threads that finish early can sort
+     * another range.
+     */
+    private static final int SORT_TASKS_PER_THREAD = 4;
+
+    /**
+     * Shared empty array of posting list values.
+     */
+    static final long[] EMPTY = new long[0];
+
+    /**
+     * Which of SPO, POS, or OSP this index holds.
+     */
+    private final int order;
+
+    /**
+     * Private association from the first id of the permutation to its sorted posting list.  Posting lists are
+     * never modified once stored; inserts replace them with merged ones.  Starts out on the heap.
+     */
+    private volatile PostingStore store = new HeapPostingStore();
+
+    /**
+     * The number of Triples held by the index.
+     */
+    private volatile long size = 0;
+
+    /**
+     * The number of keys whose posting list length falls in each power-of-two bucket; see {@link DegreeHistogram}.
+     * Updated by inserts as posting lists change length, so the degree distribution never has to be recomputed.
+     */
+    private volatile AtomicLongArray degreeCounts = new AtomicLongArray(DegreeHistogram.BUCKETS);
+
+    /**
+     * The keys whose posting lists hold at least {@link #HUB_DEGREE} values, in ascending order.  Keys become and
+     * stop being hubs rarely, so inserts publish a new array each time rather than changing this one.
+     */
+    private volatile int[] hubKeys = new int[0];
+
+    /**
+     * Class constructor.
+     *
+     * @param order  one of {@link #SPO}, {@link #POS}, or {@link #OSP}
+     */
+    PermutationIndex(int order) {
+        this.order = order;
+    }
+
+    /**
+     * Packs two non-negative ids into one long so that sorting the longs sorts by the first id, then the second.
+     *
+     * @param high  the id that is compared first
+     * @param low   the id that is compared second
+     * @return      the packed value
+     */
+    static long pack(int high, int low) {
+        return ((long) high << 32) | (low & 0xffffffffL);
+    }
+
+    /**
+     * Returns the first id of a packed value.
+     *
+     * @param value  a value created by {@link #pack(int, int)}
+     * @return       the id that is compared first
+     */
+    static int high(long value) {
+        return (int) (value >>> 32);
+    }
+
+    /**
+     * Returns the second id of a packed value.
+     *
+     * @param value  a value created by {@link #pack(int, int)}
+     * @return       the id that is compared second
+     */
+    static int low(long value) {
+        return (int) value;
+    }
+
+    /**
+     * Returns the posting list key of a Triple in this permutation.
+     *
+     * @param subjectId    the subject id of the Triple
+     * @param predicateId  the predicate id of the Triple
+     * @param objectId     the object id of the Triple
+     * @return             the key of the posting list holding the Triple
+     */
+    int keyOf(int subjectId, int predicateId, int objectId) {
+        switch (order) {
+            case SPO: return subjectId;
+            case POS: return predicateId;
+            default:  return objectId;
+        }
+    }
+
+    /**
+     * Returns the packed posting list value of a Triple in this permutation.
+     *
+     * @param subjectId    the subject id of the Triple
+     * @param predicateId  the predicate id of the Triple
+     * @param objectId     the object id of the Triple
+     * @return             the packed value stored for the Triple
+     */
+    long valueOf(int subjectId, int predicateId, int objectId) {
+        switch (order) {
+            case SPO: return pack(predicateId, objectId);
+            case POS: return pack(objectId, subjectId);
+            default:  return pack(subjectId, predicateId);
+        }
+    }
+
+    /**
+     * Returns the subject id of the Triple stored as the given key and value.
+     *
+     * @param key    the posting list key of the Triple
+     * @param value  the packed posting list value of the Triple
+     * @return       the subject id
+     */
+    int subjectOf(int key, long value) {
+        switch (order) {
+            case SPO: return key;
+            case POS: return low(value);
+            default:  return high(value);
+        }
+    }
+
+    /**
+     * Returns the predicate id of the Triple stored as the given key and value.
+     *
+     * @param key    the posting list key of the Triple
+     * @param value  the packed posting list value of the Triple
+     * @return       the predicate id
+     */
+    int predicateOf(int key, long value) {
+        switch (order) {
+            case SPO: return high(value);
+            case POS: return key;
+            default:  return low(value);
+        }
+    }
+
+    /**
+     * Returns the object id of the Triple stored as the given key and value.
+     *
+     * @param key    the posting list key of the Triple
+     * @param value  the packed posting list value of the Triple
+     * @return       the object id
+     */
+    int objectOf(int key, long value) {
+        switch (order) {
+            case SPO: return low(value);
+            case POS: return high(value);
+            default:  return key;
+        }
+    }
+
+    /**
+     * Returns which part of a Triple is the posting list key of this permutation.
+     *
+     * @return  {@link Triple#SUBJECT}, {@link Triple#PREDICATE}, or {@link Triple#OBJECT}
+     */
+    int keyPosition() {
+        switch (order) {
+            case SPO: return Triple.SUBJECT;
+            case POS: return Triple.PREDICATE;
+            default:  return Triple.OBJECT;
+        }
+    }
+
+    /**
+     * Returns which part of a Triple is compared first within the posting lists of this permutation.
+     *
+     * @return  {@link Triple#SUBJECT}, {@link Triple#PREDICATE}, or {@link Triple#OBJECT}
+     */
+    int highPosition() {
+        switch (order) {
+            case SPO: return Triple.PREDICATE;
+            case POS: return Triple.OBJECT;
+            default:  return Triple.SUBJECT;
+        }
+    }
+
+    /**
+     * Returns which part of a Triple is compared second within the posting lists of this permutation.
+     *
+     * @return  {@link Triple#SUBJECT}, {@link Triple#PREDICATE}, or {@link Triple#OBJECT}
+     */
+    int lowPosition() {
+        switch (order) {
+            case SPO: return Triple.OBJECT;
+            case POS: return Triple.SUBJECT;
+            default:  return Triple.PREDICATE;
+        }
+    }
+
+    /**
+     * Returns the number of Triples held by the index.
+     *
+     * @return  the number of Triples
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the index, assuming compressed object references.
+     *
+     * @return  the estimated size in bytes
+     */
+    long estimateBytes() {
+        AtomicLongArray degrees = degreeCounts;
+        long keys = 0;
+        for (int bucket = 0; bucket < degrees.length(); bucket++) {
+            keys += degrees.get(bucket);
+        }
+        return store.estimateHeapBytes(keys, size);
+    }
+
+    /**
+     * Returns the memory the index has allocated outside of the heap.
+     *
+     * @return  the size in bytes; 0 if the posting lists are on the heap
+     */
+    long offHeapBytes() {
+        return store.offHeapBytes();
+    }
+
+    /**
+     * Copies every posting list into the given empty store and then reads from it instead, so queries that are
+     * already reading the old store are not affected.  Inserts must be serialized with this call, as for
+     * {@link #insert}.
+     *
+     * @param target  the empty store to move to
+     */
+    void moveTo(PostingStore target) {
+        PostingStore current = store;
+        int keyLimit = current.keyLimit();
+        for (int key = 0; key < keyLimit; key++) {
+            PostingList posting = current.get(key);
+            if (posting.length() > 0) {
+                long[] values = new long[posting.length()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = posting.get(i);
+                }
+                target.set(key, values);
+            }
+        }
+        store = target;
+    }
+
+    /**
+     * Returns a copy of the distribution of posting list lengths, which are the degrees of the keys.
+     *
+     * @return  the degree histogram
+     */
+    DegreeHistogram degreeHistogram() {
+        AtomicLongArray current = degreeCounts;
+        long[] counts = new long[current.length()];
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = current.get(bucket);
+        }
+        return new DegreeHistogram(counts);
+    }
+
+    /**
+     * Returns the keys whose posting lists hold at least {@link #HUB_DEGREE} values.
+     *
+     * @return  the hub keys in ascending order; not to be modified
+     */
+    int[] hubKeys() {
+        return hubKeys;
+    }
+
+    /**
+     * Moves a key between degree histogram buckets after its posting list changes length, and adds it to or
+     * removes it from the hubs if it crossed {@link #HUB_DEGREE}.
+     *
+     * @param key        the key whose posting list changed
+     * @param oldLength  the previous length of the posting list
+     * @param newLength  the new length of the posting list
+     */
+    private void updateDegree(int key, int oldLength, int newLength) {
+        if (oldLength > 0) {
+            degreeCounts.decrementAndGet(DegreeHistogram.bucketOf(oldLength));
+        }
+        if (newLength > 0) {
+            degreeCounts.incrementAndGet(DegreeHistogram.bucketOf(newLength));
+        }
+
+        boolean wasHub = oldLength >= HUB_DEGREE;
+        boolean isHub = newLength >= HUB_DEGREE;
+        if (wasHub != isHub) {
+            int[] current = hubKeys;
+            int position = Arrays.binarySearch(current, key);
+            int[] updated;
+            if (isHub) {
+                position = -position - 1;
+                updated = new int[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, position);
+                updated[position] = key;
+                System.arraycopy(current, position, updated, position + 1, current.length - position);
+            }
+            else {
+                updated = new int[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, position);
+                System.arraycopy(current, position + 1, updated, position, updated.length - position);
+            }
+            hubKeys = updated;
+        }
+    }
+
+    /**
+     * Returns one more than the largest key that may have a posting list, for iterating over every key.
+     *
+     * @return  the exclusive upper bound of the keys
+     */
+    int keyLimit() {
+        return store.keyLimit();
+    }
+
+    /**
+     * Returns the sorted posting list for the given key.  Later inserts do not change the returned posting list.
+     *
+     * @param key  the first id of the permutation
+     * @return     the sorted posting list, or an empty posting list if the key has no Triples
+     */
+    PostingList getPostings(int key) {
+        return store.get(key);
+    }
+
+    /**
+     * Returns the number of Triples with the given key, without reading its posting list.
+     *
+     * @param key  the first id of the permutation
+     * @return     the length of the key's posting list
+     */
+    int postingLength(int key) {
+        return store.length(key);
+    }
+
+    /**
+     * Returns whether the index holds the given key and value.
+     *
+     * @param key    the first id of the permutation
+     * @param value  the packed remaining ids of the permutation
+     * @return       true if the Triple is in the index
+     */
+    boolean contains(int key, long value) {
+        return getPostings(key).contains(value);
+    }
+
+    /**
+     * Adds a batch of Triples to the index.  The batch is grouped by key and sorted, then merged into each affected
+     * posting list by the store in a single pass, rather than one copy per Triple.  The heap store copies only the
+     * chunks of a long posting list that the batch falls in, so a small batch stays cheap however large the index
+     * grows.  Triples already in the index, or repeated within the batch, are only stored once.
+     *
+     * @param subjectIds    subject ids of the Triples to add
+     * @param predicateIds  predicate ids of the Triples to add
+     * @param objectIds     object ids of the Triples to add
+     * @param count         number of Triples in the arrays to add
+     * @return              the number of Triples that were not already in the index
+     */
+    long insert(int[] subjectIds, int[] predicateIds, int[] objectIds, int count) {
+        return update(subjectIds, predicateIds, objectIds, count, false);
+    }
+
+    /**
+     * Removes a batch of Triples from the index, grouped by key as for {@link #insert}, so each affected posting
+     * list is updated once.  Triples not in the index are ignored.  A key whose last Triple is removed no longer has
+     * a posting list.
+     *
+     * @param subjectIds    subject ids of the Triples to remove
+     * @param predicateIds  predicate ids of the Triples to remove
+     * @param objectIds     object ids of the Triples to remove
+     * @param count         number of Triples in the arrays to remove
+     * @return              the number of Triples that were in the index
+     */
+    long remove(int[] subjectIds, int[] predicateIds, int[] objectIds, int count) {
+        return update(subjectIds, predicateIds, objectIds, count, true);
+    }
+
+    /**
+     * Adds a large batch of Triples, such as a whole file, by sorting instead of merging it in pieces.  The values
+     * are bucketed by key with a counting sort, since keys are dense ids; each key's bucket is then sorted and
+     * de-duplicated, and merged into the key's posting list once.  Buckets are sorted on the given pool, in ranges of
+     * keys holding about equal numbers of values.  Inserts must be serialized with this call, as for
+     * {@link #insert}.
+     *
+     * @param subjectIds    subject ids of the Triples
+     * @param predicateIds  predicate ids of the Triples
+     * @param objectIds     object ids of the Triples
+     * @param count         number of Triples in the arrays
+     * @param pool          the pool to sort the buckets on, or null to sort them on the calling thread
+     * @return              the number of Triples that were not already held
+     */
+    long bulkInsert(int[] subjectIds, int[] predicateIds, int[] objectIds, int count, ForkJoinPool pool) {
+        if (count == 0) {
+            return 0;
+        }
+
+        // bucket the values by key: starts[key] is the offset of the key's bucket in values
+        int keyLimit = 0;
+        for (int i = 0; i < count; i++) {
+            keyLimit = Math.max(keyLimit, keyOf(subjectIds[i], predicateIds[i], objectIds[i]) + 1);
+        }
+        final int[] starts = new int[keyLimit + 1];
+        for (int i = 0; i < count; i++) {
+            starts[keyOf(subjectIds[i], predicateIds[i], objectIds[i]) + 1]++;
+        }
+        for (int key = 0; key < keyLimit; key++) {
+            starts[key + 1] += starts[key];
+        }
+        int[] next = Arrays.copyOf(starts, keyLimit);
+        final long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[next[keyOf(subjectIds[i], predicateIds[i], objectIds[i])]++] = valueOf(subjectIds[i], predicateIds[i], objectIds[i]);
+        }
+
+        final int[] lengths = new int[keyLimit];
+        if (pool == null || pool.getParallelism() < 2) {
+            sortBuckets(values, starts, lengths, 0, keyLimit);
+        }
+        else {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            long perTask = Math.max(1, (long) count / (pool.getParallelism() * SORT_TASKS_PER_THREAD));
+            int from = 0;
+            while (from < keyLimit) {
+                int to = from + 1;
+                while (to < keyLimit && starts[to] - starts[from] < perTask) {
+                    to++;
+                }
+                final int fromKey = from;
+                final int toKey = to;
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        sortBuckets(values, starts, lengths, fromKey, toKey);
+                        return null;
+                    }
+                });
+                from = to;
+            }
+            try {
+                for (Future<Void> sorted : pool.invokeAll(tasks)) {
+                    sorted.get();
+                }
+            }
+            catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("sorting a range of keys failed", cause);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while sorting a bulk insert", ie);
+            }
+        }
+
+        long changed = 0;
+        for (int key = 0; key < keyLimit; key++) {
+            if (lengths[key] == 0) {
+                continue;
+            }
+            long[] sorted = Arrays.copyOfRange(values, starts[key], starts[key] + lengths[key]);
+            int length = store.length(key);
+            if (length == 0) {
+                store.set(key, sorted);
+                changed += sorted.length;
+                updateDegree(key, 0, sorted.length);
+            }
+            else {
+                int added = store.insert(key, sorted, sorted.length);
+                if (added > 0) {
+                    changed += added;
+                    updateDegree(key, length, length + added);
+                }
+            }
+        }
+        size += changed;
+        return changed;
+    }
+
+    /**
+     * Sorts and de-duplicates the buckets of a range of keys in place.
+     *
+     * @param values   the values, bucketed by key
+     * @param starts   the offset of each key's bucket in values, and the end of the last bucket
+     * @param lengths  receives the number of distinct values of each key, left at the front of its bucket
+     * @param fromKey  the first key of the range
+     * @param toKey    the key just after the range
+     */
+    private static void sortBuckets(long[] values, int[] starts, int[] lengths, int fromKey, int toKey) {
+        for (int key = fromKey; key < toKey; key++) {
+            int start = starts[key];
+            int end = starts[key + 1];
+            if (start == end) {
+                continue;
+            }
+            Arrays.sort(values, start, end);
+            int distinct = start + 1;
+            for (int i = start + 1; i < end; i++) {
+                if (values[i] != values[distinct - 1]) {
+                    values[distinct++] = values[i];
+                }
+            }
+            lengths[key] = distinct - start;
+        }
+    }
+
+    /**
+     * Groups a batch of Triples by key and sorts each group, then has the store merge it into or subtract it from
+     * the posting list of its key.
+     *
+     * @param subjectIds    subject ids of the Triples
+     * @param predicateIds  predicate ids of the Triples
+     * @param objectIds     object ids of the Triples
+     * @param count         number of Triples in the arrays
+     * @param removing      true to remove the Triples, false to add them
+     * @return              the number of Triples added or removed
+     */
+    private long update(int[] subjectIds, int[] predicateIds, int[] objectIds, int count, boolean removing) {
+        if (count == 0) {
+            return 0;
+        }
+
+        // sort the batch offsets by key, so each posting list is merged only once
+        long[] keyOrder = new long[count];
+        for (int i = 0; i < count; i++) {
+            keyOrder[i] = pack(keyOf(subjectIds[i], predicateIds[i], objectIds[i]), i);
+        }
+        Arrays.sort(keyOrder);
+
+        long changed = 0;
+        long[] batch = new long[count];
+        int start = 0;
+        while (start < count) {
+            int key = high(keyOrder[start]);
+            int batchSize = 0;
+            int end = start;
+            while (end < count && high(keyOrder[end]) == key) {
+                int i = low(keyOrder[end]);
+                batch[batchSize++] = valueOf(subjectIds[i], predicateIds[i], objectIds[i]);
+                end++;
+            }
+            Arrays.sort(batch, 0, batchSize);
+
+            int length = store.length(key);
+            int updated = removing ? store.remove(key, batch, batchSize) : store.insert(key, batch, batchSize);
+            if (updated > 0) {
+                changed += updated;
+                updateDegree(key, length, removing ? length - updated : length + updated);
+            }
+            start = end;
+        }
+        size += removing ? -changed : changed;
+        return changed;
+    }
+
+    /**
+     * Replaces the contents of an empty index with already sorted and de-duplicated posting lists, such as those
+     * read back from a snapshot.  Inserts must be serialized with this call, as for {@link #insert}.
+     *
+     * @param lists  the posting list for each key; null or empty for keys that have no Triples
+     */
+    void load(long[][] lists) {
+        PostingStore loaded = store.newEmpty();
+        AtomicLongArray loadedDegrees = new AtomicLongArray(DegreeHistogram.BUCKETS);
+        int[] loadedHubs = new int[16];
+        int hubCount = 0;
+        long loadedSize = 0;
+        for (int key = 0; key < lists.length; key++) {
+            if (lists[key] != null && lists[key].length > 0) {
+                loaded.set(key, lists[key]);
+                loadedSize += lists[key].length;
+                loadedDegrees.incrementAndGet(DegreeHistogram.bucketOf(lists[key].length));
+                if (lists[key].length >= HUB_DEGREE) {
+                    if (hubCount == loadedHubs.length) {
+                        loadedHubs = Arrays.copyOf(loadedHubs, hubCount * 2);
+                    }
+                    loadedHubs[hubCount++] = key;
+                }
+            }
+        }
+        store = loaded;
+        degreeCounts = loadedDegrees;
+        hubKeys = Arrays.copyOf(loadedHubs, hubCount);
+        size = loadedSize;
+    }
+}
@@ -0,0 +1,592 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only view of one sorted posting list of a {@link PermutationIndex}, wherever its values are stored.  A view
+ * is fixed once it is returned: later inserts and removals publish a new posting list rather than changing the one
+ * being read, so a view can be read for as long as it is held without locking.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see PostingStore
+ * @see QueryResultSet
+ */
+abstract class PostingList {
+
+    /**
+     * Shared empty posting list returned for keys that have no Triples.
+     */
+    static final PostingList EMPTY = new OnHeap(new long[0]);
+
+    /**
+     * Returns the number of values in the posting list.
+     *
+     * @return  the length of the posting list
+     */
+    abstract int length();
+
+    /**
+     * Returns one value of the posting list.
+     *
+     * @param i  the offset of the value, from 0
+     * @return   the packed value
+     */
+    abstract long get(int i);
+
+    /**
+     * Returns the offset of the first value that is greater than or equal to the passed value.
+     *
+     * @param value  the value to search for
+     * @return       the insertion point of the value
+     */
+    int lowerBound(long value) {
+        int low = 0;
+        int high = length();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid) < value) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns whether the posting list holds the given value.
+     *
+     * @param value  the value to search for
+     * @return       true if the value is in the posting list
+     */
+    boolean contains(long value) {
+        int i = lowerBound(value);
+        return i < length() && get(i) == value;
+    }
+
+    /**
+     * A posting list held in a long array on the heap.
+     */
+    static final class OnHeap extends PostingList {
+
+        /**
+         * The sorted values; never modified.
+         */
+        private final long[] values;
+
+        /**
+         * Class constructor.
+         *
+         * @param values  the sorted values, which must not be modified afterwards
+         */
+        OnHeap(long[] values) {
+            this.values = values;
+        }
+
+        /**
+         * Returns the number of values in the posting list.
+         *
+         * @return  the length of the posting list
+         */
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        /**
+         * Returns one value of the posting list.
+         *
+         * @param i  the offset of the value, from 0
+         * @return   the packed value
+         */
+        @Override
+        long get(int i) {
+            return values[i];
+        }
+
+        /**
+         * Returns whether the posting list holds the given value, with a binary search of the array.
+         *
+         * @param value  the value to search for
+         * @return       true if the value is in the posting list
+         */
+        @Override
+        boolean contains(long value) {
+            return Arrays.binarySearch(values, value) >= 0;
+        }
+    }
+
+    /**
+     * A posting list held on the heap in a series of sorted chunks, each a long array of at most
+     * {@link #MAX_CHUNK_LENGTH} values, that hold the values in order.  {@link HeapPostingStore} keeps long posting
+     * lists this way so that an insert or removal copies only the chunks it changes and the table of chunks, rather
+     * than every value.  The chunks are never modified, and a new posting list shares the chunks that did not
+     * change with the one it replaces.
+     * <p>
+     * The chunk read last is remembered, so reading a range in order finds each value's chunk without a search.
+     * The remembered chunk is only a hint, checked before it is used, so a view may be read by several threads at
+     * once.
+     */
+    static final class Chunked extends PostingList {
+
+        /**
+         * The number of values that a chunk grown past {@link #MAX_CHUNK_LENGTH} is split into chunks of.
+         */
+        static final int CHUNK_LENGTH = 128;
+
+        /**
+         * The largest number of values in a chunk.
+         */
+        static final int MAX_CHUNK_LENGTH = 2 * CHUNK_LENGTH;
+
+        /**
+         * The chunks, in order; none is empty.
+         */
+        private final long[][] chunks;
+
+        /**
+         * The offset just after the last value of each chunk.
+         */
+        private final int[] ends;
+
+        /**
+         * The number of the chunk read last.
+         */
+        private int lastChunk;
+
+        /**
+         * Class constructor.
+         *
+         * @param chunks  the sorted chunks, in order, none of them empty, which must not be modified afterwards
+         */
+        Chunked(List<long[]> chunks) {
+            this.chunks = chunks.toArray(new long[chunks.size()][]);
+            this.ends = new int[this.chunks.length];
+            int end = 0;
+            for (int c = 0; c < this.chunks.length; c++) {
+                end += this.chunks[c].length;
+                ends[c] = end;
+            }
+        }
+
+        /**
+         * Returns the chunks, which must not be modified.
+         *
+         * @return  the chunks, in order
+         */
+        long[][] chunks() {
+            return chunks;
+        }
+
+        /**
+         * Returns the number of values in the posting list.
+         *
+         * @return  the length of the posting list
+         */
+        @Override
+        int length() {
+            return ends[ends.length - 1];
+        }
+
+        /**
+         * Returns one value of the posting list.
+         *
+         * @param i  the offset of the value, from 0
+         * @return   the packed value
+         */
+        @Override
+        long get(int i) {
+            int chunk = lastChunk;
+            if (i >= ends[chunk] || i < start(chunk)) {
+                if (chunk + 1 < ends.length && i >= ends[chunk] && i < ends[chunk + 1]) {
+                    chunk++;
+                }
+                else {
+                    chunk = chunkOf(i);
+                }
+                lastChunk = chunk;
+            }
+            return chunks[chunk][i - start(chunk)];
+        }
+
+        /**
+         * Returns the offset of the first value that is greater than or equal to the passed value, searching the
+         * last value of each chunk and then one chunk.
+         *
+         * @param value  the value to search for
+         * @return       the insertion point of the value
+         */
+        @Override
+        int lowerBound(long value) {
+            // find the first chunk whose last value is not below the value
+            int low = 0;
+            int high = chunks.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                long[] chunk = chunks[mid];
+                if (chunk[chunk.length - 1] < value) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            if (low == chunks.length) {
+                return length();
+            }
+            int position = Arrays.binarySearch(chunks[low], value);
+            if (position < 0) {
+                position = -position - 1;
+            }
+            return start(low) + position;
+        }
+
+        /**
+         * Returns the offset of the first value of a chunk.
+         *
+         * @param chunk  the number of the chunk
+         * @return       the offset of its first value
+         */
+        private int start(int chunk) {
+            return (chunk == 0) ? 0 : ends[chunk - 1];
+        }
+
+        /**
+         * Finds the chunk holding a value.
+         *
+         * @param i  the offset of the value
+         * @return   the number of the chunk holding it
+         */
+        private int chunkOf(int i) {
+            if (i < 0 || i >= length()) {
+                throw new IndexOutOfBoundsException("offset " + i + " of a posting list of length " + length());
+            }
+            int low = 0;
+            int high = ends.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ends[mid] <= i) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * A posting list held in a range of an off-heap slab.  The view refers to the slab itself, so the slab's memory
+     * stays allocated for as long as the view is read, even if the store has since moved the posting list.
+     */
+    static final class OffHeap extends PostingList {
+
+        /**
+         * The slab holding the values.
+         */
+        private final LongBuffer slab;
+
+        /**
+         * The offset in the slab of the first value.
+         */
+        private final int base;
+
+        /**
+         * The number of values.
+         */
+        private final int length;
+
+        /**
+         * Class constructor.
+         *
+         * @param slab    the slab holding the values
+         * @param base    the offset in the slab of the first value
+         * @param length  the number of values
+         */
+        OffHeap(LongBuffer slab, int base, int length) {
+            this.slab = slab;
+            this.base = base;
+            this.length = length;
+        }
+
+        /**
+         * Returns the number of values in the posting list.
+         *
+         * @return  the length of the posting list
+         */
+        @Override
+        int length() {
+            return length;
+        }
+
+        /**
+         * Returns one value of the posting list.
+         *
+         * @param i  the offset of the value, from 0
+         * @return   the packed value
+         */
+        @Override
+        long get(int i) {
+            return slab.get(base + i);
+        }
+    }
+
+    /**
+     * A posting list compressed by {@link CompressedPostingStore} into a range of one of its pages.  The values are
+     * split into blocks of {@link #BLOCK_SIZE}.  The first value of each block is stored whole, and each later value
+     * as a varint of its difference from the value before it: values that share their high 32 bits store twice
+     * the difference with the low bit clear, and values whose high 32 bits change store twice the difference of the
+     * high 32 bits with the low bit set, followed by their low 32 bits.  Either way, a value of
+     * <code>Joe plays_sport ?</code> usually takes one to three bytes.  A skip table holds the first value and
+     * offset of every block after the first, so a seek finds its block with a binary search of the table and
+     * decodes only that block.
+     * <p>
+     * The layout of the range is:
+     * <ul>
+     *     <li>the number of values, as a varint</li>
+     *     <li>the length in bytes of the rest of the range, as a varint</li>
+     *     <li>for each block after the first, its first value (8 bytes) and the offset of the rest of the block
+     *         from the start of the range (4 bytes)</li>
+     *     <li>the high and low 32 bits of the first value, as varints</li>
+     *     <li>the rest of each block in turn</li>
+     * </ul>
+     * The last block decoded is kept, so reading a range in order decodes each block once.  Decoded blocks are
+     * immutable, so a view may be read by several threads at once.
+     */
+    static final class Compressed extends PostingList {
+
+        /**
+         * The number of values in each block, except the last; a power of two.
+         */
+        static final int BLOCK_SIZE = 128;
+
+        /**
+         * log2 of {@link #BLOCK_SIZE}.
+         */
+        static final int BLOCK_SHIFT = 7;
+
+        /**
+         * The size of each skip table entry in bytes.
+         */
+        static final int SKIP_ENTRY_BYTES = 12;
+
+        /**
+         * The page holding the posting list; the range is never modified.
+         */
+        private final byte[] page;
+
+        /**
+         * The offset in the page of the start of the range.
+         */
+        private final int base;
+
+        /**
+         * The number of values.
+         */
+        private final int length;
+
+        /**
+         * The offset in the page of the skip table.
+         */
+        private final int skipStart;
+
+        /**
+         * The number of blocks.
+         */
+        private final int blockCount;
+
+        /**
+         * The last block decoded, or null.
+         */
+        private Block lastBlock;
+
+        /**
+         * One decoded block.
+         */
+        private static final class Block {
+
+            /**
+             * The number of the block.
+             */
+            final int number;
+
+            /**
+             * The values of the block.
+             */
+            final long[] values;
+
+            /**
+             * Class constructor.
+             *
+             * @param number  the number of the block
+             * @param values  the values of the block
+             */
+            Block(int number, long[] values) {
+                this.number = number;
+                this.values = values;
+            }
+        }
+
+        /**
+         * Class constructor.
+         *
+         * @param page  the page holding the posting list
+         * @param base  the offset in the page of a range written by {@link CompressedPostingStore}
+         */
+        Compressed(byte[] page, int base) {
+            this.page = page;
+            this.base = base;
+            long header = readVarint(page, base);
+            this.length = (int) header;
+            this.skipStart = (int) (readVarint(page, (int) (header >>> 32)) >>> 32);
+            this.blockCount = (length + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+        }
+
+        /**
+         * Reads an unsigned varint of at most 32 bits.
+         *
+         * @param data    the bytes to read from
+         * @param offset  the offset of the first byte of the varint
+         * @return        the value in the low 32 bits, and the offset just after the varint in the high 32 bits
+         */
+        static long readVarint(byte[] data, int offset) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return ((long) offset << 32) | (value & 0xffffffffL);
+        }
+
+        /**
+         * Returns the number of values in the posting list.
+         *
+         * @return  the length of the posting list
+         */
+        @Override
+        int length() {
+            return length;
+        }
+
+        /**
+         * Returns one value of the posting list, decoding its block unless it was the last one decoded.
+         *
+         * @param i  the offset of the value, from 0
+         * @return   the packed value
+         */
+        @Override
+        long get(int i) {
+            Block block = lastBlock;
+            int number = i >>> BLOCK_SHIFT;
+            if (block == null || block.number != number) {
+                if (i < 0 || i >= length) {
+                    throw new IndexOutOfBoundsException("offset " + i + " of a posting list of length " + length);
+                }
+                block = decode(number);
+                lastBlock = block;
+            }
+            return block.values[i & (BLOCK_SIZE - 1)];
+        }
+
+        /**
+         * Returns the offset of the first value that is greater than or equal to the passed value, decoding only
+         * the block that holds it.
+         *
+         * @param value  the value to search for
+         * @return       the insertion point of the value
+         */
+        @Override
+        int lowerBound(long value) {
+            // find the last block that starts below the value; the answer is in it, or is the start of the next one
+            int low = 0;
+            int high = blockCount - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (firstValue(mid) < value) {
+                    low = mid;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            Block block = lastBlock;
+            if (block == null || block.number != low) {
+                block = decode(low);
+                lastBlock = block;
+            }
+            int position = Arrays.binarySearch(block.values, value);
+            if (position < 0) {
+                position = -position - 1;
+            }
+            return (low << BLOCK_SHIFT) + position;
+        }
+
+        /**
+         * Returns the first value of a block from the skip table, without decoding the block.
+         *
+         * @param number  the number of the block, from 1
+         * @return        the first value of the block
+         */
+        private long firstValue(int number) {
+            int entry = skipStart + (number - 1) * SKIP_ENTRY_BYTES;
+            long first = 0;
+            for (int b = 0; b < 8; b++) {
+                first = (first << 8) | (page[entry + b] & 0xff);
+            }
+            return first;
+        }
+
+        /**
+         * Decodes one block.
+         *
+         * @param number  the number of the block
+         * @return        the decoded block
+         */
+        private Block decode(int number) {
+            long[] values = new long[Math.min(BLOCK_SIZE, length - (number << BLOCK_SHIFT))];
+            int offset;
+            long value;
+            if (number == 0) {
+                long high = readVarint(page, skipStart + (blockCount - 1) * SKIP_ENTRY_BYTES);
+                long low = readVarint(page, (int) (high >>> 32));
+                offset = (int) (low >>> 32);
+                value = ((high & 0xffffffffL) << 32) | (low & 0xffffffffL);
+            }
+            else {
+                int entry = skipStart + (number - 1) * SKIP_ENTRY_BYTES;
+                value = firstValue(number);
+                offset = base + (((page[entry + 8] & 0xff) << 24) | ((page[entry + 9] & 0xff) << 16)
+                                 | ((page[entry + 10] & 0xff) << 8) | (page[entry + 11] & 0xff));
+            }
+            values[0] = value;
+            for (int i = 1; i < values.length; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = page[offset++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                if ((delta & 1) == 0) {
+                    value += delta >>> 1;
+                }
+                else {
+                    long low = readVarint(page, offset);
+                    offset = (int) (low >>> 32);
+                    value = (((value >>> 32) + (delta >>> 1)) << 32) | (low & 0xffffffffL);
+                }
+                values[i] = value;
+            }
+            return new Block(number, values);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.Arrays;
+
+/**
+ * Where a {@link PermutationIndex} keeps its posting lists: one sorted list of packed values per key.  The index
+ * decides what each posting list holds; the store only publishes new posting lists and returns views of the
+ * current ones.  Views are read without locking, so a store never changes a posting list in place: setting or
+ * updating a key publishes a new list, which may share the parts that did not change with the old one, and views of
+ * the old list stay readable.  Posting lists are set by one thread at a time.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see HeapPostingStore
+ * @see OffHeapPostingStore
+ * @see CompressedPostingStore
+ */
+abstract class PostingStore {
+
+    /**
+     * Returns a view of the current posting list of a key.
+     *
+     * @param key  the key
+     * @return     the posting list, or {@link PostingList#EMPTY} if the key has no values
+     */
+    abstract PostingList get(int key);
+
+    /**
+     * Returns the length of the current posting list of a key, without creating a view of it.
+     *
+     * @param key  the key
+     * @return     the number of values held for the key
+     */
+    abstract int length(int key);
+
+    /**
+     * Publishes a new posting list for a key, replacing the current one.
+     *
+     * @param key     the key
+     * @param values  the sorted values, which must not be modified afterwards; empty to remove the key's values
+     */
+    abstract void set(int key, long[] values);
+
+    /**
+     * Merges a sorted batch of values into the posting list of a key, dropping values it already holds, and
+     * publishes the result.  This publishes a merged copy of the whole posting list; a store that can publish the
+     * change without copying every value overrides it.
+     *
+     * @param key        the key
+     * @param batch      the sorted values to add
+     * @param batchSize  the number of values in the batch
+     * @return           the number of values that were not already held
+     */
+    int insert(int key, long[] batch, int batchSize) {
+        PostingList existing = get(key);
+        long[] merged = merge(existing, batch, 0, batchSize);
+        if (merged == null) {
+            return 0;
+        }
+        set(key, merged);
+        return merged.length - existing.length();
+    }
+
+    /**
+     * Removes a sorted batch of values from the posting list of a key, ignoring values it does not hold, and
+     * publishes the result.  This publishes a copy of the whole remaining posting list; a store that can publish
+     * the change without copying every value overrides it.
+     *
+     * @param key        the key
+     * @param batch      the sorted values to remove
+     * @param batchSize  the number of values in the batch
+     * @return           the number of values that were removed
+     */
+    int remove(int key, long[] batch, int batchSize) {
+        PostingList existing = get(key);
+        long[] remaining = subtract(existing, batch, 0, batchSize);
+        if (remaining == null) {
+            return 0;
+        }
+        set(key, remaining);
+        return existing.length() - remaining.length;
+    }
+
+    /**
+     * Returns one more than the largest key that may have a posting list, for iterating over every key.
+     *
+     * @return  the exclusive upper bound of the keys
+     */
+    abstract int keyLimit();
+
+    /**
+     * Returns an estimate of the heap used by the store, assuming compressed object references.
+     *
+     * @param keys    the number of keys that have values
+     * @param values  the total number of values
+     * @return        the estimated size in bytes
+     */
+    abstract long estimateHeapBytes(long keys, long values);
+
+    /**
+     * Returns the memory the store has allocated outside of the heap.
+     *
+     * @return  the size in bytes
+     */
+    abstract long offHeapBytes();
+
+    /**
+     * Creates an empty store of the same kind.
+     *
+     * @return  the new store
+     */
+    abstract PostingStore newEmpty();
+
+    /**
+     * Merges a range of a sorted batch into a sorted posting list, dropping duplicate values.
+     *
+     * @param existing  the current sorted posting list
+     * @param batch     the sorted values to merge in
+     * @param from      the offset of the first value of the batch to merge
+     * @param to        the offset just after the last value of the batch to merge
+     * @return          the merged posting list, or null if nothing new was added
+     */
+    static long[] merge(PostingList existing, long[] batch, int from, int to) {
+        int length = existing.length();
+        long[] merged = new long[length + to - from];
+        int e = 0;
+        int b = from;
+        int m = 0;
+        while (e < length || b < to) {
+            long next;
+            if (e < length && (b >= to || existing.get(e) <= batch[b])) {
+                next = existing.get(e++);
+            }
+            else {
+                next = batch[b++];
+            }
+            if (m == 0 || merged[m - 1] != next) {
+                merged[m++] = next;
+            }
+        }
+        if (m == length) {
+            return null;
+        }
+        return (m == merged.length) ? merged : Arrays.copyOf(merged, m);
+    }
+
+    /**
+     * Removes the values of a range of a sorted batch from a sorted posting list.
+     *
+     * @param existing  the current sorted posting list
+     * @param batch     the sorted values to remove
+     * @param from      the offset of the first value of the batch to remove
+     * @param to        the offset just after the last value of the batch to remove
+     * @return          the remaining posting list, or null if nothing was removed
+     */
+    static long[] subtract(PostingList existing, long[] batch, int from, int to) {
+        int length = existing.length();
+        long[] remaining = new long[length];
+        int b = from;
+        int r = 0;
+        for (int e = 0; e < length; e++) {
+            long value = existing.get(e);
+            while (b < to && batch[b] < value) {
+                b++;
+            }
+            if (b >= to || batch[b] != value) {
+                remaining[r++] = value;
+            }
+        }
+        if (r == length) {
+            return null;
+        }
+        return (r == 0) ? PermutationIndex.EMPTY : Arrays.copyOf(remaining, r);
+    }
+}
@@ -26,6 +26,47 @@ public class Predicate {
         return identifier;
     }
 
+    /**
+     * Id assigned to a Predicate that was created outside of the KnowledgeGraph's term dictionary.
+     */
+    public static final int UNASSIGNED = -2;
+
+    /**
+     * Private dense integer id assigned by the KnowledgeGraph's term dictionary when the Predicate is interned;
+     * {@link #UNASSIGNED} if the Predicate was not created by the KnowledgeGraph.
+     */
+    private int id;
+
+    /**
+     * Returns the dense integer id of the Predicate, which the KnowledgeGraph uses in place of the identifier
+     * string when storing and indexing Triples.
+     *
+     * @return  the id of this Predicate, or {@link #UNASSIGNED} if it was not created by the KnowledgeGraph
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Private case insensitive hash of the identifier, computed when first asked for; 0 until then.
+     */
+    private int identifierHash;
+
+    /**
+     * Returns the case insensitive hash of the identifier, which is the same for every Predicate whose identifier
+     * differs only in case.
+     *
+     * @return  the hash of the identifier
+     */
+    int identifierHash() {
+        int h = identifierHash;
+        if (h == 0) {
+            h = TermDictionary.hash(identifier, 0, identifier.length());
+            identifierHash = h;
+        }
+        return h;
+    }
+
     /**
      * Class constructor.  Sets the string identifier for the Node.
      *
@@ -33,6 +74,18 @@ public class Predicate {
      *                    uniqueness of Nodes is enforced by the KnowledgeGraph class
      */
     public Predicate(String identifier) {
+        this(identifier, UNASSIGNED);
+    }
+
+    /**
+     * Class constructor used by the KnowledgeGraph's term dictionary.  Sets the string identifier and the
+     * dense id for the Predicate.
+     *
+     * @param identifier  the string that should uniquely identify this Predicate from all others
+     * @param id          the dense id assigned to the Predicate by the term dictionary
+     */
+    Predicate(String identifier, int id) {
         this.identifier = identifier;
+        this.id = id;
     }
 }
\ No newline at end of file
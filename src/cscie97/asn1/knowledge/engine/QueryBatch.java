@@ -0,0 +1,458 @@
+package cscie97.asn1.knowledge.engine;
+
+import cscie97.asn1.knowledge.engine.exception.ImportException;
+import cscie97.asn1.knowledge.engine.exception.ParseException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * One batch run of a query file.  The lines of the file are grouped into tasks of {@link #QUERIES_PER_TASK}
+ * queries, and the tasks are executed on a fixed pool of threads, each formatting its results into its own
+ * buffer and handing the buffer over in chunks as it fills.  The calling thread writes the chunks of one task at a
+ * time, in file order, so the output is exactly what executing the queries one at a time would print.  At most
+ * {@link #TASKS_PER_THREAD} tasks per thread are in flight at once, and a task that is not yet being written waits
+ * once it has {@link #CHUNKS_PER_TASK} chunks waiting, so memory use grows with neither the length of the query file
+ * nor the size of any result.  The pool starts tasks in file order, so the task being written always has a thread.
+ * With a single thread the tasks run in file order on the calling thread, so they write their results to the output
+ * as they go instead, whenever their buffer fills.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see QueryEngine#executeQueryBatch(String, int, Writer)
+ */
+class QueryBatch {
+
+    /**
+     * Number of queries executed by each task.
+     */
+    private static final int QUERIES_PER_TASK = 256;
+
+    /**
+     * Number of tasks per thread that may be waiting to be written, so that threads stay busy while the output
+     * catches up with a slow task.
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    /**
+     * Size of the buffer in front of the output, and of the chunks handed over by tasks, in characters.
+     */
+    private static final int OUTPUT_BUFFER_CHARS = 1 << 16;
+
+    /**
+     * Number of chunks a task may have waiting to be written before it waits for the output to catch up.
+     */
+    private static final int CHUNKS_PER_TASK = 4;
+
+    /**
+     * Handed over after the last chunk of a task; compared by identity, so it is never mistaken for empty results.
+     */
+    private static final String END_OF_TASK = new String();
+
+    /**
+     * The name of the query file.
+     */
+    private final String filename;
+
+    /**
+     * The number of threads to execute queries on.
+     */
+    private final int threads;
+
+    /**
+     * Reused to copy the buffers of tasks that run on the calling thread to the output without building a String of
+     * each.
+     */
+    private final char[] chunk = new char[OUTPUT_BUFFER_CHARS];
+
+    /**
+     * Queries executed so far, and result lines written so far.
+     */
+    private long queryCount = 0, resultCount = 0;
+
+    /**
+     * The formatted results of a task, buffered until about {@link #OUTPUT_BUFFER_CHARS} characters have been
+     * appended and then either written to the output or handed over to the calling thread as a chunk.
+     */
+    private class Output implements Appendable {
+
+        /**
+         * The formatted results that have been neither written nor handed over.
+         */
+        private final StringBuilder buffer = new StringBuilder();
+
+        /**
+         * The output to write the results to whenever the buffer fills, or null to hand them over instead.
+         */
+        private final Writer direct;
+
+        /**
+         * The chunks handed over and not yet written, followed by {@link #END_OF_TASK}; null when writing directly.
+         */
+        private final BlockingQueue<String> chunks;
+
+        /**
+         * Class constructor.
+         *
+         * @param direct  the output to write the results to whenever the buffer fills, or null to hand them over to
+         *                the calling thread instead
+         */
+        Output(Writer direct) {
+            this.direct = direct;
+            this.chunks = (direct == null) ? new ArrayBlockingQueue<String>(CHUNKS_PER_TASK + 1) : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Output append(CharSequence csq) throws IOException {
+            buffer.append(csq);
+            return spill();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Output append(CharSequence csq, int start, int end) throws IOException {
+            buffer.append(csq, start, end);
+            return spill();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Output append(char c) throws IOException {
+            buffer.append(c);
+            return spill();
+        }
+
+        /**
+         * Writes or hands over the buffer if it has filled.
+         *
+         * @return  this output
+         * @throws IOException  thrown when the results cannot be written, or when interrupted while waiting to hand
+         *                      them over
+         */
+        private Output spill() throws IOException {
+            if (buffer.length() >= OUTPUT_BUFFER_CHARS) {
+                flush();
+            }
+            return this;
+        }
+
+        /**
+         * Writes or hands over everything in the buffer, waiting while {@link #CHUNKS_PER_TASK} chunks are already
+         * waiting to be written.
+         *
+         * @throws IOException  thrown when the results cannot be written, or when interrupted while waiting to hand
+         *                      them over
+         */
+        void flush() throws IOException {
+            if (direct != null) {
+                drain(buffer, direct);
+            }
+            else if (buffer.length() > 0) {
+                handOver(buffer.toString());
+                buffer.setLength(0);
+            }
+        }
+
+        /**
+         * Tells the calling thread that no more chunks follow.  Does nothing when writing directly.
+         *
+         * @throws IOException  thrown when interrupted while waiting to hand over
+         */
+        void end() throws IOException {
+            if (chunks != null) {
+                handOver(END_OF_TASK);
+            }
+        }
+
+        /**
+         * Adds a chunk to the ones waiting to be written, waiting for room.
+         *
+         * @param chunk  the chunk
+         * @throws IOException  thrown when interrupted while waiting, as when the batch is abandoned
+         */
+        private void handOver(String chunk) throws IOException {
+            try {
+                chunks.put(chunk);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException iioe = new InterruptedIOException("Interrupted while handing over query results");
+                iioe.initCause(ie);
+                throw iioe;
+            }
+        }
+
+        /**
+         * Writes the chunks handed over by the task to the output as they arrive, until the task has ended.
+         *
+         * @param writer  the output
+         * @throws IOException           thrown when the results cannot be written
+         * @throws InterruptedException  thrown when interrupted while waiting for a chunk
+         */
+        void writeChunks(Writer writer) throws IOException, InterruptedException {
+            if (chunks == null) {
+                return;
+            }
+            for (String next = chunks.take(); next != END_OF_TASK; next = chunks.take()) {
+                writer.write(next);
+            }
+        }
+    }
+
+    /**
+     * A group of consecutive queries from the file, and the formatted results of executing them.
+     */
+    private class Task implements Callable<Task> {
+
+        /**
+         * The queries, in file order.
+         */
+        private final List<String> queries;
+
+        /**
+         * The line number of the first query, counting from 1.
+         */
+        private final int firstLineNumber;
+
+        /**
+         * The formatted results of the queries executed so far that have been neither written nor handed over.
+         */
+        private final Output output;
+
+        /**
+         * The running or finished task, set when it is started.
+         */
+        private Future<Task> future;
+
+        /**
+         * The number of result lines in the output.
+         */
+        private long resultCount = 0;
+
+        /**
+         * The number of queries executed successfully, not counting blank lines.
+         */
+        private int executed = 0;
+
+        /**
+         * The problem with the first query that could not be executed, or null if all were executed.
+         */
+        private ParseException error;
+
+        /**
+         * Class constructor.
+         *
+         * @param queries          the queries, in file order
+         * @param firstLineNumber  the line number of the first query, counting from 1
+         * @param direct           the output to write the results to whenever the buffer fills, or null to hand
+         *                         them over to the calling thread instead
+         */
+        Task(List<String> queries, int firstLineNumber, Writer direct) {
+            this.queries = queries;
+            this.firstLineNumber = firstLineNumber;
+            this.output = new Output(direct);
+        }
+
+        /**
+         * Executes the queries in order, stopping at the first one that fails to parse.  Blank lines are skipped.
+         *
+         * @return  this task
+         * @throws IOException  thrown if the results are written to the output as they go and cannot be written, or
+         *                      if interrupted while waiting to hand them over
+         */
+        public Task call() throws IOException {
+            try {
+                for (int i = 0; i < queries.size(); i++) {
+                    String query = queries.get(i);
+                    if (QueryEngine.isBlank(query)) {
+                        continue;
+                    }
+                    try {
+                        resultCount += QueryEngine.writeQueryResults(query, output);
+                    }
+                    catch (ParseException pe) {
+                        error = new ParseException(pe.getMessage(), query, firstLineNumber + i, filename, pe);
+                        break;
+                    }
+                    executed++;
+                }
+                output.flush();
+            }
+            finally {
+                // the calling thread waits for the end of the chunks even when the task fails
+                output.end();
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param filename  the name of the query file
+     * @param threads   the number of threads to execute queries on; 1 or less executes them on the calling thread
+     */
+    QueryBatch(String filename, int threads) {
+        this.filename = filename;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Executes every query in the file and writes the results to the output in file order.  If a query fails to
+     * parse, the results of the queries before it are written and the exception is thrown.
+     *
+     * @param out                the output to write the results to; flushed but not closed
+     * @return                   the throughput summary
+     * @throws ParseException    thrown when a query in the file fails to parse
+     * @throws ImportException   thrown when the query file cannot be read or the results cannot be written
+     */
+    QueryBatchSummary run(Writer out) throws ParseException, ImportException {
+        long startTime = System.nanoTime();
+        ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        Deque<Task> inFlight = new ArrayDeque<Task>();
+        int lineNumber = 0;
+        try {
+            BufferedWriter writer = new BufferedWriter(out, OUTPUT_BUFFER_CHARS);
+            // without a pool, tasks run inline in file order, so they can write to the output as they go
+            Writer direct = (pool == null) ? writer : null;
+            BufferedReader reader = new BufferedReader(new FileReader(filename));
+            try {
+                List<String> queries = new ArrayList<String>(QUERIES_PER_TASK);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    queries.add(line);
+                    lineNumber++;
+                    if (queries.size() == QUERIES_PER_TASK) {
+                        submit(pool, inFlight, new Task(queries, lineNumber - queries.size() + 1, direct), writer);
+                        queries = new ArrayList<String>(QUERIES_PER_TASK);
+                    }
+                }
+                if (!queries.isEmpty()) {
+                    submit(pool, inFlight, new Task(queries, lineNumber - queries.size() + 1, direct), writer);
+                }
+                while (!inFlight.isEmpty()) {
+                    write(inFlight.removeFirst(), writer);
+                }
+            }
+            finally {
+                reader.close();
+                writer.flush();
+            }
+        }
+        catch (ParseException pe) {
+            throw pe;
+        }
+        catch (FileNotFoundException fnfe) {
+            throw new ImportException("Could not find query file ["+filename+"] to open for reading", 0, filename, fnfe);
+        }
+        catch (IOException ioe) {
+            throw new ImportException("Encountered an IOException when reading query file ["+filename+"] or writing its results", lineNumber, filename, ioe);
+        }
+        catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                // a task that writes to the output as it goes failed to write
+                throw new ImportException("Encountered an IOException when reading query file ["+filename+"] or writing its results", lineNumber, filename, ee.getCause());
+            }
+            throw new ImportException("Encountered an exception when executing queries from ["+filename+"]", lineNumber, filename, ee.getCause());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ImportException("Interrupted while executing queries from ["+filename+"]", lineNumber, filename, ie);
+        }
+        finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        return new QueryBatchSummary(queryCount, resultCount, System.nanoTime() - startTime, threads);
+    }
+
+    /**
+     * Starts a task, first writing the oldest tasks while too many are in flight.  Without a pool the task runs
+     * right away on the calling thread.
+     *
+     * @param pool      the pool to run the task on, or null
+     * @param inFlight  the tasks that have been started but not written, in file order
+     * @param task      the task to start
+     * @param writer    the output
+     * @throws ParseException        thrown when a query of an earlier task failed to parse
+     * @throws IOException           thrown when the results of an earlier task cannot be written
+     * @throws ExecutionException    thrown when an earlier task failed unexpectedly
+     * @throws InterruptedException  thrown when interrupted while waiting for an earlier task
+     */
+    private void submit(ExecutorService pool, Deque<Task> inFlight, Task task, Writer writer)
+            throws ParseException, IOException, ExecutionException, InterruptedException {
+        while (inFlight.size() >= threads * TASKS_PER_THREAD) {
+            write(inFlight.removeFirst(), writer);
+        }
+        if (pool != null) {
+            task.future = pool.submit(task);
+        }
+        else {
+            FutureTask<Task> inline = new FutureTask<Task>(task);
+            inline.run();
+            task.future = inline;
+        }
+        inFlight.addLast(task);
+    }
+
+    /**
+     * Writes the chunks a task hands over as they arrive, then waits for it to finish.
+     *
+     * @param task    the task
+     * @param writer  the output
+     * @throws ParseException        thrown, after the results before it are written, when a query failed to parse
+     * @throws IOException           thrown when the results cannot be written
+     * @throws ExecutionException    thrown when the task failed unexpectedly
+     * @throws InterruptedException  thrown when interrupted while waiting for the task
+     */
+    private void write(Task task, Writer writer)
+            throws ParseException, IOException, ExecutionException, InterruptedException {
+        task.output.writeChunks(writer);
+        task.future.get();
+        queryCount += task.executed;
+        resultCount += task.resultCount;
+        if (task.error != null) {
+            throw task.error;
+        }
+    }
+
+    /**
+     * Writes and empties a buffer of formatted results, copying it in chunks rather than building a String of it.
+     *
+     * @param buffer  the formatted results
+     * @param writer  the output
+     * @throws IOException  thrown when the results cannot be written
+     */
+    private void drain(StringBuilder buffer, Writer writer) throws IOException {
+        for (int start = 0; start < buffer.length(); start += chunk.length) {
+            int end = Math.min(buffer.length(), start + chunk.length);
+            buffer.getChars(start, end, chunk, 0);
+            writer.write(chunk, 0, end - start);
+        }
+        buffer.setLength(0);
+    }
+}
@@ -0,0 +1,102 @@
+package cscie97.asn1.knowledge.engine;
+
+/**
+ * Throughput summary of one run of {@link QueryEngine#executeQueryBatch(String, int, java.io.Writer)}.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see QueryEngine#executeQueryBatch(String, int, java.io.Writer)
+ */
+public final class QueryBatchSummary {
+
+    /**
+     * The number of queries executed.
+     */
+    private final long queryCount;
+
+    /**
+     * The number of result lines written, over all queries.
+     */
+    private final long resultCount;
+
+    /**
+     * The time the whole batch took, in nanoseconds.
+     */
+    private final long elapsedNanos;
+
+    /**
+     * The number of threads the queries were executed on.
+     */
+    private final int threads;
+
+    /**
+     * Class constructor.
+     *
+     * @param queryCount    the number of queries executed
+     * @param resultCount   the number of result lines written
+     * @param elapsedNanos  the time the whole batch took, in nanoseconds
+     * @param threads       the number of threads the queries were executed on
+     */
+    QueryBatchSummary(long queryCount, long resultCount, long elapsedNanos, int threads) {
+        this.queryCount = queryCount;
+        this.resultCount = resultCount;
+        this.elapsedNanos = elapsedNanos;
+        this.threads = threads;
+    }
+
+    /**
+     * Returns the number of queries executed.
+     *
+     * @return  the number of queries
+     */
+    public long getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Returns the number of result lines written, over all queries.
+     *
+     * @return  the number of matching Triples and solutions written
+     */
+    public long getResultCount() {
+        return resultCount;
+    }
+
+    /**
+     * Returns the time the whole batch took, including reading the query file and writing the results.
+     *
+     * @return  the elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the number of threads the queries were executed on.
+     *
+     * @return  the number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the average number of queries executed per second.
+     *
+     * @return  the query throughput
+     */
+    public double getQueriesPerSecond() {
+        return (elapsedNanos > 0) ? queryCount * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * Returns the summary as a single line.
+     *
+     * @return  the formatted summary
+     */
+    @Override
+    public String toString() {
+        return String.format("%d queries, %d results in %.1f ms on %d threads (%.0f queries/s)",
+                             queryCount, resultCount, elapsedNanos / 1e6, threads, getQueriesPerSecond());
+    }
+}
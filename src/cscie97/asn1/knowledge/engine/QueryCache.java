@@ -0,0 +1,453 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of single Triple query results, keyed on the normalized query string, so that a repeated query is
+ * answered without parsing it, looking up its parts in the term dictionaries, or searching the indexes.
+ * <p>
+ * Entries are evicted in approximately least recently used order once the cache holds more than its maximum number
+ * of entries or its maximum total weight, using the CLOCK algorithm: a hit only marks its entry as referenced, and
+ * eviction passes over the entries in the order they were stored, giving each referenced entry a second chance by
+ * clearing its mark instead of evicting it.  The weight of an entry is the length of the posting list its result refers to,
+ * since a cached result keeps that array reachable even after an import replaces it in the index.
+ * <p>
+ * When Triples are imported, only the entries whose query matches one of the new Triples are dropped: each new
+ * Triple can only match the 8 patterns formed from its own ids and wildcards, and those are looked up directly.
+ * Results of queries naming a Node or Predicate that the KnowledgeGraph does not hold are not cached, since an
+ * import could add that term without matching any cached pattern.  Removed Triples drop entries the same way, and
+ * entries naming a term released from its dictionary are dropped along with it.
+ * <p>
+ * Lookups take no lock, so concurrent queries answered from the cache do not wait for each other; all other methods
+ * are synchronized.  A result is only stored if no import has happened since the lookup that missed it, so a result
+ * computed before an import can never be stored after that import's invalidation.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#executeQuery(String)
+ * @see QueryCacheStatistics
+ */
+class QueryCache {
+
+    /**
+     * The default maximum number of entries.
+     */
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * The default maximum total weight of the entries; 4M posting list values, or 32MB.
+     */
+    static final long DEFAULT_MAX_WEIGHT = 4L << 20;
+
+    /**
+     * The ids of a query pattern, any of which may be {@link Triple#WILDCARD}.
+     */
+    private static final class Pattern {
+        int subjectId, predicateId, objectId;
+
+        Pattern(int subjectId, int predicateId, int objectId) {
+            this.subjectId = subjectId;
+            this.predicateId = predicateId;
+            this.objectId = objectId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Pattern)) {
+                return false;
+            }
+            Pattern pattern = (Pattern) other;
+            return subjectId == pattern.subjectId && predicateId == pattern.predicateId && objectId == pattern.objectId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (subjectId * 31 + predicateId) * 31 + objectId;
+        }
+    }
+
+    /**
+     * A cached query result.
+     */
+    static final class Entry {
+
+        /**
+         * The normalized query string.
+         */
+        final String key;
+
+        /**
+         * The identifier of the parsed query Triple, as QueryEngine prints it.
+         */
+        final String identifier;
+
+        /**
+         * The matching Triples.
+         */
+        final Set<Triple> result;
+
+        /**
+         * The ids of the query pattern.
+         */
+        private final Pattern pattern;
+
+        /**
+         * The number of posting list values the result holds on to, plus one for the entry itself.
+         */
+        private final long weight;
+
+        /**
+         * Set by every hit and cleared as eviction passes over the entry, so that a recently used entry is kept.
+         */
+        private volatile boolean referenced = false;
+
+        /**
+         * Whether the entry is still in the cache; entries that have left it are skipped by eviction.  Guarded by
+         * the cache.
+         */
+        private boolean cached = false;
+
+        /**
+         * Class constructor.
+         *
+         * @param key          the normalized query string
+         * @param identifier   the identifier of the parsed query Triple
+         * @param result       the matching Triples
+         * @param subjectId    the subject id of the query, or {@link Triple#WILDCARD}
+         * @param predicateId  the predicate id of the query, or {@link Triple#WILDCARD}
+         * @param objectId     the object id of the query, or {@link Triple#WILDCARD}
+         * @param weight       the number of posting list values the result holds on to
+         */
+        Entry(String key, String identifier, Set<Triple> result, int subjectId, int predicateId, int objectId, long weight) {
+            this.key = key;
+            this.identifier = identifier;
+            this.result = result;
+            this.pattern = new Pattern(subjectId, predicateId, objectId);
+            this.weight = weight + 1;
+        }
+
+        /**
+         * Returns the wildcard shape of the query pattern.
+         *
+         * @return  the shape, as returned by {@link KnowledgeGraphMetrics#shapeOf(boolean, boolean, boolean)}
+         */
+        int shape() {
+            return KnowledgeGraphMetrics.shapeOf(pattern.subjectId != Triple.WILDCARD,
+                                                 pattern.predicateId != Triple.WILDCARD,
+                                                 pattern.objectId != Triple.WILDCARD);
+        }
+    }
+
+    /**
+     * The entries by normalized query string; read without locking.
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The entries in the order eviction passes over them, oldest first.  Entries that have left the cache stay here
+     * until eviction reaches them or the queue is compacted.
+     */
+    private final ArrayDeque<Entry> clock = new ArrayDeque<Entry>();
+
+    /**
+     * The entries by query pattern; several query strings can normalize differently yet name the same pattern.
+     */
+    private final Map<Pattern, List<Entry>> byPattern = new HashMap<Pattern, List<Entry>>();
+
+    /**
+     * Reused to look up the patterns matched by imported Triples without allocating.
+     */
+    private final Pattern probe = new Pattern(0, 0, 0);
+
+    /**
+     * The maximum number of entries; 0 disables the cache.
+     */
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * The maximum total weight of the entries.
+     */
+    private long maxWeight = DEFAULT_MAX_WEIGHT;
+
+    /**
+     * The number of entries.
+     */
+    private int size = 0;
+
+    /**
+     * The total weight of the entries.
+     */
+    private long weight = 0;
+
+    /**
+     * Incremented by every import or removal, so results computed before it are not stored after it.
+     */
+    private volatile long generation = 0;
+
+    /**
+     * Lookup counters reported by {@link #statistics()}, updated without locking.
+     */
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * Counters reported by {@link #statistics()}.
+     */
+    private long evictions = 0, invalidations = 0;
+
+    /**
+     * Returns the cache key of a query: its whitespace separated parts folded to lower case as the term
+     * dictionaries fold them, joined by single spaces, without trailing periods.  Queries that parse to the same
+     * Triple pattern have the same key.
+     *
+     * @param query  the query string
+     * @return       the normalized query
+     */
+    static String normalize(String query) {
+        int end = TripleTokenizer.trimEnd(query, 0, query.length());
+        StringBuilder key = new StringBuilder(end);
+        int pos = TripleTokenizer.skipSpace(query, 0, end);
+        while (pos < end) {
+            int partEnd = TripleTokenizer.skipPart(query, pos, end);
+            if (key.length() > 0) {
+                key.append(' ');
+            }
+            for (int i = pos; i < partEnd; i++) {
+                key.append(TermDictionary.fold(query.charAt(i)));
+            }
+            pos = TripleTokenizer.skipSpace(query, partEnd, end);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Looks up a cached result without locking, counting a hit or a miss and marking a hit entry as referenced.
+     *
+     * @param key  the normalized query
+     * @return     the cached entry, or null
+     */
+    Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            // only write the mark when it changes, so repeated hits on one entry do not contend on it
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+        }
+        else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the current generation, to pass to {@link #put(Entry, long)} after computing a missed result.
+     *
+     * @return  the number of imports so far
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores a result unless an import has happened since it was computed, then evicts entries until the cache is
+     * within its limits.
+     *
+     * @param entry           the result to store
+     * @param seenGeneration  the generation read before the result was computed
+     */
+    synchronized void put(Entry entry, long seenGeneration) {
+        if (seenGeneration != generation || maxEntries == 0 || entry.weight > maxWeight) {
+            return;
+        }
+        Entry replaced = entries.put(entry.key, entry);
+        if (replaced != null) {
+            unlink(replaced);
+        }
+        List<Entry> samePattern = byPattern.get(entry.pattern);
+        if (samePattern == null) {
+            samePattern = new ArrayList<Entry>(1);
+            byPattern.put(entry.pattern, samePattern);
+        }
+        samePattern.add(entry);
+        entry.cached = true;
+        clock.addLast(entry);
+        size++;
+        weight += entry.weight;
+        evict();
+        compact();
+    }
+
+    /**
+     * Evicts entries until the cache is within its limits, passing over them oldest first: an entry referenced
+     * since eviction last passed it has its mark cleared and goes to the back of the queue, any other is evicted.
+     */
+    private void evict() {
+        while ((size > maxEntries || weight > maxWeight) && !clock.isEmpty()) {
+            Entry entry = clock.pollFirst();
+            if (!entry.cached) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                clock.addLast(entry);
+                continue;
+            }
+            entries.remove(entry.key, entry);
+            unlink(entry);
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops the entries that have left the cache from the eviction queue once they outnumber the ones still in it,
+     * so that invalidations between evictions do not grow the queue without bound.
+     */
+    private void compact() {
+        if (clock.size() <= 2 * size + 16) {
+            return;
+        }
+        Iterator<Entry> iterator = clock.iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().cached) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes an entry that has left the main map from the pattern map, the size and the total weight.
+     *
+     * @param entry  the removed entry
+     */
+    private void unlink(Entry entry) {
+        List<Entry> samePattern = byPattern.get(entry.pattern);
+        if (samePattern != null) {
+            samePattern.remove(entry);
+            if (samePattern.isEmpty()) {
+                byPattern.remove(entry.pattern);
+            }
+        }
+        entry.cached = false;
+        size--;
+        weight -= entry.weight;
+    }
+
+    /**
+     * Drops every entry whose query matches one of the given Triples.  Called after the Triples are inserted into
+     * or removed from the indexes.
+     *
+     * @param subjectIds    subject ids of the imported Triples
+     * @param predicateIds  predicate ids of the imported Triples
+     * @param objectIds     object ids of the imported Triples
+     * @param count         number of Triples in the arrays
+     */
+    synchronized void invalidate(int[] subjectIds, int[] predicateIds, int[] objectIds, int count) {
+        generation++;
+        for (int i = 0; i < count && size > 0; i++) {
+            // each bit of the mask keeps one part of the Triple; the rest become wildcards
+            for (int mask = 0; mask < 8; mask++) {
+                probe.subjectId = ((mask & 1) != 0) ? subjectIds[i] : Triple.WILDCARD;
+                probe.predicateId = ((mask & 2) != 0) ? predicateIds[i] : Triple.WILDCARD;
+                probe.objectId = ((mask & 4) != 0) ? objectIds[i] : Triple.WILDCARD;
+                List<Entry> samePattern = byPattern.remove(probe);
+                if (samePattern != null) {
+                    for (Entry entry : samePattern) {
+                        // the pattern's list is already out of the pattern map, so unlink leaves it alone
+                        entries.remove(entry.key, entry);
+                        unlink(entry);
+                        invalidations++;
+                    }
+                }
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Drops every entry whose query names a released Node or Predicate.  Its id may be reused by a new term, and the
+     * released term gets a new id if it is imported again, so the entry's pattern would no longer be invalidated.
+     *
+     * @param nodeIds       the ids of the released Nodes
+     * @param predicateIds  the ids of the released Predicates
+     */
+    synchronized void invalidateTerms(BitSet nodeIds, BitSet predicateIds) {
+        generation++;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            Pattern pattern = entry.pattern;
+            if ((pattern.subjectId >= 0 && nodeIds.get(pattern.subjectId))
+                    || (pattern.predicateId >= 0 && predicateIds.get(pattern.predicateId))
+                    || (pattern.objectId >= 0 && nodeIds.get(pattern.objectId))) {
+                iterator.remove();
+                unlink(entry);
+                invalidations++;
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Moves every cached result forward to the given term epoch, and lets go of the dropped entries still waiting
+     * in the eviction queue.  Called once the entries holding released ids have been dropped, so that no result
+     * the cache refers to keeps the released ids from being reused.
+     *
+     * @param epoch  the current term epoch
+     */
+    synchronized void repin(TermReclaimer.Epoch epoch) {
+        Iterator<Entry> iterator = clock.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.cached) {
+                iterator.remove();
+            }
+            else if (entry.result instanceof QueryResultSet) {
+                ((QueryResultSet) entry.result).repin(epoch);
+            }
+        }
+    }
+
+    /**
+     * Drops every entry, such as when the whole KnowledgeGraph is replaced.
+     */
+    synchronized void clear() {
+        generation++;
+        invalidations += size;
+        entries.clear();
+        byPattern.clear();
+        clock.clear();
+        size = 0;
+        weight = 0;
+    }
+
+    /**
+     * Changes the limits of the cache, evicting entries if it is now over them.
+     *
+     * @param maxEntries  the maximum number of entries; 0 disables the cache
+     * @param maxWeight   the maximum total weight of the entries
+     */
+    synchronized void setLimits(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    /**
+     * Returns a copy of the cache counters.
+     *
+     * @return  the statistics
+     */
+    synchronized QueryCacheStatistics statistics() {
+        return new QueryCacheStatistics(hits.get(), misses.get(), evictions, invalidations, size, weight);
+    }
+}
@@ -0,0 +1,136 @@
+package cscie97.asn1.knowledge.engine;
+
+/**
+ * A read-only copy of the counters of the KnowledgeGraph's query result cache.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#getQueryCacheStatistics()
+ * @see QueryCache
+ */
+public final class QueryCacheStatistics {
+
+    /**
+     * Lookups answered from the cache.
+     */
+    private final long hits;
+
+    /**
+     * Lookups that had to execute the query.
+     */
+    private final long misses;
+
+    /**
+     * Entries dropped to stay within the cache limits.
+     */
+    private final long evictions;
+
+    /**
+     * Entries dropped because imported Triples match their query.
+     */
+    private final long invalidations;
+
+    /**
+     * Entries in the cache.
+     */
+    private final int size;
+
+    /**
+     * Total weight of the entries in the cache.
+     */
+    private final long weight;
+
+    /**
+     * Class constructor.
+     *
+     * @param hits           lookups answered from the cache
+     * @param misses         lookups that had to execute the query
+     * @param evictions      entries dropped to stay within the cache limits
+     * @param invalidations  entries dropped because imported Triples match their query
+     * @param size           entries in the cache
+     * @param weight         total weight of the entries in the cache
+     */
+    QueryCacheStatistics(long hits, long misses, long evictions, long invalidations, int size, long weight) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.invalidations = invalidations;
+        this.size = size;
+        this.weight = weight;
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return  the hit count
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to execute the query.
+     *
+     * @return  the miss count
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of lookups answered from the cache.
+     *
+     * @return  the hit rate, from 0 to 1
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups > 0) ? (double) hits / lookups : 0;
+    }
+
+    /**
+     * Returns the number of entries dropped to stay within the cache limits.
+     *
+     * @return  the eviction count
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of entries dropped because imported Triples match their query.
+     *
+     * @return  the invalidation count
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return  the entry count
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the total weight of the entries in the cache: the number of index values they hold on to.
+     *
+     * @return  the total weight
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the statistics as a single line.
+     *
+     * @return  the formatted statistics
+     */
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations, %d entries of weight %d",
+                             hits, misses, getHitRate() * 100, evictions, invalidations, size, weight);
+    }
+}
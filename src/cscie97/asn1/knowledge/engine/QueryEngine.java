@@ -7,6 +7,9 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -19,9 +22,15 @@ import java.util.Set;
  */
 public class QueryEngine {
 
+    /**
+     * Line separator used when writing query results, the same one System.out.println() uses.
+     */
+    private static final String NEWLINE = System.getProperty("line.separator");
+
     /**
      * Public method for executing a single query on the knowledge graph.  Checks for non-null and well
-     * formed query string.  Throws QueryEngineException on error.
+     * formed query string.  Throws QueryEngineException on error.  A blank query prints nothing, just as the
+     * Importer skips blank lines.
      *
      * @param query            the query to run returning Triple(s)
      * @throws ParseException  thrown if there is a problem with the supplied query (such as not having 3 parts,
@@ -29,20 +38,181 @@ public class QueryEngine {
      */
     //public static void executeQuery(String query) throws QueryEngineException, ParseException {
     public static void executeQuery(String query) throws ParseException {
+        try {
+            writeQueryResults(query, System.out);
+        }
+        catch (IOException ioe) {
+            // System.out is a PrintStream, which never throws IOException
+        }
+    }
+
+    /**
+     * Executes a single query and writes the query followed by one line per matching Triple (or per solution of a
+     * conjunctive query) and a blank line.  Shared by the single query and batch query methods so that both print
+     * results in exactly the same format.  Matching Triples are written term by term as they are read from the
+     * index, so no identifier String is built per result.  A blank query is skipped without writing anything.
+     *
+     * @param query            the query to run
+     * @param out              receives the formatted results
+     * @return                 the number of result lines written, not counting the query and blank lines
+     * @throws ParseException  thrown if there is a problem with the supplied query
+     * @throws IOException     thrown if the results cannot be written
+     */
+    static long writeQueryResults(String query, Appendable out) throws ParseException, IOException {
+        if (isBlank(query)) {
+            return 0;
+        }
         KnowledgeGraph kg = KnowledgeGraph.getInstance();
 
-        Triple queryTriple = kg.getQueryTripleFromStringIdentifier(query);
+        if (GraphPattern.isGraphPattern(query)) {
+            return writeGraphPatternResults(kg, GraphPattern.parse(query), out);
+        }
 
-        Set<Triple> queryResults = kg.executeQuery(queryTriple);
+        QueryCache.Entry cached = kg.executeCachedQuery(query);
 
-        System.out.println("QUERY: " + queryTriple.getIdentifier() );
+        Set<Triple> queryResults = cached.result;
 
-        if (queryResults != null && queryResults.size() > 0) {
+        out.append("QUERY: ").append(cached.identifier).append(NEWLINE);
+
+        long resultCount = 0;
+        if (queryResults instanceof QueryResultSet) {
+            // write the terms of each result from the dictionaries, without building its Triple
+            resultCount = ((QueryResultSet) queryResults).writeIdentifiers(out, NEWLINE);
+        }
+        else if (queryResults != null) {
             for (Triple triple : queryResults) {
-                System.out.println(triple.getIdentifier());
+                triple.appendIdentifier(out);
+                out.append(NEWLINE);
+                resultCount++;
             }
         }
+        out.append(NEWLINE);
+        return resultCount;
+    }
+
+    /**
+     * Returns whether a query is null, empty, or only whitespace, such as a blank line of a query file.
+     *
+     * @param query  the query
+     * @return       true if there is no query to run
+     */
+    static boolean isBlank(String query) {
+        return query == null || TripleTokenizer.skipSpace(query, 0, query.length()) == query.length();
+    }
+
+    /**
+     * Public method for counting the matches of a single query on the knowledge graph without printing them.
+     * Single Triple queries are counted from the indexes without reading any Triples; see
+     * {@link KnowledgeGraph#countMatches(Triple)}.  Prints the query and a "COUNT:" line.
+     *
+     * @param query            the query to count the matches of
+     * @return                 the number of matching Triples, or of solutions for a conjunctive query
+     * @throws ParseException  thrown if there is a problem with the supplied query, or if it is blank
+     */
+    public static long executeCountQuery(String query) throws ParseException {
+        if (isBlank(query)) {
+            throw new ParseException("Query is blank", query, null);
+        }
+        KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        long count;
+
+        if (GraphPattern.isGraphPattern(query)) {
+            GraphPattern pattern = GraphPattern.parse(query);
+            count = kg.countMatches(pattern);
+            System.out.println("QUERY: " + pattern);
+        }
+        else {
+            Triple queryTriple = kg.getQueryTripleFromStringIdentifier(query);
+            count = kg.countMatches(queryTriple);
+            System.out.println("QUERY: " + queryTriple.getIdentifier() );
+        }
+        System.out.println("COUNT: " + count);
+        System.out.println();
+        return count;
+    }
+
+    /**
+     * Public method for executing a single query on the knowledge graph one page at a time, so that a query
+     * matching much of the graph can be read without printing or holding all of it at once.  Prints the Triples
+     * of the page and, if more follow, a "CONTINUE:" line with the token that resumes the query.
+     *
+     * @param query              the query to run returning Triple(s); must be a single Triple pattern
+     * @param continuationToken  the token printed with the previous page of the same query, or null for the first page
+     * @param limit              the largest number of Triples to print
+     * @return                   the token that resumes the query after this page, or null if this is the last page
+     * @throws ParseException    thrown if there is a problem with the supplied query or continuation token, or if
+     *                           the query is blank
+     */
+    public static String executeQueryPage(String query, String continuationToken, int limit) throws ParseException {
+        if (isBlank(query)) {
+            throw new ParseException("Query is blank", query, null);
+        }
+        if (GraphPattern.isGraphPattern(query)) {
+            throw new ParseException("Only single Triple queries can be executed one page at a time", query, null);
+        }
+        KnowledgeGraph kg = KnowledgeGraph.getInstance();
+
+        Triple queryTriple = kg.getQueryTripleFromStringIdentifier(query);
+
+        ResultPage page = kg.executeQuery(queryTriple, continuationToken, limit);
+
+        System.out.println("QUERY: " + queryTriple.getIdentifier() );
+
+        for (Triple triple : page.getTriples()) {
+            System.out.println(triple.getIdentifier());
+        }
+        if (page.hasMore()) {
+            System.out.println("CONTINUE: " + page.getContinuationToken());
+        }
         System.out.println();
+        return page.getContinuationToken();
+    }
+
+    /**
+     * Executes a conjunctive query with variables, such as "?x works_at Starbucks . ?x plays_sport Hockey", and
+     * writes one line per solution with the value of each variable, such as "?x=Joe".
+     *
+     * @param kg              the KnowledgeGraph to query
+     * @param pattern         the parsed conjunctive query
+     * @param out             receives the formatted results
+     * @return                the number of solutions written
+     * @throws IOException    thrown if the results cannot be written
+     */
+    private static long writeGraphPatternResults(KnowledgeGraph kg, GraphPattern pattern, Appendable out) throws IOException {
+        List<Map<String, String>> solutions = kg.executeQuery(pattern);
+
+        out.append("QUERY: ").append(pattern.toString()).append(NEWLINE);
+
+        for (Map<String, String> solution : solutions) {
+            boolean first = true;
+            for (Map.Entry<String, String> binding : solution.entrySet()) {
+                if (!first) {
+                    out.append(' ');
+                }
+                out.append(binding.getKey()).append('=').append(binding.getValue());
+                first = false;
+            }
+            out.append(NEWLINE);
+        }
+        out.append(NEWLINE);
+        return solutions.size();
+    }
+
+    /**
+     * Public method for executing a large query file in parallel.  The queries are executed in groups on a fixed
+     * pool of threads and their results are written through a buffer, in the same order and format as
+     * {@link #executeQueryFilename(String)} prints them.  If a query fails to parse, the results of the queries
+     * before it are written and the exception is thrown, as when executing the file one query at a time.
+     *
+     * @param filename          the query file to read in and execute each line
+     * @param threads           the number of threads to execute queries on; 1 or less executes them on the calling thread
+     * @param output            receives the results; flushed but not closed
+     * @return                  the number of queries and results, and the throughput of the batch
+     * @throws ParseException   thrown when there is a problem with a particular query line in the query file
+     * @throws ImportException  thrown if the query file cannot be read or the results cannot be written
+     */
+    public static QueryBatchSummary executeQueryBatch(String filename, int threads, Writer output) throws ParseException, ImportException {
+        return new QueryBatch(filename, threads).run(output);
     }
 
     /**
@@ -0,0 +1,496 @@
+package cscie97.asn1.knowledge.engine;
+
+import cscie97.asn1.knowledge.engine.exception.ParseException;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only Set of the Triples matching a query, backed directly by a range of one PermutationIndex.  Nothing is
+ * copied when the query executes; each Triple is built from its ids only as the Set is iterated, so the size of a
+ * result does not determine the memory needed to return it.
+ * <p>
+ * A result is either one contiguous range of a single posting list (every pattern with at least one bound part),
+ * or every posting list of the index (the "? ? ?" pattern).  A single range is fixed when the query executes and
+ * is not affected by later imports.  The "? ? ?" result reads each posting list as it is reached, so like the views
+ * of the java.util.concurrent collections it may or may not include Triples imported while it is being iterated.
+ * <p>
+ * A result can also be read one {@link ResultPage} at a time, either by offset or by continuation token.  A token
+ * holds the key and packed value of the last Triple of a page, so the next page starts right after that Triple in
+ * the index, wherever later imports have moved it.
+ * <p>
+ * A result holds the term epoch that was current when its query started, so the ids of terms released while it
+ * exists are not reused and it keeps reporting the terms it matched; see {@link TermReclaimer}.
+ * <p>
+ * A result that is only printed can be written with {@link #writeIdentifiers(Appendable, String)}, which appends
+ * the identifiers of each Triple's terms straight from the term dictionaries without building the Triple.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#executeQuery(Triple)
+ * @see PermutationIndex
+ */
+class QueryResultSet extends AbstractSet<Triple> {
+
+    /**
+     * The KnowledgeGraph used to turn matching ids back into Triples.
+     */
+    private final KnowledgeGraph graph;
+
+    /**
+     * The term epoch that keeps the ids of the result from being reused; moved forward by the query cache while
+     * the result holds no released id.
+     */
+    private volatile TermReclaimer.Epoch epoch;
+
+    /**
+     * The index holding the matching Triples.
+     */
+    private final PermutationIndex index;
+
+    /**
+     * The posting list key of the result, or {@link Triple#WILDCARD} if every posting list of the index matches.
+     */
+    private final int key;
+
+    /**
+     * The posting list holding the result when a single key matches.
+     */
+    private final PostingList posting;
+
+    /**
+     * The range of the posting list holding the result; from is inclusive and to is exclusive.
+     */
+    private final int from, to;
+
+    /**
+     * The packed values bounding the result when a single key matches; fromValue is inclusive and toValue is
+     * exclusive.
+     */
+    private final long fromValue, toValue;
+
+    /**
+     * Class constructor for a result made of the values of one posting list in the range [fromValue, toValue).
+     *
+     * @param graph      the KnowledgeGraph that the index belongs to
+     * @param epoch      the term epoch pinned before the ids of the query were resolved
+     * @param index      the index holding the matching Triples
+     * @param key        the posting list key of the result
+     * @param fromValue  the smallest packed value of the result
+     * @param toValue    one more than the largest packed value of the result
+     */
+    QueryResultSet(KnowledgeGraph graph, TermReclaimer.Epoch epoch, PermutationIndex index, int key, long fromValue, long toValue) {
+        this.graph = graph;
+        this.epoch = epoch;
+        this.index = index;
+        this.key = key;
+        this.posting = index.getPostings(key);
+        this.from = posting.lowerBound(fromValue);
+        this.to = posting.lowerBound(toValue);
+        this.fromValue = fromValue;
+        this.toValue = toValue;
+    }
+
+    /**
+     * Class constructor for a result made of every Triple held by the index.
+     *
+     * @param graph  the KnowledgeGraph that the index belongs to
+     * @param epoch  the term epoch pinned when the query started
+     * @param index  the index holding the matching Triples
+     */
+    QueryResultSet(KnowledgeGraph graph, TermReclaimer.Epoch epoch, PermutationIndex index) {
+        this.graph = graph;
+        this.epoch = epoch;
+        this.index = index;
+        this.key = Triple.WILDCARD;
+        this.posting = PostingList.EMPTY;
+        this.from = 0;
+        this.to = 0;
+        this.fromValue = 0;
+        this.toValue = Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of matching Triples without iterating over them.
+     *
+     * @return  the number of Triples in the result
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(count(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of matching Triples, which may be more than {@link #size()} can report for "? ? ?".
+     *
+     * @return  the number of Triples in the result
+     */
+    long count() {
+        if (key == Triple.WILDCARD) {
+            return index.size();
+        }
+        return to - from;
+    }
+
+    /**
+     * Returns whether the result holds a Triple equal to the given one, without iterating over the result.  The
+     * parts of the Triple are resolved to ids through the term dictionaries, and the packed value they make is
+     * searched for in the range of the posting list that holds the result.  A part that is a term released since
+     * the query ran is only found through the instance the result reported, not through its identifier.
+     *
+     * @param o  the object to look for
+     * @return   true if the result holds a Triple with the same subject, predicate, and object
+     */
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Triple)) {
+            return false;
+        }
+        Triple triple = (Triple) o;
+        int subjectId = resolveId(graph.getNodeDictionary(), triple.getSubject(), triple.getSubject().getIdentifier(),
+                                  triple.getSubjectId());
+        int predicateId = resolveId(graph.getPredicateDictionary(), triple.getPredicate(),
+                                    triple.getPredicate().getIdentifier(), triple.getPredicateId());
+        int objectId = resolveId(graph.getNodeDictionary(), triple.getObject(), triple.getObject().getIdentifier(),
+                                 triple.getObjectId());
+        if (subjectId < 0 || predicateId < 0 || objectId < 0) {
+            return false;
+        }
+        int tripleKey = index.keyOf(subjectId, predicateId, objectId);
+        long value = index.valueOf(subjectId, predicateId, objectId);
+        if (key == Triple.WILDCARD) {
+            return index.contains(tripleKey, value);
+        }
+        return tripleKey == key && value >= fromValue && value < toValue && posting.contains(value);
+    }
+
+    /**
+     * Returns the id a term of a Triple has in one of the graph's dictionaries: its own id if it is the term the
+     * dictionary assigned that id to, and otherwise the id of the term with the same identifier.
+     *
+     * @param dictionary  the dictionary of the term's kind
+     * @param term        the Node or Predicate of the Triple
+     * @param identifier  the identifier of the term
+     * @param id          the id the Triple carries for the term
+     * @param <T>         the kind of term
+     * @return            the id, or a negative value if the term is the wildcard or not in the dictionary
+     */
+    private static <T> int resolveId(TermDictionary<T> dictionary, T term, String identifier, int id) {
+        if (id == Triple.WILDCARD) {
+            return Triple.WILDCARD;
+        }
+        if (id >= 0 && dictionary.get(id) == term) {
+            return id;
+        }
+        return dictionary.lookupId(identifier);
+    }
+
+    /**
+     * Moves the term epoch held by the result forward, so that it no longer holds back the reuse of ids released
+     * before that epoch.  Only called for results that hold none of those ids.
+     *
+     * @param current  the current term epoch
+     */
+    void repin(TermReclaimer.Epoch current) {
+        epoch = current;
+    }
+
+    /**
+     * Returns the length of the posting list this result refers to, which stays reachable for as long as the
+     * result does, even after an import replaces it in the index.
+     *
+     * @return  the number of posting list values held on to; 0 for the "? ? ?" result, which holds none
+     */
+    long pinnedLength() {
+        return posting.length();
+    }
+
+    /**
+     * Returns which part of the matching Triples is in ascending id order as the result is iterated: the part
+     * compared right after the parts that are fixed by the range.
+     *
+     * @return  {@link Triple#SUBJECT}, {@link Triple#PREDICATE}, or {@link Triple#OBJECT}
+     */
+    int sortedPosition() {
+        if (key == Triple.WILDCARD) {
+            return index.keyPosition();
+        }
+        // a range of at most one high id fixes the high part, leaving the low part in order
+        boolean highFixed = to == from || PermutationIndex.high(posting.get(from)) == PermutationIndex.high(posting.get(to - 1));
+        return highFixed ? index.lowPosition() : index.highPosition();
+    }
+
+    /**
+     * Returns an iterator that builds each matching Triple from its ids as it is reached.
+     *
+     * @return  an iterator over the result
+     */
+    @Override
+    public Iterator<Triple> iterator() {
+        final IdCursor cursor = new IdCursor();
+        return new Iterator<Triple>() {
+            private boolean ready = false;
+            private boolean done = false;
+
+            public boolean hasNext() {
+                if (!ready && !done) {
+                    ready = cursor.next();
+                    done = !ready;
+                }
+                return ready;
+            }
+
+            public Triple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ready = false;
+                return graph.getTripleForIds(cursor.subject(), cursor.predicate(), cursor.object());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns one page of the result, starting after the given number of matching Triples.
+     *
+     * @param offset  the number of matching Triples to skip
+     * @param limit   the largest number of Triples to return
+     * @return        the page
+     */
+    ResultPage page(long offset, int limit) {
+        IdCursor cursor = new IdCursor();
+        cursor.skip(offset);
+        return readPage(cursor, limit);
+    }
+
+    /**
+     * Returns one page of the result, starting after the position recorded in a continuation token.
+     *
+     * @param continuationToken  a token from a previous page of the same query, or null for the first page
+     * @param limit              the largest number of Triples to return
+     * @return                   the page
+     * @throws ParseException    if the token is malformed or was not returned for this query
+     */
+    ResultPage page(String continuationToken, int limit) throws ParseException {
+        IdCursor cursor = new IdCursor();
+        if (continuationToken != null) {
+            String[] fields = continuationToken.split("\\.");
+            int tokenKey;
+            long tokenValue;
+            try {
+                if (fields.length != 3 || Integer.parseInt(fields[0]) != index.keyPosition()) {
+                    throw new ParseException("Continuation token was not returned for this query", continuationToken, null);
+                }
+                tokenKey = Integer.parseInt(fields[1], Character.MAX_RADIX);
+                tokenValue = Long.parseLong(fields[2], Character.MAX_RADIX);
+            }
+            catch (NumberFormatException nfe) {
+                throw new ParseException("Continuation token is malformed", continuationToken, nfe);
+            }
+            boolean inRange = (key == Triple.WILDCARD) ? tokenKey >= 0 && tokenValue >= 0
+                                                       : tokenKey == key && tokenValue >= fromValue && tokenValue < toValue;
+            if (!inRange) {
+                throw new ParseException("Continuation token was not returned for this query", continuationToken, null);
+            }
+            cursor.seekAfter(tokenKey, tokenValue);
+        }
+        return readPage(cursor, limit);
+    }
+
+    /**
+     * Reads up to limit Triples from a cursor into a page, with a continuation token if more Triples follow.
+     *
+     * @param cursor  the cursor, positioned before the first Triple of the page
+     * @param limit   the largest number of Triples to return
+     * @return        the page
+     */
+    private ResultPage readPage(IdCursor cursor, int limit) {
+        List<Triple> triples = new ArrayList<Triple>(Math.min(limit, 1024));
+        while (triples.size() < limit && cursor.next()) {
+            triples.add(graph.getTripleForIds(cursor.subject(), cursor.predicate(), cursor.object()));
+        }
+        String continuationToken = null;
+        if (triples.size() == limit && cursor.hasMore()) {
+            continuationToken = index.keyPosition() + "." + Integer.toString(cursor.currentKey, Character.MAX_RADIX)
+                                + "." + Long.toString(cursor.value, Character.MAX_RADIX);
+        }
+        return new ResultPage(Collections.unmodifiableList(triples), continuationToken);
+    }
+
+    /**
+     * Writes the identifier of each matching Triple, in the form returned by {@link Triple#getIdentifier()}, on a
+     * line of its own.  The identifiers of the terms are appended from the term dictionaries as the ids are read,
+     * so neither a Triple nor an identifier String is built per result.
+     *
+     * @param out            receives the identifiers
+     * @param lineSeparator  written after each identifier
+     * @return               the number of Triples written
+     * @throws IOException   thrown if the identifiers cannot be written
+     */
+    long writeIdentifiers(Appendable out, String lineSeparator) throws IOException {
+        TermDictionary<Node> nodes = graph.getNodeDictionary();
+        TermDictionary<Predicate> predicates = graph.getPredicateDictionary();
+        IdCursor cursor = new IdCursor();
+        long count = 0;
+        while (cursor.next()) {
+            out.append(nodes.getIdentifier(cursor.subject())).append(' ')
+               .append(predicates.getIdentifier(cursor.predicate())).append(' ')
+               .append(nodes.getIdentifier(cursor.object())).append('.').append(lineSeparator);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns a cursor over the ids of the matching Triples, for callers that do not need Triple objects.
+     *
+     * @return  a cursor positioned before the first matching Triple
+     */
+    IdCursor idCursor() {
+        return new IdCursor();
+    }
+
+    /**
+     * Steps through the ids of the matching Triples without building Triple objects.  For the "? ? ?" result,
+     * each posting list is read as it is reached.
+     */
+    class IdCursor {
+
+        private int currentKey;
+        private PostingList currentPosting;
+        private int position;
+        private int end;
+        private int nextKey;
+        private long value;
+
+        IdCursor() {
+            if (key != Triple.WILDCARD) {
+                currentKey = key;
+                currentPosting = posting;
+                position = from;
+                end = to;
+            }
+            else {
+                currentPosting = PostingList.EMPTY;
+            }
+        }
+
+        /**
+         * Moves to the next matching Triple.
+         *
+         * @return  false if there are no more matching Triples
+         */
+        boolean next() {
+            while (position >= end) {
+                if (!nextPosting()) {
+                    return false;
+                }
+            }
+            value = currentPosting.get(position++);
+            return true;
+        }
+
+        /**
+         * Moves to the start of the next posting list of the "? ? ?" result.
+         *
+         * @return  false if there are no more posting lists
+         */
+        private boolean nextPosting() {
+            if (key != Triple.WILDCARD || nextKey >= index.keyLimit()) {
+                return false;
+            }
+            currentKey = nextKey++;
+            currentPosting = index.getPostings(currentKey);
+            position = 0;
+            end = currentPosting.length();
+            return true;
+        }
+
+        /**
+         * Returns whether {@link #next()} would find another matching Triple, without moving.
+         *
+         * @return  true if more matching Triples follow
+         */
+        boolean hasMore() {
+            if (position < end) {
+                return true;
+            }
+            if (key == Triple.WILDCARD) {
+                for (int k = nextKey; k < index.keyLimit(); k++) {
+                    if (index.postingLength(k) > 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Skips matching Triples; whole posting lists of the "? ? ?" result are skipped without reading them.
+         *
+         * @param count  the number of Triples to skip
+         */
+        void skip(long count) {
+            while (count > 0) {
+                if (position < end) {
+                    int step = (int) Math.min(count, end - position);
+                    position += step;
+                    count -= step;
+                }
+                else if (!nextPosting()) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Moves to just after the Triple stored as the given key and value, whether or not it is still stored.
+         *
+         * @param afterKey    the posting list key of the Triple
+         * @param afterValue  the packed value of the Triple
+         */
+        void seekAfter(int afterKey, long afterValue) {
+            if (key == Triple.WILDCARD) {
+                nextKey = afterKey;
+                if (!nextPosting()) {
+                    return;
+                }
+            }
+            position = Math.max(position, Math.min(end, currentPosting.lowerBound(afterValue + 1)));
+        }
+
+        int subject() {
+            return index.subjectOf(currentKey, value);
+        }
+
+        int predicate() {
+            return index.predicateOf(currentKey, value);
+        }
+
+        int object() {
+            return index.objectOf(currentKey, value);
+        }
+
+        /**
+         * Returns one part of the current Triple.
+         *
+         * @param part  {@link Triple#SUBJECT}, {@link Triple#PREDICATE}, or {@link Triple#OBJECT}
+         * @return      the id of that part
+         */
+        int get(int part) {
+            switch (part) {
+                case Triple.SUBJECT:   return subject();
+                case Triple.PREDICATE: return predicate();
+                default:               return object();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.List;
+
+/**
+ * One page of the Triples matching a query, as returned by {@link KnowledgeGraph#executeQuery(Triple, long, int)}
+ * and {@link KnowledgeGraph#executeQuery(Triple, String, int)}.  A page holds at most the requested number of
+ * Triples, so reading a large result a page at a time needs memory for only one page.  If more Triples follow,
+ * the page carries a continuation token that resumes the query right after the last Triple of the page.
+ * <p>
+ * Continuation tokens record a position in the index rather than a count of Triples, so a query resumed after
+ * more Triples are imported neither repeats nor skips the Triples it has already passed.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#executeQuery(Triple, String, int)
+ * @see QueryResultSet
+ */
+public final class ResultPage {
+
+    /**
+     * The Triples of the page, in index order.
+     */
+    private final List<Triple> triples;
+
+    /**
+     * The token that resumes the query after this page, or null if this is the last page.
+     */
+    private final String continuationToken;
+
+    /**
+     * Class constructor.
+     *
+     * @param triples            a read-only list of the Triples of the page
+     * @param continuationToken  the token that resumes the query after this page, or null if this is the last page
+     */
+    ResultPage(List<Triple> triples, String continuationToken) {
+        this.triples = triples;
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * Returns the Triples of the page, in index order.
+     *
+     * @return  a read-only list of the Triples
+     */
+    public List<Triple> getTriples() {
+        return triples;
+    }
+
+    /**
+     * Returns the token that resumes the query after this page.
+     *
+     * @return  the continuation token, or null if this is the last page
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * Returns whether more Triples follow this page.
+     *
+     * @return  true if the query can be resumed with {@link #getContinuationToken()}
+     */
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+}
@@ -0,0 +1,534 @@
+package cscie97.asn1.knowledge.engine;
+
+import cscie97.asn1.knowledge.engine.exception.ParseException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A KnowledgeGraph split into several independent shards, with the same import and query methods.  Every Triple
+ * is held by exactly one shard, chosen by a case insensitive hash of its subject, and each shard has its own term
+ * dictionaries, permutation indexes, write lock, and query result cache.  Imports are split by subject and applied
+ * to every shard at once, so loading scales with the number of cores instead of being serialized on one write
+ * lock.
+ * <p>
+ * A query with a bound subject, such as "Joe has_friend ?", is answered by the one shard holding that subject.
+ * Any other query is sent to every shard and the shards' results are returned together as one Set.  Small results
+ * are read lazily from the shards on the calling thread, as for {@link KnowledgeGraph#executeQuery(Triple)}; the
+ * Triples of large results are built by every shard in parallel before they are returned.
+ * <p>
+ * Removals and replacements are applied by each shard separately, so unlike
+ * {@link KnowledgeGraph#replaceTriples(List, List)} a replacement spanning several shards is not applied as one
+ * change.  Conjunctive queries, paging, snapshots, and write-ahead logs are only offered by the single
+ * KnowledgeGraph; each shard can still be snapshotted or logged on its own through {@link #getShard(int)}.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph
+ * @see Importer#importTripleFile(ShardedKnowledgeGraph, String, int)
+ */
+public class ShardedKnowledgeGraph {
+
+    /**
+     * Smallest number of matching Triples for which the shards build the Triples of a result in parallel.
+     * Smaller results are cheaper to read lazily than to hand to other threads.
+     */
+    static final int PARALLEL_GATHER_THRESHOLD = 1 << 14;
+
+    /**
+     * The shards, each holding the Triples whose subject hashes to its position.
+     */
+    private final KnowledgeGraph[] shards;
+
+    /**
+     * Threads that import into and read from the shards in parallel; one per shard.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Class constructor.  Creates the given number of empty shards, and a daemon thread per shard to work on them.
+     *
+     * @param shardCount                 the number of shards to split Triples across
+     * @throws IllegalArgumentException  if shardCount is less than 1
+     */
+    public ShardedKnowledgeGraph(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1, but was ["+shardCount+"]");
+        }
+        shards = new KnowledgeGraph[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new KnowledgeGraph();
+        }
+        executor = Executors.newFixedThreadPool(shardCount, new ThreadFactory() {
+            private int created = 0;
+
+            public synchronized Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "knowledge-graph-shard-" + (created++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the number of shards Triples are split across.
+     *
+     * @return  the shard count
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns one shard, for example to read its metrics or to snapshot it.  Triples must not be added to a shard
+     * directly unless their subject belongs to it; see {@link #shardOf(String)}.
+     *
+     * @param shard  the position of the shard, from 0
+     * @return       the shard
+     */
+    public KnowledgeGraph getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * Returns the shard holding the Triples with the given subject.  Identifiers that differ only in case belong to
+     * the same shard.
+     *
+     * @param subjectIdentifier  the identifier of a subject Node
+     * @return                   the position of the shard, from 0
+     */
+    public int shardOf(String subjectIdentifier) {
+        return shardOf(subjectIdentifier, 0, subjectIdentifier.length());
+    }
+
+    /**
+     * Returns the shard holding the Triples whose subject is the given range of characters.
+     *
+     * @param chars  the characters holding the subject identifier
+     * @param start  the offset of the first character of the identifier
+     * @param end    the offset after the last character of the identifier
+     * @return       the position of the shard, from 0
+     */
+    private int shardOf(CharSequence chars, int start, int end) {
+        return (TermDictionary.hash(chars, start, end) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Returns the total number of Triples held by the shards.
+     *
+     * @return  the Triple count
+     */
+    public long getTripleCount() {
+        long count = 0;
+        for (KnowledgeGraph shard : shards) {
+            count += shard.getTripleCount();
+        }
+        return count;
+    }
+
+    /**
+     * Moves the indexes of every shard to the given storage; see
+     * {@link KnowledgeGraph#setIndexStorage(KnowledgeGraph.IndexStorage)}.  The shards are moved in parallel.
+     *
+     * @param storage  where to keep the posting lists
+     */
+    public void setIndexStorage(final KnowledgeGraph.IndexStorage storage) {
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (final KnowledgeGraph shard : shards) {
+            tasks.add(new Callable<Long>() {
+                public Long call() {
+                    shard.setIndexStorage(storage);
+                    return 0L;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Adds a list of Triples, each to the shard of its subject.  The shards import their Triples in parallel.
+     *
+     * @param tripleList  the list of Triples to add
+     */
+    public void importTriples(List<Triple> tripleList) {
+        final List<List<Triple>> parts = partition(tripleList);
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            if (!parts.get(shard).isEmpty()) {
+                tasks.add(new Callable<Long>() {
+                    public Long call() {
+                        shards[shard].importTriples(parts.get(shard));
+                        return 0L;
+                    }
+                });
+            }
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Removes a list of Triples, each from the shard of its subject.  The shards remove their Triples in parallel.
+     *
+     * @param tripleList                 the list of Triples to remove
+     * @return                           the number of Triples that were removed
+     * @throws IllegalArgumentException  if a Triple has a wildcard part
+     */
+    public long removeTriples(List<Triple> tripleList) {
+        return replaceTriples(tripleList, Collections.<Triple>emptyList());
+    }
+
+    /**
+     * Removes a list of Triples and adds another in their place.  Each shard applies the Triples whose subjects it
+     * holds as one change, as {@link KnowledgeGraph#replaceTriples(List, List)} does, and the shards work in
+     * parallel; queries may see the changes of some shards before others.
+     *
+     * @param removedTriples             the Triples to remove; Triples that are not held are ignored
+     * @param addedTriples               the Triples to add
+     * @return                           the number of Triples that were removed
+     * @throws IllegalArgumentException  if a removed Triple has a wildcard part
+     */
+    public long replaceTriples(List<Triple> removedTriples, List<Triple> addedTriples) {
+        for (Triple triple : removedTriples) {
+            if (triple.getSubjectId() == Triple.WILDCARD || triple.getPredicateId() == Triple.WILDCARD
+                    || triple.getObjectId() == Triple.WILDCARD) {
+                throw new IllegalArgumentException("cannot remove Triple [" + triple.getIdentifier() + "] with a wildcard part");
+            }
+        }
+        final List<List<Triple>> removedParts = partition(removedTriples);
+        final List<List<Triple>> addedParts = partition(addedTriples);
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            if (!removedParts.get(shard).isEmpty() || !addedParts.get(shard).isEmpty()) {
+                tasks.add(new Callable<Long>() {
+                    public Long call() {
+                        return shards[shard].replaceTriples(removedParts.get(shard), addedParts.get(shard));
+                    }
+                });
+            }
+        }
+        long removed = 0;
+        for (Long count : invokeAll(tasks)) {
+            removed += count;
+        }
+        return removed;
+    }
+
+    /**
+     * Merges the parsed chunks of a Triple file into the shards.  Every shard merges the chunks in file order, and
+     * the shards work in parallel, each taking only the Triples whose subjects it holds.
+     *
+     * @param chunks  the parsed chunks, in file order
+     */
+    void mergeChunks(final List<ImportChunk> chunks) {
+        // find the shard of each Node of each chunk once, rather than once per shard
+        List<Callable<int[]>> routing = new ArrayList<Callable<int[]>>();
+        for (final ImportChunk chunk : chunks) {
+            routing.add(new Callable<int[]>() {
+                public int[] call() {
+                    return chunk.nodeShards(ShardedKnowledgeGraph.this);
+                }
+            });
+        }
+        final List<int[]> nodeShards = invokeAll(routing);
+
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            tasks.add(new Callable<Long>() {
+                public Long call() {
+                    for (int c = 0; c < chunks.size(); c++) {
+                        chunks.get(c).mergeInto(shards[shard], nodeShards.get(c), shard);
+                    }
+                    return 0L;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Finds the Triples matching the given Query.  A query with a bound subject is answered by the shard of the
+     * subject; any other query by every shard.  Query parts are matched in a case-insensitive fashion.
+     *
+     * @param    query     the query Triple to search for matching Triples; question mark denotes a wildcard
+     * @return             the read-only Set of all Triples matching the query, or null if the query is empty
+     */
+    public Set<Triple> executeQuery(Triple query) {
+        if (query == null) {
+            return null;
+        }
+        if (query.getSubjectId() != Triple.WILDCARD) {
+            return shards[shardOf(query.getSubject().getIdentifier())].executeQuery(query);
+        }
+        List<Set<Triple>> parts = new ArrayList<Set<Triple>>(shards.length);
+        for (KnowledgeGraph shard : shards) {
+            parts.add(shard.executeQuery(query));
+        }
+        return gather(parts);
+    }
+
+    /**
+     * Parses and executes a single Triple query string, such as "Starbucks sells ?".  The string is passed to the
+     * shard of its subject, or to every shard if the subject is a wildcard, so that each shard answers repeated
+     * queries from its own query result cache.
+     *
+     * @param    query            the query string; question mark denotes a wildcard
+     * @return                    the read-only Set of all Triples matching the query, or null if the query is empty
+     * @throws   ParseException   if the query does not have 3 parts
+     */
+    public Set<Triple> executeQuery(String query) throws ParseException {
+        if (query == null || query.length() == 0) {
+            return shards[0].executeQuery(query);
+        }
+        int end = TripleTokenizer.trimEnd(query, 0, query.length());
+        int subjectStart = TripleTokenizer.skipSpace(query, 0, end);
+        int subjectEnd = TripleTokenizer.skipPart(query, subjectStart, end);
+        int predicateEnd = TripleTokenizer.skipPart(query, TripleTokenizer.skipSpace(query, subjectEnd, end), end);
+        int objectStart = TripleTokenizer.skipSpace(query, predicateEnd, end);
+        if (objectStart == TripleTokenizer.skipPart(query, objectStart, end)) {
+            // let a shard report the malformed query, exactly as the KnowledgeGraph would
+            return shards[0].executeQuery(query);
+        }
+        if (!TripleTokenizer.isWildcard(query, subjectStart, subjectEnd)) {
+            return shards[shardOf(query, subjectStart, subjectEnd)].executeQuery(query);
+        }
+        List<Set<Triple>> parts = new ArrayList<Set<Triple>>(shards.length);
+        for (KnowledgeGraph shard : shards) {
+            parts.add(shard.executeQuery(query));
+        }
+        return gather(parts);
+    }
+
+    /**
+     * Counts the Triples matching the given Query without reading them, from the index bounds of the shard of the
+     * subject or of every shard.
+     *
+     * @param    query     the query Triple to count matching Triples of; question mark denotes a wildcard
+     * @return             the number of Triples matching the query, or 0 if the query is empty
+     */
+    public long countMatches(Triple query) {
+        if (query == null) {
+            return 0;
+        }
+        if (query.getSubjectId() != Triple.WILDCARD) {
+            return shards[shardOf(query.getSubject().getIdentifier())].countMatches(query);
+        }
+        long count = 0;
+        for (KnowledgeGraph shard : shards) {
+            count += shard.countMatches(query);
+        }
+        return count;
+    }
+
+    /**
+     * Constructs a query Triple from a query string, for use with {@link #executeQuery(Triple)}.
+     *
+     * @param identifier       the query string; may contain "?" wildcards
+     * @return                 a new Triple for the query
+     * @throws ParseException  thrown if the query does not have three parts
+     */
+    public Triple getQueryTripleFromStringIdentifier(String identifier) throws ParseException {
+        return shards[0].getQueryTripleFromStringIdentifier(identifier);
+    }
+
+    /**
+     * Stops the threads of the ShardedKnowledgeGraph.  It must not be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Splits a list of Triples by the shard of their subjects.
+     *
+     * @param tripleList  the Triples to split
+     * @return            one list per shard, each in the order of tripleList
+     */
+    private List<List<Triple>> partition(List<Triple> tripleList) {
+        List<List<Triple>> parts = new ArrayList<List<Triple>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<Triple>());
+        }
+        for (Triple triple : tripleList) {
+            parts.get(shardOf(triple.getSubject().getIdentifier())).add(triple);
+        }
+        return parts;
+    }
+
+    /**
+     * Combines the results of every shard into one Set.  If the results hold at least
+     * {@link #PARALLEL_GATHER_THRESHOLD} Triples in all, each shard builds the Triples of its result in parallel.
+     *
+     * @param parts  the result of each shard, in shard order; a result may be null if the query was empty
+     * @return       the combined result
+     */
+    private Set<Triple> gather(List<Set<Triple>> parts) {
+        long total = 0;
+        int nonEmpty = 0;
+        for (Set<Triple> part : parts) {
+            if (part != null && !part.isEmpty()) {
+                total += part.size();
+                nonEmpty++;
+            }
+        }
+        List<Collection<Triple>> gathered = new ArrayList<Collection<Triple>>(parts.size());
+        if (total < PARALLEL_GATHER_THRESHOLD || nonEmpty < 2) {
+            for (Set<Triple> part : parts) {
+                gathered.add((part != null) ? part : Collections.<Triple>emptySet());
+            }
+        }
+        else {
+            List<Callable<Collection<Triple>>> tasks = new ArrayList<Callable<Collection<Triple>>>(parts.size());
+            for (final Set<Triple> part : parts) {
+                tasks.add(new Callable<Collection<Triple>>() {
+                    public Collection<Triple> call() {
+                        return (part != null) ? new ArrayList<Triple>(part) : Collections.<Triple>emptyList();
+                    }
+                });
+            }
+            gathered.addAll(invokeAll(tasks));
+        }
+        return new ShardedResultSet(gathered);
+    }
+
+    /**
+     * Runs tasks on the shard threads and waits for all of them.  A single task is run on the calling thread.
+     *
+     * @param tasks  the tasks to run
+     * @param <T>    the type of the tasks' results
+     * @return       the result of each task, in the order of tasks
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (tasks.size() == 1) {
+                results.add(tasks.get(0).call());
+                return results;
+            }
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (ExecutionException ee) {
+            throw propagate(ee.getCause());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the shards", ie);
+        }
+        catch (Exception e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Rethrows the failure of a shard task on the calling thread.
+     *
+     * @param cause  what the task threw
+     * @return       never returns normally; declared so that callers can throw the result
+     */
+    private static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException("a shard failed", cause);
+    }
+
+    /**
+     * Read-only Set of the Triples matching a query across shards: the results of the shards one after the other.
+     * The shards hold disjoint Triples, so the results need no merging.
+     */
+    private class ShardedResultSet extends AbstractSet<Triple> {
+
+        /**
+         * The result of each shard, in shard order.
+         */
+        private final List<Collection<Triple>> parts;
+
+        /**
+         * Class constructor.
+         *
+         * @param parts  the result of each shard, in shard order
+         */
+        ShardedResultSet(List<Collection<Triple>> parts) {
+            this.parts = parts;
+        }
+
+        /**
+         * Returns the total size of the shards' results.
+         *
+         * @return  the number of Triples in the result
+         */
+        @Override
+        public int size() {
+            long size = 0;
+            for (Collection<Triple> part : parts) {
+                size += part.size();
+            }
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Checks only the result of the shard holding the Triple's subject, since no other shard can hold the
+         * Triple.
+         *
+         * @param o  the Triple to look for
+         * @return   true if the result holds the Triple
+         */
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Triple) || ((Triple) o).getSubjectId() == Triple.WILDCARD) {
+                return false;
+            }
+            return parts.get(shardOf(((Triple) o).getSubject().getIdentifier())).contains(o);
+        }
+
+        /**
+         * Returns an iterator over the result of each shard in turn.
+         *
+         * @return  an iterator over the matching Triples
+         */
+        @Override
+        public Iterator<Triple> iterator() {
+            return new Iterator<Triple>() {
+                private int part = 0;
+                private Iterator<Triple> current = Collections.<Triple>emptyIterator();
+
+                public boolean hasNext() {
+                    while (!current.hasNext() && part < parts.size()) {
+                        current = parts.get(part++).iterator();
+                    }
+                    return current.hasNext();
+                }
+
+                public Triple next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return current.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the binary snapshot format of the KnowledgeGraph, which holds the term dictionaries and the
+ * sorted posting lists of the SPO, POS, and OSP indexes exactly as they are kept in memory, so that loading a
+ * snapshot is a sequential copy out of the mapped file with no parsing, sorting, or merging.
+ * <p>
+ * A snapshot is a fixed size header followed by the body.  All numbers are big-endian.
+ * <ul>
+ *     <li>header: magic number, format version, Node count, Predicate count, Triple count, body length in bytes,
+ *         and the CRC-32 checksum of the body</li>
+ *     <li>the identifier of each Node, then of each Predicate, in id order, as a byte length followed by the UTF-8
+ *         bytes; a released id that has not been reused is stored as a length of -1 with no bytes</li>
+ *     <li>for each of the SPO, POS, and OSP indexes in turn: the number of keys, the length of the posting list of
+ *         each key, and then the packed values of every posting list in key order</li>
+ * </ul>
+ * A snapshot is loaded by memory-mapping the whole file, so it is limited to 2GB.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#writeSnapshot(String)
+ * @see KnowledgeGraph#loadSnapshot(String)
+ */
+class SnapshotFile {
+
+    /**
+     * Marks the start of every snapshot file ("KGSF").
+     */
+    static final int MAGIC = 0x4B475346;
+
+    /**
+     * The version of the snapshot format written by this class.  Version 2 added released ids; version 1
+     * snapshots, which have none, are still read.  Snapshots of any other version are rejected.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * The size of the header in bytes.
+     */
+    static final int HEADER_BYTES = 40;
+
+    /**
+     * The size of the buffer used to write the body and to verify its checksum.
+     */
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    /**
+     * Term identifiers are stored as UTF-8.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The file being written.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Buffers the body as it is written.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+
+    /**
+     * Checksum of the body written so far.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The number of body bytes written so far.
+     */
+    private long bodyLength = 0;
+
+    /**
+     * Private constructor; snapshots are written through {@link #write}.
+     *
+     * @param channel  the file to write
+     */
+    private SnapshotFile(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes a snapshot of the given dictionaries and indexes.  The caller must make sure the indexes do not change
+     * while they are written, and that every id they hold is below the dictionary sizes passed in.
+     *
+     * @param file            the file to write; any existing contents are replaced
+     * @param nodes           the Node dictionary
+     * @param nodeCount       the number of Nodes to write
+     * @param predicates      the Predicate dictionary
+     * @param predicateCount  the number of Predicates to write
+     * @param indexes         the SPO, POS, and OSP indexes, in that order
+     * @throws IOException    if the file cannot be written
+     */
+    static void write(RandomAccessFile file, TermDictionary<?> nodes, int nodeCount,
+                      TermDictionary<?> predicates, int predicateCount, PermutationIndex[] indexes) throws IOException {
+        file.setLength(0);
+        FileChannel channel = file.getChannel();
+        channel.position(HEADER_BYTES);
+
+        SnapshotFile snapshot = new SnapshotFile(channel);
+        snapshot.writeTerms(nodes, nodeCount);
+        snapshot.writeTerms(predicates, predicateCount);
+        for (PermutationIndex index : indexes) {
+            snapshot.writeIndex(index);
+        }
+        snapshot.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC)
+              .putInt(VERSION)
+              .putInt(nodeCount)
+              .putInt(predicateCount)
+              .putLong(indexes[PermutationIndex.SPO].size())
+              .putLong(snapshot.bodyLength)
+              .putLong(snapshot.crc.getValue());
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+
+    /**
+     * Writes the identifiers of the first count terms of a dictionary, in id order, marking released ids.
+     *
+     * @param dictionary    the dictionary to write
+     * @param count         the number of terms to write
+     * @throws IOException  if the file cannot be written
+     */
+    private void writeTerms(TermDictionary<?> dictionary, int count) throws IOException {
+        for (int id = 0; id < count; id++) {
+            // a released term is still readable until its id is reused, but is written as released
+            String identifier = dictionary.isReleased(id) ? null : dictionary.getIdentifier(id);
+            if (identifier == null) {
+                ensureRoom(4);
+                buffer.putInt(-1);
+                continue;
+            }
+            byte[] bytes = identifier.getBytes(UTF_8);
+            ensureRoom(4);
+            buffer.putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensureRoom(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+    }
+
+    /**
+     * Writes the posting list lengths and then the posting list values of an index.
+     *
+     * @param index         the index to write
+     * @throws IOException  if the file cannot be written
+     */
+    private void writeIndex(PermutationIndex index) throws IOException {
+        int keyCount = index.keyLimit();
+        ensureRoom(4);
+        buffer.putInt(keyCount);
+        for (int key = 0; key < keyCount; key++) {
+            ensureRoom(4);
+            buffer.putInt(index.postingLength(key));
+        }
+        for (int key = 0; key < keyCount; key++) {
+            PostingList posting = index.getPostings(key);
+            for (int i = 0; i < posting.length(); i++) {
+                ensureRoom(8);
+                buffer.putLong(posting.get(i));
+            }
+        }
+    }
+
+    /**
+     * Flushes the buffer if it has fewer than the given number of bytes free.
+     *
+     * @param bytes         the number of bytes about to be put into the buffer
+     * @throws IOException  if the file cannot be written
+     */
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds the buffered bytes to the checksum and writes them to the file.
+     *
+     * @throws IOException  if the file cannot be written
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        crc.update(buffer.array(), 0, buffer.limit());
+        bodyLength += buffer.limit();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * The contents of a snapshot read back from a file, checked and decoded but not yet loaded into a
+     * KnowledgeGraph.
+     */
+    static class Contents {
+
+        /**
+         * The identifier of each Node, by id.
+         */
+        final String[] nodes;
+
+        /**
+         * The identifier of each Predicate, by id.
+         */
+        final String[] predicates;
+
+        /**
+         * The posting lists of the SPO, POS, and OSP indexes, by key.
+         */
+        final long[][][] postings = new long[3][][];
+
+        /**
+         * Class constructor.
+         *
+         * @param nodeCount       the number of Nodes in the snapshot
+         * @param predicateCount  the number of Predicates in the snapshot
+         */
+        Contents(int nodeCount, int predicateCount) {
+            this.nodes = new String[nodeCount];
+            this.predicates = new String[predicateCount];
+        }
+    }
+
+    /**
+     * Memory-maps a snapshot, checks its header and checksum, and decodes its contents.
+     *
+     * @param file          the snapshot file
+     * @return              the contents of the snapshot
+     * @throws IOException  if the file cannot be read, or is not a valid snapshot; the message describes why
+     */
+    static Contents read(RandomAccessFile file) throws IOException {
+        FileChannel channel = file.getChannel();
+        long fileSize = channel.size();
+        if (fileSize < HEADER_BYTES) {
+            throw new IOException("file is too short to be a snapshot");
+        }
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("snapshots larger than 2GB are not supported");
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+        if (mapped.getInt() != MAGIC) {
+            throw new IOException("file is not a KnowledgeGraph snapshot");
+        }
+        int version = mapped.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("snapshot format version [" + version + "] is not supported; expected version [1] to [" + VERSION + "]");
+        }
+        int nodeCount = mapped.getInt();
+        int predicateCount = mapped.getInt();
+        long tripleCount = mapped.getLong();
+        long bodyLength = mapped.getLong();
+        long checksum = mapped.getLong();
+        if (nodeCount < 0 || predicateCount < 0 || tripleCount < 0 || bodyLength != fileSize - HEADER_BYTES) {
+            throw new IOException("snapshot header is corrupt, or the file is truncated");
+        }
+        if (checksum(mapped, HEADER_BYTES, (int) bodyLength) != checksum) {
+            throw new IOException("snapshot checksum does not match its contents");
+        }
+
+        try {
+            Contents contents = new Contents(nodeCount, predicateCount);
+            mapped.position(HEADER_BYTES);
+            readTerms(mapped, contents.nodes);
+            readTerms(mapped, contents.predicates);
+            for (int order = PermutationIndex.SPO; order <= PermutationIndex.OSP; order++) {
+                int keyLimit = (order == PermutationIndex.POS) ? predicateCount : nodeCount;
+                contents.postings[order] = readIndex(mapped, keyLimit);
+            }
+            return contents;
+        }
+        catch (RuntimeException re) {
+            throw new IOException("snapshot contents are corrupt", re);
+        }
+    }
+
+    /**
+     * Returns the CRC-32 checksum of a range of a buffer.
+     *
+     * @param mapped  the buffer
+     * @param from    the offset of the first byte of the range
+     * @param length  the number of bytes in the range
+     * @return        the checksum of the range
+     */
+    private static long checksum(ByteBuffer mapped, int from, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[BUFFER_BYTES];
+        ByteBuffer body = mapped.duplicate();
+        body.position(from);
+        body.limit(from + length);
+        while (body.hasRemaining()) {
+            int chunkLength = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, chunkLength);
+            crc.update(chunk, 0, chunkLength);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Decodes the identifiers of a dictionary.
+     *
+     * @param mapped       the snapshot, positioned at the first identifier
+     * @param identifiers  receives each identifier by id, or null for a released id
+     */
+    private static void readTerms(ByteBuffer mapped, String[] identifiers) {
+        byte[] bytes = new byte[256];
+        for (int id = 0; id < identifiers.length; id++) {
+            int length = mapped.getInt();
+            if (length < 0) {
+                identifiers[id] = null;
+                continue;
+            }
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            mapped.get(bytes, 0, length);
+            identifiers[id] = new String(bytes, 0, length, UTF_8);
+        }
+    }
+
+    /**
+     * Reads the posting lists of one index.
+     *
+     * @param mapped    the snapshot, positioned at the start of the index
+     * @param keyLimit  the number of terms that may be keys of the index
+     * @return          the posting list of each key
+     */
+    private static long[][] readIndex(ByteBuffer mapped, int keyLimit) {
+        int keyCount = mapped.getInt();
+        long[][] lists = new long[keyCount][];
+        for (int key = 0; key < keyCount; key++) {
+            int length = mapped.getInt();
+            if (length > 0 && key >= keyLimit) {
+                throw new IllegalStateException("posting list for unknown key [" + key + "]");
+            }
+            lists[key] = (length == 0) ? PermutationIndex.EMPTY : new long[length];
+        }
+
+        LongBuffer values = mapped.asLongBuffer();
+        for (int key = 0; key < keyCount; key++) {
+            values.get(lists[key]);
+        }
+        mapped.position(mapped.position() + values.position() * 8);
+        return lists;
+    }
+}
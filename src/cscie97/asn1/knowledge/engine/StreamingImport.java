@@ -0,0 +1,196 @@
+package cscie97.asn1.knowledge.engine;
+
+import cscie97.asn1.knowledge.engine.exception.ParseException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * One streaming import of a Triple file.  The file is memory-mapped a window at a time and parsed straight from the
+ * mapped bytes into KnowledgeGraph ids, and every batch of parsed Triples is committed to the KnowledgeGraph as soon
+ * as it is full.  Only one window and one batch are held at a time, so memory use does not grow with the size of
+ * the file, and queries see each batch as soon as it is committed.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see Importer#streamTripleFile(String, int, ImportProgressListener)
+ */
+class StreamingImport {
+
+    /**
+     * Largest window of the file, in bytes, that is mapped at one time.
+     */
+    private static final long WINDOW_BYTES = 64L << 20;
+
+    /**
+     * The KnowledgeGraph the Triples are committed to.
+     */
+    private final KnowledgeGraph kg;
+
+    /**
+     * The name of the file being imported, for progress reports and exceptions.
+     */
+    private final String filename;
+
+    /**
+     * Receives a progress report after each committed batch; may be null.
+     */
+    private final ImportProgressListener listener;
+
+    /**
+     * Locates the parts of each line.
+     */
+    private final TripleTokenizer tokenizer = new TripleTokenizer();
+
+    /**
+     * The ids of the Triples parsed since the last commit.
+     */
+    private final int[] subjectIds, predicateIds, objectIds;
+
+    /**
+     * The number of Triples parsed since the last commit.
+     */
+    private int batchCount = 0;
+
+    /**
+     * The number of lines read so far.
+     */
+    private long lineCount = 0;
+
+    /**
+     * The number of Triples committed so far.
+     */
+    private long tripleCount = 0;
+
+    /**
+     * The time the import started, from System.nanoTime().
+     */
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Class constructor.
+     *
+     * @param kg         the KnowledgeGraph to commit the Triples to
+     * @param filename   the name of the file being imported
+     * @param batchSize  the number of Triples to commit at a time
+     * @param listener   receives a progress report after each committed batch; may be null
+     */
+    StreamingImport(KnowledgeGraph kg, String filename, int batchSize, ImportProgressListener listener) {
+        this.kg = kg;
+        this.filename = filename;
+        this.listener = listener;
+        this.subjectIds = new int[batchSize];
+        this.predicateIds = new int[batchSize];
+        this.objectIds = new int[batchSize];
+    }
+
+    /**
+     * Imports the file a window at a time.  Triples on the lines before a line that cannot be parsed are committed
+     * before the ParseException is thrown.
+     *
+     * @param channel          the file to import
+     * @param charset          the character encoding of the file
+     * @throws IOException     if the file cannot be mapped
+     * @throws ParseException  if a line cannot be parsed
+     */
+    void run(FileChannel channel, Charset charset) throws IOException, ParseException {
+        kg.beginImport();
+        try {
+            long size = channel.size();
+            long from = 0;
+            while (from < size) {
+                long to = Importer.nextLineStart(channel, Math.min(size, from + WINDOW_BYTES), size);
+                ByteCharSequence chars = new ByteCharSequence(channel.map(FileChannel.MapMode.READ_ONLY, from, to - from),
+                                                              0, (int) (to - from), charset);
+                parseWindow(chars);
+                from = to;
+            }
+            commit();
+        }
+        finally {
+            kg.endImport();
+        }
+        report(true);
+    }
+
+    /**
+     * Parses every line of one mapped window, committing each batch as it fills.
+     *
+     * @param chars            the characters of the window
+     * @throws ParseException  if a line cannot be parsed
+     */
+    private void parseWindow(ByteCharSequence chars) throws ParseException {
+        int lineStart = 0;
+        int length = chars.length();
+        while (lineStart < length) {
+            int lineEnd = ImportChunk.findLineEnd(chars, lineStart, length);
+            lineCount++;
+            parseLine(chars, lineStart, lineEnd);
+            lineStart = ImportChunk.nextLineStart(chars, lineEnd, length);
+        }
+    }
+
+    /**
+     * Parses one line into KnowledgeGraph ids, following the same rules as {@link Importer#importTripleFile(String)}.
+     *
+     * @param chars            the characters of the window
+     * @param start            the offset of the first character of the line
+     * @param end              the offset after the last character of the line
+     * @throws ParseException  if the line cannot be parsed
+     */
+    private void parseLine(ByteCharSequence chars, int start, int end) throws ParseException {
+        int parts = tokenizer.tokenize(chars, start, end);
+        if (!Importer.isTripleLine(chars, tokenizer, parts)) {
+            return;
+        }
+        String error = Importer.checkTripleLine(chars, tokenizer, parts);
+        if (error != null) {
+            commit();
+            throw new ParseException(error, chars.subSequence(start, end).toString(), (int) lineCount, filename, null);
+        }
+
+        subjectIds[batchCount] = ImportChunk.internId(kg.getNodeDictionary(), chars, tokenizer.subjectStart, tokenizer.subjectEnd);
+        predicateIds[batchCount] = ImportChunk.internId(kg.getPredicateDictionary(), chars, tokenizer.predicateStart, tokenizer.predicateEnd);
+        objectIds[batchCount] = ImportChunk.internId(kg.getNodeDictionary(), chars, tokenizer.objectStart, tokenizer.objectEnd);
+        batchCount++;
+        if (batchCount == subjectIds.length) {
+            commit();
+            report(false);
+        }
+    }
+
+    /**
+     * Adds the Triples parsed since the last commit to the KnowledgeGraph.  The import briefly ends between
+     * batches, since it no longer holds any ids, so that terms left unused by removals can be released.
+     */
+    private void commit() {
+        if (batchCount > 0) {
+            kg.addTriplesToIndexes(subjectIds, predicateIds, objectIds, batchCount);
+            tripleCount += batchCount;
+            batchCount = 0;
+            kg.endImport();
+            kg.beginImport();
+        }
+    }
+
+    /**
+     * Sends a progress report to the listener, if there is one.
+     *
+     * @param finished  true if this is the final report of the import
+     */
+    private void report(boolean finished) {
+        if (listener != null) {
+            double seconds = Math.max(1, System.nanoTime() - startTime) / 1e9;
+            listener.progress(filename, lineCount, tripleCount, lineCount / seconds, finished);
+        }
+    }
+
+    /**
+     * Returns the number of lines read so far, for exception handling.
+     *
+     * @return  the number of lines read
+     */
+    long getLineCount() {
+        return lineCount;
+    }
+}
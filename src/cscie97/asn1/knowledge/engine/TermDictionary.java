@@ -0,0 +1,574 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Dictionary that encodes each unique term (Node or Predicate) known to the KnowledgeGraph as a dense integer
+ * identifier.  The first time a term identifier is interned it is assigned the next free id (0, 1, 2, ...) and
+ * a single term instance is created for it (Flyweight pattern); every later request for the same identifier
+ * returns that same instance.  Term identifiers are case insensitive.
+ * <p>
+ * Because ids are dense, they can be used directly as array offsets, which allows the KnowledgeGraph to store
+ * and index Triples as three integers instead of as concatenated identifier strings.
+ * <p>
+ * Identifiers are found through an open addressing hash table that hashes and compares characters case
+ * insensitively, so a term can be looked up from any range of a CharSequence (such as one word of a query line)
+ * without first copying or lower-casing it into a new String.
+ * <p>
+ * The dictionary is safe for concurrent use.  Lookups never lock: a term is written into the arrays before its id
+ * is stored in the hash table with an ordered write, and a lookup reads the arrays only after reading the id from
+ * the table, so it always sees the identifier of the term that holds the id, even when the id was reused.  Adding a
+ * new term is serialized by a lock.
+ * <p>
+ * A term that is no longer used can be released, after which it can no longer be found by identifier.  Its id is
+ * not reused at once, since query results may still hold it: the term stays readable through its id until the
+ * KnowledgeGraph learns that no reader can still see the id and {@link #free(BitSet) frees} it, and only then does a
+ * new term take the id over.  So a dictionary whose terms come and go stays about the same size.  Released slots of
+ * the hash table are marked rather than emptied, so lookups running at the same time still find the terms stored
+ * past them.  A lookup running at the same time as the release of the same term may or may not see it.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @param <T>  the type of term held by the dictionary (Node or Predicate)
+ * @see KnowledgeGraph
+ * @see TermReclaimer
+ * @see Node
+ * @see Predicate
+ */
+public abstract class TermDictionary<T> {
+
+    /**
+     * Id returned by {@link #lookupId(String)} when the dictionary does not contain the requested term.
+     */
+    public static final int NOT_FOUND = -1;
+
+    /**
+     * Marks an unused slot of the hash table.
+     */
+    private static final int EMPTY_SLOT = -1;
+
+    /**
+     * Marks a slot of the hash table whose term was released; searches continue past it.
+     */
+    private static final int RELEASED_SLOT = -2;
+
+    /**
+     * Private open addressing hash table; each slot holds the id of a term, {@link #EMPTY_SLOT}, or
+     * {@link #RELEASED_SLOT}.  The table length is always a power of two and is kept at most half full, counting
+     * released slots.  Replaced, never resized in place.  Ids are stored with an ordered write after the term they
+     * belong to, so a reader that reads an id from the table also sees the term's entries in the arrays.
+     */
+    private volatile AtomicIntegerArray table = newTable(64);
+
+    /**
+     * Private array of all interned terms, where the position of each term in the array is its id.
+     */
+    private volatile Object[] terms = new Object[64];
+
+    /**
+     * Private array of the identifier of each interned term, where the position in the array is the term id.
+     */
+    private volatile String[] identifiers = new String[64];
+
+    /**
+     * Private case insensitive hash of each interned identifier by id, kept so the table can grow without
+     * rehashing any strings.
+     */
+    private volatile int[] hashes = new int[64];
+
+    /**
+     * Private array marking, by id, the terms that have been released and whose ids have not been reused yet.
+     */
+    private volatile boolean[] released = new boolean[64];
+
+    /**
+     * One more than the largest id assigned.  Only ids below this value are visible to readers.
+     */
+    private volatile int size = 0;
+
+    /**
+     * Private stack of freed ids, reused before new ids are assigned.  Guarded by the dictionary lock.
+     */
+    private int[] freeIds = new int[16];
+
+    /**
+     * The number of freed ids on the freeIds stack.  Guarded by the dictionary lock.
+     */
+    private int freeCount = 0;
+
+    /**
+     * The number of released ids that have not been reused, whether freed or not.  Guarded by the dictionary lock.
+     */
+    private int releasedCount = 0;
+
+    /**
+     * The number of released slots in the hash table, which count towards its load.  Guarded by the dictionary
+     * lock.
+     */
+    private int releasedSlots = 0;
+
+    /**
+     * Creates the single term instance for a newly interned identifier.  Implemented by the KnowledgeGraph so
+     * that the term classes can keep their id-assigning constructors package private.
+     *
+     * @param identifier  the term identifier as it was first seen (original case is preserved for display)
+     * @param id          the dense id assigned to the new term
+     * @return            the new term instance
+     */
+    protected abstract T createTerm(String identifier, int id);
+
+    /**
+     * Returns the unique term instance for the given identifier, creating it and assigning it the next free id
+     * if the dictionary has not seen the identifier before.
+     *
+     * @param identifier  the term identifier to intern; matched case insensitively
+     * @return            the unique term instance for the identifier
+     */
+    public T intern(String identifier) {
+        int hash = hash(identifier, 0, identifier.length());
+        int id = findId(hash, identifier, 0, identifier.length());
+        if (id != NOT_FOUND) {
+            return get(id);
+        }
+        return get(add(hash, identifier));
+    }
+
+    /**
+     * Returns the id of the term whose identifier is the given range of characters, interning it if the
+     * dictionary has not seen it before.  A String is only created for the identifier when it is new.
+     *
+     * @param chars  the characters holding the identifier
+     * @param start  the offset of the first character of the identifier
+     * @param end    the offset after the last character of the identifier
+     * @return       the id of the term
+     */
+    public int internId(CharSequence chars, int start, int end) {
+        int hash = hash(chars, start, end);
+        int id = findId(hash, chars, start, end);
+        if (id != NOT_FOUND) {
+            return id;
+        }
+        return add(hash, chars.subSequence(start, end).toString());
+    }
+
+    /**
+     * Adds a new term while holding the dictionary lock, unless another thread added the same identifier first.
+     * A freed id is reused if there is one; otherwise the term gets the next new id.
+     *
+     * @param hash        the case insensitive hash of the identifier
+     * @param identifier  the term identifier to add
+     * @return            the id of the term for the identifier
+     */
+    private synchronized int add(int hash, String identifier) {
+        AtomicIntegerArray currentTable = table;
+        int slot = findSlot(currentTable, size, hash, identifier, 0, identifier.length());
+        int existing = currentTable.get(slot);
+        if (existing >= 0) {
+            return existing;
+        }
+        if (existing == RELEASED_SLOT) {
+            releasedSlots--;
+        }
+
+        boolean reused = freeCount > 0;
+        int newId = reused ? freeIds[--freeCount] : size;
+        ensureCapacity(newId);
+        T term = createTerm(identifier, newId);
+        terms[newId] = term;
+        identifiers[newId] = identifier;
+        hashes[newId] = hash;
+        if (reused) {
+            released[newId] = false;
+            releasedCount--;
+        }
+        // the ordered write publishes the entries above to any reader that reads the id from the slot; a reused id is
+        // already below the size, so the size alone would not publish them
+        currentTable.lazySet(slot, newId);
+
+        // publish a new id to readers
+        size = reused ? size : newId + 1;
+
+        if ((size - releasedCount + releasedSlots) * 2 > currentTable.length()) {
+            rebuildTable();
+        }
+        return newId;
+    }
+
+    /**
+     * Grows the term arrays, if needed, so that they have a position for the given id.
+     *
+     * @param id  the id about to be assigned
+     */
+    private void ensureCapacity(int id) {
+        if (id >= terms.length) {
+            int capacity = Math.max(id + 1, terms.length * 2);
+            terms = Arrays.copyOf(terms, capacity);
+            identifiers = Arrays.copyOf(identifiers, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            released = Arrays.copyOf(released, capacity);
+        }
+    }
+
+    /**
+     * Releases a term that is no longer used.  Afterwards the term can no longer be found by identifier, and is
+     * interned again with a new id if it is seen again.  Readers holding the id still get the released term from
+     * {@link #get(int)} until the id is {@link #free(BitSet) freed} and reused.
+     *
+     * @param id  the id of the term to release
+     * @return    false if no term holds the id
+     */
+    synchronized boolean release(int id) {
+        if (id < 0 || id >= size || released[id]) {
+            return false;
+        }
+        AtomicIntegerArray currentTable = table;
+        int mask = currentTable.length() - 1;
+        int slot = hashes[id] & mask;
+        while (currentTable.get(slot) != id) {
+            slot = (slot + 1) & mask;
+        }
+        currentTable.set(slot, RELEASED_SLOT);
+        releasedSlots++;
+        released[id] = true;
+        releasedCount++;
+        return true;
+    }
+
+    /**
+     * Makes released ids available to new terms, once no reader can still see them.
+     *
+     * @param ids  the released ids to free
+     */
+    synchronized void free(BitSet ids) {
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            if (id < size && released[id]) {
+                push(id);
+            }
+        }
+    }
+
+    /**
+     * Pushes an id on the stack of freed ids.
+     *
+     * @param id  the freed id
+     */
+    private void push(int id) {
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Fills an empty dictionary with terms whose ids are already known, such as those read back from a snapshot.
+     * The term at each position of the array gets that position as its id; null positions are ids that had been
+     * released, and are free to be reused first by later new terms.
+     *
+     * @param restored  the identifier of each id, or null for a released id
+     */
+    synchronized void restore(String[] restored) {
+        if (size != 0) {
+            throw new IllegalStateException("only an empty dictionary can be restored");
+        }
+        int[] skipped = new int[16];
+        int skippedCount = 0;
+        for (int id = 0; id < restored.length; id++) {
+            if (restored[id] == null) {
+                // skip the id, leaving its slots empty; it goes on the free stack once every id is restored
+                ensureCapacity(id);
+                size = id + 1;
+                this.released[id] = true;
+                this.releasedCount++;
+                if (skippedCount == skipped.length) {
+                    skipped = Arrays.copyOf(skipped, skippedCount * 2);
+                }
+                skipped[skippedCount++] = id;
+            }
+            else if (add(hash(restored[id], 0, restored[id].length()), restored[id]) != id) {
+                throw new IllegalStateException("identifier [" + restored[id] + "] is restored more than once");
+            }
+        }
+        while (skippedCount > 0) {
+            push(skipped[--skippedCount]);
+        }
+    }
+
+    /**
+     * Returns the id of the given term identifier without interning it.
+     *
+     * @param identifier  the term identifier to look up; matched case insensitively
+     * @return            the id of the term, or {@link #NOT_FOUND} if the dictionary does not contain it
+     */
+    public int lookupId(String identifier) {
+        return lookupId(identifier, 0, identifier.length());
+    }
+
+    /**
+     * Returns the id of the term whose identifier is the given range of characters, without interning it and
+     * without copying the characters.
+     *
+     * @param chars  the characters holding the identifier
+     * @param start  the offset of the first character of the identifier
+     * @param end    the offset after the last character of the identifier
+     * @return       the id of the term, or {@link #NOT_FOUND} if the dictionary does not contain it
+     */
+    public int lookupId(CharSequence chars, int start, int end) {
+        return findId(hash(chars, start, end), chars, start, end);
+    }
+
+    /**
+     * Returns the term whose identifier is the given range of characters, without interning it and without
+     * copying the characters.
+     *
+     * @param chars  the characters holding the identifier
+     * @param start  the offset of the first character of the identifier
+     * @param end    the offset after the last character of the identifier
+     * @return       the term, or null if the dictionary does not contain it
+     */
+    public T lookup(CharSequence chars, int start, int end) {
+        int id = lookupId(chars, start, end);
+        return (id == NOT_FOUND) ? null : get(id);
+    }
+
+    /**
+     * Returns the term instance that was assigned the given id.  A released term is still returned until its id is
+     * reused by a new term.
+     *
+     * @param id  a dense id previously assigned by this dictionary
+     * @return    the term for the id, or null if no term has been assigned that id
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int id) {
+        if (id < 0 || id >= size) {
+            return null;
+        }
+        return (T) terms[id];
+    }
+
+    /**
+     * Returns the identifier of the term that was assigned the given id, as it was first seen.  The identifier of
+     * a released term is still returned until its id is reused by a new term.
+     *
+     * @param id  a dense id previously assigned by this dictionary
+     * @return    the identifier for the id, or null if no term has been assigned that id
+     */
+    public String getIdentifier(int id) {
+        if (id < 0 || id >= size) {
+            return null;
+        }
+        return identifiers[id];
+    }
+
+    /**
+     * Returns whether the given term is the one the dictionary currently holds for the id, rather than a term
+     * that has been released or that belongs to another dictionary.
+     *
+     * @param id    the id to check
+     * @param term  the term expected to hold the id
+     * @return      true if the term holds the id and has not been released
+     */
+    public boolean holds(int id, T term) {
+        return id >= 0 && id < size && terms[id] == term && !released[id];
+    }
+
+    /**
+     * Returns whether the term that was assigned the given id has been released, and its id not yet reused.
+     *
+     * @param id  a dense id previously assigned by this dictionary
+     * @return    true if the id holds a released term, or no term
+     */
+    boolean isReleased(int id) {
+        return id < 0 || id >= size || released[id];
+    }
+
+    /**
+     * Returns one more than the largest id assigned so far.  Unless terms have been released, this is the number of
+     * terms held by the dictionary and also the next id that will be assigned.
+     *
+     * @return  the upper bound of the assigned ids
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of terms held by the dictionary, not counting released ids that have not been reused.
+     *
+     * @return  the number of interned terms
+     */
+    public synchronized int termCount() {
+        return size - releasedCount;
+    }
+
+    /**
+     * Finds the id of the given identifier without locking.
+     *
+     * @param hash   the case insensitive hash of the identifier
+     * @param chars  the characters holding the identifier
+     * @param start  the offset of the first character of the identifier
+     * @param end    the offset after the last character of the identifier
+     * @return       the id of the identifier, or {@link #NOT_FOUND}
+     */
+    private int findId(int hash, CharSequence chars, int start, int end) {
+        // read the size before the table, so every id below it is fully published in the table that is read
+        int visible = size;
+        AtomicIntegerArray currentTable = table;
+        int id = currentTable.get(findSlot(currentTable, visible, hash, chars, start, end));
+        // the slot may have been released and taken by another term since it was searched, so check the id again
+        return (id >= 0 && id < visible && matches(id, hash, chars, start, end)) ? id : NOT_FOUND;
+    }
+
+    /**
+     * Finds the slot of the hash table that holds the given identifier, or the slot where it would be added: the
+     * first released slot on the way, or else the empty slot that ended the search.  Slots holding ids at or above
+     * the visible size may belong to a term that is still being added by another thread, and are skipped, as are
+     * ids whose term has been released.  The entries of an id are read only after the id has been read from the
+     * table, so they are those of the term the table holds.
+     *
+     * @param currentTable  the hash table to search
+     * @param visible       the number of terms whose ids may be trusted
+     * @param hash          the case insensitive hash of the identifier
+     * @param chars         the characters holding the identifier
+     * @param start         the offset of the first character of the identifier
+     * @param end           the offset after the last character of the identifier
+     * @return              the slot holding the identifier's id, or the released or empty slot to insert it at
+     */
+    private int findSlot(AtomicIntegerArray currentTable, int visible, int hash, CharSequence chars, int start,
+                         int end) {
+        int mask = currentTable.length() - 1;
+        int slot = hash & mask;
+        int releasedSlot = -1;
+        while (true) {
+            int id = currentTable.get(slot);
+            if (id == EMPTY_SLOT) {
+                return (releasedSlot >= 0) ? releasedSlot : slot;
+            }
+            if (id == RELEASED_SLOT) {
+                if (releasedSlot < 0) {
+                    releasedSlot = slot;
+                }
+            }
+            else if (id < visible && matches(id, hash, chars, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns whether the term holding an id has the given identifier.  The arrays are read afresh, since an
+     * array read before the id was read from the table may have been replaced by a larger copy before the term was
+     * written.
+     *
+     * @param id     an id read from the hash table
+     * @param hash   the case insensitive hash of the identifier
+     * @param chars  the characters holding the identifier
+     * @param start  the offset of the first character of the identifier
+     * @param end    the offset after the last character of the identifier
+     * @return       true if the id's term has the identifier
+     */
+    private boolean matches(int id, int hash, CharSequence chars, int start, int end) {
+        if (hashes[id] != hash) {
+            return false;
+        }
+        String identifier = identifiers[id];
+        return identifier != null && equalsIgnoreCase(identifier, chars, start, end);
+    }
+
+    /**
+     * Re-inserts every term into a new hash table using the stored hashes, dropping the released slots.  The
+     * table doubles if the terms alone would fill more than a quarter of the new one.  The new table is only
+     * published once it is complete, so concurrent readers keep using the old one until then.
+     */
+    private void rebuildTable() {
+        int capacity = table.length();
+        if ((size - releasedCount) * 4 > capacity) {
+            capacity *= 2;
+        }
+        int[] newTable = new int[capacity];
+        Arrays.fill(newTable, EMPTY_SLOT);
+        int[] currentHashes = hashes;
+        boolean[] currentReleased = released;
+        int count = size;
+        int mask = newTable.length - 1;
+        for (int id = 0; id < count; id++) {
+            if (currentReleased[id]) {
+                continue;
+            }
+            int slot = currentHashes[id] & mask;
+            while (newTable[slot] != EMPTY_SLOT) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = id;
+        }
+        table = new AtomicIntegerArray(newTable);
+        releasedSlots = 0;
+    }
+
+    /**
+     * Creates a hash table with every slot empty.
+     *
+     * @param capacity  the number of slots; must be a power of two
+     * @return          the new table
+     */
+    private static AtomicIntegerArray newTable(int capacity) {
+        int[] newTable = new int[capacity];
+        Arrays.fill(newTable, EMPTY_SLOT);
+        return new AtomicIntegerArray(newTable);
+    }
+
+    /**
+     * Folds a character to the case used for hashing and comparing identifiers.  Two characters that
+     * {@link String#equalsIgnoreCase(String)} considers equal always fold to the same character.
+     *
+     * @param c  the character to fold
+     * @return   the folded character
+     */
+    static char fold(char c) {
+        if (c < 128) {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Computes the case insensitive hash of a range of characters.
+     *
+     * @param chars  the characters to hash
+     * @param start  the offset of the first character
+     * @param end    the offset after the last character
+     * @return       the hash of the folded characters
+     */
+    static int hash(CharSequence chars, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + fold(chars.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Compares an identifier with a range of characters, ignoring case.
+     *
+     * @param identifier  the interned identifier
+     * @param chars       the characters to compare against
+     * @param start       the offset of the first character
+     * @param end         the offset after the last character
+     * @return            true if the identifier and the range hold the same characters, ignoring case
+     */
+    private static boolean equalsIgnoreCase(String identifier, CharSequence chars, int start, int end) {
+        if (identifier.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < identifier.length(); i++) {
+            char a = identifier.charAt(i);
+            char b = chars.charAt(start + i);
+            if (a != b && fold(a) != fold(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
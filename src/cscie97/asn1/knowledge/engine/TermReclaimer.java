@@ -0,0 +1,146 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Defers the reuse of released term ids until no reader can still see them.  Query results hold ids, not terms, and
+ * turn them back into terms only as they are read, so an id that a new term took over while a result still held it
+ * would make the result report the new term in place of the released one.
+ * <p>
+ * Time is divided into epochs, and a new epoch begins whenever terms are released.  Every reader that turns ids it
+ * read from the indexes into terms first pins the current epoch, and keeps a reference to it until it is done: a
+ * {@link QueryResultSet} for as long as it exists, other readers until they call {@link Epoch#unpin()}.  Each epoch
+ * refers to the one that began after it, so an epoch that is still pinned keeps every later epoch reachable too,
+ * and an epoch can only become unreachable once no reader holds it or any earlier epoch.  The ids released when an
+ * epoch ended are handed back to their dictionaries for reuse once the garbage collector reports that epoch as
+ * unreachable.
+ * <p>
+ * Released terms stay readable through their ids until the ids are reused, so a reader holding an earlier epoch
+ * still sees the terms it read.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see TermDictionary#release(int)
+ * @see QueryResultSet
+ */
+final class TermReclaimer {
+
+    /**
+     * A period between two releases of terms, pinned by the readers that started during it.
+     */
+    static final class Epoch {
+
+        /**
+         * The epoch that began when this one ended, kept reachable for as long as this one is.
+         */
+        private Epoch next;
+
+        /**
+         * Written by {@link #unpin()} and never read.
+         */
+        private volatile boolean unpinned = false;
+
+        /**
+         * Marks the end of a reader's use of the ids it read while it had the epoch pinned.  The write keeps the
+         * epoch reachable, and so those ids from being reused, until the reader has finished with them.
+         */
+        void unpin() {
+            unpinned = true;
+        }
+    }
+
+    /**
+     * The ids released when an epoch ended, waiting for that epoch to become unreachable.
+     */
+    private static final class ReleasedIds extends WeakReference<Epoch> {
+
+        /**
+         * The ids of the released Nodes.
+         */
+        private final BitSet nodeIds;
+
+        /**
+         * The ids of the released Predicates.
+         */
+        private final BitSet predicateIds;
+
+        /**
+         * Class constructor.
+         *
+         * @param ended         the epoch that ended when the terms were released
+         * @param nodeIds       the ids of the released Nodes
+         * @param predicateIds  the ids of the released Predicates
+         * @param queue         where the garbage collector reports the epoch once it is unreachable
+         */
+        ReleasedIds(Epoch ended, BitSet nodeIds, BitSet predicateIds, ReferenceQueue<Epoch> queue) {
+            super(ended, queue);
+            this.nodeIds = nodeIds;
+            this.predicateIds = predicateIds;
+        }
+    }
+
+    /**
+     * The epoch pinned by readers that start now.
+     */
+    private volatile Epoch current = new Epoch();
+
+    /**
+     * Where the garbage collector reports ended epochs that have become unreachable.
+     */
+    private final ReferenceQueue<Epoch> unreachable = new ReferenceQueue<Epoch>();
+
+    /**
+     * The released ids whose epochs may still be reachable; kept here so the references themselves stay reachable
+     * until they are reported.
+     */
+    private final Set<ReleasedIds> waiting = new HashSet<ReleasedIds>();
+
+    /**
+     * Returns the current epoch, which the caller must keep a reference to for as long as it may turn ids it reads
+     * from the indexes into terms.
+     *
+     * @return  the current epoch
+     */
+    Epoch pin() {
+        return current;
+    }
+
+    /**
+     * Ends the current epoch because terms were released during it, and begins a new one.  The released ids are
+     * reused once no reader holds the ended epoch or any earlier one.
+     *
+     * @param nodeIds       the ids of the released Nodes
+     * @param predicateIds  the ids of the released Predicates
+     * @return              the epoch that begins
+     */
+    synchronized Epoch endEpoch(BitSet nodeIds, BitSet predicateIds) {
+        Epoch ended = current;
+        Epoch begun = new Epoch();
+        ended.next = begun;
+        waiting.add(new ReleasedIds(ended, nodeIds, predicateIds, unreachable));
+        current = begun;
+        return begun;
+    }
+
+    /**
+     * Hands the ids released in every ended epoch that has become unreachable back to their dictionaries, so that
+     * new terms can reuse them.
+     *
+     * @param nodes       the Node dictionary
+     * @param predicates  the Predicate dictionary
+     */
+    synchronized void reclaim(TermDictionary<?> nodes, TermDictionary<?> predicates) {
+        Reference<? extends Epoch> reference;
+        while ((reference = unreachable.poll()) != null) {
+            ReleasedIds released = (ReleasedIds) reference;
+            waiting.remove(released);
+            nodes.free(released.nodeIds);
+            predicates.free(released.predicateIds);
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package cscie97.asn1.knowledge.engine;
 
+import java.io.IOException;
+
 /**
  * Represents a Triple, which is comprised of a "subject" (a Node), a Predicate, and an "object" (another Node).
  * Triples are used to explain how "subjects" and "objects" relate to each other by way of a Predicate.
  * Each Triple is stored in the KnowledgeGraph, and users may query the KnowledgeGraph for matching
  * Triples based on subject, predicate, and object parameters.  There should only be 1 unique instance of each
  * Triple, and this uniqueness is enforced by the KnowledgeGraph class.
+ * <p>
+ * A Triple holds only its three parts and their ids.  Its identifier string is built each time it is asked for,
+ * since most Triples are query results that are only counted, compared, or written out; results can be written
+ * with {@link #appendIdentifier(Appendable)}, which appends the parts' own identifiers without building one.
+ * Triples are compared by their parts rather than their ids, so that Triples from different KnowledgeGraphs, which
+ * number their terms independently, can be kept in one Set.
  *
  * @author David Killeffer <rayden7@gmail.com>
  * @version 1.0
@@ -13,11 +21,31 @@ package cscie97.asn1.knowledge.engine;
  */
 public class Triple {
 
+    /**
+     * Id used in place of a Node or Predicate id for a part of a query Triple that is the "?" wildcard.
+     */
+    public static final int WILDCARD = -1;
+
+    /**
+     * Position of the subject among the parts of a Triple.
+     */
+    public static final int SUBJECT = 0;
+
+    /**
+     * Position of the Predicate among the parts of a Triple.
+     */
+    public static final int PREDICATE = 1;
+
+    /**
+     * Position of the object among the parts of a Triple.
+     */
+    public static final int OBJECT = 2;
+
     /**
      * Private non mutable association to the associated Subject instance.
      * May be "?" in the case where the Triple is intended to be used for querying for other triples.
      */
-    private Node subject;
+    private final Node subject;
 
     /**
      * Retrieves the Subject Node of the Triple, which is the 1st and beginning string portion of the identifier.
@@ -32,7 +60,7 @@ public class Triple {
      * Private non mutable association to the associated Predicate instance.
      * May be "?" in the case where the Triple is intended to be used for querying for other triples.
      */
-    private Predicate predicate;
+    private final Predicate predicate;
 
     /**
      * Retrieves the Predicate of the Triple, which is the 2nd and middle string portion of the identifier.
@@ -47,7 +75,7 @@ public class Triple {
      * Private non mutable association to the associated Object instance.
      * May be "?" in the case where the Triple is intended to be used for querying for other triples.
      */
-    private Node object;
+    private final Node object;
 
     /**
      * Retrieve the object Node (e.g., "object"), which is the 3rd and final string portion of the identifier.
@@ -58,20 +86,66 @@ public class Triple {
         return object;
     }
 
-    /**
-     * Private unique non mutable identifier for the Triple. Of the form:
-     * subject.identifier + " " + predicate.identifer + " " + object.identifier.
-     */
-    private String identifier;
-
     /**
      * Returns the Triple identifier, which is of the form:
-     * subject.identifier + " " + predicate.identifer + " " + object.identifier.
+     * subject.identifier + " " + predicate.identifer + " " + object.identifier + ".".  The identifier is built on
+     * each call rather than held by the Triple.
      *
      * @return the string identifier for the Triple
      */
     public String getIdentifier() {
-        return identifier;
+        String subjectIdentifier = subject.getIdentifier();
+        String predicateIdentifier = predicate.getIdentifier();
+        String objectIdentifier = object.getIdentifier();
+        StringBuilder identifier = new StringBuilder(subjectIdentifier.length() + predicateIdentifier.length()
+                                                     + objectIdentifier.length() + 3);
+        identifier.append(subjectIdentifier).append(' ').append(predicateIdentifier).append(' ')
+                  .append(objectIdentifier).append('.');
+        return identifier.toString();
+    }
+
+    /**
+     * Appends the Triple identifier, as returned by {@link #getIdentifier()}, without building it as a String.
+     *
+     * @param out           receives the identifier
+     * @throws IOException  thrown if the identifier cannot be appended
+     */
+    public void appendIdentifier(Appendable out) throws IOException {
+        out.append(subject.getIdentifier()).append(' ').append(predicate.getIdentifier()).append(' ')
+           .append(object.getIdentifier()).append('.');
+    }
+
+    /**
+     * Private non mutable term dictionary ids of the subject, predicate, and object; {@link #WILDCARD} for any
+     * part that is the "?" wildcard.
+     */
+    private final int subjectId, predicateId, objectId;
+
+    /**
+     * Returns the dictionary id of the subject Node.
+     *
+     * @return  the subject id, or {@link #WILDCARD} if the subject is the wildcard
+     */
+    public int getSubjectId() {
+        return subjectId;
+    }
+
+    /**
+     * Returns the dictionary id of the Predicate.
+     *
+     * @return  the predicate id, or {@link #WILDCARD} if the predicate is the wildcard
+     */
+    public int getPredicateId() {
+        return predicateId;
+    }
+
+    /**
+     * Returns the dictionary id of the object Node.
+     *
+     * @return  the object id, or {@link #WILDCARD} if the object is the wildcard
+     */
+    public int getObjectId() {
+        return objectId;
     }
 
     /**
@@ -90,6 +164,44 @@ public class Triple {
         this.subject = (subject == null) ? new Node("?") : subject;
         this.predicate = (predicate == null) ? new Predicate("?") : predicate;
         this.object = (object == null) ? new Node("?") : object;
-        this.identifier = this.subject.getIdentifier() + " " + this.predicate.getIdentifier() + " " + this.object.getIdentifier() + ".";
+        this.subjectId = "?".equals(this.subject.getIdentifier()) ? WILDCARD : this.subject.getId();
+        this.predicateId = "?".equals(this.predicate.getIdentifier()) ? WILDCARD : this.predicate.getId();
+        this.objectId = "?".equals(this.object.getIdentifier()) ? WILDCARD : this.object.getId();
+    }
+
+    /**
+     * Two Triples are equal when they have the same subject, predicate, and object.  Parts are the same when they
+     * are the same Node or Predicate instance, which is how the Triples of one KnowledgeGraph compare; parts of
+     * different KnowledgeGraphs, such as the shards of a {@link ShardedKnowledgeGraph}, or created outside of any
+     * KnowledgeGraph are compared by their identifiers, case insensitively.  Ids are never compared, since each
+     * KnowledgeGraph assigns its own and the same id may stand for different terms in different KnowledgeGraphs.
+     *
+     * @param o  the object to compare against
+     * @return   true if the passed object is a Triple for the same subject, predicate, and object
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Triple)) {
+            return false;
+        }
+        Triple other = (Triple) o;
+        return (subject == other.subject || subject.getIdentifier().equalsIgnoreCase(other.subject.getIdentifier()))
+               && (predicate == other.predicate
+                   || predicate.getIdentifier().equalsIgnoreCase(other.predicate.getIdentifier()))
+               && (object == other.object || object.getIdentifier().equalsIgnoreCase(other.object.getIdentifier()));
+    }
+
+    /**
+     * Hashes the case insensitive hashes of the parts' identifiers, which each Node and Predicate computes once,
+     * so that equal Triples from different KnowledgeGraphs hash alike.
+     *
+     * @return  hash code of the Triple
+     */
+    @Override
+    public int hashCode() {
+        return 31 * (31 * subject.identifierHash() + predicate.identifierHash()) + object.identifierHash();
     }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+package cscie97.asn1.knowledge.engine;
+
+/**
+ * Locates the subject, predicate, and object parts of one Triple line or Triple query in place, without splitting,
+ * trimming, or lower-casing it into new strings.  Parts are separated by runs of whitespace; whitespace around the
+ * line and any trailing periods are ignored.  After {@link #tokenize(CharSequence, int, int)} returns, the start
+ * (inclusive) and end (exclusive) offsets of each part that was found are available in the public fields.
+ * <p>
+ * A TripleTokenizer is reused from line to line, and is not safe for use by more than one thread at a time.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see Importer
+ * @see KnowledgeGraph#getQueryTripleFromStringIdentifier(String)
+ */
+final class TripleTokenizer {
+
+    /**
+     * Offsets of the subject part of the last tokenized line.
+     */
+    int subjectStart, subjectEnd;
+
+    /**
+     * Offsets of the predicate part of the last tokenized line.
+     */
+    int predicateStart, predicateEnd;
+
+    /**
+     * Offsets of the object part of the last tokenized line.
+     */
+    int objectStart, objectEnd;
+
+    /**
+     * Offsets of the last tokenized line with surrounding whitespace and trailing periods removed.
+     */
+    int contentStart, contentEnd;
+
+    /**
+     * Tokenizes one line.  Any parts after the third are ignored.
+     *
+     * @param chars  the characters holding the line
+     * @param start  the offset of the first character of the line
+     * @param end    the offset after the last character of the line
+     * @return       the number of parts found, from 0 to 3
+     */
+    int tokenize(CharSequence chars, int start, int end) {
+        contentEnd = trimEnd(chars, start, end);
+        contentStart = skipSpace(chars, start, contentEnd);
+
+        subjectStart = contentStart;
+        subjectEnd = skipPart(chars, subjectStart, contentEnd);
+        predicateStart = skipSpace(chars, subjectEnd, contentEnd);
+        predicateEnd = skipPart(chars, predicateStart, contentEnd);
+        objectStart = skipSpace(chars, predicateEnd, contentEnd);
+        objectEnd = skipPart(chars, objectStart, contentEnd);
+
+        if (subjectStart == subjectEnd) {
+            return 0;
+        }
+        if (predicateStart == predicateEnd) {
+            return 1;
+        }
+        return (objectStart == objectEnd) ? 2 : 3;
+    }
+
+    /**
+     * Returns whether the last tokenized line contains the "?" wildcard character anywhere.
+     *
+     * @param chars  the characters holding the line
+     * @return       true if the line contains a "?"
+     */
+    boolean containsWildcard(CharSequence chars) {
+        for (int i = contentStart; i < contentEnd; i++) {
+            if (chars.charAt(i) == '?') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the end of a line once trailing whitespace, and then any trailing periods, are removed.
+     *
+     * @param chars  the characters holding the line
+     * @param start  the offset of the first character of the line
+     * @param end    the offset after the last character of the line
+     * @return       the offset after the last character of the line's content
+     */
+    static int trimEnd(CharSequence chars, int start, int end) {
+        while (end > start && isSpace(chars.charAt(end - 1))) {
+            end--;
+        }
+        while (end > start && chars.charAt(end - 1) == '.') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Returns whether a part is exactly the "?" wildcard.
+     *
+     * @param chars  the characters holding the part
+     * @param start  the offset of the first character of the part
+     * @param end    the offset after the last character of the part
+     * @return       true if the part is exactly "?"
+     */
+    static boolean isWildcard(CharSequence chars, int start, int end) {
+        return end - start == 1 && chars.charAt(start) == '?';
+    }
+
+    /**
+     * Returns whether the character separates the parts of a line.
+     *
+     * @param c  the character to test
+     * @return   true if the character is whitespace
+     */
+    static boolean isSpace(char c) {
+        return c <= ' ';
+    }
+
+    /**
+     * Returns the offset of the first non-whitespace character at or after the given offset.
+     *
+     * @param chars  the characters holding the line
+     * @param pos    the offset to start from
+     * @param end    the offset to stop at
+     * @return       the offset of the next part of the line, or end
+     */
+    static int skipSpace(CharSequence chars, int pos, int end) {
+        while (pos < end && isSpace(chars.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the offset of the first whitespace character at or after the given offset.
+     *
+     * @param chars  the characters holding the line
+     * @param pos    the offset of the start of a part of the line
+     * @param end    the offset to stop at
+     * @return       the offset after the last character of the part
+     */
+    static int skipPart(CharSequence chars, int pos, int end) {
+        while (pos < end && !isSpace(chars.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
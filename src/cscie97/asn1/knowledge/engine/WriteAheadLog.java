@@ -0,0 +1,566 @@
+package cscie97.asn1.knowledge.engine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the Triples added to and removed from the KnowledgeGraph, so that changes survive a restart.
+ * Every batch of Triples added to or removed from the KnowledgeGraph is appended to the log as one record holding
+ * the identifiers of its parts; on restart the records are replayed in order on top of the last snapshot.
+ * <p>
+ * Records are written by a background thread using group commit: records appended while the previous group is
+ * being written and forced to disk are written together and share a single fsync, so many small concurrent imports
+ * cost far fewer fsyncs than imports.  How long an import waits, and whether the log is forced to disk at all, is
+ * set by the {@link SyncPolicy}; the group commit delay and the largest group are also configurable.
+ * <p>
+ * Each record is stored as its payload length, the CRC-32 checksum of its payload, and the payload.  A record that
+ * was only partly written when the process stopped fails its checksum, so replay stops at the last complete record
+ * and the torn tail is cut off.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph#openWriteAheadLog(String, SyncPolicy, long, int)
+ * @see KnowledgeGraph#checkpoint(String)
+ */
+public final class WriteAheadLog {
+
+    /**
+     * How an import waits for its Triples to be logged.
+     */
+    public enum SyncPolicy {
+
+        /**
+         * An import returns once its Triples are written and forced to disk, so they survive a power failure.
+         */
+        FSYNC,
+
+        /**
+         * An import returns once its Triples are written to the operating system, so they survive the process
+         * crashing but not a power failure.  The log is never forced to disk.
+         */
+        WRITE,
+
+        /**
+         * An import returns as soon as its Triples are queued; the log is written and forced to disk in the
+         * background.  Triples imported within the last group commit may be lost if the process crashes.
+         */
+        ASYNC
+    }
+
+    /**
+     * Marks the start of every log file ("KGWL").
+     */
+    private static final int MAGIC = 0x4B47574C;
+
+    /**
+     * The version of the log format written by this class.  Version 2 added removal records; a version 1 log is
+     * read as it is and its header is upgraded, since it holds only addition records.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The size of the log file header in bytes: the magic number and the version.
+     */
+    private static final int HEADER_BYTES = 8;
+
+    /**
+     * Term identifiers are stored as UTF-8.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The name of the log file, for exceptions.
+     */
+    private final String filename;
+
+    /**
+     * The open log file.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * How imports wait for their Triples to be logged.
+     */
+    private final SyncPolicy policy;
+
+    /**
+     * How long, in milliseconds, the writer waits for more records to join a group before writing it.
+     */
+    private final long groupCommitMillis;
+
+    /**
+     * The number of queued bytes at which the writer stops waiting for more records to join a group.
+     */
+    private final int maxGroupBytes;
+
+    /**
+     * Guards the queued records and the sequence numbers, and is waited on by imports and the writer.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Held while the log file is written or reset, so that a reset never races a group being written.
+     */
+    private final Object fileLock = new Object();
+
+    /**
+     * Records appended but not yet written.
+     */
+    private ByteArrayOutputStream queued = new ByteArrayOutputStream();
+
+    /**
+     * Scratch space for encoding the payload of one record.
+     */
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+    /**
+     * The sequence number of the last appended record.
+     */
+    private long appended = 0;
+
+    /**
+     * The sequence number of the last record that has been logged according to the SyncPolicy.
+     */
+    private long committed = 0;
+
+    /**
+     * Set once the log is closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The error that stopped the writer, if any.
+     */
+    private IOException failure;
+
+    /**
+     * The background thread that writes groups of records.
+     */
+    private final Thread writer;
+
+    /**
+     * Receives the Triples of each record replayed from the log.
+     */
+    interface ReplayTarget {
+
+        /**
+         * Adds one replayed batch of Triples, given as the identifiers of their parts.
+         *
+         * @param subjects    subject identifiers
+         * @param predicates  predicate identifiers
+         * @param objects     object identifiers
+         */
+        void replay(String[] subjects, String[] predicates, String[] objects);
+
+        /**
+         * Removes one replayed batch of Triples, given as the identifiers of their parts.
+         *
+         * @param subjects    subject identifiers
+         * @param predicates  predicate identifiers
+         * @param objects     object identifiers
+         */
+        void replayRemoval(String[] subjects, String[] predicates, String[] objects);
+    }
+
+    /**
+     * Opens a log, creating it if it does not exist, replays its records, cuts off any torn record at its end, and
+     * starts the writer thread.
+     *
+     * @param filename           the log file
+     * @param policy             how imports wait for their Triples to be logged
+     * @param groupCommitMillis  how long the writer waits for more records to join a group; 0 to write at once
+     * @param maxGroupBytes      the number of queued bytes at which a group is written without waiting longer
+     * @param target             receives each replayed record
+     * @throws IOException       if the log cannot be opened or read, or is not a log file
+     */
+    WriteAheadLog(String filename, SyncPolicy policy, long groupCommitMillis, int maxGroupBytes, ReplayTarget target) throws IOException {
+        this.filename = filename;
+        this.policy = policy;
+        this.groupCommitMillis = groupCommitMillis;
+        this.maxGroupBytes = maxGroupBytes;
+        this.file = new RandomAccessFile(filename, "rw");
+        try {
+            long end = replay(target);
+            file.setLength(end);
+            file.getChannel().position(end);
+        }
+        catch (IOException ioe) {
+            file.close();
+            throw ioe;
+        }
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeGroups();
+            }
+        }, "write-ahead-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replays every complete record of the log, writing a header first if the log is new.
+     *
+     * @param target        receives each replayed record
+     * @return              the offset after the last complete record
+     * @throws IOException  if the log cannot be read, or is not a log file
+     */
+    private long replay(ReplayTarget target) throws IOException {
+        FileChannel channel = file.getChannel();
+        if (channel.size() < HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            return HEADER_BYTES;
+        }
+
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("file [" + filename + "] is not a write-ahead log");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("write-ahead log format version [" + version + "] is not supported; expected version [1] to [" + VERSION + "]");
+        }
+
+        long end = HEADER_BYTES;
+        long size = channel.size();
+        byte[] record = new byte[1024];
+        CRC32 crc = new CRC32();
+        while (end + 8 <= size) {
+            int length;
+            long checksum;
+            try {
+                length = in.readInt();
+                checksum = in.readInt() & 0xffffffffL;
+                if (length < 0 || end + 8 + length > size) {
+                    break;
+                }
+                if (length > record.length) {
+                    record = new byte[length];
+                }
+                in.readFully(record, 0, length);
+            }
+            catch (EOFException eofe) {
+                break;
+            }
+            crc.reset();
+            crc.update(record, 0, length);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            replayRecord(new DataInputStream(new ByteArrayInputStream(record, 0, length)), target);
+            end += 8 + length;
+        }
+        if (version != VERSION) {
+            ByteBuffer upgraded = ByteBuffer.allocate(4);
+            upgraded.putInt(VERSION);
+            upgraded.flip();
+            while (upgraded.hasRemaining()) {
+                channel.write(upgraded, 4 + upgraded.position());
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Decodes one record and passes its Triples to the replay target.  The count of a removal record is stored
+     * bitwise complemented, so it is negative.
+     *
+     * @param in            the payload of the record
+     * @param target        receives the Triples
+     * @throws IOException  if the payload cannot be decoded
+     */
+    private static void replayRecord(DataInputStream in, ReplayTarget target) throws IOException {
+        int count = in.readInt();
+        boolean removal = count < 0;
+        if (removal) {
+            count = ~count;
+        }
+        String[] subjects = new String[count];
+        String[] predicates = new String[count];
+        String[] objects = new String[count];
+        for (int i = 0; i < count; i++) {
+            subjects[i] = readIdentifier(in);
+            predicates[i] = readIdentifier(in);
+            objects[i] = readIdentifier(in);
+        }
+        if (removal) {
+            target.replayRemoval(subjects, predicates, objects);
+        }
+        else {
+            target.replay(subjects, predicates, objects);
+        }
+    }
+
+    /**
+     * Reads one length-prefixed UTF-8 identifier.
+     *
+     * @param in            the payload of a record
+     * @return              the identifier
+     * @throws IOException  if the payload cannot be decoded
+     */
+    private static String readIdentifier(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Queues one batch of added or removed Triples, given as ids, to be logged as a single record.  The caller must
+     * serialize calls to this method with the changes it makes to the KnowledgeGraph, so that records are logged in
+     * the order the changes were made.
+     *
+     * @param subjectIds    subject ids of the Triples
+     * @param predicateIds  predicate ids of the Triples
+     * @param objectIds     object ids of the Triples
+     * @param count         number of Triples in the arrays
+     * @param removal       true if the Triples were removed, false if they were added
+     * @param nodes         the dictionary of the subject and object ids
+     * @param predicates    the dictionary of the predicate ids
+     * @return              the sequence number of the record, to pass to {@link #awaitCommit(long)}
+     */
+    long append(int[] subjectIds, int[] predicateIds, int[] objectIds, int count, boolean removal,
+                TermDictionary<?> nodes, TermDictionary<?> predicates) {
+        synchronized (lock) {
+            checkOpen();
+            try {
+                payload.reset();
+                DataOutputStream out = new DataOutputStream(payload);
+                out.writeInt(removal ? ~count : count);
+                for (int i = 0; i < count; i++) {
+                    writeIdentifier(out, nodes.getIdentifier(subjectIds[i]));
+                    writeIdentifier(out, predicates.getIdentifier(predicateIds[i]));
+                    writeIdentifier(out, nodes.getIdentifier(objectIds[i]));
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload.toByteArray());
+
+                DataOutputStream record = new DataOutputStream(queued);
+                record.writeInt(payload.size());
+                record.writeInt((int) crc.getValue());
+                payload.writeTo(record);
+            }
+            catch (IOException ioe) {
+                // writing to an in-memory stream does not fail
+                throw new IllegalStateException(ioe);
+            }
+            appended++;
+            lock.notifyAll();
+            return appended;
+        }
+    }
+
+    /**
+     * Writes one length-prefixed UTF-8 identifier.
+     *
+     * @param out           the payload of a record
+     * @param identifier    the identifier
+     * @throws IOException  if the payload cannot be written
+     */
+    private static void writeIdentifier(DataOutputStream out, String identifier) throws IOException {
+        byte[] bytes = identifier.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Waits until the record with the given sequence number is logged according to the SyncPolicy.  Returns at
+     * once under {@link SyncPolicy#ASYNC}.
+     *
+     * @param sequence                the sequence number returned by {@link #append}
+     * @throws IllegalStateException  if the log could not be written
+     */
+    void awaitCommit(long sequence) {
+        if (policy == SyncPolicy.ASYNC) {
+            return;
+        }
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (committed < sequence) {
+                if (failure != null) {
+                    throw new IllegalStateException("write-ahead log [" + filename + "] could not be written", failure);
+                }
+                try {
+                    lock.wait();
+                }
+                catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Throws if the log can no longer accept or commit records.  Must be called while holding the lock.
+     *
+     * @throws IllegalStateException  if the log failed or was closed
+     */
+    private void checkOpen() {
+        if (failure != null) {
+            throw new IllegalStateException("write-ahead log [" + filename + "] could not be written", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("write-ahead log [" + filename + "] is closed");
+        }
+    }
+
+    /**
+     * Body of the writer thread: waits for records, gives concurrent imports the group commit delay to add theirs,
+     * then writes the whole group and forces it to disk once.  Exits once the log is closed and every queued
+     * record has been written, or when a write fails.
+     */
+    private void writeGroups() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (queued.size() == 0 && !closed) {
+                        lock.wait();
+                    }
+                    if (queued.size() == 0) {
+                        return;
+                    }
+                    long deadline = System.currentTimeMillis() + groupCommitMillis;
+                    long remaining = groupCommitMillis;
+                    while (remaining > 0 && queued.size() < maxGroupBytes && !closed) {
+                        lock.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+                writeGroup();
+            }
+        }
+        catch (IOException ioe) {
+            synchronized (lock) {
+                failure = ioe;
+                lock.notifyAll();
+            }
+        }
+        catch (InterruptedException ie) {
+            synchronized (lock) {
+                failure = new IOException("write-ahead log writer was interrupted", ie);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes every queued record as one group, forces it to disk unless the policy is {@link SyncPolicy#WRITE},
+     * and wakes the imports waiting for it.
+     *
+     * @throws IOException  if the log cannot be written
+     */
+    private void writeGroup() throws IOException {
+        synchronized (fileLock) {
+            ByteArrayOutputStream group;
+            long upTo;
+            synchronized (lock) {
+                group = queued;
+                upTo = appended;
+                queued = new ByteArrayOutputStream(Math.max(32, group.size()));
+            }
+            if (group.size() > 0) {
+                FileChannel channel = file.getChannel();
+                ByteBuffer bytes = ByteBuffer.wrap(group.toByteArray());
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                if (policy != SyncPolicy.WRITE) {
+                    channel.force(false);
+                }
+            }
+            synchronized (lock) {
+                committed = Math.max(committed, upTo);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Empties the log, after everything in it has been saved in a snapshot.  Queued records are dropped and
+     * reported as committed.  The caller must make sure no records are appended during the reset.
+     *
+     * @throws IOException  if the log cannot be truncated
+     */
+    void reset() throws IOException {
+        synchronized (fileLock) {
+            synchronized (lock) {
+                checkOpen();
+                queued.reset();
+                committed = appended;
+                lock.notifyAll();
+            }
+            FileChannel channel = file.getChannel();
+            channel.truncate(HEADER_BYTES);
+            channel.position(HEADER_BYTES);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Returns the name of the log file.
+     *
+     * @return  the log filename
+     */
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Writes every queued record, stops the writer thread, and closes the log file.
+     *
+     * @throws IOException  if the log could not be written or closed
+     */
+    void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            }
+            catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (failure == null && policy != SyncPolicy.WRITE) {
+                file.getChannel().force(true);
+            }
+        }
+        finally {
+            file.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package cscie97.asn1.knowledge.engine.exception;
+
+/**
+ * Exception for problems that the {@link cscie97.asn1.knowledge.engine.KnowledgeGraph} may run into when writing or
+ * loading a binary snapshot, such as a missing or unreadable file, a snapshot written by an unsupported version, or
+ * a snapshot whose checksum does not match its contents.  This class will wrap lower-level exceptions (such as
+ * IOException) when there is one.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see cscie97.asn1.knowledge.engine.KnowledgeGraph#writeSnapshot(String)
+ * @see cscie97.asn1.knowledge.engine.KnowledgeGraph#loadSnapshot(String)
+ */
+public class SnapshotException extends Exception {
+
+    /**
+     * Name of the snapshot file that triggered the original exception
+     */
+    private String filename;
+
+    /**
+     * The original exception that this class wraps with more specific information
+     */
+    private Throwable originalCause;
+
+
+    /**
+     * Describes a problem writing or loading a snapshot, optionally wrapping a more generic exception.
+     *
+     * @param msg       description of the problem
+     * @param filename  the snapshot file that was being written or loaded
+     * @param cause     the wrapped lower-level exception that triggered this exception's creation; may be null
+     */
+    public SnapshotException (String msg, String filename, Throwable cause) {
+        super("SnapshotException occurred for snapshot file " + filename + ": " + msg, cause);
+
+        this.filename = filename;
+        this.originalCause = cause;
+    }
+
+    /**
+     * Returns the snapshot filename that triggered the exception
+     *
+     * @return  the snapshot filename that triggered the exception
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Sets the snapshot filename that triggered the exception
+     *
+     * @param  filename   the snapshot filename that triggered the exception
+     */
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Returns the original exception that the SnapshotException is wrapping with more specific details
+     *
+     * @return  the original wrapped exception, or null if there is none
+     */
+    public Throwable getOriginalCause() {
+        return originalCause;
+    }
+
+    /**
+     * Sets the original exception that the SnapshotException is wrapping with more specific details
+     *
+     * @param originalCause   the original wrapped exception
+     */
+    public void setOriginalCause(Throwable originalCause) {
+        this.originalCause = originalCause;
+    }
+
+}
@@ -0,0 +1,77 @@
+package cscie97.asn1.knowledge.engine.exception;
+
+/**
+ * Exception for problems that the {@link cscie97.asn1.knowledge.engine.KnowledgeGraph} may run into when opening,
+ * replaying, checkpointing, or closing its write-ahead log, such as a log file that cannot be created, a file that
+ * is not a write-ahead log, or a log written by an unsupported version.  This class will wrap lower-level exceptions
+ * (such as IOException) when there is one.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see cscie97.asn1.knowledge.engine.KnowledgeGraph#openWriteAheadLog(String, cscie97.asn1.knowledge.engine.WriteAheadLog.SyncPolicy, long, int)
+ * @see cscie97.asn1.knowledge.engine.WriteAheadLog
+ */
+public class WriteAheadLogException extends Exception {
+
+    /**
+     * Name of the write-ahead log file that triggered the original exception
+     */
+    private String filename;
+
+    /**
+     * The original exception that this class wraps with more specific information
+     */
+    private Throwable originalCause;
+
+
+    /**
+     * Describes a problem with the write-ahead log, optionally wrapping a more generic exception.
+     *
+     * @param msg       description of the problem
+     * @param filename  the write-ahead log file that was being opened, written, or closed
+     * @param cause     the wrapped lower-level exception that triggered this exception's creation; may be null
+     */
+    public WriteAheadLogException (String msg, String filename, Throwable cause) {
+        super("WriteAheadLogException occurred for write-ahead log file " + filename + ": " + msg, cause);
+
+        this.filename = filename;
+        this.originalCause = cause;
+    }
+
+    /**
+     * Returns the write-ahead log filename that triggered the exception
+     *
+     * @return  the write-ahead log filename that triggered the exception
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Sets the write-ahead log filename that triggered the exception
+     *
+     * @param  filename   the write-ahead log filename that triggered the exception
+     */
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Returns the original exception that the WriteAheadLogException is wrapping with more specific details
+     *
+     * @return  the original wrapped exception, or null if there is none
+     */
+    public Throwable getOriginalCause() {
+        return originalCause;
+    }
+
+    /**
+     * Sets the original exception that the WriteAheadLogException is wrapping with more specific details
+     *
+     * @param originalCause   the original wrapped exception
+     */
+    public void setOriginalCause(Throwable originalCause) {
+        this.originalCause = originalCause;
+    }
+
+}
@@ -0,0 +1,573 @@
+package cscie97.asn1.test;
+
+import cscie97.asn1.knowledge.engine.Importer;
+import cscie97.asn1.knowledge.engine.KnowledgeGraph;
+import cscie97.asn1.knowledge.engine.KnowledgeGraphMetrics;
+import cscie97.asn1.knowledge.engine.Node;
+import cscie97.asn1.knowledge.engine.Predicate;
+import cscie97.asn1.knowledge.engine.QueryEngine;
+import cscie97.asn1.knowledge.engine.Triple;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark harness for comparing settings of the KnowledgeGraph on a given Triple file.  Runs in one of five modes:
+ * <ul>
+ *     <li><code>BenchmarkDriver importFile queryFile</code> loads the import file, then repeatedly parses and
+ *         executes the queries of the query file, and writes their results to an output that discards them</li>
+ *     <li><code>BenchmarkDriver -metrics importFile queryFile</code> loads the import file, then measures the
+ *         query and import paths with {@link KnowledgeGraphMetrics} recording turned off and on, and reports the
+ *         overhead of recording</li>
+ *     <li><code>BenchmarkDriver -storage importFile queryFile</code> loads the import file, then for each index
+ *         storage (heap, off-heap, and compressed) reports the heap used, the time of a full garbage collection,
+ *         and the query latency</li>
+ *     <li><code>BenchmarkDriver -bulk importFile</code> loads the import file into an empty KnowledgeGraph three
+ *         ways, emptying it in between: incrementally in batches with {@link KnowledgeGraph#importTriples(List)}, with
+ *         {@link Importer#importTripleFile(String, int)}, and with {@link Importer#bulkLoadTripleFile(String, int)},
+ *         and reports the time per Triple of each</li>
+ *     <li><code>BenchmarkDriver -incremental tripleCount batchSize</code> imports a synthetic graph from
+ *         {@link GraphGenerator} into an empty KnowledgeGraph in small batches, and reports the time per Triple of
+ *         each quarter of the import; the times stay about the same if the cost of an insert does not grow with
+ *         the size of the graph</li>
+ * </ul>
+ * Each repeated benchmark is warmed up for a fixed time so that the JIT compiler has optimized it, and then run for
+ * a fixed time; the average time, throughput, and number of bytes allocated per operation are reported.  Imports
+ * change the KnowledgeGraph, so they are measured in a single run.
+ * <p>
+ * Regressions in import throughput, in the latency of each of the eight wildcard query shapes, and in query
+ * parsing are measured on a synthetic graph from {@link GraphGenerator} by the JMH benchmarks of the jmh source set
+ * instead; run them with <code>gradle jmh</code>.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph
+ * @see Importer
+ * @see QueryEngine
+ * @see GraphGenerator
+ */
+public class BenchmarkDriver {
+
+    /**
+     * Time, in milliseconds, that each repeated benchmark is warmed up for before it is measured.
+     */
+    private static final long WARMUP_MILLIS = 1000;
+
+    /**
+     * Time, in milliseconds, that each repeated benchmark is measured for.
+     */
+    private static final long MEASURED_MILLIS = 2000;
+
+    /**
+     * Number of operations run between checks of the clock.
+     */
+    private static final int OPERATIONS_PER_CHECK = 16;
+
+    /**
+     * Number of Triples in each batch of the importTriples benchmark.
+     */
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    /**
+     * Number of equal parts of an incremental import that are timed separately.
+     */
+    private static final int INCREMENTAL_PARTS = 4;
+
+    /**
+     * Number of times each benchmark of the metrics overhead is run with recording off and on.
+     */
+    private static final int METRICS_ROUNDS = 3;
+
+    /**
+     * Number of full garbage collections timed for each index storage; the fastest is reported.
+     */
+    private static final int GC_ROUNDS = 3;
+
+    /**
+     * A single benchmarked operation.
+     */
+    private static abstract class Operation {
+
+        /**
+         * Runs the operation once.
+         *
+         * @param input  the number of the input to run the operation with
+         * @return       a value derived from the result, so the JIT compiler cannot discard the work
+         * @throws Exception  if the operation fails
+         */
+        abstract int run(int input) throws Exception;
+    }
+
+    /**
+     * Runs the benchmarks.  Either the arguments are an input file containing one Triple per line and a query file
+     * containing one Triple query per line, or they name one of the other modes followed by its files.
+     *
+     * @param args  the import Triple file and the query file, or a mode followed by its files
+     */
+    public static void main(String[] args) {
+        try {
+            if (args.length == 2 && args[0].equals("-bulk")) {
+                runBulkLoadBenchmarks(args[1]);
+            }
+            else if (args.length == 2) {
+                runFileBenchmarks(args[0], args[1]);
+            }
+            else if (args.length == 3 && args[0].equals("-metrics")) {
+                runMetricsBenchmarks(args[1], args[2]);
+            }
+            else if (args.length == 3 && args[0].equals("-storage")) {
+                runStorageBenchmarks(args[1], args[2]);
+            }
+            else if (args.length == 3 && args[0].equals("-incremental")) {
+                runIncrementalBenchmarks(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            }
+            else {
+                System.out.println("Arguments to BenchmarkDriver should be: 1) import Triple file, and 2) input Query file; "
+                                   + "or: -metrics importFile queryFile; "
+                                   + "or: -storage importFile queryFile; or: -bulk importFile; "
+                                   + "or: -incremental tripleCount batchSize");
+                System.exit(1);
+            }
+        }
+        catch (Exception e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Loads an import file and benchmarks parsing and executing the queries of a query file.
+     *
+     * @param importFilename  the Triple file to import
+     * @param queryFilename   the file of queries to run
+     * @throws Exception  if the files cannot be read or a benchmark fails
+     */
+    private static void runFileBenchmarks(String importFilename, final String queryFilename) throws Exception {
+        Importer.importTripleFile(importFilename);
+        final List<String> queries = readLines(queryFilename);
+        final KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        final List<Triple> parsedQueries = new ArrayList<Triple>();
+        for (String query : queries) {
+            parsedQueries.add(kg.getQueryTripleFromStringIdentifier(query));
+        }
+
+        printHeader();
+        measure("parse query: cleanTripleIdentifier + split", queries.size(), new Operation() {
+            int run(int input) {
+                return kg.cleanTripleIdentifier(queries.get(input)).split("\\s").length;
+            }
+        });
+
+        measure("parse query: getQueryTripleFromStringIdentifier", queries.size(), new Operation() {
+            int run(int input) throws Exception {
+                return kg.getQueryTripleFromStringIdentifier(queries.get(input)).getSubjectId();
+            }
+        });
+
+        measure("execute query: executeQuery + iterate", parsedQueries.size(), new Operation() {
+            int run(int input) {
+                return iterate(kg.executeQuery(parsedQueries.get(input)));
+            }
+        });
+
+        // the whole file is one operation, so the bytes per operation are what writing every result allocates
+        final Writer discard = new Writer() {
+            public void write(char[] chars, int offset, int length) {
+            }
+            public void flush() {
+            }
+            public void close() {
+            }
+        };
+        measure("write results: executeQueryBatch (whole file)", 1, new Operation() {
+            int run(int input) throws Exception {
+                return (int) QueryEngine.executeQueryBatch(queryFilename, 1, discard).getResultCount();
+            }
+        });
+    }
+
+    /**
+     * Loads an import file and measures the overhead of recording metrics: each hot path is measured with
+     * recording turned off and then on, and the difference in time per operation is reported.
+     *
+     * @param importFilename  the Triple file to import
+     * @param queryFilename   the file of queries to run
+     * @throws Exception  if the files cannot be read or a benchmark fails
+     */
+    private static void runMetricsBenchmarks(String importFilename, String queryFilename) throws Exception {
+        Importer.importTripleFile(importFilename);
+        final List<String> queries = readLines(queryFilename);
+        final KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        final List<Triple> parsedQueries = new ArrayList<Triple>();
+        for (String query : queries) {
+            parsedQueries.add(kg.getQueryTripleFromStringIdentifier(query));
+        }
+        // re-importing Triples the KnowledgeGraph already holds exercises the whole import path without growing it
+        final List<Triple> batch = new ArrayList<Triple>(kg.executeQuery(kg.getQueryTripleFromStringIdentifier("? ? ?")));
+
+        String[] names = {
+            "execute query: executeQuery(String) + iterate",
+            "execute query: executeQuery(Triple) + iterate",
+            "import: importTriples (existing Triples)"
+        };
+        Operation[] operations = {
+            new Operation() {
+                int run(int input) throws Exception {
+                    return iterate(kg.executeQuery(queries.get(input)));
+                }
+            },
+            new Operation() {
+                int run(int input) {
+                    return iterate(kg.executeQuery(parsedQueries.get(input)));
+                }
+            },
+            new Operation() {
+                int run(int input) {
+                    kg.importTriples(batch);
+                    return input;
+                }
+            }
+        };
+        int[] inputCounts = { queries.size(), parsedQueries.size(), 1 };
+
+        KnowledgeGraphMetrics metrics = kg.getMetrics();
+        printHeader();
+        for (int i = 0; i < operations.length; i++) {
+            // alternate the settings and keep the best run of each, so that drift in JIT or GC state between runs
+            // is not mistaken for overhead
+            double off = Double.MAX_VALUE;
+            double on = Double.MAX_VALUE;
+            for (int round = 0; round < METRICS_ROUNDS; round++) {
+                metrics.setEnabled(false);
+                off = Math.min(off, measure(names[i] + " [off]", inputCounts[i], operations[i]));
+                metrics.setEnabled(true);
+                on = Math.min(on, measure(names[i] + " [on]", inputCounts[i], operations[i]));
+            }
+            System.out.println(String.format("%-52s %13.1f%%", "  metrics overhead (best of each)", (on - off) * 100 / off));
+        }
+        System.out.println();
+        System.out.println("query latency by shape, mean us: " + metrics.getQueryMeanMicrosByShape());
+    }
+
+    /**
+     * Loads an import file and compares the index storages: for each, the indexes are moved to it, and the heap
+     * used after a full garbage collection, the pause of a full garbage collection, and the query latency are
+     * reported.
+     *
+     * @param importFilename  the Triple file to import
+     * @param queryFilename   the file of queries to run
+     * @throws Exception  if the files cannot be read or a benchmark fails
+     */
+    private static void runStorageBenchmarks(String importFilename, String queryFilename) throws Exception {
+        Importer.importTripleFile(importFilename);
+        final KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        final List<Triple> parsedQueries = new ArrayList<Triple>();
+        for (String query : readLines(queryFilename)) {
+            parsedQueries.add(kg.getQueryTripleFromStringIdentifier(query));
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        for (KnowledgeGraph.IndexStorage storage : KnowledgeGraph.IndexStorage.values()) {
+            kg.setIndexStorage(storage);
+            long pauseNanos = Long.MAX_VALUE;
+            for (int round = 0; round < GC_ROUNDS; round++) {
+                long start = System.nanoTime();
+                System.gc();
+                pauseNanos = Math.min(pauseNanos, System.nanoTime() - start);
+            }
+            System.out.println(String.format("%s: %d triples, heap used %.1f MB, index off heap %.1f MB, full GC %.1f ms",
+                                             storage, kg.getMetrics().getTripleCount(),
+                                             memory.getHeapMemoryUsage().getUsed() / 1048576.0,
+                                             kg.getMetrics().getIndexOffHeapBytes() / 1048576.0,
+                                             pauseNanos / 1000000.0));
+            printHeader();
+            measure("execute query [" + storage + "]: executeQuery(Triple) + iterate", parsedQueries.size(), new Operation() {
+                int run(int input) {
+                    return iterate(kg.executeQuery(parsedQueries.get(input)));
+                }
+            });
+            System.out.println();
+        }
+    }
+
+    /**
+     * Loads an import file into an empty KnowledgeGraph incrementally, with the parallel importer, and with the bulk
+     * loader, emptying the KnowledgeGraph before each, and reports the time of each load.  The incremental load is
+     * given Triples that were parsed beforehand, so it measures only the inserts into the indexes.
+     *
+     * @param importFilename  the Triple file to load
+     * @throws Exception  if the file cannot be read or a benchmark fails
+     */
+    private static void runBulkLoadBenchmarks(final String importFilename) throws Exception {
+        final KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        final int parallelism = Runtime.getRuntime().availableProcessors();
+        final Triple everything = kg.getQueryTripleFromStringIdentifier("? ? ?");
+        clear(kg, everything);
+
+        final List<List<Triple>> batches = new ArrayList<List<Triple>>();
+        List<Triple> batch = new ArrayList<Triple>(IMPORT_BATCH_SIZE);
+        int tripleCount = 0;
+        for (String line : readLines(importFilename)) {
+            batch.add(kg.getQueryTripleFromStringIdentifier(line));
+            tripleCount++;
+            if (batch.size() == IMPORT_BATCH_SIZE) {
+                batches.add(batch);
+                batch = new ArrayList<Triple>(IMPORT_BATCH_SIZE);
+            }
+        }
+        batches.add(batch);
+        System.out.println(importFilename + ": " + tripleCount + " lines, " + parallelism + " threads");
+        printHeader();
+
+        measureOnce("load: KnowledgeGraph.importTriples (per triple)", tripleCount, new Operation() {
+            int run(int input) {
+                for (List<Triple> batch : batches) {
+                    kg.importTriples(batch);
+                }
+                return 0;
+            }
+        });
+        long incrementalCount = kg.getMetrics().getTripleCount();
+        batches.clear();
+        clear(kg, everything);
+
+        measureOnce("load: Importer.importTripleFile (per triple)", tripleCount, new Operation() {
+            int run(int input) throws Exception {
+                Importer.importTripleFile(importFilename, parallelism);
+                return 0;
+            }
+        });
+        long importCount = kg.getMetrics().getTripleCount();
+        clear(kg, everything);
+
+        measureOnce("load: Importer.bulkLoadTripleFile (per triple)", tripleCount, new Operation() {
+            int run(int input) throws Exception {
+                Importer.bulkLoadTripleFile(importFilename, parallelism);
+                return 0;
+            }
+        });
+        System.out.println();
+        System.out.println("triples loaded: incremental " + incrementalCount + ", importTripleFile " + importCount
+                           + ", bulkLoadTripleFile " + kg.getMetrics().getTripleCount());
+    }
+
+    /**
+     * Imports a synthetic graph into an empty KnowledgeGraph in batches of the given size, timing each quarter of the
+     * import separately after a warm-up on the first quarter, and reports how much slower per Triple the last quarter was than the first.  Every batch
+     * touches the posting lists of the most common Predicates, which hold a large share of the graph, so the ratio
+     * stays near 1 only if an insert costs the same however long the posting lists it changes are.
+     *
+     * @param tripleCount  the number of Triples to generate
+     * @param batchSize    the number of Triples in each call to importTriples
+     * @throws Exception   if a benchmark fails
+     */
+    private static void runIncrementalBenchmarks(int tripleCount, int batchSize) throws Exception {
+        final KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        Triple everything = kg.getQueryTripleFromStringIdentifier("? ? ?");
+        clear(kg, everything);
+
+        GraphGenerator generator = new GraphGenerator(Math.max(1, tripleCount / 10), 50, 1.0, 97);
+        int[][] generated = generator.generate(tripleCount);
+        Node[] nodes = new Node[generator.getNodeCount()];
+        for (int node = 0; node < nodes.length; node++) {
+            nodes[node] = new Node(GraphGenerator.nodeIdentifier(node));
+        }
+        Predicate[] predicates = new Predicate[generator.getPredicateCount()];
+        for (int predicate = 0; predicate < predicates.length; predicate++) {
+            predicates[predicate] = new Predicate(GraphGenerator.predicateIdentifier(predicate));
+        }
+        final List<List<Triple>> batches = new ArrayList<List<Triple>>();
+        for (int start = 0; start < tripleCount; start += batchSize) {
+            int end = Math.min(tripleCount, start + batchSize);
+            List<Triple> batch = new ArrayList<Triple>(end - start);
+            for (int t = start; t < end; t++) {
+                batch.add(new Triple(nodes[generated[0][t]], predicates[generated[1][t]], nodes[generated[2][t]]));
+            }
+            batches.add(batch);
+        }
+        // warm up on the first part, so that the first part measured is not slowed by the JIT compiler
+        for (int b = 0; b < batches.size() / INCREMENTAL_PARTS; b++) {
+            kg.importTriples(batches.get(b));
+        }
+        clear(kg, everything);
+
+        System.out.println(tripleCount + " generated triples in batches of " + batchSize);
+        printHeader();
+
+        double first = 0;
+        double last = 0;
+        for (int part = 0; part < INCREMENTAL_PARTS; part++) {
+            final int fromBatch = batches.size() * part / INCREMENTAL_PARTS;
+            final int toBatch = batches.size() * (part + 1) / INCREMENTAL_PARTS;
+            long triples = 0;
+            for (int b = fromBatch; b < toBatch; b++) {
+                triples += batches.get(b).size();
+            }
+            long start = System.nanoTime();
+            measureOnce("import: importTriples, part " + (part + 1) + " of " + INCREMENTAL_PARTS + " (per triple)",
+                        triples, new Operation() {
+                int run(int input) {
+                    for (int b = fromBatch; b < toBatch; b++) {
+                        kg.importTriples(batches.get(b));
+                    }
+                    return 0;
+                }
+            });
+            last = (double) (System.nanoTime() - start) / triples;
+            if (part == 0) {
+                first = last;
+            }
+        }
+        System.out.println();
+        System.out.println(String.format("triples held %d; last part / first part time per triple: %.2f",
+                                         kg.getMetrics().getTripleCount(), last / first));
+    }
+
+    /**
+     * Removes every Triple from the KnowledgeGraph, and collects the garbage the removed Triples leave.
+     *
+     * @param kg          the KnowledgeGraph to empty
+     * @param everything  the query that matches every Triple
+     */
+    private static void clear(KnowledgeGraph kg, Triple everything) {
+        kg.removeTriples(new ArrayList<Triple>(kg.executeQuery(everything)));
+        System.gc();
+    }
+
+    /**
+     * Iterates over a query result, touching each Triple.
+     *
+     * @param result  the query result
+     * @return        a value derived from the result, so the JIT compiler cannot discard the work
+     */
+    private static int iterate(Iterable<Triple> result) {
+        int sink = 0;
+        for (Triple triple : result) {
+            sink += triple.getObjectId();
+        }
+        return sink;
+    }
+
+    /**
+     * Prints the column headings of the benchmark results.
+     */
+    private static void printHeader() {
+        System.out.println(String.format("%-52s %14s %14s %14s", "benchmark", "ns/op", "ops/s", "bytes/op"));
+    }
+
+    /**
+     * Prints one line of benchmark results.
+     *
+     * @param name        the name of the benchmark
+     * @param operations  the number of operations measured
+     * @param elapsed     the measured time in nanoseconds
+     * @param allocated   the bytes allocated while measuring, or a negative number if unknown
+     */
+    private static void report(String name, long operations, long elapsed, long allocated) {
+        System.out.println(String.format("%-52s %14.1f %14.0f %14.1f", name,
+                                         (double) elapsed / operations,
+                                         operations * 1e9 / elapsed,
+                                         (allocated < 0) ? Double.NaN : (double) allocated / operations));
+    }
+
+    /**
+     * Warms up and then measures an operation, cycling through its inputs, printing the average time, throughput,
+     * and bytes allocated per operation.
+     *
+     * @param name        the name of the benchmark
+     * @param inputCount  the number of inputs of the operation
+     * @param operation   the operation to measure
+     * @return            the average time per operation, in nanoseconds
+     * @throws Exception  if the operation fails
+     */
+    private static double measure(String name, int inputCount, Operation operation) throws Exception {
+        int sink = 0;
+        long deadline = System.nanoTime() + WARMUP_MILLIS * 1000000;
+        long operations = 0;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < OPERATIONS_PER_CHECK; i++) {
+                sink += operation.run((int) (operations++ % inputCount));
+            }
+        }
+
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        deadline = startTime + MEASURED_MILLIS * 1000000;
+        operations = 0;
+        long now;
+        do {
+            for (int i = 0; i < OPERATIONS_PER_CHECK; i++) {
+                sink += operation.run((int) (operations++ % inputCount));
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        long allocated = allocatedBytes() - startBytes;
+
+        report(name, operations, now - startTime, (startBytes < 0) ? -1 : allocated);
+        if (sink == 42) {
+            System.out.println();
+        }
+        return (double) (now - startTime) / operations;
+    }
+
+    /**
+     * Measures a single run of an operation that does a known number of units of work, such as importing a number
+     * of Triples, and prints the average time, throughput, and bytes allocated per unit of work.
+     *
+     * @param name       the name of the benchmark
+     * @param units      the number of units of work done by the operation
+     * @param operation  the operation to measure
+     * @throws Exception  if the operation fails
+     */
+    private static void measureOnce(String name, long units, Operation operation) throws Exception {
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        operation.run(0);
+        long elapsed = System.nanoTime() - startTime;
+        long allocated = allocatedBytes() - startBytes;
+        report(name, units, elapsed, (startBytes < 0) ? -1 : allocated);
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or -1 if the JVM cannot report it.
+     *
+     * @return  the bytes allocated by the current thread
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the non-empty lines of a file.
+     *
+     * @param filename  the file to read
+     * @return          the non-empty lines of the file
+     * @throws IOException  if the file cannot be read
+     */
+    private static List<String> readLines(String filename) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() > 0) {
+                    lines.add(line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,189 @@
+package cscie97.asn1.test;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates a synthetic knowledge graph for benchmarks.  Node and Predicate identifiers are "node0", "node1", ...
+ * and "predicate_0", "predicate_1", ...; the subject, predicate, and object of each Triple are drawn from a Zipf
+ * distribution, so with a skew above 0 a few hub Nodes and common Predicates take part in most of the Triples, as
+ * in real graphs.  A skew of 0 draws every part uniformly.  The same seed always generates the same graph.  The
+ * JMH benchmarks of the jmh source set import and query the graphs it generates.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see BenchmarkDriver
+ */
+public class GraphGenerator {
+
+    /**
+     * The number of distinct Nodes to draw subjects and objects from.
+     */
+    private final int nodeCount;
+
+    /**
+     * The number of distinct Predicates to draw from.
+     */
+    private final int predicateCount;
+
+    /**
+     * Cumulative Zipf probabilities of drawing each Node, by Node number.
+     */
+    private final double[] nodeDistribution;
+
+    /**
+     * Cumulative Zipf probabilities of drawing each Predicate, by Predicate number.
+     */
+    private final double[] predicateDistribution;
+
+    /**
+     * Source of the generated Triples.
+     */
+    private final Random random;
+
+    /**
+     * Class constructor.
+     *
+     * @param nodeCount       the number of distinct Nodes to draw subjects and objects from
+     * @param predicateCount  the number of distinct Predicates to draw from
+     * @param skew            the Zipf exponent of the degree distribution; 0 for uniform
+     * @param seed            the random seed
+     */
+    public GraphGenerator(int nodeCount, int predicateCount, double skew, long seed) {
+        this.nodeCount = nodeCount;
+        this.predicateCount = predicateCount;
+        this.nodeDistribution = zipf(nodeCount, skew);
+        this.predicateDistribution = zipf(predicateCount, skew);
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Builds the cumulative Zipf distribution over the given number of items.
+     *
+     * @param count  the number of items
+     * @param skew   the Zipf exponent
+     * @return       the cumulative probability of drawing each item or an earlier one
+     */
+    private static double[] zipf(int count, double skew) {
+        double[] cumulative = new double[count];
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            total += 1.0 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < count; i++) {
+            cumulative[i] /= total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Draws an item from a cumulative distribution.
+     *
+     * @param cumulative  the cumulative distribution
+     * @return            the number of the drawn item
+     */
+    private int draw(double[] cumulative) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min((index >= 0) ? index : -index - 1, cumulative.length - 1);
+    }
+
+    /**
+     * Draws the Node number of the next subject or object.
+     *
+     * @return  a Node number, from 0 to nodeCount - 1
+     */
+    public int nextNode() {
+        return draw(nodeDistribution);
+    }
+
+    /**
+     * Draws the number of the next Predicate.
+     *
+     * @return  a Predicate number, from 0 to predicateCount - 1
+     */
+    public int nextPredicate() {
+        return draw(predicateDistribution);
+    }
+
+    /**
+     * Generates Triples as Node and Predicate numbers.
+     *
+     * @param tripleCount  the number of Triples to generate
+     * @return             the subject, predicate, and object numbers of each Triple, as three parallel arrays
+     */
+    public int[][] generate(int tripleCount) {
+        int[][] triples = new int[3][tripleCount];
+        for (int i = 0; i < tripleCount; i++) {
+            triples[0][i] = nextNode();
+            triples[1][i] = nextPredicate();
+            triples[2][i] = nextNode();
+        }
+        return triples;
+    }
+
+    /**
+     * Writes generated Triples to a Triple file in the format read by the Importer.
+     *
+     * @param triples   Triples returned by {@link #generate(int)}
+     * @param filename  the file to write
+     * @throws IOException  if the file cannot be written
+     */
+    public static void writeTripleFile(int[][] triples, String filename) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+        try {
+            for (int i = 0; i < triples[0].length; i++) {
+                writer.write(nodeIdentifier(triples[0][i]));
+                writer.write(' ');
+                writer.write(predicateIdentifier(triples[1][i]));
+                writer.write(' ');
+                writer.write(nodeIdentifier(triples[2][i]));
+                writer.write(".\n");
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the identifier of a generated Node.
+     *
+     * @param node  the Node number
+     * @return      the Node identifier
+     */
+    public static String nodeIdentifier(int node) {
+        return "node" + node;
+    }
+
+    /**
+     * Returns the identifier of a generated Predicate.
+     *
+     * @param predicate  the Predicate number
+     * @return           the Predicate identifier
+     */
+    public static String predicateIdentifier(int predicate) {
+        return "predicate_" + predicate;
+    }
+
+    /**
+     * Returns the number of distinct Nodes the generator draws from.
+     *
+     * @return  the number of Nodes
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of distinct Predicates the generator draws from.
+     *
+     * @return  the number of Predicates
+     */
+    public int getPredicateCount() {
+        return predicateCount;
+    }
+}
@@ -0,0 +1,162 @@
+package cscie97.asn1.test;
+
+import cscie97.asn1.knowledge.engine.Node;
+import cscie97.asn1.knowledge.engine.Predicate;
+import cscie97.asn1.knowledge.engine.ShardedKnowledgeGraph;
+import cscie97.asn1.knowledge.engine.Triple;
+import cscie97.asn1.knowledge.engine.exception.ParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that the Triples returned by a ShardedKnowledgeGraph behave as a set.  Each shard numbers its terms on its
+ * own, so Triples from different shards often have the same ids; they must still be distinct, equal only to the
+ * Triples with the same subject, predicate, and object, and usable together in a HashSet.  Exits with status 1 if
+ * any check fails.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see ShardedKnowledgeGraph
+ * @see Triple
+ */
+public class ShardDriver {
+
+    /**
+     * Number of distinct subject and object Nodes in the generated Triples of the larger check.
+     */
+    private static final int NODE_COUNT = 500;
+
+    /**
+     * Number of distinct Predicates in the generated Triples of the larger check.
+     */
+    private static final int PREDICATE_COUNT = 10;
+
+    /**
+     * Runs the checks.  An optional argument is the number of Triples for the larger check (default 20000).
+     *
+     * @param args              optional number of Triples
+     * @throws ParseException   if a query cannot be parsed
+     */
+    public static void main(String[] args) throws ParseException {
+        int tripleCount = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        List<String> failures = new ArrayList<String>();
+
+        // 20 Triples over 2 shards: each shard numbers its own terms from 0, so the ids collide across shards
+        ShardedKnowledgeGraph twoShards = new ShardedKnowledgeGraph(2);
+        List<Triple> triples = new ArrayList<Triple>();
+        for (int i = 0; i < 20; i++) {
+            triples.add(triple("s" + i, "p", "o" + i));
+        }
+        twoShards.importTriples(triples);
+        Set<Triple> result = twoShards.executeQuery("? p ?");
+        checkSet("? p ? over 2 shards", result, new HashSet<Triple>(triples), triples, failures);
+        List<Triple> returned = new ArrayList<Triple>(result);
+        for (int i = 0; i < returned.size(); i++) {
+            for (int j = i + 1; j < returned.size(); j++) {
+                if (returned.get(i).equals(returned.get(j))) {
+                    failures.add(returned.get(i).getIdentifier() + " equals " + returned.get(j).getIdentifier());
+                }
+            }
+        }
+        Triple upperCase = triple("S18", "P", "O18");
+        if (!result.contains(upperCase) || !new HashSet<Triple>(result).contains(upperCase)) {
+            failures.add("? p ? over 2 shards does not contain " + upperCase.getIdentifier());
+        }
+        if (result.contains(triple("s18", "p", "o19"))) {
+            failures.add("? p ? over 2 shards contains s18 p o19.");
+        }
+        twoShards.shutdown();
+
+        // random Triples over 4 shards, including duplicates that differ only in case
+        ShardedKnowledgeGraph fourShards = new ShardedKnowledgeGraph(4);
+        Random random = new Random(97);
+        List<Triple> generated = new ArrayList<Triple>(tripleCount);
+        for (int i = 0; i < tripleCount; i++) {
+            String subject = "Node" + random.nextInt(NODE_COUNT);
+            String predicate = "predicate_" + random.nextInt(PREDICATE_COUNT);
+            String object = "Node" + random.nextInt(NODE_COUNT);
+            generated.add(random.nextBoolean() ? triple(subject, predicate, object)
+                                               : triple(subject.toUpperCase(), predicate, object.toLowerCase()));
+        }
+        fourShards.importTriples(generated);
+        Set<Triple> expected = new HashSet<Triple>(generated);
+        checkSet("? ? ? over 4 shards", fourShards.executeQuery("? ? ?"), expected, generated, failures);
+        checkSet("? predicate_3 ? over 4 shards", fourShards.executeQuery("? predicate_3 ?"),
+                 matching(expected, "predicate_3"), generated, failures);
+        fourShards.shutdown();
+
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.out.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+
+    /**
+     * Checks that a query result, and a HashSet of its Triples, hold exactly the expected Triples, and that the
+     * result contains none of the other candidate Triples.
+     *
+     * @param query       describes the query, for the failure messages
+     * @param result      the Triples returned by the query
+     * @param expected    the Triples the query should return, built outside of any KnowledgeGraph
+     * @param candidates  Triples that the result contains only if they are expected
+     * @param failures    receives a message for each failed check
+     */
+    private static void checkSet(String query, Set<Triple> result, Set<Triple> expected, List<Triple> candidates,
+                                 List<String> failures) {
+        Set<Triple> copy = new HashSet<Triple>(result);
+        if (result.size() != expected.size() || copy.size() != expected.size()) {
+            failures.add(query + " returned " + result.size() + " Triples, " + copy.size() + " distinct, expected "
+                         + expected.size());
+        }
+        if (!copy.equals(expected) || !expected.equals(copy)) {
+            failures.add(query + " does not return the expected Triples");
+        }
+        for (Triple triple : expected) {
+            if (!result.contains(triple)) {
+                failures.add(query + " does not contain " + triple.getIdentifier());
+                return;
+            }
+        }
+        for (Triple triple : candidates) {
+            if (!expected.contains(triple) && result.contains(triple)) {
+                failures.add(query + " contains " + triple.getIdentifier());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the Triples of a set that have the given Predicate.
+     *
+     * @param triples    the Triples to filter
+     * @param predicate  the identifier of the Predicate to keep
+     * @return           the Triples with that Predicate
+     */
+    private static Set<Triple> matching(Set<Triple> triples, String predicate) {
+        Set<Triple> matching = new HashSet<Triple>();
+        for (Triple triple : triples) {
+            if (triple.getPredicate().getIdentifier().equalsIgnoreCase(predicate)) {
+                matching.add(triple);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Builds a Triple outside of any KnowledgeGraph.
+     *
+     * @param subject    the identifier of the subject
+     * @param predicate  the identifier of the Predicate
+     * @param object     the identifier of the object
+     * @return           the Triple
+     */
+    private static Triple triple(String subject, String predicate, String object) {
+        return new Triple(new Node(subject), new Predicate(predicate), new Node(object));
+    }
+}
@@ -0,0 +1,175 @@
+package cscie97.asn1.test;
+
+import cscie97.asn1.knowledge.engine.KnowledgeGraph;
+import cscie97.asn1.knowledge.engine.Triple;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrency stress harness for the KnowledgeGraph.  A loader thread imports generated Triples in batches while a
+ * number of query threads continuously run every kind of wildcard query against the live KnowledgeGraph.  Each query
+ * thread checks that every returned Triple matches its query, and that the number of Triples matching a fixed query
+ * never goes down while Triples are only being added.  Once loading finishes, the final contents of the
+ * KnowledgeGraph are compared with the generated Triples.  Exits with status 1 if any check fails.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph
+ */
+public class StressDriver {
+
+    /**
+     * Number of distinct subject and object Nodes in the generated Triples.
+     */
+    private static final int NODE_COUNT = 2000;
+
+    /**
+     * Number of distinct Predicates in the generated Triples.
+     */
+    private static final int PREDICATE_COUNT = 20;
+
+    /**
+     * Number of Triples imported by the loader thread in each call to importTriples.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Runs the stress test.  Optional arguments are the number of query threads (default 8) and the number of
+     * Triples to import (default 500000).
+     *
+     * @param args  optional number of query threads and number of Triples
+     * @throws InterruptedException  if interrupted while waiting for the loader or query threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int queryThreadCount = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        final int tripleCount = (args.length > 1) ? Integer.parseInt(args[1]) : 500000;
+
+        final KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        final AtomicBoolean loading = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicLong queriesRun = new AtomicLong();
+        final CountDownLatch started = new CountDownLatch(queryThreadCount);
+
+        final Set<String> expected = new HashSet<String>();
+        final Random random = new Random(97);
+        final String[][] generated = new String[tripleCount][];
+        for (int i = 0; i < tripleCount; i++) {
+            generated[i] = new String[] { "Node" + random.nextInt(NODE_COUNT),
+                                          "predicate_" + random.nextInt(PREDICATE_COUNT),
+                                          "Node" + random.nextInt(NODE_COUNT) };
+            expected.add((generated[i][0] + " " + generated[i][1] + " " + generated[i][2]).toLowerCase());
+        }
+
+        Thread loader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    started.await();
+                    List<Triple> batch = new ArrayList<Triple>(BATCH_SIZE);
+                    for (int i = 0; i < tripleCount; i++) {
+                        batch.add(new Triple(kg.getNode(generated[i][0]), kg.getPredicate(generated[i][1]), kg.getNode(generated[i][2])));
+                        if (batch.size() == BATCH_SIZE || i == tripleCount - 1) {
+                            kg.importTriples(batch);
+                            batch = new ArrayList<Triple>(BATCH_SIZE);
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    failure.compareAndSet(null, "loader failed: " + e);
+                }
+                finally {
+                    loading.set(false);
+                }
+            }
+        }, "loader");
+
+        List<Thread> queryThreads = new ArrayList<Thread>();
+        for (int t = 0; t < queryThreadCount; t++) {
+            final Random queryRandom = new Random(t);
+            Thread queryThread = new Thread(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    String probe = "? predicate_" + queryRandom.nextInt(PREDICATE_COUNT) + " ?";
+                    int lastProbeCount = 0;
+                    try {
+                        while (loading.get() && failure.get() == null) {
+                            String subject = queryRandom.nextBoolean() ? "?" : "node" + queryRandom.nextInt(NODE_COUNT);
+                            String predicate = queryRandom.nextBoolean() ? "?" : "PREDICATE_" + queryRandom.nextInt(PREDICATE_COUNT);
+                            String object = queryRandom.nextBoolean() ? "?" : "NODE" + queryRandom.nextInt(NODE_COUNT);
+                            if (subject.equals("?") && predicate.equals("?") && object.equals("?")) {
+                                subject = "node" + queryRandom.nextInt(NODE_COUNT);
+                            }
+                            for (Triple triple : kg.executeQuery(kg.getQueryTripleFromStringIdentifier(subject + " " + predicate + " " + object + "."))) {
+                                if (!matches(subject, triple.getSubject().getIdentifier())
+                                        || !matches(predicate, triple.getPredicate().getIdentifier())
+                                        || !matches(object, triple.getObject().getIdentifier())) {
+                                    failure.compareAndSet(null, "query [" + subject + " " + predicate + " " + object + "] returned " + triple.getIdentifier());
+                                }
+                            }
+
+                            int probeCount = kg.executeQuery(kg.getQueryTripleFromStringIdentifier(probe)).size();
+                            if (probeCount < lastProbeCount) {
+                                failure.compareAndSet(null, "query [" + probe + "] went from " + lastProbeCount + " to " + probeCount + " Triples");
+                            }
+                            lastProbeCount = probeCount;
+                            queriesRun.addAndGet(2);
+                        }
+                    }
+                    catch (Exception e) {
+                        failure.compareAndSet(null, "query thread failed: " + e);
+                    }
+                }
+            }, "query-" + t);
+            queryThreads.add(queryThread);
+            queryThread.start();
+        }
+
+        long startTime = System.nanoTime();
+        loader.start();
+        loader.join();
+        for (Thread queryThread : queryThreads) {
+            queryThread.join();
+        }
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+
+        if (failure.get() == null) {
+            Set<String> loaded = new HashSet<String>();
+            try {
+                for (Triple triple : kg.executeQuery(kg.getQueryTripleFromStringIdentifier("? ? ?"))) {
+                    loaded.add(triple.getIdentifier().toLowerCase().replaceAll("\\.$", ""));
+                }
+            }
+            catch (Exception e) {
+                failure.compareAndSet(null, "final query failed: " + e);
+            }
+            if (!loaded.equals(expected)) {
+                failure.compareAndSet(null, "KnowledgeGraph holds " + loaded.size() + " Triples, expected " + expected.size());
+            }
+        }
+
+        System.out.println("Imported " + tripleCount + " Triples (" + expected.size() + " unique) in " + elapsedMillis
+                           + " ms while " + queryThreadCount + " threads ran " + queriesRun.get() + " queries");
+        if (failure.get() != null) {
+            System.out.println("FAILED: " + failure.get());
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+
+    /**
+     * Returns whether one part of a returned Triple matches the same part of the query.
+     *
+     * @param queryPart   the part of the query; "?" matches anything
+     * @param identifier  the identifier of the returned Triple's part
+     * @return            true if the part matches
+     */
+    private static boolean matches(String queryPart, String identifier) {
+        return queryPart.equals("?") || queryPart.equalsIgnoreCase(identifier);
+    }
+}
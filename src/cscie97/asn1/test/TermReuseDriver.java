@@ -0,0 +1,158 @@
+package cscie97.asn1.test;
+
+import cscie97.asn1.knowledge.engine.KnowledgeGraph;
+import cscie97.asn1.knowledge.engine.Node;
+import cscie97.asn1.knowledge.engine.Triple;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that lookups running while terms are released and their ids reused never resolve a name to the id of
+ * another term.  A churn thread imports Triples whose subjects are new names, removes them again a few rounds
+ * later so that their Nodes are released, and runs the garbage collector now and then so the released ids are
+ * reused by the names that follow.  Meanwhile query threads look up recent names, both live and released, and
+ * check that every returned Triple has the subject they asked for.  Exits with status 1 if any check fails.
+ *
+ * @author David Killeffer <rayden7@gmail.com>
+ * @version 1.0
+ * @see KnowledgeGraph
+ * @see StressDriver
+ */
+public class TermReuseDriver {
+
+    /**
+     * Number of new subject names imported by the churn thread in each round.
+     */
+    private static final int NAMES_PER_ROUND = 20;
+
+    /**
+     * Number of rounds a round's Triples stay in the KnowledgeGraph before they are removed.
+     */
+    private static final int LIVE_ROUNDS = 5;
+
+    /**
+     * Number of rounds between two requests for garbage collection, which lets released ids be reused.
+     */
+    private static final int GC_INTERVAL = 50;
+
+    /**
+     * Runs the check.  Optional arguments are the number of query threads (default 4) and the number of churn
+     * rounds (default 3000).
+     *
+     * @param args  optional number of query threads and number of rounds
+     * @throws InterruptedException  if interrupted while waiting for the churn or query threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int queryThreadCount = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        final int roundCount = (args.length > 1) ? Integer.parseInt(args[1]) : 3000;
+
+        final KnowledgeGraph kg = KnowledgeGraph.getInstance();
+        final AtomicBoolean churning = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicInteger currentRound = new AtomicInteger();
+        final AtomicLong queriesRun = new AtomicLong();
+        final AtomicLong reusedIds = new AtomicLong();
+
+        Thread churn = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    List<List<Triple>> live = new ArrayList<List<Triple>>();
+                    int highestId = -1;
+                    for (int round = 0; round < roundCount && failure.get() == null; round++) {
+                        List<Triple> batch = new ArrayList<Triple>(NAMES_PER_ROUND);
+                        for (int i = 0; i < NAMES_PER_ROUND; i++) {
+                            Node subject = kg.getNode(name(round, i));
+                            if (subject.getId() < highestId) {
+                                reusedIds.incrementAndGet();
+                            }
+                            highestId = Math.max(highestId, subject.getId());
+                            batch.add(new Triple(subject, kg.getPredicate("reuse_predicate"), kg.getNode("reuse_object")));
+                        }
+                        kg.importTriples(batch);
+                        currentRound.set(round);
+                        live.add(batch);
+                        if (live.size() > LIVE_ROUNDS) {
+                            kg.removeTriples(live.remove(0));
+                        }
+                        if (round % GC_INTERVAL == 0) {
+                            System.gc();
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    failure.compareAndSet(null, "churn failed: " + e);
+                }
+                finally {
+                    churning.set(false);
+                }
+            }
+        }, "churn");
+
+        List<Thread> queryThreads = new ArrayList<Thread>();
+        for (int t = 0; t < queryThreadCount; t++) {
+            final Random queryRandom = new Random(t);
+            Thread queryThread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (churning.get() && failure.get() == null) {
+                            // a name from the last few rounds: live, being removed, or already released
+                            int round = currentRound.get() - queryRandom.nextInt(2 * LIVE_ROUNDS + 2);
+                            if (round < 0) {
+                                continue;
+                            }
+                            String subject = name(round, queryRandom.nextInt(NAMES_PER_ROUND));
+                            for (Triple triple : kg.executeQuery(subject + " reuse_predicate ?")) {
+                                if (!subject.equalsIgnoreCase(triple.getSubject().getIdentifier())) {
+                                    failure.compareAndSet(null, "query [" + subject + " reuse_predicate ?] returned "
+                                                                + triple.getIdentifier());
+                                }
+                            }
+                            queriesRun.incrementAndGet();
+                        }
+                    }
+                    catch (Exception e) {
+                        failure.compareAndSet(null, "query thread failed: " + e);
+                    }
+                }
+            }, "query-" + t);
+            queryThreads.add(queryThread);
+            queryThread.start();
+        }
+
+        long startTime = System.nanoTime();
+        churn.start();
+        churn.join();
+        for (Thread queryThread : queryThreads) {
+            queryThread.join();
+        }
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+
+        if (failure.get() == null && reusedIds.get() == 0) {
+            failure.set("no released id was reused, so the lookups were not checked against reuse");
+        }
+
+        System.out.println("Churned " + roundCount + " rounds (" + reusedIds.get() + " ids reused) in " + elapsedMillis
+                           + " ms while " + queryThreadCount + " threads ran " + queriesRun.get() + " queries");
+        if (failure.get() != null) {
+            System.out.println("FAILED: " + failure.get());
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+
+    /**
+     * Returns the subject name imported by the churn thread for a round.
+     *
+     * @param round  the round
+     * @param index  the position of the name within the round
+     * @return       the name
+     */
+    private static String name(int round, int index) {
+        return "reuse_" + round + "_" + index;
+    }
+}